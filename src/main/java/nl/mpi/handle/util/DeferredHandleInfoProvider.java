@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.Future;
+import net.handle.hdllib.HandleValue;
+
+/**
+ * A {@link HandleInfoProvider} which can start reading the file (e.g. to
+ * calculate its checksum) as soon as it is known, so that the reading
+ * overlaps with other work (validation, connecting to the Handle System)
+ * and the information is only waited for when the handle is created.
+ */
+public interface DeferredHandleInfoProvider extends HandleInfoProvider {
+    
+    /**
+     * Starts creating the information for the handle, based on the file and URI.
+     * Cancelling the returned future stops the reading of the file, if it did not finish yet.
+     * @param file
+     * @param uri
+     * @return future handle information
+     */
+    public Future<HandleValue[]> prepareHandleInformation(File file, URI uri);
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import java.nio.file.Path;
+
+/**
+ * Receives the results of a fixity audit, as they are produced.
+ * Implementations must be thread-safe, since the results are reported
+ * from multiple threads.
+ */
+public interface FixityAuditListener {
+    
+    /**
+     * Called when the size and checksum of a file match the ones stored in its handle.
+     * @param handle the handle
+     * @param file the file
+     */
+    public void fixityVerified(String handle, Path file);
+    
+    /**
+     * Called when the size or checksum of a file differ from the ones stored in its handle.
+     * @param handle the handle
+     * @param file the file
+     * @param expectedChecksum checksum stored in the handle (if several digests are verified, the first one which differs)
+     * @param actualChecksum checksum of the file, or null if not calculated (because the size differs)
+     * @param expectedSize size stored in the handle, or -1 if none
+     * @param actualSize size of the file
+     */
+    public void fixityMismatch(String handle, Path file, String expectedChecksum, String actualChecksum,
+            long expectedSize, long actualSize);
+    
+    /**
+     * Called when a handle could not be verified (e.g. it could not be resolved,
+     * it has no checksum or its file could not be found or read).
+     * @param handle the handle
+     * @param cause reason of the failure
+     */
+    public void verificationFailed(String handle, Exception cause);
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import java.net.URI;
+import java.nio.file.Path;
+
+/**
+ * Receives the results of a bulk handle assignment, as they are produced.
+ * Implementations must be thread-safe, since the results are reported
+ * from multiple threads.
+ */
+public interface HandleAssignmentListener {
+    
+    /**
+     * Called when a handle was successfully assigned to a file.
+     * @param file the file
+     * @param handle the assigned handle
+     * @param checksum checksum of the file, as stored in the handle
+     */
+    public void handleAssigned(Path file, URI handle, String checksum);
+    
+    /**
+     * Called when a handle could not be assigned to a file
+     * (or when a file or folder could not be read).
+     * @param file the file
+     * @param cause reason of the failure
+     */
+    public void assignmentFailed(Path file, Exception cause);
+}
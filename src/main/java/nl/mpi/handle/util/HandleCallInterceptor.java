@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import net.handle.hdllib.HandleException;
+
+/**
+ * Intercepts the calls made to the Handle System, allowing for additional
+ * behaviour (e.g. timeouts, retries) to be added around them.
+ */
+public interface HandleCallInterceptor {
+    
+    /**
+     * Intercepts the given call. Implementations are expected to
+     * eventually invoke {@link HandleCall#call()} (once or more),
+     * unless they decide to fail the call.
+     * @param <T> type of the result of the call
+     * @param operation operation being performed
+     * @param handle handle being acted upon
+     * @param call the call to the Handle System
+     * @return result of the call
+     * @throws HandleException if the call fails or is rejected
+     */
+    public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException;
+}
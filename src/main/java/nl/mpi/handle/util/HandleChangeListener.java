@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import net.handle.hdllib.HandleValue;
+
+/**
+ * Notified of the changes made to handles through a {@link HandleManager},
+ * after they were successfully applied in the Handle System.
+ * Implementations must be thread-safe and should not block for long,
+ * since they are called from the thread making the change.
+ */
+public interface HandleChangeListener {
+    
+    /**
+     * Called after a handle was created.
+     * @param handle the handle, without proxy
+     * @param values the values of the new handle
+     */
+    public void handleCreated(String handle, HandleValue[] values);
+    
+    /**
+     * Called after the values of a handle were updated.
+     * @param handle the handle, as given to the manager
+     * @param values the new values of the handle
+     */
+    public void handleUpdated(String handle, HandleValue[] values);
+    
+    /**
+     * Called after a handle was deleted.
+     * @param handle the handle, as given to the manager
+     */
+    public void handleDeleted(String handle);
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+/**
+ * Receives the measurements taken during handle operations.
+ * 
+ * Metric names are built from the constants in this interface, e.g.
+ * <CODE>OPERATION_PREFIX + HandleOperation.CREATE</CODE> for the latency
+ * of the handle creation calls to the server, or
+ * <CODE>ERROR_PREFIX + code</CODE> for the count of
+ * <CODE>HandleException</CODE>s with a certain code.
+ */
+public interface HandleMetrics {
+    
+    /**
+     * Prefix of the latencies of the calls to the Handle System,
+     * per {@link HandleOperation}.
+     */
+    public static final String OPERATION_PREFIX = "operation.";
+    
+    /**
+     * Prefix of the latencies of the operations of the {@link HandleManager}.
+     */
+    public static final String MANAGER_PREFIX = "manager.";
+    
+    /**
+     * Prefix of the latencies of the phases which compose an operation.
+     */
+    public static final String PHASE_PREFIX = "phase.";
+    
+    /**
+     * Prefix of the counters of errors, per <CODE>HandleException</CODE> code.
+     */
+    public static final String ERROR_PREFIX = "error.";
+    
+    /**
+     * Prefix of the gauges reporting the usage of pools and queues.
+     */
+    public static final String POOL_PREFIX = "pool.";
+    
+    public static final String PHASE_KEY_LOADING = PHASE_PREFIX + "keyLoading";
+    public static final String PHASE_AUTHENTICATION = PHASE_PREFIX + "authentication";
+    public static final String PHASE_CHECKSUM = PHASE_PREFIX + "checksum";
+    public static final String PHASE_HANDLE_INFORMATION = PHASE_PREFIX + "handleInformation";
+    
+    /**
+     * Records the duration of an operation or phase.
+     * @param name name of the metric
+     * @param durationNanos duration, in nanoseconds
+     */
+    public void recordLatency(String name, long durationNanos);
+    
+    /**
+     * Increments the counter with the given name.
+     * @param name name of the metric
+     */
+    public void incrementCounter(String name);
+    
+    /**
+     * Registers a gauge, which will be read whenever the metric is reported.
+     * @param name name of the metric
+     * @param gauge gauge to register
+     */
+    public void registerGauge(String name, Gauge gauge);
+    
+    /**
+     * Value which is sampled on demand, e.g. the number of active threads in a pool.
+     */
+    public interface Gauge {
+        
+        /**
+         * @return current value of the gauge
+         */
+        public long getValue();
+    }
+}
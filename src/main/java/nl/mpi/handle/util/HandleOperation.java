@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+/**
+ * Operations performed against the Handle System through an
+ * <CODE>HSAdapter</CODE>.
+ */
+public enum HandleOperation {
+    
+    CREATE,
+    UPDATE,
+    ADD_VALUES,
+    DELETE_VALUES,
+    DELETE,
+    RESOLVE
+}
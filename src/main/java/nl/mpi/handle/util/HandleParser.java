@@ -35,7 +35,7 @@ public interface HandleParser {
     /**
      * @param uri
      * @return true if uri starts with one of the known proxies
-     * ("hdl:" or "http://hdl.handle.net/").
+     * ("hdl:" or one of the long ones, such as "http://hdl.handle.net/"), regardless of case.
      */
     public boolean startsWithKnownHandleProxy(URI uri);
     
@@ -100,7 +100,7 @@ public interface HandleParser {
     
     /**
      * Removes the proxy or scheme from a handle string
-     * @param handleString a handle string, with or without scheme ("hdl:") or proxy ("http://hdl.handle.net/")
+     * @param handleString a handle string, with or without scheme ("hdl:") or one of the known proxies (such as "http://hdl.handle.net/")
      * @return the handle, without scheme or proxy; or the input string itself in case no schema or proxy was detected
      */
     public String getHandleWithoutProxy(String handleString);
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+/**
+ * A timed step (e.g. checksum calculation, call to the server) within a
+ * handle operation. Spans started while another one is active become its
+ * children, forming a trace.
+ * 
+ * Spans are meant to be used in a try-with-resources statement, so that
+ * they are always closed.
+ */
+public interface HandleSpan extends AutoCloseable {
+    
+    /**
+     * @return identifier of the trace to which the span belongs
+     */
+    public long getTraceId();
+    
+    /**
+     * @return identifier of the span
+     */
+    public long getSpanId();
+    
+    /**
+     * @return identifier of the parent span, or 0 if this is the root of the trace
+     */
+    public long getParentId();
+    
+    /**
+     * @return name of the step
+     */
+    public String getName();
+    
+    /**
+     * @return additional information about the step (e.g. the handle), or null
+     */
+    public String getDetail();
+    
+    /**
+     * @param detail additional information about the step (e.g. the handle)
+     */
+    public void setDetail(String detail);
+    
+    /**
+     * @return start time of the span, in microseconds since the epoch
+     */
+    public long getStartEpochMicros();
+    
+    /**
+     * @return duration of the span, in nanoseconds (0 while it is not closed)
+     */
+    public long getDurationNanos();
+    
+    /**
+     * Ends the span.
+     */
+    @Override
+    public void close();
+}
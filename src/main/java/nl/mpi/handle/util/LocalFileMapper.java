@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util;
+
+import java.net.URI;
+import java.nio.file.Path;
+
+/**
+ * Maps the URI targeted by a handle back to the local file
+ * (the inverse of a {@link TargetUriMapper}).
+ */
+public interface LocalFileMapper {
+    
+    /**
+     * @param targetUri URI targeted by a handle
+     * @return local file at that URI, or null if it is not a local file
+     */
+    public Path getLocalFile(URI targetUri);
+}
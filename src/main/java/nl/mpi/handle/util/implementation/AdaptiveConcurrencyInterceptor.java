@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleOperation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Interceptor which limits the number of concurrent calls to the Handle
+ * System, adapting the limit to what the server currently sustains
+ * (additive increase, multiplicative decrease).
+ * 
+ * The limit grows by about one per round of calls while it is being used and
+ * the latency stays within a tolerance of the lowest recent latency. It is
+ * multiplied by the backoff ratio when a call fails with a transient error
+ * or its latency exceeds that tolerance, at most once per round (i.e. only
+ * for calls started after the previous decrease). Calls over the limit wait
+ * in a bounded queue for a bounded time, and are otherwise rejected with a
+ * {@link RejectedCallException}. Its code (<CODE>INTERNAL_ERROR</CODE>) is
+ * not transient, so a rejected call is neither retried nor counted as a
+ * server failure by a {@link ResilientHandleCallInterceptor}.
+ * 
+ * It should be added after a {@link ResilientHandleCallInterceptor}, so that
+ * each attempt is limited separately and the backoff between attempts does
+ * not count as latency.
+ */
+public class AdaptiveConcurrencyInterceptor implements HandleCallInterceptor, Serializable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(AdaptiveConcurrencyInterceptor.class);
+    
+    /**
+     * Number of calls after which the lowest latency is measured again,
+     * so that the limit follows lasting changes in the server's latency.
+     */
+    private static final int MIN_LATENCY_WINDOW = 500;
+    
+    private final int minLimit;
+    private final int maxLimit;
+    private double backoffRatio = 0.9;
+    private double latencyTolerance = 2.0;
+    private int maxQueueLength = 1000;
+    private long maxQueueWaitMillis = 10000;
+    private Set<Integer> overloadErrorCodes = HandleResilienceConfig.DEFAULT_TRANSIENT_ERROR_CODES;
+    
+    // guarded by this
+    private double limit;
+    private int inFlight = 0;
+    private int queued = 0;
+    private long minLatencyNanos = 0;
+    private long windowMinLatencyNanos = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private long lastDecreaseNanos;
+    private long rejections = 0;
+    
+    
+    /**
+     * @param initialLimit number of concurrent calls allowed at first
+     * @param minLimit lowest the limit can get
+     * @param maxLimit highest the limit can get
+     */
+    public AdaptiveConcurrencyInterceptor(int initialLimit, int minLimit, int maxLimit) {
+        if(minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limits: " + initialLimit + " in [" + minLimit + ", " + maxLimit + "]");
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.lastDecreaseNanos = System.nanoTime();
+    }
+    
+    
+    /**
+     * @param backoffRatio factor (between 0 and 1) applied to the limit when the server is overloaded
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        if(backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("Invalid backoff ratio: " + backoffRatio);
+        }
+        this.backoffRatio = backoffRatio;
+    }
+    
+    /**
+     * @param latencyTolerance multiple of the lowest recent latency above which the server is considered overloaded
+     */
+    public void setLatencyTolerance(double latencyTolerance) {
+        if(latencyTolerance <= 1) {
+            throw new IllegalArgumentException("Invalid latency tolerance: " + latencyTolerance);
+        }
+        this.latencyTolerance = latencyTolerance;
+    }
+    
+    /**
+     * @param maxQueueLength maximum number of calls waiting for the limit (0 rejects them right away)
+     * @param maxQueueWaitMillis maximum time a call waits for the limit
+     */
+    public void setQueue(int maxQueueLength, long maxQueueWaitMillis) {
+        if(maxQueueLength < 0 || maxQueueWaitMillis < 0) {
+            throw new IllegalArgumentException("Invalid queue length or wait");
+        }
+        this.maxQueueLength = maxQueueLength;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+    
+    /**
+     * @param overloadErrorCodes <CODE>HandleException</CODE> codes which indicate that the server is overloaded
+     */
+    public void setOverloadErrorCodes(Set<Integer> overloadErrorCodes) {
+        this.overloadErrorCodes = overloadErrorCodes;
+    }
+    
+    
+    /**
+     * @see HandleCallInterceptor#intercept(nl.mpi.handle.util.HandleOperation, java.lang.String, nl.mpi.handle.util.HandleCall)
+     */
+    @Override
+    public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+        
+        acquire(operation, handle);
+        long start = System.nanoTime();
+        boolean released = false;
+        try {
+            T result = call.call();
+            released = true;
+            release(start, System.nanoTime(), false);
+            return result;
+        } catch(HandleException ex) {
+            released = true;
+            release(start, System.nanoTime(), overloadErrorCodes.contains(ex.getCode()));
+            throw ex;
+        } finally {
+            if(!released) {
+                release();
+            }
+        }
+    }
+    
+    /**
+     * @return current number of concurrent calls allowed
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+    
+    /**
+     * @return number of calls currently in progress
+     */
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+    
+    /**
+     * @return number of calls currently waiting for the limit
+     */
+    public synchronized int getQueuedCount() {
+        return queued;
+    }
+    
+    /**
+     * @return number of calls rejected because the limit was reached
+     */
+    public synchronized long getRejectionCount() {
+        return rejections;
+    }
+    
+    /**
+     * Registers gauges for the current limit, the calls in progress and waiting, and the rejections.
+     * @param metrics 
+     */
+    public void registerGauges(HandleMetrics metrics) {
+        metrics.registerGauge("concurrency.limit", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getLimit();
+            }
+        });
+        metrics.registerGauge("concurrency.inFlight", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getInFlightCount();
+            }
+        });
+        metrics.registerGauge("concurrency.queued", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getQueuedCount();
+            }
+        });
+        metrics.registerGauge("concurrency.rejections", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRejectionCount();
+            }
+        });
+    }
+    
+    
+    synchronized void acquire(HandleOperation operation, String handle) throws HandleException {
+        if(inFlight < (int) limit) {
+            inFlight++;
+            return;
+        }
+        if(queued >= maxQueueLength) {
+            throw reject(operation, handle);
+        }
+        queued++;
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxQueueWaitMillis);
+            while(inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    throw reject(operation, handle);
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR,
+                    "Interrupted while waiting to call " + operation + " of handle " + handle);
+        } finally {
+            queued--;
+        }
+    }
+    
+    /**
+     * Releases a call and adjusts the limit according to its outcome.
+     * @param startNanos when the call started
+     * @param endNanos when the call ended
+     * @param overloaded true if the call failed because the server is overloaded
+     */
+    synchronized void release(long startNanos, long endNanos, boolean overloaded) {
+        long latency = endNanos - startNanos;
+        updateMinLatency(latency);
+        
+        boolean congested = overloaded || latency > minLatencyNanos * latencyTolerance;
+        if(congested) {
+            if(startNanos - lastDecreaseNanos > 0) {
+                double previous = limit;
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseNanos = endNanos;
+                logger.debug("Concurrency limit decreased from {} to {} (latency {} us, overloaded: {})",
+                        (int) previous, (int) limit, latency / 1000, overloaded);
+            }
+        } else if(inFlight * 2 >= limit) {
+            // only grows while the limit is actually being used
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        release();
+    }
+    
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+    
+    private void updateMinLatency(long latency) {
+        if(minLatencyNanos == 0 || latency < minLatencyNanos) {
+            minLatencyNanos = Math.max(1, latency);
+        }
+        windowMinLatencyNanos = Math.min(windowMinLatencyNanos, Math.max(1, latency));
+        if(++windowSamples >= MIN_LATENCY_WINDOW) {
+            minLatencyNanos = windowMinLatencyNanos;
+            windowMinLatencyNanos = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+    }
+    
+    private HandleException reject(HandleOperation operation, String handle) {
+        rejections++;
+        return new RejectedCallException(
+                "Concurrency limit of " + (int) limit + " reached; " + operation + " of handle " + handle + " rejected");
+    }
+    
+    
+    /**
+     * Thrown when a call is rejected locally because the concurrency limit
+     * was reached and the queue was full or the wait timed out (or, in
+     * {@link ResilientHandleCallInterceptor}, all the call threads were busy).
+     * It does not say anything about the health of the server.
+     */
+    public static class RejectedCallException extends HandleException {
+        
+        public RejectedCallException(String message) {
+            super(HandleException.INTERNAL_ERROR, message);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import nl.mpi.handle.util.HandleClock;
+
+/**
+ * {@link HandleClock} which keeps returning the time at which the current
+ * batch was started, so that all the handles created in a batch get the same crawl time.
+ */
+public class BatchHandleClock implements HandleClock {
+    
+    private final HandleClock source;
+    private volatile long batchTime;
+    
+    /**
+     * Uses the system time, and starts a batch.
+     */
+    public BatchHandleClock() {
+        this(SystemHandleClock.INSTANCE);
+    }
+    
+    /**
+     * @param source clock from which the time of each batch is taken; a batch is started
+     */
+    public BatchHandleClock(HandleClock source) {
+        this.source = source;
+        startBatch();
+    }
+    
+    /**
+     * Starts a new batch, taking the current time of the source clock.
+     * @return time of the new batch
+     */
+    public long startBatch() {
+        long time = source.currentTimeMillis();
+        batchTime = time;
+        return time;
+    }
+    
+    /**
+     * @return time at which the current batch was started
+     */
+    @Override
+    public long currentTimeMillis() {
+        return batchTime;
+    }
+}
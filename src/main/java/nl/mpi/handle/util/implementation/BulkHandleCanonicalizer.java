@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import nl.mpi.handle.util.HandleParser;
+
+/**
+ * Checks the equivalence of large numbers of handles at once: each handle is
+ * reduced, in parallel, to the key used by {@link HandleParser#areHandlesEquivalent(URI, URI)}
+ * (see {@link HandleParser#stripAndValidateHandleIfPrefixIsKnown(URI)}),
+ * after which equivalent handles are grouped in a single pass.
+ */
+public class BulkHandleCanonicalizer {
+    
+    private static final int DEFAULT_CHUNK_SIZE = 4096;
+    
+    private final HandleParser handleParser;
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+    
+    
+    /**
+     * Uses a shared pool with as many threads as processors.
+     * @param hdlParser parser used to canonicalise the handles (must be thread-safe)
+     */
+    public BulkHandleCanonicalizer(HandleParser hdlParser) {
+        this(hdlParser, DefaultPool.INSTANCE, DEFAULT_CHUNK_SIZE);
+    }
+    
+    /**
+     * @param hdlParser parser used to canonicalise the handles (must be thread-safe)
+     * @param pool pool in which the handles are canonicalised
+     * @param chunkSize number of handles below which a task is not split further
+     */
+    public BulkHandleCanonicalizer(HandleParser hdlParser, ForkJoinPool pool, int chunkSize) {
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size (" + chunkSize + ")");
+        }
+        this.handleParser = hdlParser;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+    
+    
+    /**
+     * @param handles handles to canonicalise; null entries are reported as invalid
+     * @return the canonical key of each handle, the groups of equivalent handles and the invalid ones
+     */
+    public HandleEquivalenceReport canonicalize(List<URI> handles) {
+        
+        String[] keys = new String[handles.size()];
+        pool.invoke(new CanonicalizeTask(handles, keys, 0, keys.length));
+        
+        Map<String, List<URI>> groups = new LinkedHashMap<>();
+        List<URI> invalid = new ArrayList<>();
+        for(int i = 0; i < keys.length; i++) {
+            URI handle = handles.get(i);
+            if(keys[i] == null) {
+                invalid.add(handle);
+                continue;
+            }
+            List<URI> group = groups.get(keys[i]);
+            if(group == null) {
+                group = new ArrayList<>(1);
+                groups.put(keys[i], group);
+            }
+            group.add(handle);
+        }
+        return new HandleEquivalenceReport(handleParser, keys, groups, invalid);
+    }
+    
+    
+    private final class CanonicalizeTask extends RecursiveAction {
+        
+        private final List<URI> handles;
+        private final String[] keys;
+        private final int from;
+        private final int to;
+        
+        CanonicalizeTask(List<URI> handles, String[] keys, int from, int to) {
+            this.handles = handles;
+            this.keys = keys;
+            this.from = from;
+            this.to = to;
+        }
+        
+        @Override
+        protected void compute() {
+            if(to - from <= chunkSize) {
+                for(int i = from; i < to; i++) {
+                    keys[i] = canonicalize(handleParser, handles.get(i));
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new CanonicalizeTask(handles, keys, from, middle), new CanonicalizeTask(handles, keys, middle, to));
+        }
+    }
+    
+    /**
+     * @return the canonical key of the handle, or null if it is not valid
+     */
+    static String canonicalize(HandleParser parser, URI handle) {
+        try {
+            return parser.stripAndValidateHandleIfPrefixIsKnown(handle);
+        } catch(IllegalArgumentException ex) {
+            return null;
+        }
+    }
+    
+    private static final class DefaultPool {
+        static final ForkJoinPool INSTANCE = new ForkJoinPool();
+    }
+    
+    
+    /**
+     * Result of {@link BulkHandleCanonicalizer#canonicalize(List)}.
+     */
+    public static final class HandleEquivalenceReport {
+        
+        private final HandleParser handleParser;
+        private final String[] keys;
+        private final Map<String, List<URI>> groups;
+        private final List<URI> invalid;
+        
+        private HandleEquivalenceReport(HandleParser handleParser, String[] keys, Map<String, List<URI>> groups, List<URI> invalid) {
+            this.handleParser = handleParser;
+            this.keys = keys;
+            this.groups = groups;
+            this.invalid = Collections.unmodifiableList(invalid);
+        }
+        
+        /**
+         * @param index position of the handle in the input
+         * @return canonical key of the handle, or null if it is not valid
+         */
+        public String getKey(int index) {
+            return keys[index];
+        }
+        
+        /**
+         * @return handles grouped by canonical key, in the order of their first occurrence
+         */
+        public Map<String, List<URI>> getGroups() {
+            return Collections.unmodifiableMap(groups);
+        }
+        
+        /**
+         * @return the groups with more than one handle
+         */
+        public Map<String, List<URI>> getDuplicates() {
+            Map<String, List<URI>> duplicates = new LinkedHashMap<>();
+            for(Map.Entry<String, List<URI>> group : groups.entrySet()) {
+                if(group.getValue().size() > 1) {
+                    duplicates.put(group.getKey(), Collections.unmodifiableList(group.getValue()));
+                }
+            }
+            return duplicates;
+        }
+        
+        /**
+         * @return the handles which are not valid or do not have the known prefix, in input order
+         */
+        public List<URI> getInvalid() {
+            return invalid;
+        }
+        
+        /**
+         * Looks up the handles equivalent to the given one, without comparing it to each of them.
+         * @param handle handle to look up
+         * @return the equivalent handles (empty if there are none or the handle is not valid)
+         */
+        public List<URI> getEquivalents(URI handle) {
+            String key = canonicalize(handleParser, handle);
+            List<URI> group = key != null ? groups.get(key) : null;
+            return group != null ? Collections.unmodifiableList(group) : Collections.<URI>emptyList();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies files into the archive and assigns them new handles, reading each
+ * byte only once: the digests of the handle information (see
+ * {@link HandleInfoProviderImpl#getDigestAlgorithms()}) and the size are
+ * calculated from the same direct buffer which is written to the copy.
+ * 
+ * The copy is written next to the destination and only linked there once
+ * complete and forced to disk, so a destination never holds a partial file
+ * and an existing destination is never replaced (the file system must
+ * support hard links).
+ */
+public class CopyingHandleAssigner {
+    
+    private static final Logger logger = LoggerFactory.getLogger(CopyingHandleAssigner.class);
+    
+    private static final String PARTIAL_SUFFIX = ".copying";
+    
+    private final HandleManagerImpl handleManager;
+    private final HandleInfoProviderImpl handleInfoProvider;
+    private final int bufferSize;
+    
+    
+    /**
+     * @param hdlManager used to assign the handles
+     * @param hdlInfoProvider used to create the handle information (the same used by the manager)
+     * @param bufferSize size of the direct buffer used by each copy (e.g. 1 MB)
+     */
+    public CopyingHandleAssigner(HandleManagerImpl hdlManager, HandleInfoProviderImpl hdlInfoProvider, int bufferSize) {
+        if(bufferSize <= 0) {
+            throw new IllegalArgumentException("Invalid buffer size: " + bufferSize);
+        }
+        this.handleManager = hdlManager;
+        this.handleInfoProvider = hdlInfoProvider;
+        this.bufferSize = bufferSize;
+    }
+    
+    
+    /**
+     * Copies a file and assigns a new handle to the copy.
+     * @param source file to copy (e.g. in a staging area)
+     * @param destination location of the copy in the archive (must not exist)
+     * @param targetURI URI of the copy, which the handle should target
+     * @return URI corresponding to the handle, with the appropriate prefix
+     * @throws FileAlreadyExistsException if the destination already exists
+     * @throws IOException if the file cannot be copied
+     * @throws HandleException if the handle cannot be created
+     */
+    public URI copyAndAssignNewHandle(Path source, Path destination, URI targetURI) throws IOException, HandleException {
+        
+        Map<String, String> checksums = copy(source, destination);
+        HandleValue[] handleInformation = handleInfoProvider.createHandleInformation(destination.toFile(), targetURI, checksums);
+        return handleManager.assignNewHandle(destination.toFile(), targetURI, handleInformation);
+    }
+    
+    /**
+     * Copies a file, calculating the digests of the handle information on the way.
+     * @param source file to copy
+     * @param destination location of the copy (must not exist)
+     * @return digest (lowercase hexadecimal) for each algorithm of the handle information
+     * @throws FileAlreadyExistsException if the destination already exists, or is already being copied
+     * @throws IOException if the file cannot be copied
+     */
+    public Map<String, String> copy(Path source, Path destination) throws IOException {
+        
+        logger.debug("Copying {} to {}", source, destination);
+        
+        if(Files.exists(destination)) {
+            throw new FileAlreadyExistsException(destination.toString());
+        }
+        Path partial = destination.resolveSibling(destination.getFileName() + PARTIAL_SUFFIX);
+        MultiDigest digest = new MultiDigest(handleInfoProvider.getDigestAlgorithms());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        // fails if another copy to the same destination is in progress
+        FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+        try {
+            try (FileChannel partialOut = out; FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+                long expectedSize = in.size();
+                while(in.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer.duplicate());
+                    while(buffer.hasRemaining()) {
+                        out.write(buffer);
+                    }
+                    buffer.clear();
+                }
+                if(digest.getSize() != expectedSize) {
+                    throw new IOException("Size of " + source + " changed during the copy: " + expectedSize + " -> " + digest.getSize());
+                }
+                out.force(true);
+            }
+            // unlike a move, fails if the destination was created in the meantime
+            Files.createLink(destination, partial);
+        } finally {
+            try {
+                Files.deleteIfExists(partial);
+            } catch(IOException ex) {
+                logger.warn("Could not delete partial copy " + partial, ex);
+            }
+        }
+        return digest.finish();
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleAssignmentListener;
+import nl.mpi.handle.util.HandleInfoProvider;
+import nl.mpi.handle.util.TargetUriMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Assigns new handles to all the regular files under a folder.
+ * 
+ * The folder tree is walked lazily and the files flow through bounded
+ * stages running in parallel: the walk itself (which reads the file
+ * attributes), the creation of the handle information (including the
+ * checksum) and the registration in the Handle System. Since the queues
+ * between the stages are bounded, the walk only advances as fast as the
+ * other stages allow, and the list of files is never held in memory.
+ * The handles are registered through a {@link HandleManagerImpl}, so its
+ * change listeners (and reservoir, if any) are used as for single assignments.
+ * The results are reported to a {@link HandleAssignmentListener} as soon
+ * as each file is done (e.g. a {@link ManifestHandleAssignmentListener}).
+ * 
+ * If the walk fails, a stage fails unexpectedly (e.g. with an Error) or
+ * the caller is interrupted, the stages are stopped without waiting for
+ * the files already queued. Exceptions thrown by the listener are only logged.
+ */
+public class DirectoryHandleAssigner {
+    
+    private static final Logger logger = LoggerFactory.getLogger(DirectoryHandleAssigner.class);
+    
+    private static final Path END_OF_FILES = Paths.get("");
+    private static final PreparedHandle END_OF_HANDLES = new PreparedHandle(null, null, null, null);
+    
+    private final HandleInfoProvider handleInfoProvider;
+    private final HandleManagerImpl handleManager;
+    private final int checksumThreads;
+    private final int registrationThreads;
+    private final int queueCapacity;
+    
+    
+    /**
+     * @param hdlInfoProvider provider of the handle information
+     * @param hdlManager used to create the handles
+     * @param checksumThreads number of threads creating the handle information (reading the files)
+     * @param registrationThreads number of threads registering the handles in the Handle System
+     * @param queueCapacity maximum number of files waiting between two stages
+     */
+    public DirectoryHandleAssigner(HandleInfoProvider hdlInfoProvider, HandleManagerImpl hdlManager,
+            int checksumThreads, int registrationThreads, int queueCapacity) {
+        if(checksumThreads <= 0 || registrationThreads <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads or queue capacity");
+        }
+        this.handleInfoProvider = hdlInfoProvider;
+        this.handleManager = hdlManager;
+        this.checksumThreads = checksumThreads;
+        this.registrationThreads = registrationThreads;
+        this.queueCapacity = queueCapacity;
+    }
+    
+    
+    /**
+     * Assigns new handles to all the regular files under the given folder,
+     * blocking until all of them are processed.
+     * @param root folder to walk
+     * @param targetUriMapper maps each file to the URI its handle should target
+     * @param listener receives the result for each file
+     * @return number of files to which a handle was assigned
+     * @throws IOException if the root folder cannot be walked, or one of the stages failed unexpectedly
+     * @throws InterruptedException if interrupted while waiting for the stages to finish
+     */
+    public long assignHandles(Path root, final TargetUriMapper targetUriMapper, final HandleAssignmentListener listener)
+            throws IOException, InterruptedException {
+        
+        logger.debug("Assigning handles to files under {}", root);
+        
+        final BlockingQueue<Path> files = new ArrayBlockingQueue<>(queueCapacity);
+        final BlockingQueue<PreparedHandle> preparedHandles = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicLong assigned = new AtomicLong();
+        final CountDownLatch checksumDone = new CountDownLatch(checksumThreads);
+        final CountDownLatch registrationDone = new CountDownLatch(registrationThreads);
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>();
+        
+        for(int i = 0; i < checksumThreads; i++) {
+            workers.add(startThread("handle-info-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        prepareHandles(files, preparedHandles, targetUriMapper, listener, stopped, registrationDone);
+                    } catch(RuntimeException | Error ex) {
+                        fail(ex, failure, stopped);
+                    } finally {
+                        checksumDone.countDown();
+                    }
+                }
+            }));
+        }
+        for(int i = 0; i < registrationThreads; i++) {
+            workers.add(startThread("handle-registration-" + i, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        registerHandles(preparedHandles, listener, assigned, stopped);
+                    } catch(RuntimeException | Error ex) {
+                        fail(ex, failure, stopped);
+                    } finally {
+                        registrationDone.countDown();
+                    }
+                }
+            }));
+        }
+        
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if(attrs.isRegularFile()) {
+                        put(files, file, stopped, checksumDone, failure);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    reportFailure(listener, file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch(Throwable ex) {
+            stop(workers, stopped);
+            throw ex;
+        }
+        try {
+            signalEnd(files, END_OF_FILES, checksumThreads, checksumDone);
+            checksumDone.await();
+            signalEnd(preparedHandles, END_OF_HANDLES, registrationThreads, registrationDone);
+            registrationDone.await();
+        } catch(InterruptedException ex) {
+            stop(workers, stopped);
+            throw ex;
+        }
+        if(failure.get() != null) {
+            throw new IOException("Assigning handles to files under " + root + " failed", failure.get());
+        }
+        
+        logger.debug("Assigned {} handles to files under {}", assigned.get(), root);
+        return assigned.get();
+    }
+    
+    
+    private void prepareHandles(BlockingQueue<Path> files, BlockingQueue<PreparedHandle> preparedHandles,
+            TargetUriMapper targetUriMapper, HandleAssignmentListener listener, AtomicBoolean stopped,
+            CountDownLatch registrationDone) {
+        while(true) {
+            Path file = take(files, stopped);
+            if(file == null || file == END_OF_FILES) {
+                return;
+            }
+            try {
+                URI targetUri = targetUriMapper.getTargetUri(file);
+                HandleValue[] values = handleInfoProvider.createHandleInformation(file.toFile(), targetUri);
+                String checksum = HandleValues.getDataByType(values, HandleConstants.CHECKSUM_TYPE);
+                if(!offer(preparedHandles, new PreparedHandle(file, targetUri, values, checksum), stopped, registrationDone)) {
+                    return;
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch(RuntimeException ex) {
+                reportFailure(listener, file, ex);
+            }
+        }
+    }
+    
+    private void registerHandles(BlockingQueue<PreparedHandle> preparedHandles, HandleAssignmentListener listener,
+            AtomicLong assigned, AtomicBoolean stopped) {
+        while(true) {
+            PreparedHandle prepared = take(preparedHandles, stopped);
+            if(prepared == null || prepared == END_OF_HANDLES) {
+                return;
+            }
+            URI handle;
+            try {
+                handle = handleManager.assignNewHandle(prepared.file.toFile(), prepared.targetUri, prepared.values);
+                assigned.incrementAndGet();
+            } catch(HandleException | IOException | RuntimeException ex) {
+                reportFailure(listener, prepared.file, ex);
+                continue;
+            }
+            try {
+                listener.handleAssigned(prepared.file, handle, prepared.checksum);
+            } catch(RuntimeException ex) {
+                logger.error("Listener failed for the handle assigned to " + prepared.file, ex);
+            }
+        }
+    }
+    
+    private static void reportFailure(HandleAssignmentListener listener, Path file, Exception failure) {
+        try {
+            listener.assignmentFailed(file, failure);
+        } catch(RuntimeException ex) {
+            logger.error("Listener failed for the failed assignment of " + file, ex);
+        }
+    }
+    
+    private static void put(BlockingQueue<Path> queue, Path file, AtomicBoolean stopped, CountDownLatch consumersDone,
+            AtomicReference<Throwable> failure) throws IOException {
+        try {
+            if(!offer(queue, file, stopped, consumersDone)) {
+                throw new IOException("Handle assignment stopped while walking the folder tree", failure.get());
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while walking the folder tree", ex);
+        }
+    }
+    
+    /**
+     * Waits for space in the queue, giving up if the stages are stopped or all the consumers are gone.
+     * @return true if the element was queued
+     */
+    private static <T> boolean offer(BlockingQueue<T> queue, T element, AtomicBoolean stopped, CountDownLatch consumersDone)
+            throws InterruptedException {
+        while(!queue.offer(element, 100, TimeUnit.MILLISECONDS)) {
+            if(stopped.get() || consumersDone.getCount() == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @return the next element, or null if the stages were stopped or the thread interrupted
+     */
+    private static <T> T take(BlockingQueue<T> queue, AtomicBoolean stopped) {
+        try {
+            // polls, since an interrupt may be swallowed by a file or handle operation
+            while(!stopped.get()) {
+                T element = queue.poll(100, TimeUnit.MILLISECONDS);
+                if(element != null) {
+                    return element;
+                }
+            }
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+    
+    /**
+     * Queues an end marker for each consumer, giving up once all of them are gone.
+     */
+    private static <T> void signalEnd(BlockingQueue<T> queue, T end, int consumers, CountDownLatch consumersDone)
+            throws InterruptedException {
+        for(int i = 0; i < consumers; i++) {
+            while(!queue.offer(end, 100, TimeUnit.MILLISECONDS)) {
+                if(consumersDone.getCount() == 0) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Stops the stages after an unexpected failure of one of the workers;
+     * the others see it while polling their queues.
+     */
+    private static void fail(Throwable ex, AtomicReference<Throwable> failure, AtomicBoolean stopped) {
+        logger.error("Handle assignment worker " + Thread.currentThread().getName() + " failed", ex);
+        failure.compareAndSet(null, ex);
+        stopped.set(true);
+    }
+    
+    private static void stop(List<Thread> workers, AtomicBoolean stopped) {
+        stopped.set(true);
+        for(Thread worker : workers) {
+            worker.interrupt();
+        }
+    }
+    
+    private static Thread startThread(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+    
+    
+    private static final class PreparedHandle {
+        
+        private final Path file;
+        private final URI targetUri;
+        private final HandleValue[] values;
+        private final String checksum;
+        
+        PreparedHandle(Path file, URI targetUri, HandleValue[] values, String checksum) {
+            this.file = file;
+            this.targetUri = targetUri;
+            this.values = values;
+            this.checksum = checksum;
+        }
+    }
+}
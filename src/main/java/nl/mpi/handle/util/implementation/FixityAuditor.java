@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedWriter;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.FixityAuditListener;
+import nl.mpi.handle.util.LocalFileMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Verifies the fixity of local files against the CHECKSUM and FILESIZE
+ * values stored in their handles, and against the extra digests (see
+ * {@link #setExtraDigestAlgorithms(List)}) which the handles have.
+ * 
+ * The handles are resolved through a single connection obtained from the
+ * {@link HandleUtil} and the files are digested by a fixed number of threads.
+ * The reads can be limited in bytes and in read operations per second, so
+ * that an audit can run continuously without competing with the regular
+ * users of the storage. When a checkpoint file is set, the progress is saved
+ * periodically and an interrupted audit resumes where it stopped.
+ */
+public class FixityAuditor {
+    
+    private static final Logger logger = LoggerFactory.getLogger(FixityAuditor.class);
+    
+    private static final int READ_SIZE = 256 * 1024;
+    
+    
+    private final HandleUtil handleUtil;
+    private final LocalFileMapper fileMapper;
+    private final int threads;
+    
+    private List<String> extraDigestAlgorithms = Collections.emptyList();
+    private int[] auditedIndexes = {
+        HandleConstants.URL_INDEX, HandleConstants.FILESIZE_INDEX, HandleConstants.CHECKSUM_INDEX
+    };
+    private TokenBucket byteLimiter;
+    private TokenBucket readLimiter;
+    private Path checkpointFile;
+    private int checkpointInterval;
+    
+    private final AtomicLong verifiedCount = new AtomicLong();
+    private final AtomicLong mismatchCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    
+    
+    /**
+     * @param hdlUtil used to resolve the handles
+     * @param fileMapper maps the URL of each handle to its local file
+     * @param threads number of files digested concurrently
+     */
+    public FixityAuditor(HandleUtil hdlUtil, LocalFileMapper fileMapper, int threads) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads (" + threads + ")");
+        }
+        this.handleUtil = hdlUtil;
+        this.fileMapper = fileMapper;
+        this.threads = threads;
+    }
+    
+    
+    /**
+     * Also verifies the given digests, stored as by
+     * {@link HandleInfoProviderImpl#setExtraDigestAlgorithms(List)}, in the
+     * handles which have them (all the digests are calculated in a single read).
+     * @param algorithms e.g. {@link MultiDigest#SHA_256}, {@link MultiDigest#CRC32}
+     * @throws IllegalArgumentException if an algorithm is not available
+     */
+    public void setExtraDigestAlgorithms(List<String> algorithms) {
+        // fails right away for unknown algorithms
+        new MultiDigest(algorithms);
+        int[] indexes = new int[3 + algorithms.size()];
+        indexes[0] = HandleConstants.URL_INDEX;
+        indexes[1] = HandleConstants.FILESIZE_INDEX;
+        indexes[2] = HandleConstants.CHECKSUM_INDEX;
+        for(int i = 0; i < algorithms.size(); i++) {
+            indexes[3 + i] = HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX + i;
+        }
+        this.extraDigestAlgorithms = Collections.unmodifiableList(new ArrayList<>(algorithms));
+        this.auditedIndexes = indexes;
+    }
+    
+    /**
+     * Limits the bytes read per second, across all threads.
+     * @param bytesPerSecond limit, or 0 for none (the default)
+     */
+    public void setByteRateLimit(long bytesPerSecond) {
+        if(bytesPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid byte rate (" + bytesPerSecond + ")");
+        }
+        this.byteLimiter = bytesPerSecond == 0 ? null : new TokenBucket(bytesPerSecond, bytesPerSecond);
+    }
+    
+    /**
+     * Limits the read operations per second, across all threads.
+     * Opening a file and each read of up to 256 KB count as one operation.
+     * @param operationsPerSecond limit, or 0 for none (the default)
+     */
+    public void setReadRateLimit(long operationsPerSecond) {
+        if(operationsPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid read rate (" + operationsPerSecond + ")");
+        }
+        this.readLimiter = operationsPerSecond == 0 ? null : new TokenBucket(operationsPerSecond, operationsPerSecond);
+    }
+    
+    /**
+     * Saves the progress of the audits to the given file, so that they can be resumed.
+     * The file is written at every given number of handles, when an audit is
+     * interrupted, and deleted when an audit finishes.
+     * @param file checkpoint file, or null for none (the default)
+     * @param interval number of handles between checkpoints
+     */
+    public void setCheckpoint(Path file, int interval) {
+        if(interval <= 0) {
+            throw new IllegalArgumentException("Invalid checkpoint interval (" + interval + ")");
+        }
+        this.checkpointFile = file;
+        this.checkpointInterval = interval;
+    }
+    
+    /**
+     * Audits the given handles, reporting the results to the listener.
+     * If a checkpoint file exists, the handles it covers are skipped;
+     * the iterator must then return the handles in the same order as before.
+     * @param handles handles to audit (e.g. read from a manifest)
+     * @param listener receives the result of each handle
+     * @return number of handles audited in this run
+     * @throws IOException if the checkpoint cannot be read or does not match the handles,
+     *  or if the Handle System cannot be accessed
+     * @throws InterruptedException if interrupted (the checkpoint, if any, is saved first)
+     */
+    public long audit(Iterator<String> handles, final FixityAuditListener listener)
+            throws IOException, InterruptedException {
+        
+        final Progress progress = resume(handles);
+        final HSAdapter api = getHandleApi();
+        long submitted = 0;
+        
+        Batch batch = new Batch("fixity-audit");
+        boolean aborted = true;
+        try {
+            while(handles.hasNext()) {
+                final String handle = handles.next();
+                final long position = progress.start + (++submitted);
+                batch.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(verify(handle, api, listener)) {
+                            progress.completed(position, handle);
+                        }
+                    }
+                });
+            }
+            aborted = false;
+        } finally {
+            try {
+                batch.finish(aborted);
+            } finally {
+                if(aborted) {
+                    progress.save();
+                }
+            }
+        }
+        if(checkpointFile != null) {
+            Files.deleteIfExists(checkpointFile);
+        }
+        return submitted;
+    }
+    
+    /**
+     * @return number of files whose fixity was verified
+     */
+    public long getVerifiedCount() {
+        return verifiedCount.get();
+    }
+    
+    /**
+     * @return number of files whose size or checksum did not match
+     */
+    public long getMismatchCount() {
+        return mismatchCount.get();
+    }
+    
+    /**
+     * @return number of handles which could not be verified
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+    
+    
+    /**
+     * @return true if the handle was audited, false if interrupted
+     */
+    private boolean verify(String handle, HSAdapter api, FixityAuditListener listener) {
+        try {
+            HandleValue[] values = handleUtil.resolveHandle(handle, null, auditedIndexes, api);
+            String url = HandleValues.getDataByType(values, HandleConstants.URL_TYPE);
+            String expectedChecksum = HandleValues.getDataByType(values, HandleConstants.CHECKSUM_TYPE);
+            String expectedSizeData = HandleValues.getDataByType(values, HandleConstants.FILESIZE_TYPE);
+            if(url == null || expectedChecksum == null) {
+                throw new IllegalStateException("Handle has no URL or CHECKSUM value");
+            }
+            Path file = fileMapper.getLocalFile(URI.create(url));
+            if(file == null || !Files.isRegularFile(file)) {
+                throw new FileNotFoundException("No local file found for " + url);
+            }
+            long expectedSize = expectedSizeData != null ? Long.parseLong(expectedSizeData.trim()) : -1;
+            
+            acquire(readLimiter, 1);
+            long actualSize = Files.size(file);
+            if(expectedSize >= 0 && expectedSize != actualSize) {
+                mismatchCount.incrementAndGet();
+                listener.fixityMismatch(handle, file, expectedChecksum, null, expectedSize, actualSize);
+                return true;
+            }
+            
+            Map<String, String> expectedChecksums = new LinkedHashMap<>();
+            expectedChecksums.put(MultiDigest.MD5, expectedChecksum);
+            for(String algorithm : extraDigestAlgorithms) {
+                String expected = HandleValues.getDataByType(values, HandleInfoProviderImpl.getChecksumType(algorithm));
+                if(expected != null) {
+                    expectedChecksums.put(algorithm, expected);
+                }
+            }
+            
+            MultiDigest digest = new MultiDigest(expectedChecksums.keySet());
+            ByteBuffer buffer = ByteBuffer.allocate(READ_SIZE);
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                while(true) {
+                    acquire(readLimiter, 1);
+                    int read = channel.read(buffer);
+                    if(read < 0) {
+                        break;
+                    }
+                    acquire(byteLimiter, read);
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+            Map<String, String> actualChecksums = digest.finish();
+            String mismatchedAlgorithm = null;
+            for(Map.Entry<String, String> expected : expectedChecksums.entrySet()) {
+                if(!actualChecksums.get(expected.getKey()).equalsIgnoreCase(expected.getValue().trim())) {
+                    mismatchedAlgorithm = expected.getKey();
+                    break;
+                }
+            }
+            if(mismatchedAlgorithm != null || digest.getSize() != actualSize) {
+                String algorithm = mismatchedAlgorithm != null ? mismatchedAlgorithm : MultiDigest.MD5;
+                mismatchCount.incrementAndGet();
+                listener.fixityMismatch(handle, file, expectedChecksums.get(algorithm), actualChecksums.get(algorithm),
+                        expectedSize, digest.getSize());
+            } else {
+                verifiedCount.incrementAndGet();
+                listener.fixityVerified(handle, file);
+            }
+            return true;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch(ClosedByInterruptException | InterruptedIOException ex) {
+            // aborted while reading; neither a failure nor audited
+            Thread.currentThread().interrupt();
+            return false;
+        } catch(HandleException | IOException | RuntimeException ex) {
+            if(Thread.currentThread().isInterrupted()) {
+                // e.g. the resolution failed because the audit was aborted
+                return false;
+            }
+            logger.warn("Could not verify handle " + handle, ex);
+            failedCount.incrementAndGet();
+            listener.verificationFailed(handle, ex);
+            return true;
+        }
+    }
+    
+    private static void acquire(TokenBucket limiter, long count) throws InterruptedException {
+        if(limiter != null) {
+            limiter.acquire(count);
+        }
+    }
+    
+    private Progress resume(Iterator<String> handles) throws IOException {
+        if(checkpointFile == null || !Files.exists(checkpointFile)) {
+            return new Progress(0, null);
+        }
+        List<String> lines = Files.readAllLines(checkpointFile, StandardCharsets.UTF_8);
+        long count;
+        try {
+            count = lines.isEmpty() ? 0 : Long.parseLong(lines.get(0).trim());
+        } catch(NumberFormatException ex) {
+            throw new IOException("Invalid checkpoint " + checkpointFile, ex);
+        }
+        String lastHandle = lines.size() > 1 ? lines.get(1) : null;
+        String handle = null;
+        for(long i = 0; i < count; i++) {
+            if(!handles.hasNext()) {
+                throw new IOException("Checkpoint " + checkpointFile + " is beyond the end of the handles");
+            }
+            handle = handles.next();
+        }
+        if(count > 0 && !handle.equals(lastHandle)) {
+            throw new IOException("Checkpoint " + checkpointFile + " does not match the handles (expected "
+                    + lastHandle + " at position " + count + ", found " + handle + ")");
+        }
+        logger.info("Resuming fixity audit after " + count + " handles");
+        return new Progress(count, lastHandle);
+    }
+    
+    private HSAdapter getHandleApi() throws IOException {
+        try {
+            return handleUtil.getHandleApi();
+        } catch(HandleException ex) {
+            throw new IOException("Could not access the Handle System", ex);
+        }
+    }
+    
+    
+    /**
+     * Tracks the longest run of audited handles from the start of the
+     * iteration, since handles finish out of order, and saves it as checkpoint.
+     */
+    private final class Progress {
+        
+        final long start;
+        private long completed;
+        private String lastHandle;
+        private final TreeMap<Long, String> pending = new TreeMap<>();
+        private long savedAt;
+        
+        Progress(long start, String lastHandle) {
+            this.start = start;
+            this.completed = start;
+            this.lastHandle = lastHandle;
+            this.savedAt = start;
+        }
+        
+        synchronized void completed(long position, String handle) {
+            pending.put(position, handle);
+            while(!pending.isEmpty() && pending.firstKey() == completed + 1) {
+                lastHandle = pending.remove(pending.firstKey());
+                completed++;
+            }
+            if(completed - savedAt >= checkpointInterval) {
+                save();
+            }
+        }
+        
+        synchronized void save() {
+            if(checkpointFile == null || completed == savedAt) {
+                return;
+            }
+            Path temp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try {
+                try(BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    writer.write(Long.toString(completed));
+                    writer.newLine();
+                    writer.write(lastHandle);
+                    writer.newLine();
+                }
+                Files.move(temp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                savedAt = completed;
+            } catch(IOException ex) {
+                logger.warn("Could not save the fixity audit checkpoint " + checkpointFile, ex);
+            }
+        }
+    }
+    
+    /**
+     * Runs tasks on a fixed pool, blocking the submitter while
+     * too many of them are waiting or running.
+     */
+    private final class Batch {
+        
+        private final ExecutorService executor;
+        private final Semaphore inFlight = new Semaphore(threads * 2);
+        
+        Batch(final String threadName) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicLong count = new AtomicLong();
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, threadName + "-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        void submit(final Runnable task) throws InterruptedException {
+            inFlight.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        
+        void finish(boolean abort) throws InterruptedException {
+            if(abort) {
+                executor.shutdownNow();
+            } else {
+                executor.shutdown();
+            }
+            boolean terminated = false;
+            boolean interrupted = false;
+            while(!terminated) {
+                try {
+                    terminated = executor.awaitTermination(1, TimeUnit.MINUTES);
+                    if(!terminated) {
+                        logger.debug("Waiting for the remaining files");
+                    }
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                    executor.shutdownNow();
+                }
+            }
+            if(interrupted) {
+                throw new InterruptedException();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for the calls to the Handle System.
+ * It opens after a number of consecutive failures, rejecting calls
+ * until a certain time has passed. After that, a single trial call is
+ * let through (half-open state), which either closes the circuit again
+ * or re-opens it.
+ */
+public class HandleCircuitBreaker implements Serializable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleCircuitBreaker.class);
+    
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+    
+    private final int failureThreshold;
+    private final long openStateMillis;
+    
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean trialInProgress = false;
+    
+    
+    public HandleCircuitBreaker(int failureThreshold, long openStateMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openStateMillis = openStateMillis;
+    }
+    
+    
+    /**
+     * @return true if a call is allowed to go through
+     */
+    public synchronized boolean allowCall() {
+        switch(state) {
+            case OPEN:
+                if(System.currentTimeMillis() - openedAt < openStateMillis) {
+                    return false;
+                }
+                logger.info("Circuit breaker half-open; letting a trial call through");
+                state = State.HALF_OPEN;
+                trialInProgress = true;
+                return true;
+            case HALF_OPEN:
+                if(trialInProgress) {
+                    return false;
+                }
+                trialInProgress = true;
+                return true;
+            default:
+                return true;
+        }
+    }
+    
+    /**
+     * Registers a successful call (or one failing for reasons not related
+     * with the health of the server).
+     */
+    public synchronized void recordSuccess() {
+        if(state != State.CLOSED) {
+            logger.info("Circuit breaker closed");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        trialInProgress = false;
+    }
+    
+    /**
+     * Registers a call which was not made (e.g. rejected locally), so that
+     * it does not count either way; if it was the trial call, the next call
+     * is let through as the trial instead.
+     */
+    public synchronized void recordNoOutcome() {
+        trialInProgress = false;
+    }
+    
+    /**
+     * Registers a call which failed because of the server being unhealthy
+     * or unreachable.
+     */
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        trialInProgress = false;
+        if(state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            logger.warn("Circuit breaker open after {} consecutive failures", consecutiveFailures);
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+    
+    public synchronized State getState() {
+        return state;
+    }
+    
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+}
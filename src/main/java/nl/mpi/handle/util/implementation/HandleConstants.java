@@ -16,6 +16,9 @@
  */
 package nl.mpi.handle.util.implementation;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -26,5 +29,28 @@ public class HandleConstants {
     
     public static final String HDL_SHORT_PROXY = "hdl";
     public static final String HDL_LONG_PROXY = "http://hdl.handle.net/";
+    public static final String HDL_SECURE_LONG_PROXY = "https://hdl.handle.net/";
+    public static final String DOI_LONG_PROXY = "https://doi.org/";
+    public static final String DOI_OLD_LONG_PROXY = "http://dx.doi.org/";
+    // long proxies recognised by HandleParserImpl unless others are configured
+    public static final List<String> DEFAULT_LONG_PROXIES =
+            Collections.unmodifiableList(Arrays.asList(HDL_LONG_PROXY, HDL_SECURE_LONG_PROXY));
     public static final Pattern HANDLE_PATTERN = Pattern.compile("^[^/]+/[^/]+$");
+    
+    // types and indexes of the values created by HandleInfoProviderImpl
+    public static final String URL_TYPE = "URL";
+    public static final int URL_INDEX = 1;
+    public static final String CRAWLTIME_TYPE = "CRAWLTIME";
+    public static final int CRAWLTIME_INDEX = 2;
+    public static final String FILESIZE_TYPE = "FILESIZE";
+    public static final int FILESIZE_INDEX = 3;
+    public static final String ONSITE_TYPE = "ONSITE";
+    public static final int ONSITE_INDEX = 4;
+    public static final String CHECKSUM_TYPE = "CHECKSUM";
+    public static final int CHECKSUM_INDEX = 5;
+    public static final String FILETIME_TYPE = "FILETIME";
+    public static final int FILETIME_INDEX = 6;
+    // index of the first additional digest (see HandleInfoProviderImpl#setExtraDigestAlgorithms)
+    public static final int EXTRA_CHECKSUM_FIRST_INDEX = 7;
+    public static final int ADMIN_INDEX = 100;
 }
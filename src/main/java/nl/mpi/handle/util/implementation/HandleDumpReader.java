@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.InflaterInputStream;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.implementation.HandleDumpWriter.BlockInfo;
+
+/**
+ * Reads a handle dump written by {@link HandleDumpWriter}.
+ * Only the block index is loaded when the dump is opened; blocks are read
+ * on demand, so single handles can be looked up without reading the whole file.
+ */
+public class HandleDumpReader implements Closeable {
+    
+    private final FileChannel channel;
+    private final boolean compressed;
+    private final List<BlockInfo> blocks;
+    private final long indexOffset;
+    
+    
+    /**
+     * @param file dump to read
+     * @throws IOException if the file cannot be read or is not a valid dump
+     */
+    public HandleDumpReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(0, 6);
+            if(header.getInt() != HandleDumpWriter.MAGIC) {
+                throw new IOException("Not a handle dump: " + file);
+            }
+            int version = header.get();
+            if(version != HandleDumpWriter.VERSION) {
+                throw new IOException("Unsupported handle dump version (" + version + ")");
+            }
+            compressed = (header.get() & HandleDumpWriter.FLAG_COMPRESSED) != 0;
+            
+            ByteBuffer footer = read(channel.size() - 12, 12);
+            indexOffset = footer.getLong();
+            if(footer.getInt() != HandleDumpWriter.MAGIC) {
+                throw new IOException("Incomplete handle dump: " + file);
+            }
+            blocks = readIndex();
+        } catch(IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+    
+    
+    /**
+     * @return number of blocks in the dump
+     */
+    public int getBlockCount() {
+        return blocks.size();
+    }
+    
+    /**
+     * @return total number of records in the dump
+     */
+    public long getRecordCount() {
+        long count = 0;
+        for(BlockInfo block : blocks) {
+            count += block.records;
+        }
+        return count;
+    }
+    
+    /**
+     * Reads all the records of a block.
+     * @param blockNumber number of the block, starting from 0
+     * @return records in the block, in the order they were written
+     * @throws IOException if the block cannot be read
+     */
+    public List<HandleRecord> readBlock(int blockNumber) throws IOException {
+        BlockInfo block = blocks.get(blockNumber);
+        int length = read(block.offset, 4).getInt();
+        ByteBuffer data = read(block.offset + 4, length);
+        InputStream blockIn = new ByteArrayInputStream(data.array(), 0, length);
+        if(compressed) {
+            blockIn = new InflaterInputStream(blockIn);
+        }
+        List<HandleRecord> records = new ArrayList<>(block.records);
+        try (DataInputStream in = new DataInputStream(blockIn)) {
+            for(int i = 0; i < block.records; i++) {
+                records.add(HandleRecord.readFrom(in));
+            }
+        }
+        return records;
+    }
+    
+    /**
+     * Looks up a single handle, reading only the blocks whose handle range
+     * may contain it (a single block if the records were written in order).
+     * @param handle handle to look up
+     * @return values of the handle, or null if it is not in the dump
+     * @throws IOException if the dump cannot be read
+     */
+    public HandleValue[] find(String handle) throws IOException {
+        for(int i = 0; i < blocks.size(); i++) {
+            BlockInfo block = blocks.get(i);
+            if(handle.compareTo(block.lowest) < 0 || handle.compareTo(block.highest) > 0) {
+                continue;
+            }
+            for(HandleRecord record : readBlock(i)) {
+                if(record.getHandle().equals(handle)) {
+                    return record.getValues();
+                }
+            }
+        }
+        return null;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    
+    private List<BlockInfo> readIndex() throws IOException {
+        long indexLength = channel.size() - 12 - indexOffset;
+        if(indexOffset < 6 || indexLength < 4 || indexLength > Integer.MAX_VALUE) {
+            throw new IOException("Invalid block index offset (" + indexOffset + ")");
+        }
+        ByteBuffer index = read(indexOffset, (int) indexLength);
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(index.array()))) {
+            int count = in.readInt();
+            List<BlockInfo> result = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                result.add(new BlockInfo(in.readLong(), in.readInt(), in.readUTF(), in.readUTF()));
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+    
+    private ByteBuffer read(long position, int length) throws IOException {
+        if(position < 0 || length < 0 || position + length > channel.size()) {
+            throw new IOException("Truncated handle dump");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        long current = position;
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, current);
+            if(read < 0) {
+                throw new IOException("Truncated handle dump");
+            }
+            current += read;
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import net.handle.hdllib.HandleValue;
+
+/**
+ * Writes handle records to a compact binary dump, which can be read back
+ * with {@link HandleDumpReader}.
+ * 
+ * Layout of the file:
+ * <ul>
+ * <li>header: magic number, format version and flags (compression)</li>
+ * <li>blocks: each one holding up to a fixed number of records
+ * (see {@link HandleRecord}), preceded by its stored length and optionally
+ * compressed with DEFLATE</li>
+ * <li>block index: for each block, its offset, number of records and the
+ * lowest and highest handle it contains</li>
+ * <li>footer: offset of the block index and magic number</li>
+ * </ul>
+ * Records are only kept in memory until their block is full, so dumps of
+ * any size are written with bounded memory.
+ */
+public class HandleDumpWriter implements Closeable {
+    
+    static final int MAGIC = 0x48444C44; // "HDLD"
+    // 2: all the fields of the values, including permissions and TTL
+    static final int VERSION = 2;
+    static final int FLAG_COMPRESSED = 1;
+    
+    private final DataOutputStream out;
+    private final boolean compressed;
+    private final int recordsPerBlock;
+    
+    private final ByteArrayOutputStream blockBuffer = new ByteArrayOutputStream(64 * 1024);
+    private final DataOutputStream blockOut = new DataOutputStream(blockBuffer);
+    private int blockRecords = 0;
+    private String blockLowest = null;
+    private String blockHighest = null;
+    private long offset = 0;
+    private long recordCount = 0;
+    private final List<BlockInfo> blocks = new ArrayList<>();
+    
+    
+    /**
+     * @param file file to write (replaced if it exists)
+     * @param compressed true to compress the blocks
+     * @param recordsPerBlock maximum number of records per block
+     * (smaller blocks make random access faster, larger ones compress better)
+     * @throws IOException if the file cannot be created
+     */
+    public HandleDumpWriter(Path file, boolean compressed, int recordsPerBlock) throws IOException {
+        if(recordsPerBlock <= 0) {
+            throw new IllegalArgumentException("Invalid number of records per block (" + recordsPerBlock + ")");
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 64 * 1024));
+        this.compressed = compressed;
+        this.recordsPerBlock = recordsPerBlock;
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(compressed ? FLAG_COMPRESSED : 0);
+        offset = 6;
+    }
+    
+    
+    /**
+     * Adds a record to the dump.
+     * @param handle
+     * @param values
+     * @throws IOException if the record cannot be written
+     */
+    public synchronized void write(String handle, HandleValue[] values) throws IOException {
+        new HandleRecord(handle, values).writeTo(blockOut);
+        if(blockLowest == null || handle.compareTo(blockLowest) < 0) {
+            blockLowest = handle;
+        }
+        if(blockHighest == null || handle.compareTo(blockHighest) > 0) {
+            blockHighest = handle;
+        }
+        blockRecords++;
+        recordCount++;
+        if(blockRecords >= recordsPerBlock) {
+            flushBlock();
+        }
+    }
+    
+    /**
+     * @return number of records written so far
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+    
+    /**
+     * Writes the remaining records, the block index and the footer, and closes the file.
+     * @throws IOException if the file cannot be written
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flushBlock();
+            long indexOffset = offset;
+            out.writeInt(blocks.size());
+            for(BlockInfo block : blocks) {
+                out.writeLong(block.offset);
+                out.writeInt(block.records);
+                out.writeUTF(block.lowest);
+                out.writeUTF(block.highest);
+            }
+            out.writeLong(indexOffset);
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+    }
+    
+    
+    private void flushBlock() throws IOException {
+        if(blockRecords == 0) {
+            return;
+        }
+        byte[] block = blockBuffer.toByteArray();
+        if(compressed) {
+            ByteArrayOutputStream compressedBuffer = new ByteArrayOutputStream(block.length / 2 + 64);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try (OutputStream deflaterOut = new DeflaterOutputStream(compressedBuffer, deflater)) {
+                deflaterOut.write(block);
+            } finally {
+                deflater.end();
+            }
+            block = compressedBuffer.toByteArray();
+        }
+        blocks.add(new BlockInfo(offset, blockRecords, blockLowest, blockHighest));
+        out.writeInt(block.length);
+        out.write(block);
+        offset += 4 + block.length;
+        blockBuffer.reset();
+        blockRecords = 0;
+        blockLowest = null;
+        blockHighest = null;
+    }
+    
+    
+    static final class BlockInfo {
+        
+        final long offset;
+        final int records;
+        final String lowest;
+        final String highest;
+        
+        BlockInfo(long offset, int records, String lowest, String highest) {
+            this.offset = offset;
+            this.records = records;
+            this.lowest = lowest;
+            this.highest = highest;
+        }
+    }
+}
@@ -17,17 +17,44 @@
 package nl.mpi.handle.util.implementation;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.URI;
-import java.sql.Timestamp;
-import java.util.Calendar;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import net.handle.hdllib.AdminRecord;
 import net.handle.hdllib.Common;
 import net.handle.hdllib.Encoder;
 import net.handle.hdllib.HandleValue;
 import net.handle.hdllib.Util;
+import nl.mpi.handle.util.DeferredHandleInfoProvider;
+import nl.mpi.handle.util.HandleClock;
 import nl.mpi.handle.util.HandleInfoProvider;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleSpan;
 import nl.mpi.util.Checksum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,17 +66,98 @@ import org.slf4j.LoggerFactory;
  * 
  * @author guisil
  */
-public class HandleInfoProviderImpl implements HandleInfoProvider, Serializable {
+public class HandleInfoProviderImpl implements DeferredHandleInfoProvider, Serializable {
     
     private static final Logger logger = LoggerFactory.getLogger(HandleInfoProviderImpl.class);
     
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    
     private final String prefix;
     private final String prefixWithSlash;
+    private final HandleProxyMatcher proxyMatcher;
+    
+    // not serialized: a deserialized provider reports to no metrics or tracer, and uses the system clock
+    private transient HandleMetrics metrics = NoOpHandleMetrics.INSTANCE;
+    private transient HandleTracer tracer = HandleTracer.DISABLED;
+    private transient Executor checksumExecutor;
+    private transient HandleClock clock = SystemHandleClock.INSTANCE;
+    private final HandleTimestampEncoder timestampEncoder = new HandleTimestampEncoder();
+    private List<String> extraDigestAlgorithms = Collections.emptyList();
     
     
     public HandleInfoProviderImpl(String prefix) {
+        this(prefix, HandleConstants.DEFAULT_LONG_PROXIES);
+    }
+    
+    /**
+     * @param prefix known prefix
+     * @param longProxies long proxies to recognise besides the short one
+     *  (the same as given to the {@link HandleParserImpl})
+     */
+    public HandleInfoProviderImpl(String prefix, Collection<String> longProxies) {
         this.prefix = prefix;
         prefixWithSlash = prefix + "/";
+        List<String> allProxies = new ArrayList<>(longProxies);
+        allProxies.add(HandleConstants.HDL_SHORT_PROXY + ":");
+        proxyMatcher = new HandleProxyMatcher(allProxies);
+    }
+    
+    /**
+     * @param metrics metrics to which the duration of the checksum calculation
+     * and of the whole creation of the handle information are reported
+     */
+    public void setMetrics(HandleMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param tracer tracer used to trace the checksum calculation
+     * and the whole creation of the handle information
+     */
+    public void setTracer(HandleTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * @param clock clock giving the crawl time of the handle information
+     * (e.g. a {@link BatchHandleClock}, to use the same time for a whole batch)
+     */
+    public void setClock(HandleClock clock) {
+        this.clock = clock;
+    }
+    
+    /**
+     * Makes the handle information include, besides the MD5 digest in the
+     * CHECKSUM value, a value for each of the given digests, with the type
+     * given by {@link #getChecksumType(java.lang.String)} and consecutive
+     * indexes from {@link HandleConstants#EXTRA_CHECKSUM_FIRST_INDEX}.
+     * All the digests are then calculated in a single read of the file
+     * (see {@link MultiDigest}). When a handle created without these values
+     * is updated, {@link HandleManagerImpl} adds them.
+     * @param algorithms e.g. {@link MultiDigest#SHA_256}, {@link MultiDigest#CRC32}
+     * @throws IllegalArgumentException if an algorithm is not available
+     */
+    public void setExtraDigestAlgorithms(List<String> algorithms) {
+        // fails right away for unknown algorithms
+        new MultiDigest(algorithms);
+        this.extraDigestAlgorithms = Collections.unmodifiableList(new ArrayList<>(algorithms));
+    }
+    
+    /**
+     * @param algorithm digest algorithm (e.g. "SHA-256")
+     * @return type of the handle value holding that digest (e.g. "CHECKSUM_SHA256")
+     */
+    public static String getChecksumType(String algorithm) {
+        return HandleConstants.CHECKSUM_TYPE + "_" + algorithm.replace("-", "").toUpperCase(Locale.ROOT);
+    }
+    
+    /**
+     * @param executor executor in which the checksums of the handle information
+     * prepared with {@link #prepareHandleInformation(java.io.File, java.net.URI)} are calculated
+     * (by default, a shared pool with as many threads as processors)
+     */
+    public void setChecksumExecutor(Executor executor) {
+        this.checksumExecutor = executor;
     }
     
 
@@ -61,37 +169,209 @@ public class HandleInfoProviderImpl implements HandleInfoProvider, Serializable
         
         logger.debug("Creating handle information; file: {}; uri: {}", file, uri);
         
-        long currentTimeInMills = Calendar.getInstance().getTimeInMillis();
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("createHandleInformation")) {
+            return buildHandleInformation(file, uri);
+        } finally {
+            metrics.recordLatency(HandleMetrics.PHASE_HANDLE_INFORMATION, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Creates the handle information of a file whose checksums were already
+     * calculated (e.g. while copying it, see {@link CopyingHandleAssigner}),
+     * so that the file is not read again.
+     * @param file file the handle refers to
+     * @param uri target of the handle
+     * @param checksums digest (lowercase hexadecimal) for each algorithm in {@link #getDigestAlgorithms()}
+     * @return the handle information
+     * @throws IllegalArgumentException if one of the digests is missing
+     */
+    public HandleValue[] createHandleInformation(File file, URI uri, Map<String, String> checksums) {
+        
+        logger.debug("Creating handle information with given checksums; file: {}; uri: {}", file, uri);
         
-        Timestamp crawlTime = new Timestamp(currentTimeInMills);
-        boolean onsite = true;
-        Timestamp fileTime;
-        long fileSize;
-        String checksum;
+        for(String algorithm : getDigestAlgorithms()) {
+            if(checksums.get(algorithm) == null) {
+                throw new IllegalArgumentException("Missing " + algorithm + " digest of " + file);
+            }
+        }
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("createHandleInformation")) {
+            return buildHandleInformation(file, uri, checksums);
+        } finally {
+            metrics.recordLatency(HandleMetrics.PHASE_HANDLE_INFORMATION, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Creates the handle information of content which is not in a local file
+     * (e.g. an upload or an object in a remote storage), calculating its size
+     * and checksums while reading it, so that it does not have to be stored
+     * in a temporary file first. The channel is read to the end, but not closed.
+     * The handle can then be assigned with
+     * {@link HandleManagerImpl#assignNewHandle(java.io.File, java.net.URI, net.handle.hdllib.HandleValue[])}
+     * (with a null file).
+     * @param content channel providing the content
+     * @param lastModified modification time of the content (in milliseconds since the epoch), or null to use the crawl time
+     * @param uri target of the handle
+     * @return the handle information
+     * @throws IOException if the content cannot be read
+     */
+    public HandleValue[] createHandleInformation(ReadableByteChannel content, Long lastModified, URI uri) throws IOException {
+        
+        logger.debug("Creating handle information from a channel; uri: {}", uri);
+        
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("createHandleInformation")) {
+            MultiDigest digest = new MultiDigest(getDigestAlgorithms());
+            long checksumStart = System.nanoTime();
+            try (HandleSpan checksumSpan = tracer.startSpan("checksum")) {
+                ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+                while(content.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                metrics.recordLatency(HandleMetrics.PHASE_CHECKSUM, System.nanoTime() - checksumStart);
+            }
+            return buildHandleInformation(lastModified, digest.getSize(), uri, digest.finish());
+        } finally {
+            metrics.recordLatency(HandleMetrics.PHASE_HANDLE_INFORMATION, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Same as {@link #createHandleInformation(java.nio.channels.ReadableByteChannel, java.lang.Long, java.net.URI)},
+     * for an <CODE>InputStream</CODE> (which is read to the end, but not closed).
+     * @param content stream providing the content
+     * @param lastModified modification time of the content (in milliseconds since the epoch), or null to use the crawl time
+     * @param uri target of the handle
+     * @return the handle information
+     * @throws IOException if the content cannot be read
+     */
+    public HandleValue[] createHandleInformation(InputStream content, Long lastModified, URI uri) throws IOException {
+        // not closing the channel, since that would close the stream
+        return createHandleInformation(Channels.newChannel(content), lastModified, uri);
+    }
+    
+    /**
+     * @return digest algorithms included in the handle information, MD5 (for the CHECKSUM value) first
+     */
+    public List<String> getDigestAlgorithms() {
+        List<String> algorithms = new ArrayList<>();
+        algorithms.add(MultiDigest.MD5);
+        algorithms.addAll(extraDigestAlgorithms);
+        return algorithms;
+    }
+    
+    /**
+     * @see DeferredHandleInfoProvider#prepareHandleInformation(java.io.File, java.net.URI)
+     */
+    @Override
+    public Future<HandleValue[]> prepareHandleInformation(final File file, URI uri) {
+        
+        logger.debug("Preparing handle information; file: {}; uri: {}", file, uri);
+        
+        final HandleSpan callerSpan = HandleTracer.getCurrentSpan();
+        FutureTask<Map<String, String>> checksumTask = new FutureTask<>(new Callable<Map<String, String>>() {
+            @Override
+            public Map<String, String> call() throws IOException {
+                HandleSpan previousSpan = HandleTracer.attach(callerSpan);
+                try {
+                    return createChecksums(file);
+                } finally {
+                    HandleTracer.restore(previousSpan);
+                }
+            }
+        });
+        if(file != null) {
+            getChecksumExecutor().execute(checksumTask);
+        } else {
+            checksumTask.run();
+        }
+        return new DeferredHandleInformation(file, uri, checksumTask);
+    }
+    
+    /**
+     * @return digest for each algorithm, the MD5 (for the CHECKSUM value) first
+     * @throws IOException if the file cannot be read
+     */
+    private Map<String, String> createChecksums(File file) throws IOException {
+        List<String> algorithms = getDigestAlgorithms();
+        if(file == null) {
+            Map<String, String> checksums = new LinkedHashMap<>();
+            for(String algorithm : algorithms) {
+                checksums.put(algorithm, "");
+            }
+            return checksums;
+        }
+        long checksumStart = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("checksum")) {
+            if(extraDigestAlgorithms.isEmpty()) {
+                return Collections.singletonMap(MultiDigest.MD5, Checksum.create(file.toString()));
+            }
+            return MultiDigest.digest(file, algorithms);
+        } finally {
+            metrics.recordLatency(HandleMetrics.PHASE_CHECKSUM, System.nanoTime() - checksumStart);
+        }
+    }
+    
+    private HandleValue[] buildHandleInformation(File file, URI uri) {
+        Map<String, String> checksums;
+        try {
+            checksums = createChecksums(file);
+        } catch(IOException ex) {
+            // HandleInfoProvider#createHandleInformation(File, URI) does not declare it
+            throw new IllegalStateException("Could not calculate the checksums of " + file, ex);
+        }
+        return buildHandleInformation(file, uri, checksums);
+    }
+    
+    private HandleValue[] buildHandleInformation(File file, URI uri, Map<String, String> checksums) {
         if (file != null) {
-            fileTime = new Timestamp(file.lastModified());
-            fileSize = file.length(); // currently 0 for nonlocal files
-            checksum = Checksum.create(file.toString());
+            return buildHandleInformation(file.lastModified(), file.length(), uri, checksums); // length currently 0 for nonlocal files
         } else {
-            fileTime = new Timestamp(currentTimeInMills);
-            fileSize = 0;
-            checksum = "";
+            return buildHandleInformation(null, 0, uri, checksums);
         }
+    }
+    
+    /**
+     * @param lastModified modification time of the content, or null to use the crawl time
+     */
+    private HandleValue[] buildHandleInformation(Long lastModified, long fileSize, URI uri, Map<String, String> checksums) {
+        
+        long currentTimeInMills = clock.currentTimeMillis();
+        
+        byte[] crawlTime = timestampEncoder.encode(currentTimeInMills);
+        boolean onsite = true;
+        byte[] fileTime = timestampEncoder.encode(lastModified != null ? lastModified : currentTimeInMills);
 
         HandleValue iValues [] = {
-            new HandleValue(6, Util.encodeString("FILETIME"), Util.encodeString((fileTime.toString()))),
-            new HandleValue(5, Util.encodeString("CHECKSUM"), Util.encodeString(checksum)),//checksum.getBytes()),
-            new HandleValue(4, Util.encodeString("ONSITE"), Util.encodeString(Boolean.toString(onsite))),
-            new HandleValue(3, Util.encodeString("FILESIZE"), Util.encodeString(Long.toString(fileSize))),
-            new HandleValue(2, Util.encodeString("CRAWLTIME"), Util.encodeString(crawlTime.toString())),
-            new HandleValue(1, Util.encodeString("URL"), Util.encodeString(uri.toString())),
-            new HandleValue(100, Common.STD_TYPE_HSADMIN,
+            new HandleValue(HandleConstants.FILETIME_INDEX, Util.encodeString(HandleConstants.FILETIME_TYPE), fileTime),
+            new HandleValue(HandleConstants.CHECKSUM_INDEX, Util.encodeString(HandleConstants.CHECKSUM_TYPE), Util.encodeString(checksums.get(MultiDigest.MD5))),//checksum.getBytes()),
+            new HandleValue(HandleConstants.ONSITE_INDEX, Util.encodeString(HandleConstants.ONSITE_TYPE), Util.encodeString(Boolean.toString(onsite))),
+            new HandleValue(HandleConstants.FILESIZE_INDEX, Util.encodeString(HandleConstants.FILESIZE_TYPE), Util.encodeString(Long.toString(fileSize))),
+            new HandleValue(HandleConstants.CRAWLTIME_INDEX, Util.encodeString(HandleConstants.CRAWLTIME_TYPE), crawlTime),
+            new HandleValue(HandleConstants.URL_INDEX, Util.encodeString(HandleConstants.URL_TYPE), Util.encodeString(uri.toString())),
+            new HandleValue(HandleConstants.ADMIN_INDEX, Common.STD_TYPE_HSADMIN,
             Encoder.encodeAdminRecord(new AdminRecord(
             Util.encodeString("0.NA/" + prefix), 200,
             false, false, false, false, true, true, true, true,
             false, false, false, false)))
         };
         
+        if(!extraDigestAlgorithms.isEmpty()) {
+            int base = iValues.length;
+            iValues = Arrays.copyOf(iValues, base + extraDigestAlgorithms.size());
+            for(int i = 0; i < extraDigestAlgorithms.size(); i++) {
+                String algorithm = extraDigestAlgorithms.get(i);
+                iValues[base + i] = new HandleValue(HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX + i,
+                        Util.encodeString(getChecksumType(algorithm)), Util.encodeString(checksums.get(algorithm)));
+            }
+        }
+        
         return iValues;
     }
     
@@ -117,15 +397,13 @@ public class HandleInfoProviderImpl implements HandleInfoProvider, Serializable
         
         logger.debug("Checking if handle '{}' is a valid UUID", handle);
         
-	String uuid;
-	String testShortHandlePrefix = HandleConstants.HDL_SHORT_PROXY + ":" + prefixWithSlash;
-	String testLongHandlePrefix = HandleConstants.HDL_LONG_PROXY + prefixWithSlash;
+	String uuid = handle;
+	// same proxies as recognised by the parser
+	int proxyLength = proxyMatcher.match(handle, 0);
+	if (proxyLength > 0 && handle.startsWith(prefixWithSlash, proxyLength)) {
+	    uuid = handle.substring(proxyLength + prefixWithSlash.length());
+	}
 	try {
-	    if (handle.startsWith(testShortHandlePrefix)) {
-		uuid = handle.replace(testShortHandlePrefix, "");
-	    } else {
-		uuid = handle.replace(testLongHandlePrefix, "");
-	    }
 	    logger.info("uuid : {}", uuid);
 	    UUID.fromString(uuid);
 	    return true;
@@ -134,4 +412,85 @@ public class HandleInfoProviderImpl implements HandleInfoProvider, Serializable
 	    return false;
 	}
     }
+    
+    
+    private synchronized Executor getChecksumExecutor() {
+        return checksumExecutor != null ? checksumExecutor : DefaultChecksumExecutor.INSTANCE;
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        metrics = NoOpHandleMetrics.INSTANCE;
+        tracer = HandleTracer.DISABLED;
+        clock = SystemHandleClock.INSTANCE;
+    }
+    
+    private static final class DefaultChecksumExecutor {
+        
+        static final ExecutorService INSTANCE = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "handle-checksum-" + count.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+    
+    /**
+     * Handle information whose checksum is being calculated in the background;
+     * the values are only built (with the crawl time of that moment) once it is available.
+     */
+    private final class DeferredHandleInformation implements Future<HandleValue[]> {
+        
+        private final File file;
+        private final URI uri;
+        private final FutureTask<Map<String, String>> checksumTask;
+        private HandleValue[] values;
+        
+        DeferredHandleInformation(File file, URI uri, FutureTask<Map<String, String>> checksumTask) {
+            this.file = file;
+            this.uri = uri;
+            this.checksumTask = checksumTask;
+        }
+        
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return checksumTask.cancel(mayInterruptIfRunning);
+        }
+        
+        @Override
+        public boolean isCancelled() {
+            return checksumTask.isCancelled();
+        }
+        
+        @Override
+        public boolean isDone() {
+            return checksumTask.isDone();
+        }
+        
+        @Override
+        public HandleValue[] get() throws InterruptedException, ExecutionException {
+            return build(checksumTask.get());
+        }
+        
+        @Override
+        public HandleValue[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            return build(checksumTask.get(timeout, unit));
+        }
+        
+        private synchronized HandleValue[] build(Map<String, String> checksums) {
+            if(values == null) {
+                long start = System.nanoTime();
+                try (HandleSpan span = tracer.startSpan("createHandleInformation")) {
+                    values = buildHandleInformation(file, uri, checksums);
+                } finally {
+                    metrics.recordLatency(HandleMetrics.PHASE_HANDLE_INFORMATION, System.nanoTime() - start);
+                }
+            }
+            return values;
+        }
+    }
 }
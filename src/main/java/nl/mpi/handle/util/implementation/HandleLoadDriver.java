@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import net.handle.hdllib.HandleException;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Load generator for the handle operations, driving a {@link HandleManagerImpl}
+ * with a configurable concurrency, mix of operations, file size distribution
+ * and target rate, against either an {@link InMemoryHandleServer} or a real
+ * Handle System server. At the end it reports the throughput, the latency
+ * percentiles of the successful calls per operation, the errors per <CODE>HandleException</CODE> code
+ * and the latencies of the phases measured by {@link InMemoryHandleMetrics}.
+ * 
+ * When a target rate is given, the operations are scheduled at fixed
+ * intervals and their latency is measured from the scheduled time, so that
+ * the queueing caused by a slow server is not hidden from the results.
+ * 
+ * Usage: <CODE>java nl.mpi.handle.util.implementation.HandleLoadDriver [option=value ...]</CODE>,
+ * with the following options:
+ * <ul>
+ * <li>threads - number of concurrent workers (default 8)</li>
+ * <li>duration - duration of the test, in seconds (default 30)</li>
+ * <li>rate - target number of operations per second, 0 for unlimited (default 0)</li>
+ * <li>mix - weights of the operations (default assign:70,update:20,resolve:5,delete:5)</li>
+ * <li>files - number of test files to generate (default 20)</li>
+ * <li>sizes - minimum and maximum test file size, in bytes, with a log-uniform distribution (default 1024-1048576)</li>
+ * <li>prefix - handle prefix (default 11142)</li>
+ * <li>server - "memory" for an in-process server, or the path of a properties file with the connection settings
+ * of a real server (handle_admin_key_file, admin_user_handle, admin_user_handle_index, handle_admin_password,
+ * HANDLE_PREFIX) (default memory)</li>
+ * <li>latency - latency of the in-process server, in microseconds, as min-max (default 0-0)</li>
+ * <li>failures - failure rate of the in-process server, between 0 and 1 (default 0)</li>
+ * </ul>
+ */
+public class HandleLoadDriver {
+    
+    /**
+     * Operations performed by the load test.
+     */
+    public enum Operation {
+        ASSIGN,
+        UPDATE,
+        RESOLVE,
+        DELETE
+    }
+    
+    private static final int HANDLE_POOL_SIZE = 1 << 16;
+    
+    private final Map<String, String> options;
+    private final int threads;
+    private final long durationMillis;
+    private final double rate;
+    private final Map<Operation, Integer> mix = new EnumMap<>(Operation.class);
+    private final int totalWeight;
+    
+    private final InMemoryHandleMetrics metrics = new InMemoryHandleMetrics();
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+    
+    // handles created during the test, available for the other operations
+    private final AtomicReferenceArray<URI> handlePool = new AtomicReferenceArray<>(HANDLE_POOL_SIZE);
+    private final AtomicLong handlePoolWrites = new AtomicLong();
+    
+    private HandleManagerImpl handleManager;
+    private HandleUtil handleUtil;
+    private final List<File> testFiles = new ArrayList<>();
+    private File testFolder;
+    
+    
+    /**
+     * @param options options, as described in the class documentation
+     */
+    public HandleLoadDriver(Map<String, String> options) {
+        this.options = options;
+        this.threads = Integer.parseInt(getOption("threads", "8"));
+        this.durationMillis = (long) (Double.parseDouble(getOption("duration", "30")) * 1000);
+        this.rate = Double.parseDouble(getOption("rate", "0"));
+        int weights = 0;
+        for(String entry : getOption("mix", "assign:70,update:20,resolve:5,delete:5").split(",")) {
+            String[] parts = entry.split(":");
+            if(parts.length != 2) {
+                throw new IllegalArgumentException("Invalid mix entry (" + entry + ")");
+            }
+            int weight = Integer.parseInt(parts[1].trim());
+            mix.put(Operation.valueOf(parts[0].trim().toUpperCase()), weight);
+            weights += weight;
+        }
+        if(threads <= 0 || durationMillis <= 0 || rate < 0 || weights <= 0) {
+            throw new IllegalArgumentException("Invalid options (" + options + ")");
+        }
+        this.totalWeight = weights;
+        for(Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+        }
+    }
+    
+    
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new TreeMap<>();
+        for(String arg : args) {
+            int separator = arg.indexOf('=');
+            if(separator <= 0) {
+                System.err.println("Invalid argument (" + arg + "); expected option=value");
+                System.exit(1);
+            }
+            options.put(arg.substring(0, separator).replaceFirst("^-+", ""), arg.substring(separator + 1));
+        }
+        new HandleLoadDriver(options).run(System.out);
+    }
+    
+    /**
+     * Runs the load test and prints the report.
+     * @param out stream to which the report is printed
+     * @return number of completed operations (successful or not)
+     * @throws IOException if the test files cannot be generated or the server settings cannot be read
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public long run(PrintStream out) throws IOException, InterruptedException {
+        setUp();
+        try {
+            out.println("Running load test with options " + options);
+            final long start = System.nanoTime();
+            final long end = start + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+            final long intervalNanos = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+            final AtomicLong nextSlot = new AtomicLong(start);
+            final CountDownLatch done = new CountDownLatch(threads);
+            for(int i = 0; i < threads; i++) {
+                Thread worker = new Thread("load-test-" + i) {
+                    @Override
+                    public void run() {
+                        try {
+                            work(end, intervalNanos, nextSlot);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                };
+                worker.setDaemon(true);
+                worker.start();
+            }
+            done.await();
+            report(out, System.nanoTime() - start);
+            return completed.get();
+        } finally {
+            FileUtils.deleteQuietly(testFolder);
+        }
+    }
+    
+    /**
+     * @param operation
+     * @return latencies (in nanoseconds) of the successful calls of the given operation
+     */
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies.get(operation);
+    }
+    
+    /**
+     * @return total number of errors
+     */
+    public long getErrorCount() {
+        long total = 0;
+        for(AtomicLong count : errors.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+    
+    
+    private void setUp() throws IOException {
+        String prefix = getOption("prefix", "11142");
+        String server = getOption("server", "memory");
+        if("memory".equals(server)) {
+            InMemoryHandleServer memoryServer = new InMemoryHandleServer();
+            String[] latency = getOption("latency", "0-0").split("-");
+            memoryServer.setLatency(Long.parseLong(latency[0]), Long.parseLong(latency[1]));
+            memoryServer.setFailureRate(Double.parseDouble(getOption("failures", "0")), HandleException.SERVER_ERROR);
+            handleUtil = new HandleUtil(memoryServer);
+        } else {
+            Properties properties = new Properties();
+            try (InputStream in = new FileInputStream(server)) {
+                properties.load(in);
+            }
+            prefix = properties.getProperty("HANDLE_PREFIX", prefix).trim();
+            handleUtil = new HandleUtil(properties.getProperty("handle_admin_key_file").trim(),
+                    properties.getProperty("admin_user_handle_index").trim(),
+                    properties.getProperty("admin_user_handle").trim(),
+                    properties.getProperty("handle_admin_password").trim());
+        }
+        handleUtil.setMetrics(metrics);
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        handleInfoProvider.setMetrics(metrics);
+        handleManager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl(prefix), handleUtil, prefix);
+        handleManager.setMetrics(metrics);
+        createTestFiles();
+    }
+    
+    private void createTestFiles() throws IOException {
+        String[] sizes = getOption("sizes", "1024-1048576").split("-");
+        long minSize = Long.parseLong(sizes[0]);
+        long maxSize = Long.parseLong(sizes[1]);
+        int fileCount = Integer.parseInt(getOption("files", "20"));
+        testFolder = File.createTempFile("handle-load-test", "");
+        if(!testFolder.delete() || !testFolder.mkdir()) {
+            throw new IOException("Could not create test folder " + testFolder);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        byte[] buffer = new byte[64 * 1024];
+        for(int i = 0; i < fileCount; i++) {
+            // log-uniform, so that small files are as common as large ones
+            double logSize = Math.log(Math.max(minSize, 1)) + random.nextDouble() * (Math.log(Math.max(maxSize, 1)) - Math.log(Math.max(minSize, 1)));
+            long size = Math.max(minSize, Math.min(maxSize, (long) Math.exp(logSize)));
+            File file = new File(testFolder, "file" + i + ".bin");
+            try (OutputStream out = new FileOutputStream(file)) {
+                for(long written = 0; written < size; written += buffer.length) {
+                    random.nextBytes(buffer);
+                    out.write(buffer, 0, (int) Math.min(buffer.length, size - written));
+                }
+            }
+            testFiles.add(file);
+        }
+    }
+    
+    private void work(long end, long intervalNanos, AtomicLong nextSlot) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while(true) {
+            long scheduled;
+            if(intervalNanos > 0) {
+                scheduled = nextSlot.getAndAdd(intervalNanos);
+                if(scheduled >= end) {
+                    return;
+                }
+                long wait = scheduled - System.nanoTime();
+                if(wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            } else {
+                scheduled = System.nanoTime();
+                if(scheduled >= end) {
+                    return;
+                }
+            }
+            Operation operation = pickOperation(random);
+            URI handle = operation == Operation.ASSIGN ? null : pickHandle(random, operation == Operation.DELETE);
+            if(handle == null) {
+                // nothing to update, resolve or delete yet; measured as the assignment it is
+                operation = Operation.ASSIGN;
+            }
+            try {
+                perform(operation, handle, random);
+                // failed calls are only counted, so that fast failures do not improve the percentiles
+                latencies.get(operation).record(System.nanoTime() - scheduled);
+            } catch(HandleException ex) {
+                countError(operation + " HandleException code " + ex.getCode());
+            } catch(IOException | RuntimeException ex) {
+                countError(operation + " " + ex.getClass().getSimpleName());
+            }
+            completed.incrementAndGet();
+        }
+    }
+    
+    private Operation pickOperation(ThreadLocalRandom random) {
+        int pick = random.nextInt(totalWeight);
+        for(Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            pick -= entry.getValue();
+            if(pick < 0) {
+                return entry.getKey();
+            }
+        }
+        return Operation.ASSIGN;
+    }
+    
+    private void perform(Operation operation, URI handle, ThreadLocalRandom random) throws HandleException, IOException {
+        File file = testFiles.get(random.nextInt(testFiles.size()));
+        URI target = URI.create("http://server/archive/load-test/" + file.getName());
+        switch(operation) {
+            case ASSIGN:
+                URI newHandle = handleManager.assignNewHandle(file, target);
+                handlePool.set((int) (handlePoolWrites.getAndIncrement() & (HANDLE_POOL_SIZE - 1)), newHandle);
+                break;
+            case UPDATE:
+                handleManager.updateHandle(file, handle, target);
+                break;
+            case RESOLVE:
+                handleUtil.resolveHandle(handle.toString(), null, null);
+                break;
+            case DELETE:
+                handleManager.deleteHandle(handle);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected operation " + operation);
+        }
+    }
+    
+    /**
+     * @return one of the handles created during the test (removed from the pool
+     * if it is going to be deleted), or null if none is available
+     */
+    private URI pickHandle(ThreadLocalRandom random, boolean remove) {
+        int available = (int) Math.min(handlePoolWrites.get(), HANDLE_POOL_SIZE);
+        for(int attempt = 0; attempt < 8 && available > 0; attempt++) {
+            int position = random.nextInt(available);
+            URI handle = handlePool.get(position);
+            if(handle != null && (!remove || handlePool.compareAndSet(position, handle, null))) {
+                return handle;
+            }
+        }
+        return null;
+    }
+    
+    private void countError(String key) {
+        AtomicLong count = errors.get(key);
+        if(count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = errors.putIfAbsent(key, newCount);
+            if(count == null) {
+                count = newCount;
+            }
+        }
+        count.incrementAndGet();
+    }
+    
+    private void report(PrintStream out, long elapsedNanos) {
+        double seconds = elapsedNanos / 1e9;
+        out.printf("Completed %d operations in %.1f s (%.1f ops/s), %d error(s)%n",
+                completed.get(), seconds, completed.get() / seconds, getErrorCount());
+        out.println("Latencies per operation (ms):");
+        for(Operation operation : Operation.values()) {
+            LatencyHistogram histogram = latencies.get(operation);
+            if(histogram.getCount() == 0) {
+                continue;
+            }
+            out.printf("  %-8s count=%d ops/s=%.1f p50=%.2f p90=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                    operation, histogram.getCount(), histogram.getCount() / seconds,
+                    histogram.getValueAtPercentile(50) / 1e6, histogram.getValueAtPercentile(90) / 1e6,
+                    histogram.getValueAtPercentile(99) / 1e6, histogram.getValueAtPercentile(99.9) / 1e6,
+                    histogram.getMax() / 1e6);
+        }
+        if(!errors.isEmpty()) {
+            out.println("Errors:");
+            SortedMap<String, AtomicLong> sortedErrors = new TreeMap<String, AtomicLong>(errors);
+            for(Map.Entry<String, AtomicLong> entry : sortedErrors.entrySet()) {
+                out.printf("  %s: %d (%.2f%%)%n", entry.getKey(), entry.getValue().get(), 100.0 * entry.getValue().get() / completed.get());
+            }
+        }
+        out.println("Metrics:");
+        out.print(metrics.report());
+    }
+    
+    private String getOption(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -19,13 +19,31 @@ package nl.mpi.handle.util.implementation;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import net.handle.api.HSAdapter;
 import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.DeferredHandleInfoProvider;
+import nl.mpi.handle.util.HandleAssignmentListener;
+import nl.mpi.handle.util.HandleChangeListener;
 import nl.mpi.handle.util.HandleInfoProvider;
 import nl.mpi.handle.util.HandleManager;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleOperation;
 import nl.mpi.handle.util.HandleParser;
+import nl.mpi.handle.util.HandleSpan;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -41,6 +59,16 @@ public class HandleManagerImpl implements HandleManager, Serializable {
     private final HandleParser handleParser;
     private final HandleUtil handleUtil;
     
+    // not serialized: a deserialized manager reports to no metrics, tracer or listeners
+    private transient HandleMetrics metrics = NoOpHandleMetrics.INSTANCE;
+    private transient HandleTracer tracer = HandleTracer.DISABLED;
+    private transient List<HandleChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private transient HandleReservoir handleReservoir;
+    private transient Executor reservedHandleExecutor;
+    private transient HandleAssignmentListener deferredUpdateFailureListener;
+    private int deferredUpdateAttempts = 3;
+    private long deferredUpdateBackoffMillis = 1000;
+    
     public HandleManagerImpl(HandleInfoProvider hdlInfoProvider, HandleParser hdlParser, HandleUtil hdlUtil, String prefix)
             throws FileNotFoundException, IOException {
 
@@ -48,6 +76,66 @@ public class HandleManagerImpl implements HandleManager, Serializable {
         this.handleParser = hdlParser;
         this.handleUtil = hdlUtil;
     }
+    
+    /**
+     * @param metrics metrics to which the duration of each operation is reported
+     */
+    public void setMetrics(HandleMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * @param tracer tracer used to trace each operation and its phases
+     */
+    public void setTracer(HandleTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    /**
+     * @param listener listener notified of each handle successfully created, updated or deleted by this manager
+     */
+    public void addChangeListener(HandleChangeListener listener) {
+        changeListeners.add(listener);
+    }
+    
+    /**
+     * New handles are then claimed from the reservoir and only updated with
+     * the handle information; when the reservoir is empty they are generated
+     * and created as usual.
+     * @param reservoir reservoir of handles created in advance
+     * @param deferredUpdateExecutor if not null, the claimed handle is returned
+     * immediately and updated in this executor; failed updates are retried
+     * (see {@link #setDeferredUpdateRetry(int, long)}) and then reported
+     * (see {@link #setDeferredUpdateFailureListener(HandleAssignmentListener)})
+     */
+    public void setHandleReservoir(HandleReservoir reservoir, Executor deferredUpdateExecutor) {
+        this.handleReservoir = reservoir;
+        this.reservedHandleExecutor = deferredUpdateExecutor;
+    }
+    
+    /**
+     * @param maxAttempts number of attempts to update a reserved handle in the
+     * deferred update executor (3 by default)
+     * @param initialBackoffMillis wait before the second attempt, doubled
+     * before each of the following ones (1000 by default)
+     */
+    public void setDeferredUpdateRetry(int maxAttempts, long initialBackoffMillis) {
+        if(maxAttempts <= 0 || initialBackoffMillis < 0) {
+            throw new IllegalArgumentException("Invalid number of attempts or backoff");
+        }
+        this.deferredUpdateAttempts = maxAttempts;
+        this.deferredUpdateBackoffMillis = initialBackoffMillis;
+    }
+    
+    /**
+     * @param listener notified (through {@link HandleAssignmentListener#assignmentFailed(java.nio.file.Path, java.lang.Exception)},
+     * with a message naming the reserved handle) when a reserved handle
+     * could not be updated in the deferred update executor, since the
+     * caller already received it; otherwise such failures are only logged
+     */
+    public void setDeferredUpdateFailureListener(HandleAssignmentListener listener) {
+        this.deferredUpdateFailureListener = listener;
+    }
 
     
     /**
@@ -58,9 +146,63 @@ public class HandleManagerImpl implements HandleManager, Serializable {
         
         logger.debug("Assigning a newly generated handle. File: {}; target uri: {}", file, targetURI);
         
-        String generatedHandle = handleInfoProvider.generateUuidHandle();
+        long start = System.nanoTime();
+        Future<HandleValue[]> handleInformation = null;
+        try (HandleSpan span = tracer.startSpan("assignNewHandle")) {
+            handleInformation = prepareHandleInformation(file, targetURI);
+            URI assignedHandle = assignNewOrReservedHandle(file, targetURI, handleInformation);
+            // the handle information may still be needed to update a reserved handle later
+            handleInformation = null;
+            return assignedHandle;
+        } finally {
+            cancelIfPending(handleInformation);
+            metrics.recordLatency(HandleMetrics.MANAGER_PREFIX + "assignNewHandle", System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Same as {@link #assignNewHandle(java.io.File, java.net.URI)}, with the
+     * handle information already created (e.g. by {@link CopyingHandleAssigner},
+     * which calculates the checksums while copying the file).
+     * @param file file to which the handle is assigned
+     * @param targetURI final URI of the file, which the handle should target
+     * @param handleInformation values of the handle
+     * @return URI corresponding to the handle, with the appropriate prefix
+     */
+    public URI assignNewHandle(File file, URI targetURI, HandleValue[] handleInformation) throws HandleException, IOException {
+        
+        logger.debug("Assigning a newly generated handle, with given handle information. File: {}; target uri: {}", file, targetURI);
         
-        return assignHandle(file, generatedHandle, targetURI);
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("assignNewHandle")) {
+            return assignNewOrReservedHandle(file, targetURI, completedFuture(handleInformation));
+        } finally {
+            metrics.recordLatency(HandleMetrics.MANAGER_PREFIX + "assignNewHandle", System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * @param handleInformation handle information already being prepared, or null if it should be created here
+     */
+    private URI assignNewOrReservedHandle(File file, URI targetURI, Future<HandleValue[]> handleInformation)
+            throws HandleException, IOException {
+        
+        String reservedHandle = claimReservedHandle();
+        if(reservedHandle != null) {
+            if(reservedHandleExecutor != null) {
+                completeReservedHandleLater(file, reservedHandle, targetURI, handleInformation);
+            } else {
+                completeReservedHandle(file, reservedHandle, targetURI, handleInformation);
+            }
+            return URI.create(reservedHandle);
+        }
+        
+        String generatedHandle;
+        try (HandleSpan uuidSpan = tracer.startSpan("generateUuidHandle")) {
+            generatedHandle = handleInfoProvider.generateUuidHandle();
+        }
+        
+        return assignHandle(file, generatedHandle, targetURI, handleInformation);
     }
 
     /**
@@ -69,24 +211,164 @@ public class HandleManagerImpl implements HandleManager, Serializable {
     @Override
     public URI assignHandle(File file, URI handle, URI targetURI) throws HandleException, IOException {
         
-        URI preparedHandle = handleParser.prepareAndValidateHandleWithoutProxy(handle);
-        
-        return assignHandle(file, preparedHandle.toString(), targetURI);
+        long start = System.nanoTime();
+        Future<HandleValue[]> handleInformation = null;
+        try (HandleSpan span = tracer.startSpan("assignHandle")) {
+            handleInformation = prepareHandleInformation(file, targetURI);
+            URI preparedHandle;
+            try (HandleSpan parseSpan = tracer.startSpan("prepareAndValidateHandleWithoutProxy")) {
+                preparedHandle = handleParser.prepareAndValidateHandleWithoutProxy(handle);
+            }
+            
+            return assignHandle(file, preparedHandle.toString(), targetURI, handleInformation);
+        } finally {
+            cancelIfPending(handleInformation);
+            metrics.recordLatency(HandleMetrics.MANAGER_PREFIX + "assignHandle", System.nanoTime() - start);
+        }
     }
     
-    private URI assignHandle(File file, String handleStr, URI targetURI) throws HandleException, IOException {
+    /**
+     * @param handleInformation handle information already being prepared, or null if it should be created here
+     */
+    private URI assignHandle(File file, String handleStr, URI targetURI, Future<HandleValue[]> handleInformation)
+            throws HandleException, IOException {
         
         logger.debug("Assigning handle '{}', with target '{}', to file '{}'", handleStr, targetURI, file);
         
-        HandleValue[] handleInformation = handleInfoProvider.createHandleInformation(file, targetURI);
-        
-        handleUtil.createHandle(handleStr, handleInformation);
+        HandleValue[] createdHandleInformation;
+        if(handleInformation != null) {
+            try (HandleSpan span = tracer.startSpan("createHandle", handleStr)) {
+                createdHandleInformation = handleUtil.createHandle(handleStr, handleInformation);
+            }
+        } else {
+            createdHandleInformation = handleInfoProvider.createHandleInformation(file, targetURI);
+            try (HandleSpan span = tracer.startSpan("createHandle", handleStr)) {
+                handleUtil.createHandle(handleStr, createdHandleInformation);
+            }
+        }
+        notifyListeners(HandleOperation.CREATE, handleStr, createdHandleInformation);
         
         URI generatedHandleURI = URI.create(handleStr);
         logger.debug("Generated handle - {} - was successfully created", generatedHandleURI);
         return generatedHandleURI;
     }
     
+    private String claimReservedHandle() {
+        if(handleReservoir == null) {
+            return null;
+        }
+        try (HandleSpan span = tracer.startSpan("claimReservedHandle")) {
+            String handle = handleReservoir.claim();
+            if(handle == null) {
+                logger.debug("Handle reservoir is empty; generating a new handle");
+                metrics.incrementCounter(HandleMetrics.MANAGER_PREFIX + "reservoirEmpty");
+            }
+            return handle;
+        } catch(IOException ex) {
+            logger.error("Could not claim a reserved handle; generating a new handle", ex);
+            metrics.incrementCounter(HandleMetrics.MANAGER_PREFIX + "reservoirFailure");
+            return null;
+        }
+    }
+    
+    /**
+     * Replaces the placeholder values of a reserved handle. If the handle does
+     * not exist (e.g. it was reserved right before a crash), it is created.
+     * @param handleInformation handle information already being prepared, or null if it should be created here
+     */
+    private void completeReservedHandle(File file, String handleStr, URI targetURI, Future<HandleValue[]> handleInformation)
+            throws HandleException, IOException {
+        
+        logger.debug("Assigning reserved handle '{}', with target '{}', to file '{}'", handleStr, targetURI, file);
+        
+        HandleValue[] values = null;
+        if(handleInformation == null) {
+            values = handleInfoProvider.createHandleInformation(file, targetURI);
+        }
+        try (HandleSpan span = tracer.startSpan("updateReservedHandle", handleStr)) {
+            try {
+                if(values == null) {
+                    values = handleUtil.updateHandleValue(handleStr, handleInformation);
+                } else {
+                    handleUtil.updateHandleValue(handleStr, values);
+                }
+            } catch(HandleException ex) {
+                if(ex.getCode() != HandleException.HANDLE_DOES_NOT_EXIST) {
+                    throw ex;
+                }
+                logger.warn("Reserved handle {} does not exist; creating it", handleStr);
+                if(values == null) {
+                    values = handleUtil.createHandle(handleStr, handleInformation);
+                } else {
+                    handleUtil.createHandle(handleStr, values);
+                }
+            }
+        }
+        notifyListeners(HandleOperation.CREATE, handleStr, values);
+    }
+    
+    private void completeReservedHandleLater(final File file, final String handleStr, final URI targetURI,
+            final Future<HandleValue[]> handleInformation) {
+        
+        final HandleSpan callerSpan = HandleTracer.getCurrentSpan();
+        reservedHandleExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HandleSpan previousSpan = HandleTracer.attach(callerSpan);
+                try {
+                    completeReservedHandleWithRetries(file, handleStr, targetURI, handleInformation);
+                } finally {
+                    HandleTracer.restore(previousSpan);
+                }
+            }
+        });
+    }
+    
+    private void completeReservedHandleWithRetries(File file, String handleStr, URI targetURI,
+            Future<HandleValue[]> handleInformation) {
+        
+        long backoff = deferredUpdateBackoffMillis;
+        for(int attempt = 1; ; attempt++) {
+            try {
+                completeReservedHandle(file, handleStr, targetURI, handleInformation);
+                return;
+            } catch(HandleException | IOException ex) {
+                if(attempt >= deferredUpdateAttempts) {
+                    reportDeferredUpdateFailure(file, handleStr, attempt, ex);
+                    return;
+                }
+                logger.warn("Reserved handle {} could not be assigned to file {} (attempt {}); retrying in {} ms",
+                        handleStr, file, attempt, backoff);
+                metrics.incrementCounter(HandleMetrics.MANAGER_PREFIX + "reservedHandleUpdateRetry");
+            } catch(RuntimeException ex) {
+                reportDeferredUpdateFailure(file, handleStr, attempt, ex);
+                return;
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                reportDeferredUpdateFailure(file, handleStr, attempt, ex);
+                return;
+            }
+            backoff = Math.min(backoff * 2, TimeUnit.MINUTES.toMillis(1));
+        }
+    }
+    
+    private void reportDeferredUpdateFailure(File file, String handleStr, int attempts, Exception cause) {
+        logger.error("Reserved handle " + handleStr + " could not be assigned to file " + file, cause);
+        metrics.incrementCounter(HandleMetrics.ERROR_PREFIX + "reservedHandleUpdate");
+        HandleAssignmentListener listener = deferredUpdateFailureListener;
+        if(listener != null) {
+            try {
+                listener.assignmentFailed(file.toPath(), new IOException("Reserved handle " + handleStr
+                        + " could not be assigned after " + attempts + " attempt(s)", cause));
+            } catch(RuntimeException ex) {
+                logger.error("Listener failed for reserved handle " + handleStr, ex);
+            }
+        }
+    }
+    
     /**
      * @see HandleManager#updateHandle(java.io.File, java.net.URI, java.net.URI)
      */
@@ -95,9 +377,15 @@ public class HandleManagerImpl implements HandleManager, Serializable {
         
         logger.debug("Handle '{}' for file '{}' being updated to new target uri: {}", handle, file, newTarget);
         
-        HandleValue[] handleInformation = handleInfoProvider.createHandleInformation(file, newTarget);
-        
-        handleUtil.updateHandleValue(handle.toString(), handleInformation);
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("updateHandle", handle.toString())) {
+            HandleValue[] handleInformation = handleInfoProvider.createHandleInformation(file, newTarget);
+            
+            updateOrAddHandleValues(handle.toString(), handleInformation);
+            notifyListeners(HandleOperation.UPDATE, handle.toString(), handleInformation);
+        } finally {
+            metrics.recordLatency(HandleMetrics.MANAGER_PREFIX + "updateHandle", System.nanoTime() - start);
+        }
     }
 
     /**
@@ -108,6 +396,138 @@ public class HandleManagerImpl implements HandleManager, Serializable {
         
         logger.debug("Handle '{}' being deleted", handle);
         
-        handleUtil.deleteHandle(handle.toString());
+        long start = System.nanoTime();
+        try (HandleSpan span = tracer.startSpan("deleteHandle", handle.toString())) {
+            handleUtil.deleteHandle(handle.toString());
+            notifyListeners(HandleOperation.DELETE, handle.toString(), null);
+        } finally {
+            metrics.recordLatency(HandleMetrics.MANAGER_PREFIX + "deleteHandle", System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Handles created before extra digests were configured do not have the
+     * values from {@link HandleConstants#EXTRA_CHECKSUM_FIRST_INDEX}, which
+     * cannot be updated, so the missing ones are added instead.
+     * Other values (e.g. HS_ADMIN) are always updated.
+     */
+    private void updateOrAddHandleValues(String handle, HandleValue[] values) throws HandleException, IOException {
+        int extraIndexLimit = getExtraChecksumIndexLimit();
+        List<Integer> extraIndexes = new ArrayList<>();
+        for(HandleValue value : values) {
+            if(isExtraChecksumIndex(value.getIndex(), extraIndexLimit)) {
+                extraIndexes.add(value.getIndex());
+            }
+        }
+        if(extraIndexes.isEmpty()) {
+            handleUtil.updateHandleValue(handle, values);
+            return;
+        }
+        
+        HSAdapter api = handleUtil.getHandleApi();
+        int[] requestedIndexes = new int[extraIndexes.size()];
+        for(int i = 0; i < requestedIndexes.length; i++) {
+            requestedIndexes[i] = extraIndexes.get(i);
+        }
+        Set<Integer> existingIndexes = new HashSet<>();
+        for(HandleValue existing : handleUtil.resolveHandle(handle, null, requestedIndexes, api)) {
+            existingIndexes.add(existing.getIndex());
+        }
+        List<HandleValue> toUpdate = new ArrayList<>(values.length);
+        List<HandleValue> toAdd = new ArrayList<>();
+        for(HandleValue value : values) {
+            if(!isExtraChecksumIndex(value.getIndex(), extraIndexLimit) || existingIndexes.contains(value.getIndex())) {
+                toUpdate.add(value);
+            } else {
+                toAdd.add(value);
+            }
+        }
+        handleUtil.updateHandleValue(handle, toUpdate.toArray(new HandleValue[toUpdate.size()]), api);
+        if(!toAdd.isEmpty()) {
+            logger.debug("Adding {} missing value(s) to handle '{}'", toAdd.size(), handle);
+            handleUtil.addHandleValue(handle, toAdd.toArray(new HandleValue[toAdd.size()]), api);
+        }
+    }
+    
+    /**
+     * @return index after the last extra digest value, as configured in the
+     * provider (or {@link HandleConstants#ADMIN_INDEX} if it is not known)
+     */
+    private int getExtraChecksumIndexLimit() {
+        if(handleInfoProvider instanceof HandleInfoProviderImpl) {
+            // the first algorithm is MD5, in the CHECKSUM value
+            int extraCount = ((HandleInfoProviderImpl) handleInfoProvider).getDigestAlgorithms().size() - 1;
+            return HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX + extraCount;
+        }
+        return HandleConstants.ADMIN_INDEX;
+    }
+    
+    private static boolean isExtraChecksumIndex(int index, int extraIndexLimit) {
+        return index >= HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX && index < extraIndexLimit;
+    }
+    
+    /**
+     * A failing listener is only logged, since the change was already applied in the Handle System.
+     */
+    private void notifyListeners(HandleOperation operation, String handle, HandleValue[] values) {
+        for(HandleChangeListener listener : changeListeners) {
+            try {
+                switch(operation) {
+                    case CREATE:
+                        listener.handleCreated(handle, values);
+                        break;
+                    case UPDATE:
+                        listener.handleUpdated(handle, values);
+                        break;
+                    case DELETE:
+                        listener.handleDeleted(handle);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected operation: " + operation);
+                }
+            } catch(RuntimeException ex) {
+                logger.error("Listener failed to process change to handle " + handle, ex);
+            }
+        }
+    }
+    
+    /**
+     * Starts preparing the handle information, so that the file is read while
+     * the handle is generated or validated and the connection is established,
+     * if the provider supports it.
+     * @return the handle information being prepared, or null if the provider does not support it
+     */
+    private Future<HandleValue[]> prepareHandleInformation(File file, URI targetURI) {
+        if(handleInfoProvider instanceof DeferredHandleInfoProvider) {
+            return ((DeferredHandleInfoProvider) handleInfoProvider).prepareHandleInformation(file, targetURI);
+        }
+        return null;
+    }
+    
+    private static Future<HandleValue[]> completedFuture(final HandleValue[] values) {
+        FutureTask<HandleValue[]> future = new FutureTask<>(new Callable<HandleValue[]>() {
+            @Override
+            public HandleValue[] call() {
+                return values;
+            }
+        });
+        future.run();
+        return future;
+    }
+    
+    /**
+     * Stops reading the file if the handle could not be created (e.g. invalid handle).
+     */
+    private void cancelIfPending(Future<HandleValue[]> handleInformation) {
+        if(handleInformation != null && !handleInformation.isDone()) {
+            handleInformation.cancel(true);
+        }
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        metrics = NoOpHandleMetrics.INSTANCE;
+        tracer = HandleTracer.DISABLED;
+        changeListeners = new CopyOnWriteArrayList<>();
     }
 }
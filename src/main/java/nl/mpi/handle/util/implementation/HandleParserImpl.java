@@ -18,6 +18,10 @@ package nl.mpi.handle.util.implementation;
 
 import java.io.Serializable;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import nl.mpi.handle.util.HandleParser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,14 +39,34 @@ public class HandleParserImpl implements HandleParser, Serializable {
     private final String prefixWithSlash;
     private final String completeHdlPrefix;
     private final String completeLongHdlPrefix;
+    private final List<String> longProxies;
+    private final HandleProxyMatcher proxyMatcher;
     
     
+    /**
+     * Recognises the short proxy and the default long proxies
+     * (see {@link HandleConstants#DEFAULT_LONG_PROXIES}).
+     * @param prefix known prefix
+     */
     public HandleParserImpl(String prefix) {
+        this(prefix, HandleConstants.DEFAULT_LONG_PROXIES);
+    }
+    
+    /**
+     * @param prefix known prefix
+     * @param longProxies long proxies to recognise besides the short one (e.g. "https://hdl.handle.net/"),
+     *  each ending with a slash; handles are still prepared with {@link HandleConstants#HDL_LONG_PROXY}
+     */
+    public HandleParserImpl(String prefix, Collection<String> longProxies) {
         prefixWithSlash = prefix + "/";
         completeHdlProxy = HandleConstants.HDL_SHORT_PROXY + ":";
         completeHdlPrefix = completeHdlProxy + prefixWithSlash;
         completeLongHdlProxy = HandleConstants.HDL_LONG_PROXY;
         completeLongHdlPrefix = completeLongHdlProxy + prefixWithSlash;
+        this.longProxies = Collections.unmodifiableList(new ArrayList<>(longProxies));
+        List<String> allProxies = new ArrayList<>(longProxies);
+        allProxies.add(completeHdlProxy);
+        proxyMatcher = new HandleProxyMatcher(allProxies);
     }
     
     
@@ -69,7 +93,7 @@ public class HandleParserImpl implements HandleParser, Serializable {
             return false;
         }
         
-        return HandleConstants.HDL_SHORT_PROXY.equalsIgnoreCase(uri.getScheme()) || uri.toString().startsWith(HandleConstants.HDL_LONG_PROXY);
+        return proxyMatcher.match(uri.toString(), 0) > 0;
     }
     
     /**
@@ -166,10 +190,9 @@ public class HandleParserImpl implements HandleParser, Serializable {
      */
     @Override
     public String getHandleWithoutProxy(String handleString) {
-        if(handleString.startsWith(completeHdlProxy)) {
-            return handleString.replace(completeHdlProxy, "");
-        } else if(handleString.startsWith(HandleConstants.HDL_LONG_PROXY)) {
-            return handleString.replace(HandleConstants.HDL_LONG_PROXY, "");
+        int proxyLength = proxyMatcher.match(handleString, 0);
+        if(proxyLength > 0) {
+            return handleString.substring(proxyLength);
         } else if(handleString.startsWith("/")) {
             return handleString.substring(1);
         }
@@ -178,6 +201,27 @@ public class HandleParserImpl implements HandleParser, Serializable {
         }
     }
     
+    /**
+     * @return the known prefix with the short proxy (e.g. "hdl:11142/")
+     */
+    String getCompleteHdlPrefix() {
+        return completeHdlPrefix;
+    }
+    
+    /**
+     * @return the known prefix followed by a slash
+     */
+    String getPrefixWithSlash() {
+        return prefixWithSlash;
+    }
+    
+    /**
+     * @return the recognised long proxies
+     */
+    List<String> getLongProxies() {
+        return longProxies;
+    }
+    
     
     private boolean isHandlePrefixKnown(String handleString) {
         
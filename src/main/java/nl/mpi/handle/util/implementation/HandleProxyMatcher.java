@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Matches a set of proxy forms (e.g. "hdl:", "http://hdl.handle.net/",
+ * "https://doi.org/") at the start of a string in a single pass,
+ * ignoring case, by walking a trie of the forms.
+ */
+final class HandleProxyMatcher implements Serializable {
+    
+    private final Node root = new Node();
+    
+    
+    HandleProxyMatcher(Collection<String> proxies) {
+        for(String proxy : proxies) {
+            if(proxy == null || proxy.isEmpty()) {
+                throw new IllegalArgumentException("Invalid proxy (" + proxy + ")");
+            }
+            Node node = root;
+            for(int i = 0; i < proxy.length(); i++) {
+                node = node.addChild(proxy.charAt(i));
+            }
+            node.terminal = true;
+        }
+    }
+    
+    
+    /**
+     * @param text text to check
+     * @param start position where the proxy should start
+     * @return length of the longest proxy found at the given position, or 0 if there is none
+     */
+    int match(CharSequence text, int start) {
+        int matched = 0;
+        Node node = root;
+        for(int i = start; i < text.length(); i++) {
+            node = node.next(text.charAt(i));
+            if(node == null) {
+                break;
+            }
+            if(node.terminal) {
+                matched = i + 1 - start;
+            }
+        }
+        return matched;
+    }
+    
+    Node getRoot() {
+        return root;
+    }
+    
+    
+    /**
+     * Node of the trie; children are kept in small arrays sorted by character.
+     */
+    static final class Node implements Serializable {
+        
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private boolean terminal;
+        
+        /**
+         * @return the node reached with the given character, or null if there is none
+         */
+        Node next(char c) {
+            int index = Arrays.binarySearch(keys, normalise(c));
+            return index >= 0 ? children[index] : null;
+        }
+        
+        /**
+         * @return true if a proxy ends at this node
+         */
+        boolean isTerminal() {
+            return terminal;
+        }
+        
+        private Node addChild(char c) {
+            char key = normalise(c);
+            int index = Arrays.binarySearch(keys, key);
+            if(index >= 0) {
+                return children[index];
+            }
+            int insertion = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertion);
+            System.arraycopy(children, 0, newChildren, 0, insertion);
+            System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+            System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+            Node child = new Node();
+            newKeys[insertion] = key;
+            newChildren[insertion] = child;
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+        
+        private static char normalise(char c) {
+            return Character.toLowerCase(c);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.ValueReference;
+
+/**
+ * A handle and its values, as stored in a handle dump
+ * (see {@link HandleDumpWriter}).
+ */
+public class HandleRecord {
+    
+    private static final int ADMIN_READ = 1;
+    private static final int ADMIN_WRITE = 2;
+    private static final int PUBLIC_READ = 4;
+    private static final int PUBLIC_WRITE = 8;
+    
+    private final String handle;
+    private final HandleValue[] values;
+    
+    public HandleRecord(String handle, HandleValue[] values) {
+        this.handle = handle;
+        this.values = values;
+    }
+    
+    
+    public String getHandle() {
+        return handle;
+    }
+    
+    public HandleValue[] getValues() {
+        return values;
+    }
+    
+    
+    /**
+     * Writes the record: the handle, the number of values and, for each
+     * value, all its fields (index, type, data, TTL type, TTL, timestamp,
+     * permissions and references), all lengths being variable-length
+     * integers. The permissions are kept so that a restored value is not
+     * readable by more than before (e.g. a non-public HS_SECKEY).
+     */
+    void writeTo(DataOutput out) throws IOException {
+        writeBytes(out, handle.getBytes(StandardCharsets.UTF_8));
+        writeVarInt(out, values.length);
+        for(HandleValue value : values) {
+            writeVarInt(out, value.getIndex());
+            writeBytes(out, value.getType());
+            writeBytes(out, value.getData());
+            out.writeByte(value.getTTLType());
+            out.writeInt(value.getTTL());
+            out.writeInt(value.getTimestamp());
+            int permissions = (value.getAdminCanRead() ? ADMIN_READ : 0) | (value.getAdminCanWrite() ? ADMIN_WRITE : 0)
+                    | (value.getAnyoneCanRead() ? PUBLIC_READ : 0) | (value.getAnyoneCanWrite() ? PUBLIC_WRITE : 0);
+            out.writeByte(permissions);
+            ValueReference[] references = value.getReferences() != null ? value.getReferences() : new ValueReference[0];
+            writeVarInt(out, references.length);
+            for(ValueReference reference : references) {
+                writeBytes(out, reference.handle);
+                writeVarInt(out, reference.index);
+            }
+        }
+    }
+    
+    static HandleRecord readFrom(DataInput in) throws IOException {
+        String handle = new String(readBytes(in), StandardCharsets.UTF_8);
+        int count = readVarInt(in);
+        HandleValue[] values = new HandleValue[count];
+        for(int i = 0; i < count; i++) {
+            int index = readVarInt(in);
+            byte[] type = readBytes(in);
+            byte[] data = readBytes(in);
+            byte ttlType = in.readByte();
+            int ttl = in.readInt();
+            int timestamp = in.readInt();
+            int permissions = in.readUnsignedByte();
+            ValueReference[] references = new ValueReference[readVarInt(in)];
+            for(int j = 0; j < references.length; j++) {
+                byte[] referenceHandle = readBytes(in);
+                references[j] = new ValueReference(referenceHandle, readVarInt(in));
+            }
+            values[i] = new HandleValue(index, type, data, ttlType, ttl, timestamp, references,
+                    (permissions & ADMIN_READ) != 0, (permissions & ADMIN_WRITE) != 0,
+                    (permissions & PUBLIC_READ) != 0, (permissions & PUBLIC_WRITE) != 0);
+        }
+        return new HandleRecord(handle, values);
+    }
+    
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        int remaining = value;
+        while((remaining & ~0x7F) != 0) {
+            out.writeByte((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+        }
+        out.writeByte(remaining);
+    }
+    
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+    
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        byte[] nonNull = bytes != null ? bytes : new byte[0];
+        writeVarInt(out, nonNull.length);
+        out.write(nonNull);
+    }
+    
+    private static byte[] readBytes(DataInput in) throws IOException {
+        int length = readVarInt(in);
+        if(length < 0) {
+            throw new IOException("Invalid length (" + length + ")");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local, read-optimised mirror of the URLs of the handles under a prefix,
+ * meant for serving redirects without querying the Handle System.
+ * 
+ * The mappings (handle suffix to URL) are kept off-heap, in a memory-mapped
+ * file holding an open-addressing hash table (linear probing) followed by an
+ * append-only data area:
+ * <ul>
+ * <li>header: magic number, version, capacity, used slots, live entries, end of data</li>
+ * <li>slots: hash of the key and offset of its entry (0 if empty,
+ * negative if the entry was removed)</li>
+ * <li>entries: length and UTF-8 bytes of the key, then of the URL</li>
+ * </ul>
+ * Entries are never modified once written: a change appends a new entry and
+ * then replaces the offset in the slot. Changes are serialised; when the
+ * table or the data area is full, the mirror is compacted into a new file
+ * which replaces the old one.
+ * 
+ * Lookups take no lock. They are guarded by a sequence counter (a seqlock):
+ * each change makes the counter odd while it writes to the buffer and even
+ * again when it is done, and a lookup which starts while the counter is odd,
+ * or finds it changed at the end, is discarded and retried. Therefore a
+ * lookup only returns values read while no change was in progress; it may
+ * have to retry (spinning) while changes keep coming, and reads which
+ * overlapped a change are bounds-checked so they fail and retry instead of
+ * returning torn data. A resize copies the entries to the new file before
+ * the counter is made odd, so lookups go on in the old table meanwhile.
+ * 
+ * Register it with {@link HandleManagerImpl#addChangeListener(HandleChangeListener)}
+ * to keep it up to date with the changes made through the manager.
+ */
+public class HandleRedirectMirror implements HandleChangeListener, Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleRedirectMirror.class);
+    
+    private static final int MAGIC = 0x48444C4D; // "HDLM"
+    private static final int VERSION = 1;
+    
+    private static final int CAPACITY_POSITION = 8;
+    private static final int USED_POSITION = 12;
+    private static final int LIVE_POSITION = 16;
+    private static final int DATA_END_POSITION = 20;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 8;
+    
+    private static final double MAX_LOAD = 0.7;
+    private static final int AVERAGE_ENTRY_SIZE = 96;
+    
+    private final Path file;
+    private final String prefix;
+    
+    private volatile Table table;
+    // sequence counter: odd while a change is being written (see the class documentation)
+    private volatile long changeCount;
+    // written by lookups only for its ordering effect (see loadFence)
+    private static volatile int fence;
+    
+    
+    /**
+     * Opens the mirror stored in the given file, creating it if it does not exist.
+     * @param file file holding the mirror
+     * @param prefix prefix of the mirrored handles
+     * @param initialCapacity number of handles the mirror can hold before being resized, when created
+     * @throws IOException if the file cannot be opened or created
+     */
+    public HandleRedirectMirror(Path file, String prefix, int initialCapacity) throws IOException {
+        if(initialCapacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity (" + initialCapacity + ")");
+        }
+        this.file = file;
+        this.prefix = prefix;
+        if(Files.exists(file)) {
+            table = Table.open(file);
+        } else {
+            int capacity = slotsFor(initialCapacity);
+            table = Table.create(file, capacity, (long) capacity * AVERAGE_ENTRY_SIZE / 2);
+        }
+    }
+    
+    
+    /**
+     * Gets the URL of a handle. Does not block, and can be called concurrently with changes.
+     * @param suffix suffix of the handle (the part after the prefix)
+     * @return the URL, or null if the handle is not in the mirror
+     */
+    public String getUrl(String suffix) {
+        byte[] key = normalise(suffix).getBytes(StandardCharsets.UTF_8);
+        while(true) {
+            long sequence = changeCount;
+            if((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            String url;
+            try {
+                Table current = table;
+                int entry = current.find(key);
+                url = entry > 0 ? current.readUrl(entry) : null;
+            } catch(IndexOutOfBoundsException | IllegalArgumentException ex) {
+                // read a slot or entry while it was being written
+                continue;
+            }
+            loadFence();
+            if(changeCount == sequence) {
+                return url;
+            }
+        }
+    }
+    
+    /**
+     * @return number of handles in the mirror
+     */
+    public int size() {
+        return table.buffer.getInt(LIVE_POSITION);
+    }
+    
+    /**
+     * Adds or replaces the URL of a handle.
+     * @param suffix suffix of the handle (the part after the prefix)
+     * @param url URL of the handle
+     * @throws IOException if the mirror had to be resized and the new file could not be written
+     */
+    public synchronized void put(String suffix, String url) throws IOException {
+        byte[] key = normalise(suffix).getBytes(StandardCharsets.UTF_8);
+        byte[] value = url.getBytes(StandardCharsets.UTF_8);
+        int entrySize = 8 + key.length + value.length;
+        Table target = table;
+        if(!target.canInsert(entrySize)) {
+            // copied before the counter is made odd, so that lookups do not wait for it
+            target = resize(entrySize);
+        }
+        changeCount++;
+        try {
+            table = target;
+            target.link(key, target.appendEntry(key, value));
+        } finally {
+            changeCount++;
+        }
+    }
+    
+    /**
+     * Removes a handle from the mirror.
+     * @param suffix suffix of the handle (the part after the prefix)
+     * @return true if the handle was in the mirror
+     */
+    public synchronized boolean remove(String suffix) {
+        changeCount++;
+        try {
+            return table.remove(normalise(suffix).getBytes(StandardCharsets.UTF_8));
+        } finally {
+            changeCount++;
+        }
+    }
+    
+    /**
+     * Adds the URLs of all the handles under the mirrored prefix in the given dump
+     * (see {@link HandleRegistryDump}).
+     * @param reader dump to read from; not closed by this method
+     * @return number of handles added
+     * @throws IOException if the dump cannot be read or the mirror cannot be resized
+     */
+    public long putAll(HandleDumpReader reader) throws IOException {
+        long added = 0;
+        for(int i = 0; i < reader.getBlockCount(); i++) {
+            for(HandleRecord record : reader.readBlock(i)) {
+                String suffix = getSuffix(record.getHandle());
+                String url = HandleValues.getDataByType(record.getValues(), HandleConstants.URL_TYPE);
+                if(suffix != null && url != null) {
+                    put(suffix, url);
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * Writes the changes to the storage device.
+     */
+    public synchronized void flush() {
+        table.buffer.force();
+    }
+    
+    @Override
+    public synchronized void close() {
+        flush();
+    }
+    
+    
+    @Override
+    public void handleCreated(String handle, HandleValue[] values) {
+        handleUpdated(handle, values);
+    }
+    
+    @Override
+    public void handleUpdated(String handle, HandleValue[] values) {
+        String suffix = getSuffix(handle);
+        if(suffix == null) {
+            return;
+        }
+        String url = HandleValues.getDataByType(values, HandleConstants.URL_TYPE);
+        try {
+            if(url != null) {
+                put(suffix, url);
+            } else {
+                remove(suffix);
+            }
+        } catch(IOException ex) {
+            logger.error("Could not update handle " + handle + " in the redirect mirror", ex);
+        }
+    }
+    
+    @Override
+    public void handleDeleted(String handle) {
+        String suffix = getSuffix(handle);
+        if(suffix != null) {
+            remove(suffix);
+        }
+    }
+    
+    
+    /**
+     * @return the suffix of the handle, or null if it is not under the mirrored prefix
+     */
+    private String getSuffix(String handle) {
+        String normalisedHandle = normalise(handle);
+        String normalisedPrefix = normalise(prefix) + "/";
+        int start = normalisedHandle.indexOf(normalisedPrefix);
+        if(start < 0 || (start > 0 && normalisedHandle.charAt(start - 1) != ':' && normalisedHandle.charAt(start - 1) != '/')) {
+            return null;
+        }
+        return handle.substring(start + normalisedPrefix.length());
+    }
+    
+    private static String normalise(String handle) {
+        return handle.toUpperCase(Locale.ROOT);
+    }
+    
+    private static int slotsFor(int entries) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) Math.ceil(entries / MAX_LOAD)));
+        return capacity < entries / MAX_LOAD ? capacity << 1 : capacity;
+    }
+    
+    /**
+     * Orders the reads of the table before the next read of the sequence
+     * counter, as a load fence would (Java 7 has none): those reads cannot
+     * be moved after a volatile write, which cannot be moved after the
+     * following volatile read.
+     */
+    private static void loadFence() {
+        fence = 0;
+    }
+    
+    /**
+     * Copies the live entries to a new, larger file, which then replaces the current one.
+     * Readers still using the old table keep reading from the old mapping.
+     * @return the new table, to be used instead of the current one
+     */
+    private Table resize(int pendingEntrySize) throws IOException {
+        Table old = table;
+        int live = old.buffer.getInt(LIVE_POSITION);
+        int capacity = slotsFor((live + 1) * 2);
+        long dataCapacity = Math.max((long) old.liveDataSize() * 2 + pendingEntrySize, (long) capacity * AVERAGE_ENTRY_SIZE / 2);
+        
+        Path tempFile = Paths.get(file.toString() + ".tmp");
+        Files.deleteIfExists(tempFile);
+        Table resized = Table.create(tempFile, capacity, dataCapacity);
+        old.copyLiveEntriesTo(resized);
+        resized.buffer.force();
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        
+        logger.debug("Redirect mirror resized to {} slots, {} bytes of data", capacity, dataCapacity);
+        return resized;
+    }
+    
+    
+    /**
+     * A mapped mirror file. Reads use absolute accessors only, so they can
+     * share the buffer; writes are serialised by the enclosing mirror.
+     */
+    private static final class Table {
+        
+        final MappedByteBuffer buffer;
+        final int capacity;
+        final int mask;
+        final int dataStart;
+        
+        private Table(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            this.capacity = buffer.getInt(CAPACITY_POSITION);
+            this.mask = capacity - 1;
+            this.dataStart = HEADER_SIZE + capacity * SLOT_SIZE;
+        }
+        
+        static Table create(Path file, int capacity, long dataCapacity) throws IOException {
+            long size = HEADER_SIZE + (long) capacity * SLOT_SIZE + dataCapacity;
+            if(size > Integer.MAX_VALUE) {
+                throw new IOException("Redirect mirror too large (" + size + " bytes)");
+            }
+            MappedByteBuffer buffer = map(file, size, StandardOpenOption.CREATE_NEW);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(CAPACITY_POSITION, capacity);
+            buffer.putInt(USED_POSITION, 0);
+            buffer.putInt(LIVE_POSITION, 0);
+            buffer.putInt(DATA_END_POSITION, HEADER_SIZE + capacity * SLOT_SIZE);
+            return new Table(buffer);
+        }
+        
+        static Table open(Path file) throws IOException {
+            MappedByteBuffer buffer = map(file, Files.size(file));
+            if(buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("Not a redirect mirror: " + file);
+            }
+            int capacity = buffer.getInt(CAPACITY_POSITION);
+            if(capacity <= 0 || Integer.bitCount(capacity) != 1
+                    || buffer.getInt(DATA_END_POSITION) > buffer.capacity()) {
+                throw new IOException("Corrupted redirect mirror: " + file);
+            }
+            return new Table(buffer);
+        }
+        
+        private static MappedByteBuffer map(Path file, long size, StandardOpenOption... extraOptions) throws IOException {
+            StandardOpenOption[] options = new StandardOpenOption[extraOptions.length + 2];
+            options[0] = StandardOpenOption.READ;
+            options[1] = StandardOpenOption.WRITE;
+            System.arraycopy(extraOptions, 0, options, 2, extraOptions.length);
+            // the mapping remains valid after the channel is closed
+            try (FileChannel channel = FileChannel.open(file, options)) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+        
+        /**
+         * @return offset of the entry for the key (negative if it was removed),
+         * or 0 if there is none
+         */
+        int find(byte[] key) {
+            int hash = hash(key);
+            for(int slot = hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+                int position = HEADER_SIZE + slot * SLOT_SIZE;
+                int entry = buffer.getInt(position + 4);
+                if(entry == 0) {
+                    return 0;
+                }
+                if(buffer.getInt(position) == hash && keyEquals(Math.abs(entry), key)) {
+                    return entry;
+                }
+            }
+            return 0;
+        }
+        
+        String readUrl(int entry) {
+            int keyLength = buffer.getInt(entry);
+            int urlPosition = entry + 4 + keyLength;
+            return new String(readBytes(urlPosition + 4, buffer.getInt(urlPosition)), StandardCharsets.UTF_8);
+        }
+        
+        boolean canInsert(int entrySize) {
+            return buffer.getInt(USED_POSITION) + 1 <= capacity * MAX_LOAD
+                    && (long) buffer.getInt(DATA_END_POSITION) + entrySize <= buffer.capacity();
+        }
+        
+        void put(byte[] key, byte[] value) {
+            link(key, appendEntry(key, value));
+        }
+        
+        void link(byte[] key, int entry) {
+            int hash = hash(key);
+            int slot = hash & mask;
+            while(true) {
+                int position = HEADER_SIZE + slot * SLOT_SIZE;
+                int existing = buffer.getInt(position + 4);
+                if(existing == 0) {
+                    buffer.putInt(position, hash);
+                    buffer.putInt(position + 4, entry);
+                    buffer.putInt(USED_POSITION, buffer.getInt(USED_POSITION) + 1);
+                    buffer.putInt(LIVE_POSITION, buffer.getInt(LIVE_POSITION) + 1);
+                    return;
+                }
+                if(buffer.getInt(position) == hash && keyEquals(Math.abs(existing), key)) {
+                    buffer.putInt(position + 4, entry);
+                    if(existing < 0) {
+                        buffer.putInt(LIVE_POSITION, buffer.getInt(LIVE_POSITION) + 1);
+                    }
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+        
+        boolean remove(byte[] key) {
+            int hash = hash(key);
+            for(int slot = hash & mask, probes = 0; probes < capacity; slot = (slot + 1) & mask, probes++) {
+                int position = HEADER_SIZE + slot * SLOT_SIZE;
+                int entry = buffer.getInt(position + 4);
+                if(entry == 0) {
+                    return false;
+                }
+                if(buffer.getInt(position) == hash && keyEquals(Math.abs(entry), key)) {
+                    if(entry < 0) {
+                        return false;
+                    }
+                    // the key stays in the slot, so that probing goes on past it
+                    buffer.putInt(position + 4, -entry);
+                    buffer.putInt(LIVE_POSITION, buffer.getInt(LIVE_POSITION) - 1);
+                    return true;
+                }
+            }
+            return false;
+        }
+        
+        int liveDataSize() {
+            int size = 0;
+            for(int slot = 0; slot < capacity; slot++) {
+                int entry = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+                if(entry > 0) {
+                    int keyLength = buffer.getInt(entry);
+                    size += 8 + keyLength + buffer.getInt(entry + 4 + keyLength);
+                }
+            }
+            return size;
+        }
+        
+        void copyLiveEntriesTo(Table target) {
+            for(int slot = 0; slot < capacity; slot++) {
+                int entry = buffer.getInt(HEADER_SIZE + slot * SLOT_SIZE + 4);
+                if(entry > 0) {
+                    int keyLength = buffer.getInt(entry);
+                    int urlPosition = entry + 4 + keyLength;
+                    target.put(readBytes(entry + 4, keyLength), readBytes(urlPosition + 4, buffer.getInt(urlPosition)));
+                }
+            }
+        }
+        
+        int appendEntry(byte[] key, byte[] value) {
+            int entry = buffer.getInt(DATA_END_POSITION);
+            int position = entry;
+            buffer.putInt(position, key.length);
+            position += 4;
+            for(byte b : key) {
+                buffer.put(position++, b);
+            }
+            buffer.putInt(position, value.length);
+            position += 4;
+            for(byte b : value) {
+                buffer.put(position++, b);
+            }
+            buffer.putInt(DATA_END_POSITION, position);
+            return entry;
+        }
+        
+        private boolean keyEquals(int entry, byte[] key) {
+            if(buffer.getInt(entry) != key.length) {
+                return false;
+            }
+            int position = entry + 4;
+            for(int i = 0; i < key.length; i++) {
+                if(buffer.get(position + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        
+        private byte[] readBytes(int position, int length) {
+            if(length < 0 || position < 0 || length > buffer.capacity() - position) {
+                throw new IndexOutOfBoundsException("Invalid entry at " + position);
+            }
+            byte[] bytes = new byte[length];
+            for(int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(position + i);
+            }
+            return bytes;
+        }
+        
+        private static int hash(byte[] key) {
+            int hash = 0x811C9DC5;
+            for(byte b : key) {
+                hash = (hash ^ (b & 0xFF)) * 0x01000193;
+            }
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
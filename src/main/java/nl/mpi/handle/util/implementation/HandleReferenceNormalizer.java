@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rewrites the handle references with the known prefix found in text
+ * (e.g. metadata files) from any of the long proxy forms recognised by the parser
+ * ("http://hdl.handle.net/11142/...", "https://hdl.handle.net/11142/...")
+ * to the short one ("hdl:11142/..."), as {@link HandleParserImpl#prepareAndValidateHandleWithHdlPrefix(java.net.URI)}
+ * would, but scanning the characters as they are copied instead of creating
+ * a <CODE>URI</CODE> per reference.
+ * 
+ * A reference ends at the first whitespace, quote or angle bracket; references
+ * whose suffix is empty or contains a slash are not valid handles and are left untouched.
+ * Instances are thread-safe.
+ */
+public class HandleReferenceNormalizer {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleReferenceNormalizer.class);
+    
+    private static final int MAX_SUFFIX_LENGTH = 1024;
+    private static final int BUFFER_SIZE = 8192;
+    
+    private final HandleProxyMatcher longPrefixMatcher;
+    private final String shortPrefix;
+    
+    
+    /**
+     * @param hdlParser parser from which the known prefix is taken
+     */
+    public HandleReferenceNormalizer(HandleParserImpl hdlParser) {
+        List<String> longPrefixes = new ArrayList<>();
+        for(String longProxy : hdlParser.getLongProxies()) {
+            longPrefixes.add(longProxy + hdlParser.getPrefixWithSlash());
+        }
+        this.longPrefixMatcher = new HandleProxyMatcher(longPrefixes);
+        this.shortPrefix = hdlParser.getCompleteHdlPrefix();
+    }
+    
+    
+    /**
+     * @param input text to normalise
+     * @param output where the normalised text is appended
+     * @return number of references rewritten
+     * @throws IOException if the output cannot be written
+     */
+    public int normalize(CharSequence input, Appendable output) throws IOException {
+        Scanner scanner = new Scanner(output);
+        for(int i = 0; i < input.length(); i++) {
+            scanner.accept(input.charAt(i));
+        }
+        scanner.finish();
+        return scanner.rewritten;
+    }
+    
+    /**
+     * @param input text to normalise
+     * @return the normalised text
+     */
+    public String normalize(CharSequence input) {
+        StringBuilder output = new StringBuilder(input.length());
+        try {
+            normalize(input, output);
+        } catch(IOException ex) {
+            throw new IllegalStateException("StringBuilder should not throw IOException", ex);
+        }
+        return output.toString();
+    }
+    
+    /**
+     * Copies the text from the reader to the writer, rewriting the references.
+     * Neither is closed, but the writer is flushed.
+     * @param input text to normalise
+     * @param output where the normalised text is written
+     * @return number of references rewritten
+     * @throws IOException if the input cannot be read or the output written
+     */
+    public int normalize(Reader input, Writer output) throws IOException {
+        BufferedWriter bufferedOutput = new BufferedWriter(output, BUFFER_SIZE);
+        Scanner scanner = new Scanner(bufferedOutput);
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while((read = input.read(buffer)) >= 0) {
+            for(int i = 0; i < read; i++) {
+                scanner.accept(buffer[i]);
+            }
+        }
+        scanner.finish();
+        bufferedOutput.flush();
+        return scanner.rewritten;
+    }
+    
+    /**
+     * Normalises the given files in place, several at a time.
+     * A file is only replaced (atomically) if at least one of its references was rewritten.
+     * @param files files to normalise
+     * @param charset encoding of the files
+     * @param threads number of files normalised at the same time
+     * @return number of references rewritten in all the files
+     * @throws IOException if any of the files cannot be read or replaced
+     * @throws InterruptedException if interrupted while waiting for the files to be normalised
+     */
+    public long normalizeFiles(Collection<Path> files, final Charset charset, int threads)
+            throws IOException, InterruptedException {
+        
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Integer>> results = new ArrayList<>(files.size());
+            for(final Path file : files) {
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws IOException {
+                        return normalizeFile(file, charset);
+                    }
+                }));
+            }
+            long rewritten = 0;
+            for(Future<Integer> result : results) {
+                rewritten += result.get();
+            }
+            return rewritten;
+        } catch(ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Could not normalise files", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
+    
+    private int normalizeFile(Path file, Charset charset) throws IOException {
+        Path tempFile = Paths.get(file.toString() + ".normalizing");
+        int rewritten;
+        try (Reader reader = Files.newBufferedReader(file, charset);
+                Writer writer = Files.newBufferedWriter(tempFile, charset)) {
+            rewritten = normalize(reader, writer);
+        } catch(IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        }
+        if(rewritten > 0) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            logger.debug("Rewrote {} handle references in {}", rewritten, file);
+        } else {
+            Files.delete(tempFile);
+        }
+        return rewritten;
+    }
+    
+    private static boolean endsReference(char c) {
+        return Character.isWhitespace(c) || c == '<' || c == '>' || c == '"' || c == '\'';
+    }
+    
+    
+    
+    /**
+     * Matching state of one text. Characters which may still be part of a
+     * reference are held back until it is known whether they have to be rewritten.
+     */
+    private final class Scanner {
+        
+        private final Appendable output;
+        private HandleProxyMatcher.Node node = longPrefixMatcher.getRoot();
+        private final StringBuilder matchedPrefix = new StringBuilder();
+        private final StringBuilder suffix = new StringBuilder();
+        private boolean inSuffix = false;
+        private boolean validSuffix = true;
+        int rewritten = 0;
+        
+        Scanner(Appendable output) {
+            this.output = output;
+        }
+        
+        void accept(char c) throws IOException {
+            if(inSuffix) {
+                if(!endsReference(c)) {
+                    suffix.append(c);
+                    validSuffix &= c != '/';
+                    if(suffix.length() <= MAX_SUFFIX_LENGTH) {
+                        return;
+                    }
+                    validSuffix = false;
+                }
+                endReference();
+                if(!endsReference(c)) {
+                    return;
+                }
+            }
+            HandleProxyMatcher.Node next = node.next(c);
+            if(next != null) {
+                matchedPrefix.append(c);
+                node = next;
+                if(next.isTerminal()) {
+                    node = longPrefixMatcher.getRoot();
+                    inSuffix = true;
+                }
+                return;
+            }
+            if(matchedPrefix.length() == 0) {
+                output.append(c);
+                return;
+            }
+            // the held back characters are not a prefix after all: the first one is written
+            // and the others are scanned again, since a prefix may start among them
+            output.append(matchedPrefix.charAt(0));
+            String retry = matchedPrefix.length() > 1 ? matchedPrefix.substring(1) : "";
+            matchedPrefix.setLength(0);
+            node = longPrefixMatcher.getRoot();
+            for(int i = 0; i < retry.length(); i++) {
+                accept(retry.charAt(i));
+            }
+            accept(c);
+        }
+        
+        void finish() throws IOException {
+            if(inSuffix) {
+                endReference();
+            } else if(matchedPrefix.length() > 0) {
+                output.append(matchedPrefix);
+                matchedPrefix.setLength(0);
+                node = longPrefixMatcher.getRoot();
+            }
+        }
+        
+        private void endReference() throws IOException {
+            if(validSuffix && suffix.length() > 0) {
+                output.append(shortPrefix);
+                rewritten++;
+            } else {
+                output.append(matchedPrefix);
+            }
+            output.append(suffix);
+            matchedPrefix.setLength(0);
+            suffix.setLength(0);
+            inSuffix = false;
+            validSuffix = true;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports handles from the Handle System to a handle dump
+ * (see {@link HandleDumpWriter}) and imports them back.
+ * 
+ * Both directions use a single authenticated connection, obtained once from
+ * the {@link HandleUtil}, shared by a fixed number of threads, with a bounded
+ * number of handles in flight.
+ */
+public class HandleRegistryDump {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleRegistryDump.class);
+    
+    private final HandleUtil handleUtil;
+    private final int threads;
+    private final AtomicLong failedCount = new AtomicLong();
+    
+    
+    /**
+     * @param hdlUtil used to access the Handle System
+     * @param threads number of concurrent requests to the Handle System
+     */
+    public HandleRegistryDump(HandleUtil hdlUtil, int threads) {
+        if(threads <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads (" + threads + ")");
+        }
+        this.handleUtil = hdlUtil;
+        this.threads = threads;
+    }
+    
+    
+    /**
+     * Resolves the given handles and writes them to the dump.
+     * Handles which do not exist or cannot be resolved are skipped
+     * and counted as failed.
+     * @param handles handles to export (e.g. read from a manifest)
+     * @param writer dump to write to; not closed by this method
+     * @return number of handles exported
+     * @throws IOException if the dump cannot be written or the Handle System cannot be accessed
+     * @throws InterruptedException if interrupted while waiting for the requests to finish
+     */
+    public long exportHandles(Iterator<String> handles, final HandleDumpWriter writer)
+            throws IOException, InterruptedException {
+        
+        final HSAdapter api = getHandleApi();
+        final AtomicLong exported = new AtomicLong();
+        final AtomicReference<IOException> writeError = new AtomicReference<>();
+        
+        Batch batch = new Batch("handle-export");
+        try {
+            while(handles.hasNext() && writeError.get() == null) {
+                final String handle = handles.next();
+                batch.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        HandleValue[] values;
+                        try {
+                            values = handleUtil.resolveHandle(handle, null, null, api);
+                        } catch(HandleException ex) {
+                            logger.warn("Could not export handle " + handle, ex);
+                            failedCount.incrementAndGet();
+                            return;
+                        }
+                        try {
+                            writer.write(handle, values);
+                            exported.incrementAndGet();
+                        } catch(IOException ex) {
+                            writeError.compareAndSet(null, ex);
+                        }
+                    }
+                });
+            }
+        } finally {
+            batch.finish();
+        }
+        if(writeError.get() != null) {
+            throw writeError.get();
+        }
+        return exported.get();
+    }
+    
+    /**
+     * Creates all the handles in the dump. Handles which cannot be created
+     * (e.g. because they already exist) are skipped and counted as failed.
+     * @param reader dump to read from; not closed by this method
+     * @return number of handles imported
+     * @throws IOException if the dump cannot be read or the Handle System cannot be accessed
+     * @throws InterruptedException if interrupted while waiting for the requests to finish
+     */
+    public long importHandles(HandleDumpReader reader) throws IOException, InterruptedException {
+        
+        final HSAdapter api = getHandleApi();
+        final AtomicLong imported = new AtomicLong();
+        
+        Batch batch = new Batch("handle-import");
+        try {
+            for(int i = 0; i < reader.getBlockCount(); i++) {
+                List<HandleRecord> records = reader.readBlock(i);
+                for(final HandleRecord record : records) {
+                    batch.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handleUtil.createHandle(record.getHandle(), record.getValues(), api);
+                                imported.incrementAndGet();
+                            } catch(HandleException ex) {
+                                logger.warn("Could not import handle " + record.getHandle(), ex);
+                                failedCount.incrementAndGet();
+                            }
+                        }
+                    });
+                }
+            }
+        } finally {
+            batch.finish();
+        }
+        return imported.get();
+    }
+    
+    /**
+     * @return number of handles which could not be exported or imported
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+    
+    
+    private HSAdapter getHandleApi() throws IOException {
+        try {
+            return handleUtil.getHandleApi();
+        } catch(HandleException ex) {
+            throw new IOException("Could not access the Handle System", ex);
+        }
+    }
+    
+    
+    /**
+     * Runs tasks on a fixed pool, blocking the submitter while
+     * too many of them are waiting or running.
+     */
+    private final class Batch {
+        
+        private final ExecutorService executor;
+        private final Semaphore inFlight = new Semaphore(threads * 4);
+        
+        Batch(final String threadName) {
+            executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicLong count = new AtomicLong();
+                @Override
+                public Thread newThread(Runnable task) {
+                    Thread thread = new Thread(task, threadName + "-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        
+        void submit(final Runnable task) throws InterruptedException {
+            inFlight.acquire();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        inFlight.release();
+                    }
+                }
+            });
+        }
+        
+        void finish() throws InterruptedException {
+            executor.shutdown();
+            while(!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.debug("Waiting for the remaining handles");
+            }
+        }
+    }
+}
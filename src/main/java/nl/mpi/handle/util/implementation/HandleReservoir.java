@@ -0,0 +1,371 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleInfoProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a reservoir of handles created in advance, with placeholder values,
+ * so that assigning a new handle only requires updating an existing one
+ * (see {@link HandleManagerImpl#setHandleReservoir(HandleReservoir, java.util.concurrent.Executor)}).
+ * 
+ * A background thread creates handles in batches whenever the number of
+ * available ones drops below the low-water mark. The available handles are
+ * tracked in a journal file ("+handle" when a handle is reserved, "-handle"
+ * when it is claimed or given up), so that they are reused after a restart.
+ * A handle is journalled before being created, so after a crash the reservoir
+ * may hand out a handle which does not exist; the manager then creates it.
+ * The journal is only written by a dedicated thread, so interrupting a caller
+ * of {@link #claim()} (or the filling thread) cannot close the journal channel.
+ */
+public class HandleReservoir implements Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleReservoir.class);
+    
+    private final HandleInfoProvider handleInfoProvider;
+    private final HandleUtil handleUtil;
+    private final URI placeholderTarget;
+    private final Path journalFile;
+    private final int lowWaterMark;
+    private final int batchSize;
+    private long retryDelayMillis = 5000;
+    
+    private final Object lock = new Object();
+    private final Deque<String> available = new ArrayDeque<>();
+    private final FileChannel journal;
+    private final ExecutorService journalWriter;
+    private Thread worker;
+    private volatile boolean closed = false;
+    
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong claimedCount = new AtomicLong();
+    
+    
+    /**
+     * Loads the handles left in the journal; call {@link #start()} to start filling the reservoir.
+     * @param hdlInfoProvider used to generate the handles and their placeholder values
+     * @param hdlUtil used to create the handles
+     * @param placeholderTarget target of the handles while they are not claimed
+     * @param journalFile file where the available handles are tracked (created if it does not exist)
+     * @param lowWaterMark number of available handles below which a new batch is created
+     * @param batchSize number of handles created at a time
+     * @throws IOException if the journal cannot be read or written
+     */
+    public HandleReservoir(HandleInfoProvider hdlInfoProvider, HandleUtil hdlUtil, URI placeholderTarget,
+            Path journalFile, int lowWaterMark, int batchSize) throws IOException {
+        if(lowWaterMark <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("Invalid low-water mark or batch size");
+        }
+        this.handleInfoProvider = hdlInfoProvider;
+        this.handleUtil = hdlUtil;
+        this.placeholderTarget = placeholderTarget;
+        this.journalFile = journalFile;
+        this.lowWaterMark = lowWaterMark;
+        this.batchSize = batchSize;
+        
+        available.addAll(compactJournal());
+        journal = FileChannel.open(journalFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        journalWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "handle-reservoir-journal");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        logger.debug("Handle reservoir loaded with {} available handles", available.size());
+    }
+    
+    
+    /**
+     * @param retryDelayMillis time to wait before retrying after a batch could not be created
+     */
+    public void setRetryDelay(long retryDelayMillis) {
+        this.retryDelayMillis = retryDelayMillis;
+    }
+    
+    /**
+     * Starts the background thread which keeps the reservoir filled.
+     */
+    public synchronized void start() {
+        if(worker != null) {
+            throw new IllegalStateException("Reservoir already started");
+        }
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                fill();
+            }
+        }, "handle-reservoir");
+        worker.setDaemon(true);
+        worker.start();
+    }
+    
+    /**
+     * Takes an available handle from the reservoir. The claim is written to
+     * the journal before returning, so the handle is never handed out twice.
+     * @return the handle, or null if the reservoir is empty
+     * @throws IOException if the claim cannot be written to the journal
+     */
+    public String claim() throws IOException {
+        String handle;
+        synchronized(lock) {
+            handle = available.pollFirst();
+            if(available.size() < lowWaterMark) {
+                lock.notifyAll();
+            }
+        }
+        if(handle == null) {
+            return null;
+        }
+        try {
+            writeJournal(true, "-" + handle);
+        } catch(IOException ex) {
+            synchronized(lock) {
+                available.addFirst(handle);
+            }
+            throw ex;
+        }
+        claimedCount.incrementAndGet();
+        return handle;
+    }
+    
+    /**
+     * @return number of handles which can currently be claimed
+     */
+    public int getAvailableCount() {
+        synchronized(lock) {
+            return available.size();
+        }
+    }
+    
+    /**
+     * @return number of handles created by this reservoir
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+    
+    /**
+     * @return number of handles claimed from this reservoir
+     */
+    public long getClaimedCount() {
+        return claimedCount.get();
+    }
+    
+    /**
+     * Stops the background thread (the available handles remain in the journal).
+     * @throws IOException if the journal cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        Thread currentWorker;
+        synchronized(this) {
+            currentWorker = worker;
+        }
+        if(currentWorker != null) {
+            currentWorker.interrupt();
+            try {
+                currentWorker.join();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        journalWriter.shutdown();
+        boolean interrupted = false;
+        while(true) {
+            try {
+                journalWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch(InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        journal.close();
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    
+    private void fill() {
+        while(!closed) {
+            try {
+                synchronized(lock) {
+                    while(!closed && available.size() >= lowWaterMark) {
+                        lock.wait();
+                    }
+                }
+                if(closed) {
+                    return;
+                }
+                createBatch();
+            } catch(InterruptedException ex) {
+                return;
+            } catch(HandleException | IOException | RuntimeException ex) {
+                logger.error("Could not create reserved handles; retrying in " + retryDelayMillis + " ms", ex);
+                try {
+                    Thread.sleep(retryDelayMillis);
+                } catch(InterruptedException iex) {
+                    return;
+                }
+            }
+        }
+    }
+    
+    private void createBatch() throws HandleException, IOException {
+        List<String> handles = new ArrayList<>(batchSize);
+        StringBuilder entries = new StringBuilder();
+        for(int i = 0; i < batchSize; i++) {
+            String handle = handleInfoProvider.generateUuidHandle();
+            handles.add(handle);
+            entries.append('+').append(handle).append('\n');
+        }
+        writeJournal(true, entries.substring(0, entries.length() - 1));
+        
+        HSAdapter api = handleUtil.getHandleApi();
+        for(int i = 0; i < handles.size(); i++) {
+            String handle = handles.get(i);
+            HandleValue[] values = handleInfoProvider.createHandleInformation(null, placeholderTarget);
+            try {
+                handleUtil.createHandle(handle, values, api);
+            } catch(HandleException ex) {
+                StringBuilder abandoned = new StringBuilder();
+                for(String notCreated : handles.subList(i, handles.size())) {
+                    abandoned.append('-').append(notCreated).append('\n');
+                }
+                writeJournal(false, abandoned.substring(0, abandoned.length() - 1));
+                throw ex;
+            }
+            createdCount.incrementAndGet();
+            synchronized(lock) {
+                available.addLast(handle);
+            }
+        }
+        logger.debug("Created {} reserved handles", handles.size());
+    }
+    
+    /**
+     * Writes to the journal on the journal thread and waits for it, without
+     * giving up if the calling thread is interrupted (its interrupt status is
+     * restored afterwards).
+     */
+    private void writeJournal(final boolean force, String entries) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap((entries + "\n").getBytes(StandardCharsets.UTF_8));
+        Future<Void> write;
+        try {
+            write = journalWriter.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    while(buffer.hasRemaining()) {
+                        journal.write(buffer);
+                    }
+                    if(force) {
+                        journal.force(false);
+                    }
+                    return null;
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            throw new IOException("Handle reservoir is closed", ex);
+        }
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    write.get();
+                    return;
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                } catch(ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new IOException("Could not write to the handle reservoir journal", ex.getCause());
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    /**
+     * Replays the journal and rewrites it with only the available handles.
+     */
+    private Set<String> compactJournal() throws IOException {
+        Set<String> handles = new LinkedHashSet<>();
+        if(Files.exists(journalFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if(line.startsWith("+")) {
+                        handles.add(line.substring(1));
+                    } else if(line.startsWith("-")) {
+                        handles.remove(line.substring(1));
+                    } else if(!line.isEmpty()) {
+                        logger.warn("Ignoring invalid line in handle reservoir journal: {}", line);
+                    }
+                }
+            }
+        }
+        Path tempFile = Paths.get(journalFile.toString() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for(String handle : handles) {
+                writer.write("+" + handle);
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return handles;
+    }
+}
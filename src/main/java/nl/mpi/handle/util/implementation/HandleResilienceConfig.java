@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleOperation;
+
+/**
+ * Settings used by {@link ResilientHandleCallInterceptor}:
+ * deadlines per operation, retries with exponential backoff and
+ * circuit breaker thresholds.
+ */
+public class HandleResilienceConfig implements Serializable {
+    
+    /**
+     * <CODE>HandleException</CODE> codes which are considered transient,
+     * and therefore worth retrying, by default.
+     */
+    public static final Set<Integer> DEFAULT_TRANSIENT_ERROR_CODES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            HandleException.CANNOT_CONNECT_TO_SERVER,
+            HandleException.SERVER_ERROR,
+            HandleException.SESSION_TIMEOUT,
+            HandleException.SERVER_CANNOT_PROCESS_SESSION)));
+    
+    private long defaultTimeoutMillis = 30000;
+    private final Map<HandleOperation, Long> timeoutMillis = new EnumMap<>(HandleOperation.class);
+    private int maxAttempts = 3;
+    private long initialBackoffMillis = 200;
+    private long maxBackoffMillis = 5000;
+    private Set<Integer> transientErrorCodes = DEFAULT_TRANSIENT_ERROR_CODES;
+    private int failureThreshold = 5;
+    private long openStateMillis = 30000;
+    private int maxConcurrentCalls = 64;
+    
+    
+    /**
+     * @param operation
+     * @return deadline, in milliseconds, for a single attempt of the given operation
+     */
+    public long getTimeoutMillis(HandleOperation operation) {
+        Long timeout = timeoutMillis.get(operation);
+        return timeout != null ? timeout : defaultTimeoutMillis;
+    }
+    
+    /**
+     * Sets the deadline for a single attempt of the given operation,
+     * overriding the default one.
+     * @param operation
+     * @param millis 
+     */
+    public void setTimeoutMillis(HandleOperation operation, long millis) {
+        assurePositive(millis, "timeout");
+        timeoutMillis.put(operation, millis);
+    }
+    
+    public long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    /**
+     * @param defaultTimeoutMillis deadline, in milliseconds, for a single
+     * attempt of any operation without a specific timeout
+     */
+    public void setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        assurePositive(defaultTimeoutMillis, "timeout");
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param maxAttempts total number of attempts (including the first one)
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        assurePositive(maxAttempts, "maximum number of attempts");
+        this.maxAttempts = maxAttempts;
+    }
+
+    public long getInitialBackoffMillis() {
+        return initialBackoffMillis;
+    }
+
+    /**
+     * @param initialBackoffMillis upper bound of the (random) wait before
+     * the first retry; it doubles with every subsequent retry
+     */
+    public void setInitialBackoffMillis(long initialBackoffMillis) {
+        assurePositive(initialBackoffMillis, "backoff");
+        this.initialBackoffMillis = initialBackoffMillis;
+    }
+
+    public long getMaxBackoffMillis() {
+        return maxBackoffMillis;
+    }
+
+    /**
+     * @param maxBackoffMillis upper bound of the wait before any retry
+     */
+    public void setMaxBackoffMillis(long maxBackoffMillis) {
+        assurePositive(maxBackoffMillis, "backoff");
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    public Set<Integer> getTransientErrorCodes() {
+        return transientErrorCodes;
+    }
+
+    /**
+     * @param transientErrorCodes <CODE>HandleException</CODE> codes which
+     * should be retried and counted as failures by the circuit breaker
+     */
+    public void setTransientErrorCodes(Set<Integer> transientErrorCodes) {
+        this.transientErrorCodes = Collections.unmodifiableSet(new HashSet<>(transientErrorCodes));
+    }
+    
+    /**
+     * @param code
+     * @return true if the given <CODE>HandleException</CODE> code is transient
+     */
+    public boolean isTransient(int code) {
+        return transientErrorCodes.contains(code);
+    }
+
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    /**
+     * @param failureThreshold number of consecutive transient failures
+     * after which the circuit breaker opens
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        assurePositive(failureThreshold, "failure threshold");
+        this.failureThreshold = failureThreshold;
+    }
+
+    public long getOpenStateMillis() {
+        return openStateMillis;
+    }
+
+    /**
+     * @param openStateMillis time during which an open circuit breaker
+     * rejects calls before letting a trial call through
+     */
+    public void setOpenStateMillis(long openStateMillis) {
+        assurePositive(openStateMillis, "open state duration");
+        this.openStateMillis = openStateMillis;
+    }
+
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    /**
+     * @param maxConcurrentCalls maximum number of threads executing calls;
+     * further calls are rejected while they are all busy (e.g. stuck on a hanging server)
+     */
+    public void setMaxConcurrentCalls(int maxConcurrentCalls) {
+        assurePositive(maxConcurrentCalls, "maximum number of concurrent calls");
+        this.maxConcurrentCalls = maxConcurrentCalls;
+    }
+    
+    
+    private void assurePositive(long value, String name) {
+        if(value <= 0) {
+            throw new IllegalArgumentException("Invalid " + name + " (" + value + ")");
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Local index of the state of the files at the time their handles were
+ * last registered (size, modification time and target URL), used by
+ * {@link IncrementalHandleUpdater} to skip unchanged files without asking
+ * the Handle System.
+ * 
+ * The index is kept in memory and can be loaded from and saved to a file,
+ * with one tab-separated line per handle.
+ */
+public class HandleSnapshotIndex {
+    
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    
+    
+    /**
+     * Loads an index from the given file.
+     * @param file file previously written by {@link #save(java.nio.file.Path)}
+     * @return the loaded index (empty if the file does not exist)
+     * @throws IOException if the file cannot be read
+     */
+    public static HandleSnapshotIndex load(Path file) throws IOException {
+        HandleSnapshotIndex index = new HandleSnapshotIndex();
+        if(!Files.exists(file)) {
+            return index;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 4);
+                if(columns.length != 4) {
+                    throw new IOException("Invalid line in snapshot index " + file + ": " + line);
+                }
+                index.entries.put(columns[0], new Entry(Long.parseLong(columns[1]), Long.parseLong(columns[2]), columns[3]));
+            }
+        }
+        return index;
+    }
+    
+    /**
+     * Saves the index to the given file (replacing it only after the whole
+     * index has been written).
+     * @param file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for(Map.Entry<String, Entry> entry : entries.entrySet()) {
+                Entry value = entry.getValue();
+                writer.write(entry.getKey() + "\t" + value.size + "\t" + value.lastModified + "\t" + value.url);
+                writer.newLine();
+            }
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    
+    /**
+     * @param handle
+     * @param file
+     * @param url
+     * @return true if the index has an entry for the handle matching the
+     * current size and modification time of the file, and the given URL
+     */
+    public boolean isUnchanged(String handle, File file, String url) {
+        Entry entry = entries.get(handle);
+        return entry != null && entry.size == file.length() && entry.lastModified == file.lastModified() && entry.url.equals(url);
+    }
+    
+    /**
+     * Records the current state of the file for the given handle.
+     * @param handle
+     * @param file
+     * @param url 
+     */
+    public void record(String handle, File file, String url) {
+        entries.put(handle, new Entry(file.length(), file.lastModified(), url));
+    }
+    
+    /**
+     * @param handle handle to forget (e.g. after it was deleted)
+     */
+    public void remove(String handle) {
+        entries.remove(handle);
+    }
+    
+    public int size() {
+        return entries.size();
+    }
+    
+    
+    private static final class Entry {
+        
+        private final long size;
+        private final long lastModified;
+        private final String url;
+        
+        Entry(long size, long lastModified, String url) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.url = url;
+        }
+    }
+}
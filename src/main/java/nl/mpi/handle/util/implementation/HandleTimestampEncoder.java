@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.TimeZone;
+
+/**
+ * Encodes times in the format of <CODE>java.sql.Timestamp.toString()</CODE>
+ * ("yyyy-mm-dd hh:mm:ss.f", the fraction without trailing zeros), used for the
+ * FILETIME and CRAWLTIME handle values, directly into the bytes of the value.
+ * 
+ * The date part is cached for the last day encoded, so that encoding a time
+ * only allocates the resulting array; no <CODE>Calendar</CODE> or <CODE>Timestamp</CODE> is created.
+ * Times before 1900 or after 9999 fall back to <CODE>Timestamp</CODE>, since the
+ * latter uses the Julian calendar for old dates.
+ * Instances are immutable (apart from the cache) and thread-safe.
+ */
+public class HandleTimestampEncoder implements Serializable {
+    
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    // 1900-01-01 and 10000-01-01, in days since the epoch
+    private static final long MIN_DAY = -25567;
+    private static final long MAX_DAY = 2932897;
+    // "yyyy-mm-dd hh:mm:ss." followed by up to three digits
+    private static final int DATE_LENGTH = 11;
+    private static final int FIXED_LENGTH = 20;
+    
+    private final TimeZone timeZone;
+    private transient volatile CachedDay cachedDay;
+    
+    
+    /**
+     * Uses the current default time zone, as <CODE>Timestamp</CODE> would.
+     */
+    public HandleTimestampEncoder() {
+        this(TimeZone.getDefault());
+    }
+    
+    public HandleTimestampEncoder(TimeZone timeZone) {
+        this.timeZone = (TimeZone) timeZone.clone();
+    }
+    
+    
+    /**
+     * @param epochMillis time in milliseconds since the epoch
+     * @return the time as <CODE>new Timestamp(epochMillis).toString()</CODE>, encoded in ASCII (and UTF-8)
+     */
+    public byte[] encode(long epochMillis) {
+        long localMillis = epochMillis + timeZone.getOffset(epochMillis);
+        long day = floorDiv(localMillis, MILLIS_PER_DAY);
+        if(day < MIN_DAY || day >= MAX_DAY) {
+            return new Timestamp(epochMillis).toString().getBytes(StandardCharsets.US_ASCII);
+        }
+        int millisOfDay = (int) (localMillis - day * MILLIS_PER_DAY);
+        int millis = millisOfDay % 1000;
+        int fractionLength = millis == 0 ? 1 : millis % 100 == 0 ? 1 : millis % 10 == 0 ? 2 : 3;
+        
+        byte[] bytes = new byte[FIXED_LENGTH + fractionLength];
+        System.arraycopy(getDate(day), 0, bytes, 0, DATE_LENGTH);
+        int seconds = millisOfDay / 1000;
+        writeTwoDigits(bytes, 11, seconds / 3600);
+        bytes[13] = ':';
+        writeTwoDigits(bytes, 14, seconds / 60 % 60);
+        bytes[16] = ':';
+        writeTwoDigits(bytes, 17, seconds % 60);
+        bytes[19] = '.';
+        bytes[20] = (byte) ('0' + millis / 100);
+        if(fractionLength > 1) {
+            bytes[21] = (byte) ('0' + millis / 10 % 10);
+        }
+        if(fractionLength > 2) {
+            bytes[22] = (byte) ('0' + millis % 10);
+        }
+        return bytes;
+    }
+    
+    /**
+     * @param epochMillis time in milliseconds since the epoch
+     * @return the time as <CODE>new Timestamp(epochMillis).toString()</CODE>
+     */
+    public String format(long epochMillis) {
+        byte[] bytes = encode(epochMillis);
+        char[] chars = new char[bytes.length];
+        for(int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) bytes[i];
+        }
+        return new String(chars);
+    }
+    
+    
+    private byte[] getDate(long day) {
+        CachedDay cached = cachedDay;
+        if(cached == null || cached.day != day) {
+            cached = new CachedDay(day);
+            cachedDay = cached;
+        }
+        return cached.date;
+    }
+    
+    private static void writeTwoDigits(byte[] bytes, int position, int value) {
+        bytes[position] = (byte) ('0' + value / 10);
+        bytes[position + 1] = (byte) ('0' + value % 10);
+    }
+    
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        return (dividend % divisor != 0 && (dividend < 0) != (divisor < 0)) ? quotient - 1 : quotient;
+    }
+    
+    
+    /**
+     * The "yyyy-mm-dd " part of a day.
+     */
+    private static final class CachedDay {
+        
+        final long day;
+        final byte[] date = new byte[DATE_LENGTH];
+        
+        CachedDay(long day) {
+            this.day = day;
+            // civil date from days since the epoch (proleptic Gregorian calendar)
+            long shifted = day + 719468;
+            long era = floorDiv(shifted, 146097);
+            long dayOfEra = shifted - era * 146097;
+            long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            long monthIndex = (5 * dayOfYear + 2) / 153;
+            int dayOfMonth = (int) (dayOfYear - (153 * monthIndex + 2) / 5 + 1);
+            int month = (int) (monthIndex < 10 ? monthIndex + 3 : monthIndex - 9);
+            int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+            
+            writeTwoDigits(date, 0, year / 100);
+            writeTwoDigits(date, 2, year % 100);
+            date[4] = '-';
+            writeTwoDigits(date, 5, month);
+            date[7] = '-';
+            writeTwoDigits(date, 8, dayOfMonth);
+            date[10] = ' ';
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the {@link HandleSpan}s which trace the phases of the handle
+ * operations.
+ * 
+ * The active span is kept per thread (shared by all tracers), so spans
+ * started by different layers (manager, info provider, util) nest without
+ * being passed around. The spans of a trace are collected in its root span
+ * and handed to the exporter once the root is closed, provided that the
+ * whole trace took at least the configured minimum duration (which allows
+ * for only the slow operations to be exported). Spans which finish after
+ * their root was closed (e.g. work handed over to another thread, such as
+ * a deferred update) are exported on their own, with the same trace id,
+ * if the trace lasted at least the minimum duration up to their end.
+ * 
+ * The {@link #DISABLED} tracer, used by default, returns a shared span
+ * which records nothing, so tracing costs no allocations when not in use.
+ */
+public class HandleTracer {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleTracer.class);
+    
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+    
+    /**
+     * Tracer which does not record any spans.
+     */
+    public static final HandleTracer DISABLED = new HandleTracer(null, 0);
+    
+    private static final HandleSpan NO_OP_SPAN = new HandleSpan() {
+        @Override
+        public long getTraceId() {
+            return 0;
+        }
+        @Override
+        public long getSpanId() {
+            return 0;
+        }
+        @Override
+        public long getParentId() {
+            return 0;
+        }
+        @Override
+        public String getName() {
+            return "";
+        }
+        @Override
+        public String getDetail() {
+            return null;
+        }
+        @Override
+        public void setDetail(String detail) {
+        }
+        @Override
+        public long getStartEpochMicros() {
+            return 0;
+        }
+        @Override
+        public long getDurationNanos() {
+            return 0;
+        }
+        @Override
+        public void close() {
+        }
+    };
+    
+    private final HandleSpanExporter exporter;
+    private final long minTraceDurationNanos;
+    
+    
+    /**
+     * Creates a tracer which exports all traces.
+     * @param exporter 
+     */
+    public HandleTracer(HandleSpanExporter exporter) {
+        this(exporter, 0);
+    }
+    
+    /**
+     * @param exporter exporter of the finished traces
+     * @param minTraceDurationMillis traces which take less than this are discarded
+     */
+    public HandleTracer(HandleSpanExporter exporter, long minTraceDurationMillis) {
+        this.exporter = exporter;
+        this.minTraceDurationNanos = TimeUnit.MILLISECONDS.toNanos(minTraceDurationMillis);
+    }
+    
+    
+    /**
+     * Starts a span, child of the span currently active in this thread
+     * (if any), and makes it the active one until it is closed.
+     * @param name name of the step
+     * @return the new span
+     */
+    public HandleSpan startSpan(String name) {
+        if(exporter == null) {
+            return NO_OP_SPAN;
+        }
+        Span parent = currentSpan.get();
+        Span span = new Span(this, name, parent);
+        currentSpan.set(span);
+        return span;
+    }
+    
+    /**
+     * Starts a span with the given detail.
+     * @param name name of the step
+     * @param detail additional information (e.g. the handle)
+     * @return the new span
+     * @see #startSpan(java.lang.String)
+     */
+    public HandleSpan startSpan(String name, String detail) {
+        HandleSpan span = startSpan(name);
+        span.setDetail(detail);
+        return span;
+    }
+    
+    /**
+     * @return the span active in the current thread, or null if there is none
+     */
+    public static HandleSpan getCurrentSpan() {
+        return currentSpan.get();
+    }
+    
+    /**
+     * Makes the given span (typically obtained with {@link #getCurrentSpan()}
+     * in another thread) the active one in the current thread, so that
+     * work handed over to other threads is still part of the same trace.
+     * @param span span to activate (can be null)
+     * @return span which was previously active, to be passed to
+     * {@link #restore(nl.mpi.handle.util.HandleSpan)} afterwards
+     */
+    public static HandleSpan attach(HandleSpan span) {
+        HandleSpan previous = currentSpan.get();
+        if(span instanceof Span) {
+            currentSpan.set((Span) span);
+        } else {
+            currentSpan.remove();
+        }
+        return previous;
+    }
+    
+    /**
+     * Restores the span which was active before calling
+     * {@link #attach(nl.mpi.handle.util.HandleSpan)}.
+     * @param previous 
+     */
+    public static void restore(HandleSpan previous) {
+        attach(previous);
+    }
+    
+    
+    private void finishTrace(Span root) {
+        List<HandleSpan> spans;
+        synchronized(root) {
+            root.traceFinished = true;
+            spans = new ArrayList<HandleSpan>(root.finishedSpans);
+        }
+        if(root.durationNanos < minTraceDurationNanos) {
+            return;
+        }
+        spans.add(root);
+        export(spans);
+    }
+    
+    private void finishLateSpan(Span span) {
+        if(span.startNanos + span.durationNanos - span.root.startNanos < minTraceDurationNanos) {
+            return;
+        }
+        export(Collections.<HandleSpan>singletonList(span));
+    }
+    
+    private void export(List<HandleSpan> spans) {
+        try {
+            exporter.export(spans);
+        } catch(RuntimeException ex) {
+            logger.warn("Could not export trace", ex);
+        }
+    }
+    
+    
+    private static final class Span implements HandleSpan {
+        
+        private final HandleTracer tracer;
+        private final Span parent;
+        private final Span root;
+        private final long traceId;
+        private final long spanId;
+        private final String name;
+        private final long startNanos;
+        private final long startEpochMicros;
+        private String detail;
+        private volatile long durationNanos;
+        private boolean closed;
+        // only in the root, guarded by it
+        private List<Span> finishedSpans;
+        private boolean traceFinished;
+        
+        Span(HandleTracer tracer, String name, Span parent) {
+            this.tracer = tracer;
+            this.parent = parent;
+            this.name = name;
+            this.spanId = ThreadLocalRandom.current().nextLong();
+            this.startNanos = System.nanoTime();
+            if(parent == null) {
+                this.root = this;
+                this.traceId = ThreadLocalRandom.current().nextLong();
+                this.startEpochMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+                this.finishedSpans = new ArrayList<>();
+            } else {
+                this.root = parent.root;
+                this.traceId = root.traceId;
+                this.startEpochMicros = root.startEpochMicros + TimeUnit.NANOSECONDS.toMicros(startNanos - root.startNanos);
+            }
+        }
+
+        @Override
+        public long getTraceId() {
+            return traceId;
+        }
+
+        @Override
+        public long getSpanId() {
+            return spanId;
+        }
+
+        @Override
+        public long getParentId() {
+            return parent != null ? parent.spanId : 0;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getDetail() {
+            return detail;
+        }
+
+        @Override
+        public void setDetail(String detail) {
+            this.detail = detail;
+        }
+
+        @Override
+        public long getStartEpochMicros() {
+            return startEpochMicros;
+        }
+
+        @Override
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        @Override
+        public void close() {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            durationNanos = System.nanoTime() - startNanos;
+            if(currentSpan.get() == this) {
+                if(parent != null) {
+                    currentSpan.set(parent);
+                } else {
+                    currentSpan.remove();
+                }
+            }
+            if(root == this) {
+                tracer.finishTrace(this);
+                return;
+            }
+            boolean late;
+            synchronized(root) {
+                late = root.traceFinished;
+                if(!late) {
+                    root.finishedSpans.add(this);
+                }
+            }
+            if(late) {
+                tracer.finishLateSpan(this);
+            }
+        }
+    }
+}
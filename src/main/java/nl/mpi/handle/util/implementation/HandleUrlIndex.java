@@ -0,0 +1,1014 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleChangeListener;
+import nl.mpi.handle.util.HandleParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local reverse index from the URL of a handle to the handle, answering
+ * prefix queries (e.g. all the handles of the files under a directory
+ * which is about to be moved) without querying the Handle System.
+ * 
+ * The index is a sorted string table on disk, holding two sections of
+ * blocks of about 16 KB, each followed by the first key and position of
+ * every block, and a fixed-size footer:
+ * <ul>
+ * <li>URLs: (URL, handle) pairs sorted by URL and then handle</li>
+ * <li>handles: (handle, URL) pairs sorted by handle, used to merge the changes</li>
+ * </ul>
+ * Within a block, each key only stores the bytes it does not share with the
+ * previous key, which keeps the long common prefixes of URLs compact.
+ * Only the block positions are kept in memory, so a query reads the blocks
+ * holding the matching URLs and nothing else.
+ * 
+ * Changes are appended to a journal next to the index file and kept in
+ * memory until they are merged into a new table, which then replaces the
+ * old one. When the number of pending changes reaches a maximum (see
+ * {@link #setMaxPendingChanges(int)}), the pending changes are set aside
+ * with their journal and merged by a background thread, while queries keep
+ * reading the old table and new changes go to a new journal. Only swapping
+ * in the new table briefly excludes queries and changes.
+ * {@link #compact()} merges the pending changes and waits for it.
+ * 
+ * Handles are stored without proxy and in upper case (handles are case-insensitive).
+ * Register the index with {@link HandleManagerImpl#addChangeListener(HandleChangeListener)}
+ * to keep it up to date with the changes made through the manager.
+ */
+public class HandleUrlIndex implements HandleChangeListener, Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HandleUrlIndex.class);
+    
+    private static final int MAGIC = 0x48444C55; // "HDLU"
+    private static final int VERSION = 1;
+    private static final int FOOTER_SIZE = 56;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    
+    // sorts before any other character, so that (URL, handle) pairs keep the order of the URLs
+    private static final char SEPARATOR = '\u0000';
+    
+    private final Path file;
+    private final Path journalFile;
+    private final Path compactingJournalFile;
+    private final HandleParser handleParser;
+    private final ExecutorService compactor;
+    
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private Table table;
+    private Changes pending = new Changes();
+    // changes being merged into a new table, or null if no compaction is running
+    private Changes compacting;
+    private Future<Void> compaction;
+    private FileChannel journalChannel;
+    private Writer journal;
+    private int maxPendingChanges = 100000;
+    private boolean closed = false;
+    
+    
+    /**
+     * Opens the index stored in the given file, creating it if it does not exist,
+     * and applies the changes left in its journal.
+     * @param file file holding the index
+     * @param hdlParser parser used to normalize the handles
+     * @throws IOException if the index or its journal cannot be read
+     */
+    public HandleUrlIndex(Path file, HandleParser hdlParser) throws IOException {
+        this.file = file;
+        this.journalFile = file.resolveSibling(file.getFileName() + ".journal");
+        this.compactingJournalFile = file.resolveSibling(file.getFileName() + ".journal.compacting");
+        this.handleParser = hdlParser;
+        if(Files.exists(file)) {
+            table = Table.open(file);
+            logger.debug("URL index {} opened with {} handles", file, table.handles.entryCount);
+        }
+        // left by a compaction which did not finish
+        mergeCompactingJournal();
+        replayJournal();
+        openJournal(false);
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "handle-url-index-compaction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+    
+    
+    /**
+     * Sets the number of pending changes after which the index is compacted
+     * (by default 100000; the pending changes are kept in memory).
+     * @param maxPendingChanges
+     */
+    public void setMaxPendingChanges(int maxPendingChanges) {
+        if(maxPendingChanges <= 0) {
+            throw new IllegalArgumentException("Invalid maximum of pending changes (" + maxPendingChanges + ")");
+        }
+        lock.writeLock().lock();
+        try {
+            this.maxPendingChanges = maxPendingChanges;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Finds the handles whose URL starts with the given prefix.
+     * @param urlPrefix prefix of the URLs (e.g. "http://server/archive/corpus/")
+     * @return the matching handles, ordered by URL
+     * @throws IOException if the index cannot be read
+     */
+    public List<String> findHandles(String urlPrefix) throws IOException {
+        lock.readLock().lock();
+        try {
+            List<String> found = new ArrayList<>();
+            Iterator<String> changes = getMatchingChanges(urlPrefix).iterator();
+            String nextChange = changes.hasNext() ? changes.next() : null;
+            if(table != null) {
+                Cursor cursor = table.urls.cursor(urlPrefix);
+                while(cursor.next()) {
+                    if(cursor.key.compareTo(urlPrefix) < 0) {
+                        continue;
+                    }
+                    if(!cursor.key.startsWith(urlPrefix)) {
+                        break;
+                    }
+                    if(isChanged(cursor.value)) {
+                        continue;
+                    }
+                    String entry = cursor.key + SEPARATOR + cursor.value;
+                    while(nextChange != null && nextChange.compareTo(entry) < 0) {
+                        found.add(handleOf(nextChange));
+                        nextChange = changes.hasNext() ? changes.next() : null;
+                    }
+                    found.add(cursor.value);
+                }
+            }
+            while(nextChange != null) {
+                found.add(handleOf(nextChange));
+                nextChange = changes.hasNext() ? changes.next() : null;
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * @param handle the handle, with or without proxy
+     * @return the URL of the handle, or null if the handle is not in the index
+     * @throws IOException if the index cannot be read
+     */
+    public String getUrl(String handle) throws IOException {
+        String key = normalize(handle);
+        lock.readLock().lock();
+        try {
+            if(pending.byHandle.containsKey(key)) {
+                return pending.byHandle.get(key);
+            }
+            if(compacting != null && compacting.byHandle.containsKey(key)) {
+                return compacting.byHandle.get(key);
+            }
+            if(table == null) {
+                return null;
+            }
+            Cursor cursor = table.handles.cursor(key);
+            while(cursor.next()) {
+                int comparison = cursor.key.compareTo(key);
+                if(comparison == 0) {
+                    return cursor.value;
+                } else if(comparison > 0) {
+                    break;
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds or replaces the URL of a handle.
+     * @param handle the handle, with or without proxy
+     * @param url URL of the handle
+     * @throws IOException if the change cannot be written to the journal or a compaction cannot be started
+     */
+    public void put(String handle, String url) throws IOException {
+        if(url.indexOf(SEPARATOR) >= 0 || url.indexOf('\t') >= 0 || url.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Invalid URL for handle " + handle + ": " + url);
+        }
+        String key = normalize(handle);
+        lock.writeLock().lock();
+        try {
+            journal.write("+\t" + key + "\t" + url + "\n");
+            journal.flush();
+            pending.put(key, url);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Removes a handle from the index.
+     * @param handle the handle, with or without proxy
+     * @throws IOException if the change cannot be written to the journal or a compaction cannot be started
+     */
+    public void remove(String handle) throws IOException {
+        String key = normalize(handle);
+        lock.writeLock().lock();
+        try {
+            journal.write("-\t" + key + "\n");
+            journal.flush();
+            pending.remove(key);
+            compactIfNeeded();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Adds the URLs of all the handles in the given dump (see {@link HandleRegistryDump}),
+     * e.g. to build the index for existing handles.
+     * @param reader dump to read from; not closed by this method
+     * @return number of handles added
+     * @throws IOException if the dump cannot be read or the index cannot be written
+     */
+    public long putAll(HandleDumpReader reader) throws IOException {
+        long added = 0;
+        for(int i = 0; i < reader.getBlockCount(); i++) {
+            for(HandleRecord record : reader.readBlock(i)) {
+                String url = HandleValues.getDataByType(record.getValues(), HandleConstants.URL_TYPE);
+                if(url != null) {
+                    put(record.getHandle(), url);
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+    
+    /**
+     * @return number of changes not yet merged into the table
+     */
+    public int getPendingCount() {
+        lock.readLock().lock();
+        try {
+            return pending.byHandle.size() + (compacting != null ? compacting.byHandle.size() : 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Merges the pending changes into a new table, which replaces the current one,
+     * and clears the journal, waiting for any compaction already running.
+     * @throws IOException if the new table cannot be written
+     */
+    public void compact() throws IOException {
+        while(true) {
+            Future<Void> running;
+            boolean started = false;
+            lock.writeLock().lock();
+            try {
+                if(compaction == null) {
+                    if(pending.byHandle.isEmpty()) {
+                        return;
+                    }
+                    startCompaction();
+                    started = true;
+                }
+                running = compaction;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                await(running);
+            } catch(IOException ex) {
+                if(started) {
+                    throw ex;
+                }
+                // a failed background compaction leaves its changes pending, merged by the next one
+            }
+            if(started) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Writes the journal to the storage device.
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+        lock.writeLock().lock();
+        try {
+            journal.flush();
+            journalChannel.force(false);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Waits for a running compaction and closes the index.
+     * @throws IOException if the journal cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        Future<Void> running;
+        lock.writeLock().lock();
+        try {
+            closed = true;
+            running = compaction;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if(running != null) {
+            try {
+                await(running);
+            } catch(IOException ex) {
+                // already logged; the changes remain in the journal
+            }
+        }
+        compactor.shutdown();
+        lock.writeLock().lock();
+        try {
+            journal.flush();
+            journalChannel.force(false);
+            journal.close();
+            if(table != null) {
+                table.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    
+    @Override
+    public void handleCreated(String handle, HandleValue[] values) {
+        handleUpdated(handle, values);
+    }
+    
+    @Override
+    public void handleUpdated(String handle, HandleValue[] values) {
+        String url = HandleValues.getDataByType(values, HandleConstants.URL_TYPE);
+        try {
+            if(url != null) {
+                put(handle, url);
+            } else {
+                remove(handle);
+            }
+        } catch(IOException | IllegalArgumentException ex) {
+            logger.error("Could not update handle " + handle + " in the URL index", ex);
+        }
+    }
+    
+    @Override
+    public void handleDeleted(String handle) {
+        try {
+            remove(handle);
+        } catch(IOException | IllegalArgumentException ex) {
+            logger.error("Could not remove handle " + handle + " from the URL index", ex);
+        }
+    }
+    
+    
+    private String normalize(String handle) {
+        return handleParser.prepareAndValidateHandleWithoutProxy(URI.create(handle)).toString().toUpperCase(Locale.ROOT);
+    }
+    
+    /**
+     * Must be called while holding the lock.
+     * @return true if the handle has changes not yet merged into the table
+     */
+    private boolean isChanged(String handle) {
+        return pending.byHandle.containsKey(handle) || (compacting != null && compacting.byHandle.containsKey(handle));
+    }
+    
+    /**
+     * Must be called while holding the lock.
+     * @return (URL, separator, handle) entries of the changes not yet merged whose URL starts with the given prefix
+     */
+    private TreeSet<String> getMatchingChanges(String urlPrefix) {
+        TreeSet<String> matching = new TreeSet<>();
+        addMatching(pending.byUrl, urlPrefix, null, matching);
+        if(compacting != null) {
+            addMatching(compacting.byUrl, urlPrefix, pending, matching);
+        }
+        return matching;
+    }
+    
+    /**
+     * @param newer changes overriding the given entries, or null
+     */
+    private static void addMatching(TreeSet<String> entries, String urlPrefix, Changes newer, TreeSet<String> matching) {
+        for(String entry : entries.tailSet(urlPrefix)) {
+            if(!entry.startsWith(urlPrefix) || entry.indexOf(SEPARATOR) < urlPrefix.length()) {
+                break;
+            }
+            if(newer == null || !newer.byHandle.containsKey(handleOf(entry))) {
+                matching.add(entry);
+            }
+        }
+    }
+    
+    private static String urlOf(String entry) {
+        return entry.substring(0, entry.indexOf(SEPARATOR));
+    }
+    
+    private static String handleOf(String entry) {
+        return entry.substring(entry.indexOf(SEPARATOR) + 1);
+    }
+    
+    /**
+     * Must be called while holding the write lock.
+     */
+    private void compactIfNeeded() throws IOException {
+        if(!closed && compaction == null && pending.byHandle.size() >= maxPendingChanges) {
+            startCompaction();
+        }
+    }
+    
+    /**
+     * Sets the pending changes and their journal aside and merges them in the background.
+     * Must be called while holding the write lock.
+     */
+    private void startCompaction() throws IOException {
+        journal.close();
+        try {
+            Files.move(journalFile, compactingJournalFile, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            openJournal(false);
+        }
+        compacting = pending;
+        pending = new Changes();
+        final Table base = table;
+        final Changes changes = compacting;
+        compaction = compactor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                merge(base, changes);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Runs in the background: the base table and the changes are not modified meanwhile.
+     */
+    private void merge(Table base, Changes changes) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            writeTable(base, changes, tempFile);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Table merged = Table.open(file);
+            lock.writeLock().lock();
+            try {
+                // before the lock is released, since the next compaction sets its journal aside with the same name
+                try {
+                    Files.deleteIfExists(compactingJournalFile);
+                } catch(IOException ex) {
+                    merged.close();
+                    throw ex;
+                }
+                table = merged;
+                compacting = null;
+                compaction = null;
+                // no query reads the old table any more
+                if(base != null) {
+                    try {
+                        base.close();
+                    } catch(IOException ex) {
+                        // the merge is already in place, so it is not undone
+                        logger.warn("Could not close the previous table of URL index " + file, ex);
+                    }
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch(IOException | RuntimeException ex) {
+            logger.error("Could not compact URL index " + file, ex);
+            lock.writeLock().lock();
+            try {
+                restoreCompactingChanges();
+            } catch(IOException restoreEx) {
+                ex.addSuppressed(restoreEx);
+            } finally {
+                compaction = null;
+                lock.writeLock().unlock();
+            }
+            throw ex;
+        }
+        logger.debug("URL index compacted with {} changes in {} ms", changes.byHandle.size(),
+                (System.nanoTime() - start) / 1000000);
+    }
+    
+    /**
+     * Makes the changes of a failed compaction pending again, before the newer ones.
+     * Must be called while holding the write lock.
+     */
+    private void restoreCompactingChanges() throws IOException {
+        Changes restored = compacting;
+        for(Map.Entry<String, String> change : pending.byHandle.entrySet()) {
+            if(change.getValue() != null) {
+                restored.put(change.getKey(), change.getValue());
+            } else {
+                restored.remove(change.getKey());
+            }
+        }
+        pending = restored;
+        compacting = null;
+        journal.close();
+        try {
+            mergeCompactingJournal();
+        } finally {
+            openJournal(false);
+        }
+    }
+    
+    /**
+     * Appends the journal to the one set aside for a compaction, which then replaces it.
+     */
+    private void mergeCompactingJournal() throws IOException {
+        if(!Files.exists(compactingJournalFile)) {
+            return;
+        }
+        try (FileChannel merged = FileChannel.open(compactingJournalFile, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the last line may have been interrupted while written
+            if(merged.size() > 0) {
+                ByteBuffer last = ByteBuffer.allocate(1);
+                readFully(merged, last, merged.size() - 1);
+                if(last.get() != '\n') {
+                    writeFully(merged, ByteBuffer.wrap(new byte[] {'\n'}), merged.size());
+                }
+            }
+            if(Files.exists(journalFile)) {
+                try (FileChannel newer = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+                    long position = 0;
+                    long size = newer.size();
+                    while(position < size) {
+                        position += merged.transferFrom(newer, merged.size(), size - position);
+                    }
+                }
+            }
+            merged.force(false);
+        }
+        Files.move(compactingJournalFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private void writeTable(Table base, Changes changes, Path tempFile) throws IOException {
+        Files.deleteIfExists(tempFile);
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            
+            SectionWriter urls = new SectionWriter(channel, 0);
+            Iterator<String> pendingUrls = changes.byUrl.iterator();
+            String nextPending = pendingUrls.hasNext() ? pendingUrls.next() : null;
+            if(base != null) {
+                Cursor cursor = base.urls.cursor(null);
+                while(cursor.next()) {
+                    if(changes.byHandle.containsKey(cursor.value)) {
+                        continue;
+                    }
+                    String entry = cursor.key + SEPARATOR + cursor.value;
+                    while(nextPending != null && nextPending.compareTo(entry) < 0) {
+                        urls.add(urlOf(nextPending), handleOf(nextPending));
+                        nextPending = pendingUrls.hasNext() ? pendingUrls.next() : null;
+                    }
+                    urls.add(cursor.key, cursor.value);
+                }
+            }
+            while(nextPending != null) {
+                urls.add(urlOf(nextPending), handleOf(nextPending));
+                nextPending = pendingUrls.hasNext() ? pendingUrls.next() : null;
+            }
+            urls.finish();
+            
+            SectionWriter handles = new SectionWriter(channel, urls.position);
+            Iterator<Map.Entry<String, String>> handleChanges = changes.byHandle.entrySet().iterator();
+            Map.Entry<String, String> nextChange = handleChanges.hasNext() ? handleChanges.next() : null;
+            if(base != null) {
+                Cursor cursor = base.handles.cursor(null);
+                while(cursor.next()) {
+                    while(nextChange != null && nextChange.getKey().compareTo(cursor.key) < 0) {
+                        handles.addIfPresent(nextChange.getKey(), nextChange.getValue());
+                        nextChange = handleChanges.hasNext() ? handleChanges.next() : null;
+                    }
+                    if(nextChange != null && nextChange.getKey().equals(cursor.key)) {
+                        continue;
+                    }
+                    handles.add(cursor.key, cursor.value);
+                }
+            }
+            while(nextChange != null) {
+                handles.addIfPresent(nextChange.getKey(), nextChange.getValue());
+                nextChange = handleChanges.hasNext() ? handleChanges.next() : null;
+            }
+            handles.finish();
+            
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putInt(MAGIC).putInt(VERSION);
+            footer.putLong(urls.indexOffset).putLong(urls.indexLength).putLong(urls.entryCount);
+            footer.putLong(handles.indexOffset).putLong(handles.indexLength).putLong(handles.entryCount);
+            footer.flip();
+            writeFully(channel, footer, handles.position);
+            channel.force(true);
+        }
+    }
+    
+    private void replayJournal() throws IOException {
+        if(!Files.exists(journalFile)) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                String[] columns = line.split("\t", 3);
+                if("+".equals(columns[0]) && columns.length == 3) {
+                    pending.put(columns[1], columns[2]);
+                } else if("-".equals(columns[0]) && columns.length == 2) {
+                    pending.remove(columns[1]);
+                } else {
+                    // possibly the last line, interrupted while written
+                    logger.warn("Ignoring invalid line in URL index journal " + journalFile + ": " + line);
+                }
+            }
+        }
+    }
+    
+    private void openJournal(boolean truncate) throws IOException {
+        journalChannel = FileChannel.open(journalFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                truncate ? StandardOpenOption.TRUNCATE_EXISTING : StandardOpenOption.APPEND);
+        journal = new BufferedWriter(Channels.newWriter(journalChannel, StandardCharsets.UTF_8.newEncoder(), -1));
+    }
+    
+    /**
+     * Waits for a compaction, without giving up if interrupted
+     * (the interrupt status is restored afterwards).
+     */
+    private static void await(Future<Void> compaction) throws IOException {
+        boolean interrupted = false;
+        try {
+            while(true) {
+                try {
+                    compaction.get();
+                    return;
+                } catch(InterruptedException ex) {
+                    interrupted = true;
+                } catch(ExecutionException ex) {
+                    if(ex.getCause() instanceof IOException) {
+                        throw (IOException) ex.getCause();
+                    }
+                    throw new IOException("Could not compact the URL index", ex.getCause());
+                }
+            }
+        } finally {
+            if(interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+    
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+    
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new IOException("Unexpected end of URL index");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+    
+    
+    /**
+     * Changes not yet merged into the table.
+     */
+    private static final class Changes {
+        
+        // handle to URL, null if the handle was removed
+        final TreeMap<String, String> byHandle = new TreeMap<>();
+        // URL, separator, handle
+        final TreeSet<String> byUrl = new TreeSet<>();
+        
+        void put(String handle, String url) {
+            String previousUrl = byHandle.put(handle, url);
+            if(previousUrl != null) {
+                byUrl.remove(previousUrl + SEPARATOR + handle);
+            }
+            byUrl.add(url + SEPARATOR + handle);
+        }
+        
+        void remove(String handle) {
+            String previousUrl = byHandle.put(handle, null);
+            if(previousUrl != null) {
+                byUrl.remove(previousUrl + SEPARATOR + handle);
+            }
+        }
+    }
+    
+    /**
+     * An open index file.
+     */
+    private static final class Table implements Closeable {
+        
+        final FileChannel channel;
+        final Section urls;
+        final Section handles;
+        
+        private Table(FileChannel channel, Section urls, Section handles) {
+            this.channel = channel;
+            this.urls = urls;
+            this.handles = handles;
+        }
+        
+        static Table open(Path file) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long size = channel.size();
+                if(size < FOOTER_SIZE) {
+                    throw new IOException("Not a URL index: " + file);
+                }
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                readFully(channel, footer, size - FOOTER_SIZE);
+                if(footer.getInt() != MAGIC || footer.getInt() != VERSION) {
+                    throw new IOException("Not a URL index: " + file);
+                }
+                Section urls = Section.read(channel, footer.getLong(), footer.getLong(), footer.getLong());
+                Section handles = Section.read(channel, footer.getLong(), footer.getLong(), footer.getLong());
+                return new Table(channel, urls, handles);
+            } catch(IOException | RuntimeException ex) {
+                channel.close();
+                throw ex;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+    
+    /**
+     * The blocks of one of the sections of an index file,
+     * with the first key of each block.
+     */
+    private static final class Section {
+        
+        final FileChannel channel;
+        final long entryCount;
+        final String[] firstKeys;
+        final long[] offsets;
+        final int[] lengths;
+        
+        private Section(FileChannel channel, long entryCount, String[] firstKeys, long[] offsets, int[] lengths) {
+            this.channel = channel;
+            this.entryCount = entryCount;
+            this.firstKeys = firstKeys;
+            this.offsets = offsets;
+            this.lengths = lengths;
+        }
+        
+        static Section read(FileChannel channel, long indexOffset, long indexLength, long entryCount) throws IOException {
+            if(indexOffset < 0 || indexLength < 4 || indexLength > Integer.MAX_VALUE
+                    || indexOffset + indexLength > channel.size() - FOOTER_SIZE) {
+                throw new IOException("Corrupted URL index");
+            }
+            ByteBuffer index = ByteBuffer.allocate((int) indexLength);
+            readFully(channel, index, indexOffset);
+            int blockCount = index.getInt();
+            String[] firstKeys = new String[blockCount];
+            long[] offsets = new long[blockCount];
+            int[] lengths = new int[blockCount];
+            for(int i = 0; i < blockCount; i++) {
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                byte[] key = new byte[index.getInt()];
+                index.get(key);
+                firstKeys[i] = new String(key, StandardCharsets.UTF_8);
+            }
+            return new Section(channel, entryCount, firstKeys, offsets, lengths);
+        }
+        
+        /**
+         * @param fromKey key of the first entry of interest, or null to read all the entries
+         * @return cursor positioned before the first block which may hold entries
+         * not lower than the given key (some lower entries may precede them)
+         */
+        Cursor cursor(String fromKey) {
+            if(fromKey == null) {
+                return new Cursor(this, 0);
+            }
+            // keys may repeat across blocks, so start at the last block whose first key is lower
+            int block = Arrays.binarySearch(firstKeys, fromKey);
+            if(block < 0) {
+                block = -block - 1;
+            }
+            while(block > 0 && firstKeys[block - 1].compareTo(fromKey) >= 0) {
+                block--;
+            }
+            return new Cursor(this, Math.max(0, block - 1));
+        }
+    }
+    
+    /**
+     * Reads the entries of a section in order, one block at a time.
+     */
+    private static final class Cursor {
+        
+        private final Section section;
+        private int block;
+        private ByteBuffer buffer;
+        private byte[] previousKey = new byte[0];
+        
+        String key;
+        String value;
+        
+        Cursor(Section section, int firstBlock) {
+            this.section = section;
+            this.block = firstBlock - 1;
+        }
+        
+        /**
+         * @return true if moved to the next entry, false if there are no more entries
+         */
+        boolean next() throws IOException {
+            while(buffer == null || !buffer.hasRemaining()) {
+                if(++block >= section.offsets.length) {
+                    return false;
+                }
+                buffer = ByteBuffer.allocate(section.lengths[block]);
+                readFully(section.channel, buffer, section.offsets[block]);
+            }
+            int shared = readVarInt(buffer);
+            byte[] keyBytes = Arrays.copyOf(previousKey, shared + readVarInt(buffer));
+            buffer.get(keyBytes, shared, keyBytes.length - shared);
+            byte[] valueBytes = new byte[readVarInt(buffer)];
+            buffer.get(valueBytes);
+            previousKey = keyBytes;
+            key = new String(keyBytes, StandardCharsets.UTF_8);
+            value = new String(valueBytes, StandardCharsets.UTF_8);
+            return true;
+        }
+        
+        private static int readVarInt(ByteBuffer buffer) {
+            int value = 0;
+            for(int shift = 0; ; shift += 7) {
+                byte b = buffer.get();
+                value |= (b & 0x7F) << shift;
+                if(b >= 0) {
+                    return value;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Writes the sorted entries of a section, followed by the index of its blocks.
+     */
+    private static final class SectionWriter {
+        
+        private final FileChannel channel;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE + 1024);
+        private final List<String> firstKeys = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private byte[] previousKey;
+        
+        long position;
+        long entryCount;
+        long indexOffset;
+        long indexLength;
+        
+        SectionWriter(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+        
+        void addIfPresent(String key, String value) throws IOException {
+            if(value != null) {
+                add(key, value);
+            }
+        }
+        
+        void add(String key, String value) throws IOException {
+            if(block.size() >= BLOCK_SIZE) {
+                writeBlock();
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            if(previousKey == null) {
+                firstKeys.add(key);
+            } else {
+                int max = Math.min(previousKey.length, keyBytes.length);
+                while(shared < max && previousKey[shared] == keyBytes[shared]) {
+                    shared++;
+                }
+            }
+            writeVarInt(shared);
+            writeVarInt(keyBytes.length - shared);
+            block.write(keyBytes, shared, keyBytes.length - shared);
+            byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(valueBytes.length);
+            block.write(valueBytes, 0, valueBytes.length);
+            previousKey = keyBytes;
+            entryCount++;
+        }
+        
+        void finish() throws IOException {
+            if(block.size() > 0) {
+                writeBlock();
+            }
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            ByteBuffer header = ByteBuffer.allocate(16);
+            header.putInt(firstKeys.size());
+            index.write(header.array(), 0, 4);
+            for(int i = 0; i < firstKeys.size(); i++) {
+                byte[] key = firstKeys.get(i).getBytes(StandardCharsets.UTF_8);
+                header.clear();
+                header.putLong(offsets.get(i)).putInt(lengths.get(i)).putInt(key.length);
+                index.write(header.array(), 0, 16);
+                index.write(key, 0, key.length);
+            }
+            indexOffset = position;
+            indexLength = index.size();
+            writeFully(channel, ByteBuffer.wrap(index.toByteArray()), position);
+            position += indexLength;
+        }
+        
+        private void writeBlock() throws IOException {
+            offsets.add(position);
+            lengths.add(block.size());
+            writeFully(channel, ByteBuffer.wrap(block.toByteArray()), position);
+            position += block.size();
+            block.reset();
+            previousKey = null;
+        }
+        
+        private void writeVarInt(int value) {
+            while((value & ~0x7F) != 0) {
+                block.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            block.write(value);
+        }
+    }
+}
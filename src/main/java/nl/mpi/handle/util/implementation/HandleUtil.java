@@ -5,12 +5,22 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import net.handle.api.HSAdapter;
 import net.handle.api.HSAdapterFactory;
 import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleSpan;
 import org.apache.commons.io.IOUtils;
 
 /**
@@ -28,6 +38,15 @@ public class HandleUtil implements Serializable
     private final int adminUserHandleIndex;
     private final String adminUserHandle;
     private final byte[] handleAdminPassword;
+    // not serialized (adapters are not serializable): a deserialized instance created with one cannot make calls
+    private transient HSAdapter fixedHandleApi;
+    private final boolean usesFixedHandleApi;
+    
+    private final List<HandleCallInterceptor> callInterceptors = new CopyOnWriteArrayList<>();
+    // not serialized: a deserialized instance reports to no metrics or tracer
+    private transient HandleMetrics metrics = NoOpHandleMetrics.INSTANCE;
+    private transient HandleTracer tracer = HandleTracer.DISABLED;
+    private transient List<HandleCallInterceptor> innerInterceptors = new ArrayList<>();
     
     /**
      * The index of an ADL Registry user HS_SECKEY attribute within a user handle.
@@ -56,6 +75,57 @@ public class HandleUtil implements Serializable
             password = adminPassword.getBytes();
         }
         this.handleAdminPassword = password;
+        this.fixedHandleApi = null;
+        this.usesFixedHandleApi = false;
+    }
+    
+    /**
+     * Creates a <CODE>HandleUtil</CODE> which uses the given <CODE>HSAdapter</CODE> for all operations,
+     * instead of authenticating with a private key (e.g. an {@link InMemoryHandleServer}, for testing).
+     * The adapter is shared by all the calls, so it must be thread-safe if the calls are concurrent.
+     * It is not serialized: a deserialized instance fails to get an <CODE>HSAdapter</CODE>.
+     * @param iApi An <CODE>HSAdapter</CODE> for accessing the Handle System api.
+     */
+    public HandleUtil(HSAdapter iApi) {
+        this.handleAdminKeyFilePath = null;
+        this.adminUserHandleIndex = 200;
+        this.adminUserHandle = null;
+        this.handleAdminPassword = null;
+        this.fixedHandleApi = iApi;
+        this.usesFixedHandleApi = true;
+    }
+    
+    /**
+     * Adds an interceptor to the calls made through the <CODE>HSAdapter</CODE> objects returned by {@link #getHandleApi()}
+     * (and therefore through all the methods which do not receive an <CODE>HSAdapter</CODE>).
+     * Interceptors are applied in the order they were added, the first one being the outermost.
+     * @param interceptor The <CODE>HandleCallInterceptor</CODE> to add.
+     */
+    public void addCallInterceptor(HandleCallInterceptor interceptor)
+    {
+        callInterceptors.add(interceptor);
+    }
+    
+    /**
+     * Sets the <CODE>HandleMetrics</CODE> to which the latencies of key loading, authentication and of each call to the Handle System
+     * (as well as the errors of the latter) are reported.
+     * The calls are measured after all the other interceptors, so each retried attempt is measured separately.
+     * @param iMetrics The <CODE>HandleMetrics</CODE> to use.
+     */
+    public void setMetrics(HandleMetrics iMetrics)
+    {
+        this.metrics = iMetrics;
+        updateInnerInterceptors();
+    }
+    
+    /**
+     * Sets the <CODE>HandleTracer</CODE> used to trace key loading, authentication and each call to the Handle System.
+     * @param iTracer The <CODE>HandleTracer</CODE> to use.
+     */
+    public void setTracer(HandleTracer iTracer)
+    {
+        this.tracer = iTracer;
+        updateInnerInterceptors();
     }
     
     /**
@@ -87,6 +157,42 @@ public class HandleUtil implements Serializable
         iApi.createHandle(iHandle, iValues);
     }
     
+    /**
+     * Creates a new Handle whose values may still be being prepared (see {@link nl.mpi.handle.util.DeferredHandleInfoProvider}).
+     * The values are only waited for after the <CODE>HSAdapter</CODE> is obtained, right before the Handle is created.
+     * @param iHandle A <CODE>String</CODE> Handle name of the Handle to be acted upon.
+     * @param iValues The future set of values to be added to the new Handle.
+     * @return Returns the set of values the Handle was created with.
+     * @throws java.io.FileNotFoundException Throws <CODE>FileNotFoundException</CODE> if the private key file for the website Handle System service account cannot be found on the local file system.
+     * @throws java.io.IOException Throws <CODE>IOException</CODE> if the private key file for the website Handle System service account cannot be accessed, or if the values could not be prepared.
+     * @throws net.handle.hdllib.HandleException Throws <CODE>HandleException</CODE> if the Handle System encounters an error during Handle creation.
+     */
+    public HandleValue[] createHandle(String iHandle, Future<HandleValue[]> iValues)
+    throws HandleException, IOException
+    {
+        HSAdapter api = getHandleApi();
+        HandleValue[] values = waitForValues(iHandle, iValues);
+        createHandle(iHandle, values, api);
+        return values;
+    }
+    
+    private static HandleValue[] waitForValues(String iHandle, Future<HandleValue[]> iValues) throws IOException {
+        try {
+            return iValues.get();
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the values of handle " + iHandle);
+        } catch(ExecutionException ex) {
+            if(ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            if(ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new IOException("Could not prepare the values of handle " + iHandle, ex.getCause());
+        }
+    }
+    
     /**
      * Deletes a Handle.
      * @param iHandle A <CODE>String</CODE> Handle name of the Handle to be acted upon.
@@ -163,6 +269,25 @@ public class HandleUtil implements Serializable
         updateHandleValue(iHandle, iValues, api);
     }
     
+    /**
+     * Updates multiple <CODE>HandleValue</CODE>'s which may still be being prepared.
+     * The values are only waited for after the <CODE>HSAdapter</CODE> is obtained, right before the Handle is updated.
+     * @param iHandle A <CODE>String</CODE> Handle name of the Handle to be acted upon.
+     * @param iValues The future set of <CODE>HandleValue</CODE>'s to be used to replace the current HandleValue targets.
+     * @return Returns the set of values the Handle was updated with.
+     * @throws java.io.FileNotFoundException Throws <CODE>FileNotFoundException</CODE> if the private key file for the website Handle System service account cannot be found on the local file system.
+     * @throws java.io.IOException Throws <CODE>IOException</CODE> if the private key file for the website Handle System service account cannot be accessed, or if the values could not be prepared.
+     * @throws net.handle.hdllib.HandleException Throws <CODE>HandleException</CODE> if the Handle System encounters an error during Handle update.
+     */
+    public HandleValue[] updateHandleValue(String iHandle, Future<HandleValue[]> iValues)
+    throws HandleException, IOException
+    {
+        HSAdapter api = getHandleApi();
+        HandleValue[] values = waitForValues(iHandle, iValues);
+        updateHandleValue(iHandle, values, api);
+        return values;
+    }
+    
     /**
      * Updates multiple <CODE>HandleValue</CODE>'s.
      * @param iHandle A <CODE>String</CODE> Handle name of the Handle to be acted upon.
@@ -239,7 +364,7 @@ public class HandleUtil implements Serializable
     public HandleValue[] resolveHandle(String iHandle, String[] iRequestedValues, int[] iRequestedIndexes, HSAdapter iApi)
     throws HandleException
     {
-        HandleValue[] values = iApi.resolveHandle(iHandle, null, null);
+        HandleValue[] values = iApi.resolveHandle(iHandle, iRequestedValues, iRequestedIndexes);
         
         return values;
     }
@@ -345,15 +470,75 @@ public class HandleUtil implements Serializable
      * @return Returns a new <CODE>HSAdapter</CODE> Handle System api object.
      * @throws java.io.FileNotFoundException Throws <CODE>FileNotFoundException</CODE> if the private key file for the website Handle System service account cannot be found on the local file system.
      * @throws java.io.IOException Throws <CODE>IOException</CODE> if the private key file for the website Handle System service account cannot be accessed.
-     * @throws net.handle.hdllib.HandleException Throws <CODE>HandleException</CODE> if a new <CODE>HSAdapter</CODE> Handle System api object cannot be instantiated.
+     * @throws net.handle.hdllib.HandleException Throws <CODE>HandleException</CODE> if a new <CODE>HSAdapter</CODE> Handle System api object cannot be instantiated,
+     * or if this instance was created with a given <CODE>HSAdapter</CODE>, which was lost in serialization.
      */
     public HSAdapter getHandleApi()
     throws HandleException, IOException
     {
-        byte[] privateKeyFile = getPrivateKeyFileAsStream();
+        if(usesFixedHandleApi) {
+            if(fixedHandleApi == null) {
+                throw new HandleException(HandleException.INTERNAL_ERROR,
+                        "The HSAdapter given to this HandleUtil is not serialized; create a new HandleUtil after deserialization");
+            }
+            return decorateHandleApi(fixedHandleApi);
+        }
+        
+        long start = System.nanoTime();
+        byte[] privateKeyFile;
+        try (HandleSpan span = tracer.startSpan("keyLoading")) {
+            privateKeyFile = getPrivateKeyFileAsStream();
+        }
+        long keyLoaded = System.nanoTime();
+        metrics.recordLatency(HandleMetrics.PHASE_KEY_LOADING, keyLoaded - start);
+        
+        final HSAdapter api;
+        try (HandleSpan span = tracer.startSpan("authentication")) {
+            api = HSAdapterFactory.newInstance(adminUserHandle, adminUserHandleIndex, privateKeyFile, handleAdminPassword);
+        }
+        metrics.recordLatency(HandleMetrics.PHASE_AUTHENTICATION, System.nanoTime() - keyLoaded);
         
-        final HSAdapter api = HSAdapterFactory.newInstance(adminUserHandle, adminUserHandleIndex, privateKeyFile, handleAdminPassword);
-        return api;
+        return decorateHandleApi(api);
+    }
+    
+    /**
+     * Wraps the given <CODE>HSAdapter</CODE> with the configured interceptors and metrics, if any.
+     * @param iApi An <CODE>HSAdapter</CODE> for accessing the Handle System api.
+     * @return Returns the decorated <CODE>HSAdapter</CODE>, or the given one if there is nothing to add.
+     */
+    protected HSAdapter decorateHandleApi(HSAdapter iApi)
+    {
+        List<HandleCallInterceptor> currentInnerInterceptors = innerInterceptors;
+        if(currentInnerInterceptors.isEmpty()) {
+            return callInterceptors.isEmpty() ? iApi : new InterceptingHSAdapter(iApi, callInterceptors);
+        }
+        List<HandleCallInterceptor> interceptors = new ArrayList<>(callInterceptors);
+        interceptors.addAll(currentInnerInterceptors);
+        return new InterceptingHSAdapter(iApi, interceptors);
+    }
+    
+    /**
+     * Rebuilds the list of the interceptors which measure each call to the Handle System,
+     * according to the configured metrics and tracer.
+     */
+    private void updateInnerInterceptors()
+    {
+        List<HandleCallInterceptor> interceptors = new ArrayList<>();
+        if(metrics != NoOpHandleMetrics.INSTANCE) {
+            interceptors.add(new MetricsHandleCallInterceptor(metrics));
+        }
+        if(tracer != HandleTracer.DISABLED) {
+            interceptors.add(new TracingHandleCallInterceptor(tracer));
+        }
+        innerInterceptors = interceptors;
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        metrics = NoOpHandleMetrics.INSTANCE;
+        tracer = HandleTracer.DISABLED;
+        innerInterceptors = new ArrayList<>();
     }
 }
 
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.Util;
+
+/**
+ * Helper methods to read the values of a handle.
+ */
+public final class HandleValues {
+    
+    private HandleValues() {
+    }
+    
+    
+    /**
+     * @param values values of a handle
+     * @param type type of the value to find (e.g. "URL")
+     * @return the first value with the given type (ignoring case), or null if there is none
+     */
+    public static HandleValue findByType(HandleValue[] values, String type) {
+        if(values == null) {
+            return null;
+        }
+        for(HandleValue value : values) {
+            if(value != null && type.equalsIgnoreCase(Util.decodeString(value.getType()))) {
+                return value;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * @param values values of a handle
+     * @param type type of the value to find (e.g. "URL")
+     * @return the data of the first value with the given type, as a string, or null if there is none
+     */
+    public static String getDataByType(HandleValue[] values, String type) {
+        HandleValue value = findByType(values, type);
+        return value != null ? Util.decodeString(value.getData()) : null;
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves handles using a set of equivalent servers (e.g. a primary and a
+ * mirror), cutting the tail latency with hedged requests.
+ * 
+ * The latency of each server is tracked with an exponentially weighted moving
+ * average (EWMA) of the latency and of its deviation. A resolution is sent to
+ * the server with the lowest average; if it does not answer within its
+ * estimated 95th percentile (average plus twice the deviation), it is also
+ * sent to the next server, and the first answer is taken. A server failing
+ * with a transient error is replaced right away by the next one. Errors which
+ * are answers in themselves (e.g. <CODE>HANDLE_DOES_NOT_EXIST</CODE>) are
+ * returned as they are.
+ * 
+ * Limitations: the servers are given as {@link HSAdapter}s, which resolve
+ * through the global Handle System and cannot be pinned to one server of a
+ * site. Hedging only helps if each adapter really reaches a different
+ * server (e.g. through a different local resolver or proxy); otherwise the
+ * requests may end up in the same server. This resolver is not used by
+ * {@link HandleUtil}: resolutions which should be hedged must be made
+ * through it directly.
+ */
+public class HedgedHandleResolver {
+    
+    private static final Logger logger = LoggerFactory.getLogger(HedgedHandleResolver.class);
+    
+    private static final double EWMA_WEIGHT = 0.2;
+    
+    private final List<Server> servers = new ArrayList<>();
+    private long minHedgeDelayMillis = 5;
+    private long maxHedgeDelayMillis = 1000;
+    private long failurePenaltyMillis = 1000;
+    private Set<Integer> transientErrorCodes = HandleResilienceConfig.DEFAULT_TRANSIENT_ERROR_CODES;
+    
+    private ExecutorService executor;
+    
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    
+    
+    /**
+     * @param servers equivalent servers; those whose latency is still unknown
+     * are tried first, in the given order
+     */
+    public HedgedHandleResolver(List<? extends HSAdapter> servers) {
+        if(servers.isEmpty()) {
+            throw new IllegalArgumentException("No servers given");
+        }
+        for(int i = 0; i < servers.size(); i++) {
+            this.servers.add(new Server(i, servers.get(i)));
+        }
+    }
+    
+    
+    /**
+     * @param minMillis lowest delay before hedging
+     * @param maxMillis highest delay before hedging (also used while the latency of a server is unknown)
+     */
+    public void setHedgeDelayBounds(long minMillis, long maxMillis) {
+        if(minMillis < 0 || maxMillis < minMillis) {
+            throw new IllegalArgumentException("Invalid hedge delay bounds");
+        }
+        this.minHedgeDelayMillis = minMillis;
+        this.maxHedgeDelayMillis = maxMillis;
+    }
+    
+    /**
+     * @param failurePenaltyMillis latency recorded for a server when it fails with a transient error
+     */
+    public void setFailurePenaltyMillis(long failurePenaltyMillis) {
+        this.failurePenaltyMillis = failurePenaltyMillis;
+    }
+    
+    /**
+     * @param transientErrorCodes <CODE>HandleException</CODE> codes after which the next server is tried
+     */
+    public void setTransientErrorCodes(Set<Integer> transientErrorCodes) {
+        this.transientErrorCodes = transientErrorCodes;
+    }
+    
+    
+    /**
+     * @see HandleUtil#resolveHandle(java.lang.String, java.lang.String[], int[])
+     * @param iHandle handle to resolve
+     * @param iRequestedValues types of the values to get, or null for all
+     * @param iRequestedIndexes indexes of the values to get, or null for all
+     * @return values of the handle, from the first server which answered
+     * @throws HandleException if the handle does not exist, or if all the servers failed
+     */
+    public HandleValue[] resolveHandle(final String iHandle, final String[] iRequestedValues, final int[] iRequestedIndexes)
+            throws HandleException {
+        
+        Server[] ordered = getServersByLatency();
+        CompletionService<HandleValue[]> completion = new ExecutorCompletionService<>(getExecutor());
+        List<Future<HandleValue[]>> sent = new ArrayList<>(ordered.length);
+        try {
+            sent.add(completion.submit(newResolution(ordered[0], iHandle, iRequestedValues, iRequestedIndexes)));
+            int next = 1;
+            int pending = 1;
+            HandleException lastFailure = null;
+            while(pending > 0) {
+                Future<HandleValue[]> done;
+                if(next < ordered.length) {
+                    done = completion.poll(ordered[next - 1].getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+                    if(done == null) {
+                        logger.debug("No answer for handle {} from server {}; hedging to server {}",
+                                iHandle, ordered[next - 1].index, ordered[next].index);
+                        hedges.incrementAndGet();
+                        sent.add(completion.submit(newResolution(ordered[next], iHandle, iRequestedValues, iRequestedIndexes)));
+                        next++;
+                        pending++;
+                        continue;
+                    }
+                } else {
+                    done = completion.take();
+                }
+                pending--;
+                try {
+                    HandleValue[] values = done.get();
+                    if(done != sent.get(0)) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    return values;
+                } catch(ExecutionException ex) {
+                    HandleException failure = asHandleException(ex.getCause());
+                    if(!transientErrorCodes.contains(failure.getCode())) {
+                        throw failure;
+                    }
+                    lastFailure = failure;
+                    if(next < ordered.length && pending == 0) {
+                        sent.add(completion.submit(newResolution(ordered[next], iHandle, iRequestedValues, iRequestedIndexes)));
+                        next++;
+                        pending++;
+                    }
+                }
+            }
+            throw lastFailure;
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted while resolving handle " + iHandle);
+        } finally {
+            // the requests still running are left to finish, so that their latency is recorded
+            for(Future<HandleValue[]> future : sent) {
+                future.cancel(false);
+            }
+        }
+    }
+    
+    /**
+     * @param server index of the server, as given to the constructor
+     * @return average latency of the server, in microseconds, or 0 if unknown
+     */
+    public long getAverageLatencyMicros(int server) {
+        return TimeUnit.NANOSECONDS.toMicros((long) servers.get(server).getAverageNanos());
+    }
+    
+    /**
+     * @return index of the server to which the next resolution is sent first
+     */
+    public int getPreferredServer() {
+        return getServersByLatency()[0].index;
+    }
+    
+    /**
+     * @return number of hedged requests sent
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+    
+    /**
+     * @return number of resolutions answered by a server other than the preferred one
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+    
+    /**
+     * Registers gauges for the average latency of each server and the hedge counts.
+     * @param metrics 
+     */
+    public void registerGauges(HandleMetrics metrics) {
+        for(final Server server : servers) {
+            metrics.registerGauge("hedging.server" + server.index + ".latencyMicros", new HandleMetrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return getAverageLatencyMicros(server.index);
+                }
+            });
+        }
+        metrics.registerGauge("hedging.hedges", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getHedgeCount();
+            }
+        });
+        metrics.registerGauge("hedging.hedgeWins", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getHedgeWinCount();
+            }
+        });
+    }
+    
+    /**
+     * Stops the threads which send the requests.
+     */
+    public synchronized void shutdown() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+    
+    
+    private Server[] getServersByLatency() {
+        Server[] ordered = servers.toArray(new Server[servers.size()]);
+        final double[] averages = new double[ordered.length];
+        for(Server server : ordered) {
+            averages[server.index] = server.getAverageNanos();
+        }
+        // stable, so equally fast servers keep their configured order
+        Arrays.sort(ordered, new Comparator<Server>() {
+            @Override
+            public int compare(Server a, Server b) {
+                return Double.compare(averages[a.index], averages[b.index]);
+            }
+        });
+        return ordered;
+    }
+    
+    private Callable<HandleValue[]> newResolution(final Server server, final String handle,
+            final String[] requestedValues, final int[] requestedIndexes) {
+        return new Callable<HandleValue[]>() {
+            @Override
+            public HandleValue[] call() throws HandleException {
+                long start = System.nanoTime();
+                try {
+                    HandleValue[] values = server.api.resolveHandle(handle, requestedValues, requestedIndexes);
+                    server.record(System.nanoTime() - start);
+                    return values;
+                } catch(HandleException ex) {
+                    if(transientErrorCodes.contains(ex.getCode())) {
+                        server.record(TimeUnit.MILLISECONDS.toNanos(failurePenaltyMillis));
+                    } else {
+                        server.record(System.nanoTime() - start);
+                    }
+                    throw ex;
+                }
+            }
+        };
+    }
+    
+    private static HandleException asHandleException(Throwable cause) {
+        if(cause instanceof HandleException) {
+            return (HandleException) cause;
+        }
+        if(cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if(cause instanceof Error) {
+            throw (Error) cause;
+        }
+        HandleException wrapped = new HandleException(HandleException.INTERNAL_ERROR, "Resolution failed: " + cause);
+        wrapped.initCause(cause);
+        return wrapped;
+    }
+    
+    private synchronized ExecutorService getExecutor() {
+        if(executor == null) {
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "handle-resolve-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+    
+    
+    private final class Server {
+        
+        private final int index;
+        private final HSAdapter api;
+        // guarded by this
+        private double averageNanos = 0;
+        private double deviationNanos = 0;
+        private boolean sampled = false;
+        
+        private Server(int index, HSAdapter api) {
+            this.index = index;
+            this.api = api;
+        }
+        
+        private synchronized void record(long latencyNanos) {
+            if(!sampled) {
+                averageNanos = latencyNanos;
+                deviationNanos = latencyNanos / 2.0;
+                sampled = true;
+                return;
+            }
+            deviationNanos += EWMA_WEIGHT * (Math.abs(latencyNanos - averageNanos) - deviationNanos);
+            averageNanos += EWMA_WEIGHT * (latencyNanos - averageNanos);
+        }
+        
+        private synchronized double getAverageNanos() {
+            return averageNanos;
+        }
+        
+        /**
+         * For roughly normal latencies, the average plus twice the mean deviation is about the 95th percentile.
+         */
+        private synchronized long getHedgeDelayMillis() {
+            if(!sampled) {
+                return maxHedgeDelayMillis;
+            }
+            long p95 = TimeUnit.NANOSECONDS.toMillis((long) (averageNanos + 2 * deviationNanos));
+            return Math.max(minHedgeDelayMillis, Math.min(maxHedgeDelayMillis, p95));
+        }
+    }
+}
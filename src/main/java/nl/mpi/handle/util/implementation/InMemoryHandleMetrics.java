@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.mpi.handle.util.HandleMetrics;
+
+/**
+ * {@link HandleMetrics} which keeps all the measurements in memory:
+ * a {@link LatencyHistogram} per latency metric, and a counter per
+ * counter metric.
+ */
+public class InMemoryHandleMetrics implements HandleMetrics {
+    
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    
+    
+    /**
+     * @see HandleMetrics#recordLatency(java.lang.String, long)
+     */
+    @Override
+    public void recordLatency(String name, long durationNanos) {
+        getHistogram(name).record(durationNanos);
+    }
+
+    /**
+     * @see HandleMetrics#incrementCounter(java.lang.String)
+     */
+    @Override
+    public void incrementCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        if(counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(name, newCounter);
+            if(counter == null) {
+                counter = newCounter;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    /**
+     * @see HandleMetrics#registerGauge(java.lang.String, nl.mpi.handle.util.HandleMetrics.Gauge)
+     */
+    @Override
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+    
+    /**
+     * @param name
+     * @return histogram with the latencies (in nanoseconds) recorded under the given name
+     */
+    public LatencyHistogram getHistogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if(histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(name, newHistogram);
+            if(histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+    
+    /**
+     * @param name
+     * @return current value of the counter with the given name
+     */
+    public long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter != null ? counter.get() : 0;
+    }
+    
+    /**
+     * @param name
+     * @return current value of the gauge with the given name
+     * @throws IllegalArgumentException if no such gauge is registered
+     */
+    public long getGauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if(gauge == null) {
+            throw new IllegalArgumentException("Unknown gauge (" + name + ")");
+        }
+        return gauge.getValue();
+    }
+    
+    /**
+     * @return histograms of all the latency metrics recorded so far, by name
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return Collections.unmodifiableMap(histograms);
+    }
+    
+    /**
+     * @return all the metrics, as text, one per line and sorted by name;
+     * latencies are reported in microseconds
+     */
+    public String report() {
+        SortedMap<String, String> lines = new TreeMap<>();
+        for(Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            lines.put(entry.getKey(), "count=" + h.getCount()
+                    + " p50=" + toMicros(h.getValueAtPercentile(50))
+                    + " p99=" + toMicros(h.getValueAtPercentile(99))
+                    + " max=" + toMicros(h.getMax()) + " (us)");
+        }
+        for(Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+            lines.put(entry.getKey(), "count=" + entry.getValue().get());
+        }
+        for(Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            lines.put(entry.getKey(), "value=" + entry.getValue().getValue());
+        }
+        StringBuilder report = new StringBuilder();
+        for(Map.Entry<String, String> line : lines.entrySet()) {
+            report.append(line.getKey()).append(' ').append(line.getValue()).append('\n');
+        }
+        return report.toString();
+    }
+    
+    
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.Util;
+import nl.mpi.handle.util.HandleOperation;
+
+/**
+ * In-process stand-in for a Handle System server, keeping the handles in a
+ * concurrent map. Meant for load tests and for testing without a network:
+ * it can be passed to {@link HandleUtil#HandleUtil(net.handle.api.HSAdapter)}.
+ * 
+ * Each operation can be delayed by a random latency and made to fail
+ * randomly with a given <CODE>HandleException</CODE> code, to simulate a
+ * real (and not always healthy) server. Like the Handle System, it rejects
+ * the creation of existing handles, the addition of values with existing
+ * indexes and the update or deletion of missing handles and values.
+ */
+public class InMemoryHandleServer implements HSAdapter {
+    
+    private final ConcurrentMap<String, HandleValue[]> handles = new ConcurrentHashMap<>();
+    
+    private final Map<HandleOperation, long[]> latencyMicros = new EnumMap<>(HandleOperation.class);
+    private volatile long minLatencyMicros = 0;
+    private volatile long maxLatencyMicros = 0;
+    private volatile double failureRate = 0;
+    private volatile int failureCode = HandleException.SERVER_ERROR;
+    private volatile int tcpTimeout = 60000;
+    
+    private final AtomicLongArray operationCounts = new AtomicLongArray(HandleOperation.values().length);
+    
+    
+    /**
+     * Sets the latency added to every operation (without a specific one);
+     * each call waits for a random time between the given bounds.
+     * @param minMicros
+     * @param maxMicros 
+     */
+    public void setLatency(long minMicros, long maxMicros) {
+        assureValidLatency(minMicros, maxMicros);
+        this.minLatencyMicros = minMicros;
+        this.maxLatencyMicros = maxMicros;
+    }
+    
+    /**
+     * Sets the latency added to the given operation.
+     * @param operation
+     * @param minMicros
+     * @param maxMicros 
+     */
+    public synchronized void setLatency(HandleOperation operation, long minMicros, long maxMicros) {
+        assureValidLatency(minMicros, maxMicros);
+        latencyMicros.put(operation, new long[] {minMicros, maxMicros});
+    }
+    
+    /**
+     * Makes the operations fail randomly.
+     * @param rate probability (between 0 and 1) of an operation failing
+     * @param code code of the <CODE>HandleException</CODE> thrown when failing
+     */
+    public void setFailureRate(double rate, int code) {
+        if(rate < 0 || rate > 1) {
+            throw new IllegalArgumentException("Invalid failure rate (" + rate + ")");
+        }
+        this.failureRate = rate;
+        this.failureCode = code;
+    }
+    
+    /**
+     * @return number of handles currently stored
+     */
+    public int size() {
+        return handles.size();
+    }
+    
+    /**
+     * @param operation
+     * @return number of times the given operation was called (including failed calls)
+     */
+    public long getOperationCount(HandleOperation operation) {
+        return operationCounts.get(operation.ordinal());
+    }
+    
+    /**
+     * Removes all the stored handles.
+     */
+    public void clear() {
+        handles.clear();
+    }
+    
+    
+    @Override
+    public void createHandle(String handle, HandleValue[] values) throws HandleException {
+        simulate(HandleOperation.CREATE);
+        if(handles.putIfAbsent(normalize(handle), copy(values)) != null) {
+            throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, "Handle already exists: " + handle);
+        }
+    }
+
+    @Override
+    public void addHandleValues(String handle, HandleValue[] values) throws HandleException {
+        simulate(HandleOperation.ADD_VALUES);
+        String key = normalize(handle);
+        while(true) {
+            HandleValue[] current = getExisting(key);
+            List<HandleValue> newValues = new ArrayList<>(Arrays.asList(current));
+            for(HandleValue value : values) {
+                if(indexOf(current, value.getIndex()) >= 0) {
+                    throw new HandleException(HandleException.INVALID_VALUE, "Value with index " + value.getIndex() + " already exists in " + handle);
+                }
+                newValues.add(copy(value));
+            }
+            if(handles.replace(key, current, newValues.toArray(new HandleValue[newValues.size()]))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void updateHandleValues(String handle, HandleValue[] values) throws HandleException {
+        simulate(HandleOperation.UPDATE);
+        String key = normalize(handle);
+        while(true) {
+            HandleValue[] current = getExisting(key);
+            HandleValue[] newValues = current.clone();
+            for(HandleValue value : values) {
+                int position = indexOf(current, value.getIndex());
+                if(position < 0) {
+                    throw new HandleException(HandleException.INVALID_VALUE, "No value with index " + value.getIndex() + " in " + handle);
+                }
+                newValues[position] = copy(value);
+            }
+            if(handles.replace(key, current, newValues)) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void deleteHandleValues(String handle, HandleValue[] values) throws HandleException {
+        simulate(HandleOperation.DELETE_VALUES);
+        String key = normalize(handle);
+        while(true) {
+            HandleValue[] current = getExisting(key);
+            List<HandleValue> newValues = new ArrayList<>(Arrays.asList(current));
+            for(HandleValue value : values) {
+                int position = indexOf(current, value.getIndex());
+                if(position < 0) {
+                    throw new HandleException(HandleException.INVALID_VALUE, "No value with index " + value.getIndex() + " in " + handle);
+                }
+                newValues.remove(current[position]);
+            }
+            if(handles.replace(key, current, newValues.toArray(new HandleValue[newValues.size()]))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void deleteHandle(String handle) throws HandleException {
+        simulate(HandleOperation.DELETE);
+        if(handles.remove(normalize(handle)) == null) {
+            throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST, "Handle does not exist: " + handle);
+        }
+    }
+
+    @Override
+    public HandleValue[] resolveHandle(String handle, String[] types, int[] indexes) throws HandleException {
+        simulate(HandleOperation.RESOLVE);
+        HandleValue[] current = getExisting(normalize(handle));
+        List<HandleValue> result = new ArrayList<>(current.length);
+        for(HandleValue value : current) {
+            if(isRequested(value, types, indexes)) {
+                result.add(copy(value));
+            }
+        }
+        return result.toArray(new HandleValue[result.size()]);
+    }
+
+    @Override
+    public HandleValue createHandleValue(int index, String type, String data) throws HandleException {
+        return new HandleValue(index, Util.encodeString(type), Util.encodeString(data));
+    }
+
+    @Override
+    public int getTcpTimeout() {
+        return tcpTimeout;
+    }
+
+    @Override
+    public void setTcpTimeout(int newTcpTimeout) {
+        this.tcpTimeout = newTcpTimeout;
+    }
+
+    @Override
+    public void setUseUDP(boolean useUDP) {
+        // not applicable
+    }
+    
+    
+    private void simulate(HandleOperation operation) throws HandleException {
+        operationCounts.incrementAndGet(operation.ordinal());
+        long min;
+        long max;
+        synchronized(this) {
+            long[] specificLatency = latencyMicros.get(operation);
+            min = specificLatency != null ? specificLatency[0] : minLatencyMicros;
+            max = specificLatency != null ? specificLatency[1] : maxLatencyMicros;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if(max > 0) {
+            long latencyNanos = TimeUnit.MICROSECONDS.toNanos(min == max ? min : min + random.nextLong(max - min + 1));
+            long deadline = System.nanoTime() + latencyNanos;
+            long remaining = latencyNanos;
+            while(remaining > 0) {
+                LockSupport.parkNanos(remaining);
+                if(Thread.interrupted()) {
+                    Thread.currentThread().interrupt();
+                    throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER, "Interrupted during " + operation);
+                }
+                remaining = deadline - System.nanoTime();
+            }
+        }
+        if(failureRate > 0 && random.nextDouble() < failureRate) {
+            throw new HandleException(failureCode, "Simulated failure during " + operation);
+        }
+    }
+    
+    private HandleValue[] getExisting(String key) throws HandleException {
+        HandleValue[] values = handles.get(key);
+        if(values == null) {
+            throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST, "Handle does not exist: " + key);
+        }
+        return values;
+    }
+    
+    private static String normalize(String handle) {
+        // handle names are case insensitive (in the ASCII range)
+        return handle.toUpperCase(Locale.ENGLISH);
+    }
+    
+    private static boolean isRequested(HandleValue value, String[] types, int[] indexes) {
+        if((types == null || types.length == 0) && (indexes == null || indexes.length == 0)) {
+            return true;
+        }
+        if(indexes != null) {
+            for(int index : indexes) {
+                if(value.getIndex() == index) {
+                    return true;
+                }
+            }
+        }
+        if(types != null) {
+            String type = Util.decodeString(value.getType());
+            for(String requestedType : types) {
+                if(requestedType.equalsIgnoreCase(type)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+    
+    private static int indexOf(HandleValue[] values, int index) {
+        for(int i = 0; i < values.length; i++) {
+            if(values[i].getIndex() == index) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    private static HandleValue[] copy(HandleValue[] values) {
+        HandleValue[] copies = new HandleValue[values.length];
+        for(int i = 0; i < values.length; i++) {
+            copies[i] = copy(values[i]);
+        }
+        return copies;
+    }
+    
+    private static HandleValue copy(HandleValue value) {
+        return new HandleValue(value.getIndex(), value.getType(), value.getData());
+    }
+    
+    private static void assureValidLatency(long minMicros, long maxMicros) {
+        if(minMicros < 0 || maxMicros < minMicros) {
+            throw new IllegalArgumentException("Invalid latency (" + minMicros + " - " + maxMicros + ")");
+        }
+    }
+}
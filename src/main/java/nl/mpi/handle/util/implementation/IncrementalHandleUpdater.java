@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Incremental alternative to {@link HandleManager#updateHandle(java.io.File, java.net.URI, java.net.URI)}
+ * for re-crawls: a handle is only updated (and its file checksummed) if the
+ * file is new, was modified or moved since the handle was last registered.
+ * 
+ * A file is considered unchanged if its size and modification time, as
+ * well as the target URI, match either the entry in the local
+ * {@link HandleSnapshotIndex} (if any, and without contacting the server)
+ * or the FILESIZE, FILETIME and URL values currently stored in the handle.
+ */
+public class IncrementalHandleUpdater {
+    
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalHandleUpdater.class);
+    
+    private static final int[] COMPARED_INDEXES = {
+        HandleConstants.URL_INDEX, HandleConstants.FILESIZE_INDEX, HandleConstants.FILETIME_INDEX
+    };
+    
+    private final HandleManager handleManager;
+    private final HandleUtil handleUtil;
+    private final HandleSnapshotIndex snapshotIndex;
+    private final HandleTimestampEncoder timestampEncoder = new HandleTimestampEncoder();
+    
+    private final AtomicLong updatedCount = new AtomicLong();
+    private final AtomicLong unchangedCount = new AtomicLong();
+    
+    
+    /**
+     * @param hdlManager used to update the handles
+     * @param hdlUtil used to resolve the current values of the handles
+     * @param snapshotIndex local index of the registered files, or null to always compare with the handle values
+     */
+    public IncrementalHandleUpdater(HandleManager hdlManager, HandleUtil hdlUtil, HandleSnapshotIndex snapshotIndex) {
+        this.handleManager = hdlManager;
+        this.handleUtil = hdlUtil;
+        this.snapshotIndex = snapshotIndex;
+    }
+    
+    
+    /**
+     * Updates the given handle, unless the file and its target are unchanged.
+     * If the handle does not exist yet, it is assigned to the file.
+     * @param file location of the file to which the handle should be updated
+     * @param handle handle to update, as a URI
+     * @param newTarget new target to which the handle should point
+     * @return true if the handle was updated (or assigned), false if it was skipped
+     * @throws HandleException if the handle cannot be resolved or updated
+     * @throws IOException if the Handle System cannot be accessed
+     */
+    public boolean updateHandleIfChanged(File file, URI handle, URI newTarget) throws HandleException, IOException {
+        
+        String handleStr = handle.toString();
+        String url = newTarget.toString();
+        
+        if(snapshotIndex != null && snapshotIndex.isUnchanged(handleStr, file, url)) {
+            logger.debug("Handle '{}' unchanged, according to the snapshot index", handle);
+            unchangedCount.incrementAndGet();
+            return false;
+        }
+        
+        HandleValue[] currentValues;
+        try {
+            currentValues = handleUtil.resolveHandle(handleStr, null, COMPARED_INDEXES);
+        } catch(HandleException ex) {
+            if(ex.getCode() != HandleException.HANDLE_DOES_NOT_EXIST) {
+                throw ex;
+            }
+            currentValues = null;
+        }
+        
+        boolean changed;
+        if(currentValues == null) {
+            logger.debug("Handle '{}' does not exist yet; assigning it", handle);
+            handleManager.assignHandle(file, handle, newTarget);
+            changed = true;
+        } else if(matches(currentValues, file, url)) {
+            logger.debug("Handle '{}' unchanged, according to its values", handle);
+            changed = false;
+        } else {
+            logger.debug("Handle '{}' changed; updating it", handle);
+            handleManager.updateHandle(file, handle, newTarget);
+            changed = true;
+        }
+        (changed ? updatedCount : unchangedCount).incrementAndGet();
+        
+        if(snapshotIndex != null) {
+            snapshotIndex.record(handleStr, file, url);
+        }
+        return changed;
+    }
+    
+    /**
+     * @return number of handles updated (or assigned) so far
+     */
+    public long getUpdatedCount() {
+        return updatedCount.get();
+    }
+    
+    /**
+     * @return number of handles skipped so far, because they were unchanged
+     */
+    public long getUnchangedCount() {
+        return unchangedCount.get();
+    }
+    
+    
+    private boolean matches(HandleValue[] values, File file, String url) {
+        return url.equals(HandleValues.getDataByType(values, HandleConstants.URL_TYPE))
+                && Long.toString(file.length()).equals(HandleValues.getDataByType(values, HandleConstants.FILESIZE_TYPE))
+                && timestampEncoder.format(file.lastModified()).equals(HandleValues.getDataByType(values, HandleConstants.FILETIME_TYPE));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.List;
+import net.handle.api.HSAdapter;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleOperation;
+
+/**
+ * <CODE>HSAdapter</CODE> which passes the calls to the Handle System
+ * through a chain of {@link HandleCallInterceptor}s before delegating them
+ * to the wrapped adapter.
+ * The first interceptor in the list is the outermost one.
+ */
+public class InterceptingHSAdapter implements HSAdapter {
+    
+    private final HSAdapter delegate;
+    private final List<HandleCallInterceptor> interceptors;
+    
+    public InterceptingHSAdapter(HSAdapter delegate, List<HandleCallInterceptor> interceptors) {
+        this.delegate = delegate;
+        this.interceptors = interceptors;
+    }
+    
+    
+    public HSAdapter getDelegate() {
+        return delegate;
+    }
+    
+    @Override
+    public void addHandleValues(final String handle, final HandleValue[] values) throws HandleException {
+        intercept(HandleOperation.ADD_VALUES, handle, new HandleCall<Void>() {
+            @Override
+            public Void call() throws HandleException {
+                delegate.addHandleValues(handle, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void createHandle(final String handle, final HandleValue[] values) throws HandleException {
+        intercept(HandleOperation.CREATE, handle, new HandleCall<Void>() {
+            @Override
+            public Void call() throws HandleException {
+                delegate.createHandle(handle, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public HandleValue createHandleValue(int index, String type, String data) throws HandleException {
+        // local operation, no need to intercept
+        return delegate.createHandleValue(index, type, data);
+    }
+
+    @Override
+    public void deleteHandle(final String handle) throws HandleException {
+        intercept(HandleOperation.DELETE, handle, new HandleCall<Void>() {
+            @Override
+            public Void call() throws HandleException {
+                delegate.deleteHandle(handle);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void deleteHandleValues(final String handle, final HandleValue[] values) throws HandleException {
+        intercept(HandleOperation.DELETE_VALUES, handle, new HandleCall<Void>() {
+            @Override
+            public Void call() throws HandleException {
+                delegate.deleteHandleValues(handle, values);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public int getTcpTimeout() {
+        return delegate.getTcpTimeout();
+    }
+
+    @Override
+    public HandleValue[] resolveHandle(final String handle, final String[] types, final int[] indexes) throws HandleException {
+        return intercept(HandleOperation.RESOLVE, handle, new HandleCall<HandleValue[]>() {
+            @Override
+            public HandleValue[] call() throws HandleException {
+                return delegate.resolveHandle(handle, types, indexes);
+            }
+        });
+    }
+
+    @Override
+    public void setTcpTimeout(int newTcpTimeout) {
+        delegate.setTcpTimeout(newTcpTimeout);
+    }
+
+    @Override
+    public void setUseUDP(boolean useUDP) {
+        delegate.setUseUDP(useUDP);
+    }
+
+    @Override
+    public void updateHandleValues(final String handle, final HandleValue[] values) throws HandleException {
+        intercept(HandleOperation.UPDATE, handle, new HandleCall<Void>() {
+            @Override
+            public Void call() throws HandleException {
+                delegate.updateHandleValues(handle, values);
+                return null;
+            }
+        });
+    }
+    
+    
+    private <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+        return new Chain<>(operation, handle, call, 0).call();
+    }
+    
+    /**
+     * Call which, when executed, passes the original call to the next
+     * interceptor in the list (or executes it, after the last one).
+     */
+    private class Chain<T> implements HandleCall<T> {
+        
+        private final HandleOperation operation;
+        private final String handle;
+        private final HandleCall<T> target;
+        private final int position;
+        
+        Chain(HandleOperation operation, String handle, HandleCall<T> target, int position) {
+            this.operation = operation;
+            this.handle = handle;
+            this.target = target;
+            this.position = position;
+        }
+
+        @Override
+        public T call() throws HandleException {
+            if(position >= interceptors.size()) {
+                return target.call();
+            }
+            return interceptors.get(position).intercept(operation, handle, new Chain<>(operation, handle, target, position + 1));
+        }
+    }
+}
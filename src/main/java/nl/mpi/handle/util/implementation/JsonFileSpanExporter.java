@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exporter which appends the spans to a file, as JSON objects, one per line
+ * (e.g. <CODE>{"trace":"...","span":"...","parent":"...","name":"checksum",
+ * "detail":null,"start":1420070400000000,"duration":1520}</CODE>, with
+ * identifiers in hexadecimal, start in microseconds since the epoch and
+ * duration in microseconds).
+ */
+public class JsonFileSpanExporter implements HandleSpanExporter, Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(JsonFileSpanExporter.class);
+    
+    private final Writer writer;
+    private final StringBuilder buffer = new StringBuilder(256);
+    
+    
+    /**
+     * @param file file to which the spans are appended
+     * @throws IOException if the file cannot be opened
+     */
+    public JsonFileSpanExporter(File file) throws IOException {
+        this.writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    }
+    
+    
+    /**
+     * @see HandleSpanExporter#export(java.util.List)
+     */
+    @Override
+    public synchronized void export(List<HandleSpan> spans) {
+        try {
+            for(HandleSpan span : spans) {
+                buffer.setLength(0);
+                appendSpan(buffer, span);
+                buffer.append('\n');
+                writer.append(buffer);
+            }
+            writer.flush();
+        } catch(IOException ex) {
+            logger.warn("Could not write spans", ex);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+    
+    
+    static void appendSpan(StringBuilder out, HandleSpan span) {
+        out.append("{\"trace\":\"").append(Long.toHexString(span.getTraceId()))
+                .append("\",\"span\":\"").append(Long.toHexString(span.getSpanId()))
+                .append("\",\"parent\":\"").append(Long.toHexString(span.getParentId()))
+                .append("\",\"name\":");
+        appendString(out, span.getName());
+        out.append(",\"detail\":");
+        appendString(out, span.getDetail());
+        out.append(",\"start\":").append(span.getStartEpochMicros())
+                .append(",\"duration\":").append(span.getDurationNanos() / 1000)
+                .append('}');
+    }
+    
+    private static void appendString(StringBuilder out, String value) {
+        if(value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if(c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
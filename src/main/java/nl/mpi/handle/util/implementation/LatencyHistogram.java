@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, in the style of
+ * HdrHistogram: values are grouped by their highest bit, and each group is
+ * split in 64 linear sub-buckets, which keeps the relative error of the
+ * reported values below 2% over the whole range of positive longs, using
+ * a fixed amount of memory.
+ */
+public class LatencyHistogram implements Serializable {
+    
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong minValue = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong maxValue = new AtomicLong(0);
+    
+    
+    /**
+     * Records a value (negative values are recorded as 0).
+     * @param value 
+     */
+    public void record(long value) {
+        long v = Math.max(value, 0);
+        counts.incrementAndGet(bucketIndex(v));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(v);
+        long current;
+        while(v < (current = minValue.get()) && !minValue.compareAndSet(current, v)) {
+            // retry
+        }
+        while(v > (current = maxValue.get()) && !maxValue.compareAndSet(current, v)) {
+            // retry
+        }
+    }
+    
+    public long getCount() {
+        return totalCount.get();
+    }
+    
+    /**
+     * @return smallest recorded value, or 0 if nothing was recorded
+     */
+    public long getMin() {
+        return getCount() == 0 ? 0 : minValue.get();
+    }
+    
+    public long getMax() {
+        return maxValue.get();
+    }
+    
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+    
+    /**
+     * @param percentile between 0 and 100
+     * @return (approximate) value below which the given percentage
+     * of the recorded values fall, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if(percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Invalid percentile (" + percentile + ")");
+        }
+        long count = getCount();
+        if(count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long accumulated = 0;
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            accumulated += counts.get(i);
+            if(accumulated >= target) {
+                return Math.min(highestValueInBucket(i), getMax());
+            }
+        }
+        return getMax();
+    }
+    
+    /**
+     * Adds the values recorded in the given histogram to this one.
+     * @param other 
+     */
+    public void add(LatencyHistogram other) {
+        for(int i = 0; i < BUCKET_COUNT; i++) {
+            long count = other.counts.get(i);
+            if(count > 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        totalCount.addAndGet(other.totalCount.get());
+        totalValue.addAndGet(other.totalValue.get());
+        long current;
+        long otherMin = other.minValue.get();
+        while(otherMin < (current = minValue.get()) && !minValue.compareAndSet(current, otherMin)) {
+            // retry
+        }
+        long otherMax = other.maxValue.get();
+        while(otherMax > (current = maxValue.get()) && !maxValue.compareAndSet(current, otherMax)) {
+            // retry
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", min=" + getMin() + ", mean=" + (long) getMean()
+                + ", p50=" + getValueAtPercentile(50) + ", p90=" + getValueAtPercentile(90)
+                + ", p99=" + getValueAtPercentile(99) + ", p99.9=" + getValueAtPercentile(99.9)
+                + ", max=" + getMax();
+    }
+    
+    
+    private static int bucketIndex(long value) {
+        if(value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_COUNT + (int) (value >>> shift);
+    }
+    
+    private static long highestValueInBucket(int index) {
+        if(index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = index / SUB_BUCKET_COUNT - 1;
+        long subBucket = index - (long) shift * SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
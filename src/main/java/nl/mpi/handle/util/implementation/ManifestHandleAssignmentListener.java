@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.mpi.handle.util.HandleAssignmentListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the results of a bulk handle assignment to a manifest, one line
+ * per file, as they are produced: the path of the file, the handle and the
+ * checksum, separated by tabs. Failures are written as comment lines,
+ * starting with "#".
+ */
+public class ManifestHandleAssignmentListener implements HandleAssignmentListener {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ManifestHandleAssignmentListener.class);
+    
+    private final Writer manifest;
+    private final AtomicLong assignedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    
+    /**
+     * @param manifest writer to which the manifest is written
+     * (it is flushed after each line, but not closed)
+     */
+    public ManifestHandleAssignmentListener(Writer manifest) {
+        this.manifest = manifest;
+    }
+    
+    
+    /**
+     * @see HandleAssignmentListener#handleAssigned(java.nio.file.Path, java.net.URI, java.lang.String)
+     */
+    @Override
+    public void handleAssigned(Path file, URI handle, String checksum) {
+        assignedCount.incrementAndGet();
+        writeLine(file + "\t" + handle + "\t" + (checksum != null ? checksum : ""));
+    }
+
+    /**
+     * @see HandleAssignmentListener#assignmentFailed(java.nio.file.Path, java.lang.Exception)
+     */
+    @Override
+    public void assignmentFailed(Path file, Exception cause) {
+        failedCount.incrementAndGet();
+        logger.warn("Could not assign handle to " + file, cause);
+        writeLine("# FAILED\t" + file + "\t" + String.valueOf(cause.getMessage()).replace('\n', ' '));
+    }
+    
+    public long getAssignedCount() {
+        return assignedCount.get();
+    }
+    
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+    
+    
+    private synchronized void writeLine(String line) {
+        try {
+            manifest.write(line);
+            manifest.write('\n');
+            manifest.flush();
+        } catch(IOException ex) {
+            logger.error("Could not write to manifest: " + line, ex);
+        }
+    }
+}
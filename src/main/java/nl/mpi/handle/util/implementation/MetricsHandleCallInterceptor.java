@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleOperation;
+
+/**
+ * Interceptor which records the latency of the calls to the Handle System
+ * (per {@link HandleOperation}) and counts their errors (per
+ * <CODE>HandleException</CODE> code).
+ */
+public class MetricsHandleCallInterceptor implements HandleCallInterceptor, Serializable {
+    
+    private final HandleMetrics metrics;
+    
+    public MetricsHandleCallInterceptor(HandleMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    
+    /**
+     * @see HandleCallInterceptor#intercept(nl.mpi.handle.util.HandleOperation, java.lang.String, nl.mpi.handle.util.HandleCall)
+     */
+    @Override
+    public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+        
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } catch(HandleException ex) {
+            metrics.incrementCounter(HandleMetrics.ERROR_PREFIX + ex.getCode());
+            throw ex;
+        } finally {
+            metrics.recordLatency(HandleMetrics.OPERATION_PREFIX + operation, System.nanoTime() - start);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Calculates several digests of the same data in a single pass, feeding
+ * each chunk to all of them from the same buffer (e.g. the MD5 stored as
+ * CHECKSUM and the SHA-256 used for fixity checks, without reading the file
+ * twice). Besides the <CODE>MessageDigest</CODE> algorithms, "CRC32" is
+ * supported. The size of the data is counted as well.
+ * 
+ * Instances are not thread-safe.
+ */
+public class MultiDigest {
+    
+    public static final String MD5 = "MD5";
+    public static final String SHA_256 = "SHA-256";
+    public static final String CRC32 = "CRC32";
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    
+    private final String[] algorithms;
+    private final MessageDigest[] digests;
+    private final CRC32 crc;
+    private byte[] scratch;
+    private long size = 0;
+    
+    
+    /**
+     * @param algorithms names of the digests to calculate (duplicates are ignored)
+     * @throws IllegalArgumentException if an algorithm is not available
+     */
+    public MultiDigest(Collection<String> algorithms) {
+        this.algorithms = new LinkedHashSet<>(algorithms).toArray(new String[0]);
+        this.digests = new MessageDigest[this.algorithms.length];
+        CRC32 newCrc = null;
+        for(int i = 0; i < this.algorithms.length; i++) {
+            if(CRC32.equalsIgnoreCase(this.algorithms[i])) {
+                newCrc = new CRC32();
+                continue;
+            }
+            try {
+                digests[i] = MessageDigest.getInstance(this.algorithms[i]);
+            } catch(NoSuchAlgorithmException ex) {
+                throw new IllegalArgumentException("Digest algorithm not available: " + this.algorithms[i], ex);
+            }
+        }
+        this.crc = newCrc;
+    }
+    
+    
+    /**
+     * Calculates the given digests of a file, reading it once.
+     * @param file
+     * @param algorithms
+     * @return hexadecimal digest for each algorithm, in the given order
+     * @throws IOException if the file cannot be read
+     */
+    public static Map<String, String> digest(File file, Collection<String> algorithms) throws IOException {
+        MultiDigest digest = new MultiDigest(algorithms);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.finish();
+    }
+    
+    /**
+     * @param bytes
+     * @param offset
+     * @param length 
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        for(MessageDigest digest : digests) {
+            if(digest != null) {
+                digest.update(bytes, offset, length);
+            }
+        }
+        if(crc != null) {
+            crc.update(bytes, offset, length);
+        }
+        size += length;
+    }
+    
+    /**
+     * Updates the digests with the remaining bytes of the buffer (heap or direct),
+     * leaving its position at its limit.
+     * @param buffer 
+     */
+    public void update(ByteBuffer buffer) {
+        if(buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+            return;
+        }
+        int start = buffer.position();
+        for(MessageDigest digest : digests) {
+            if(digest != null) {
+                buffer.position(start);
+                digest.update(buffer);
+            }
+        }
+        if(crc != null) {
+            // CRC32 only takes arrays (before Java 8)
+            if(scratch == null) {
+                scratch = new byte[BUFFER_SIZE];
+            }
+            buffer.position(start);
+            while(buffer.hasRemaining()) {
+                int length = Math.min(scratch.length, buffer.remaining());
+                buffer.get(scratch, 0, length);
+                crc.update(scratch, 0, length);
+            }
+        }
+        size += buffer.limit() - start;
+        buffer.position(buffer.limit());
+    }
+    
+    /**
+     * @return number of bytes digested so far
+     */
+    public long getSize() {
+        return size;
+    }
+    
+    /**
+     * Completes the digests (this instance cannot be used afterwards).
+     * @return lowercase hexadecimal digest for each algorithm, in the order given to the constructor
+     */
+    public Map<String, String> finish() {
+        Map<String, String> result = new LinkedHashMap<>();
+        for(int i = 0; i < algorithms.length; i++) {
+            if(digests[i] != null) {
+                result.put(algorithms[i], toHex(digests[i].digest()));
+            } else {
+                long value = crc.getValue();
+                result.put(algorithms[i], toHex(new byte[] {
+                    (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value }));
+            }
+        }
+        return result;
+    }
+    
+    
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
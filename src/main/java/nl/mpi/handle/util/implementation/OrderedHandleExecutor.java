@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import nl.mpi.handle.util.HandleManager;
+import nl.mpi.handle.util.HandleOperation;
+import nl.mpi.handle.util.HandleParser;
+
+/**
+ * Runs operations on existing handles asynchronously, in the order they were
+ * submitted for each handle, so that concurrent updates and deletions of the
+ * same handle never race.
+ * 
+ * Each handle is mapped (by its normalized form) to one of a fixed number of
+ * stripes. A stripe is a queue drained by at most one task at a time in the
+ * given executor, so different stripes proceed in parallel without any global
+ * lock. An update submitted while the previous queued operation on the same
+ * handle is an update which has not started yet replaces that update, and
+ * both callers get the same future.
+ */
+public class OrderedHandleExecutor {
+    
+    /**
+     * Maximum number of operations run by a stripe before giving its thread to other stripes.
+     */
+    private static final int DRAIN_BATCH_SIZE = 64;
+    
+    private final HandleManager handleManager;
+    private final HandleParser handleParser;
+    private final Executor executor;
+    private final Stripe[] stripes;
+    
+    private final AtomicLong coalescedCount = new AtomicLong();
+    
+    
+    /**
+     * @param hdlManager manager running the operations
+     * @param hdlParser parser used to normalize the handles
+     * @param executor executor in which the stripes are drained (its number of threads limits the parallelism)
+     * @param stripes number of queues; more stripes make it less likely that unrelated handles wait for each other
+     */
+    public OrderedHandleExecutor(HandleManager hdlManager, HandleParser hdlParser, Executor executor, int stripes) {
+        if(stripes <= 0) {
+            throw new IllegalArgumentException("Invalid number of stripes");
+        }
+        this.handleManager = hdlManager;
+        this.handleParser = hdlParser;
+        this.executor = executor;
+        this.stripes = new Stripe[stripes];
+        for(int i = 0; i < stripes; i++) {
+            this.stripes[i] = new Stripe();
+        }
+    }
+    
+    
+    /**
+     * @see HandleManager#assignHandle(java.io.File, java.net.URI, java.net.URI)
+     * @return future URI corresponding to the handle
+     * @throws IllegalArgumentException if the handle is invalid
+     */
+    public Future<URI> assignHandle(final File file, final URI handle, final URI targetURI) {
+        return submit(HandleOperation.CREATE, handle, new Callable<URI>() {
+            @Override
+            public URI call() throws Exception {
+                return handleManager.assignHandle(file, handle, targetURI);
+            }
+        });
+    }
+    
+    /**
+     * @see HandleManager#updateHandle(java.io.File, java.net.URI, java.net.URI)
+     * @return future completed once the handle is updated with these or later values
+     * @throws IllegalArgumentException if the handle is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public Future<Void> updateHandle(File file, URI handle, URI newTarget) {
+        String key = normalize(handle);
+        Stripe stripe = stripeFor(key);
+        synchronized(stripe) {
+            Operation last = stripe.lastOperations.get(key);
+            if(last != null && last.type == HandleOperation.UPDATE) {
+                last.file = file;
+                last.target = newTarget;
+                coalescedCount.incrementAndGet();
+                return (Future<Void>) last.task;
+            }
+            final Operation update = new Operation(key, HandleOperation.UPDATE, handle);
+            update.file = file;
+            update.target = newTarget;
+            update.task = new FutureTask<>(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    // the values are read after the update is taken from the queue, so they are no longer replaced
+                    handleManager.updateHandle(update.file, update.handle, update.target);
+                    return null;
+                }
+            });
+            enqueue(stripe, update);
+            return (Future<Void>) update.task;
+        }
+    }
+    
+    /**
+     * @see HandleManager#deleteHandle(java.net.URI)
+     * @return future completed once the handle is deleted
+     * @throws IllegalArgumentException if the handle is invalid
+     */
+    public Future<Void> deleteHandle(final URI handle) {
+        return submit(HandleOperation.DELETE, handle, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                handleManager.deleteHandle(handle);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * @return number of updates which were replaced by a later update before running
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+    
+    /**
+     * @return number of operations waiting in all the stripes (not including the running ones)
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for(Stripe stripe : stripes) {
+            synchronized(stripe) {
+                pending += stripe.queue.size();
+            }
+        }
+        return pending;
+    }
+    
+    
+    private <T> Future<T> submit(HandleOperation type, URI handle, Callable<T> callable) {
+        String key = normalize(handle);
+        Stripe stripe = stripeFor(key);
+        FutureTask<T> task = new FutureTask<>(callable);
+        Operation operation = new Operation(key, type, handle);
+        operation.task = task;
+        synchronized(stripe) {
+            enqueue(stripe, operation);
+        }
+        return task;
+    }
+    
+    private String normalize(URI handle) {
+        return handleParser.prepareAndValidateHandleWithoutProxy(handle).toString().toUpperCase(Locale.ROOT);
+    }
+    
+    private Stripe stripeFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+    
+    /**
+     * Must be called while holding the stripe's lock.
+     */
+    private void enqueue(final Stripe stripe, Operation operation) {
+        stripe.queue.addLast(operation);
+        stripe.lastOperations.put(operation.key, operation);
+        if(!stripe.scheduled) {
+            stripe.scheduled = true;
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(stripe, this);
+                    }
+                });
+            } catch(RejectedExecutionException ex) {
+                stripe.scheduled = false;
+                stripe.queue.removeLast();
+                stripe.lastOperations.remove(operation.key);
+                throw ex;
+            }
+        }
+    }
+    
+    private void drain(Stripe stripe, Runnable drainer) {
+        for(int i = 0; i < DRAIN_BATCH_SIZE; i++) {
+            Operation operation;
+            synchronized(stripe) {
+                operation = stripe.queue.pollFirst();
+                if(operation == null) {
+                    stripe.scheduled = false;
+                    return;
+                }
+                if(stripe.lastOperations.get(operation.key) == operation) {
+                    stripe.lastOperations.remove(operation.key);
+                }
+            }
+            operation.task.run();
+        }
+        try {
+            executor.execute(drainer);
+        } catch(RejectedExecutionException ex) {
+            // the remaining operations run when the next one is submitted
+            synchronized(stripe) {
+                stripe.scheduled = false;
+            }
+        }
+    }
+    
+    
+    private static final class Stripe {
+        
+        private final Deque<Operation> queue = new ArrayDeque<>();
+        private final Map<String, Operation> lastOperations = new HashMap<>();
+        private boolean scheduled = false;
+    }
+    
+    private static final class Operation {
+        
+        private final String key;
+        private final HandleOperation type;
+        private final URI handle;
+        private FutureTask<?> task;
+        private File file;
+        private URI target;
+        
+        private Operation(String key, HandleOperation type, URI handle) {
+            this.key = key;
+            this.type = type;
+            this.handle = handle;
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleManager;
+import nl.mpi.handle.util.HandleMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs handle operations in separate lanes, so that interactive operations
+ * (e.g. a deposit) do not wait behind bulk ones (e.g. a re-registration).
+ * 
+ * Some of the threads are reserved for the interactive lane. The others take
+ * work from both lanes according to their weights (smooth weighted round
+ * robin), but only from lanes which have work, so the bulk lane gets all the
+ * throughput left over by the interactive one. For code expecting a
+ * {@link HandleManager}, {@link #asHandleManager(Lane)} gives a blocking view
+ * of one lane.
+ */
+public class PrioritizedHandleExecutor implements Closeable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(PrioritizedHandleExecutor.class);
+    
+    public enum Lane {
+        INTERACTIVE,
+        BULK
+    }
+    
+    private static final Lane[] LANES = Lane.values();
+    
+    private final HandleManager handleManager;
+    private final int[] weights = new int[LANES.length];
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile HandleMetrics metrics = NoOpHandleMetrics.INSTANCE;
+    
+    private final Object lock = new Object();
+    // guarded by lock
+    private final Map<Lane, Deque<Task<?>>> queues = new EnumMap<>(Lane.class);
+    private final int[] currentWeights = new int[LANES.length];
+    private boolean closed = false;
+    
+    
+    /**
+     * @param hdlManager manager running the operations
+     * @param threads total number of threads running operations
+     * @param reservedInteractiveThreads number of those threads which only run interactive operations
+     * @param interactiveWeight share of the shared threads given to the interactive lane when both lanes have work
+     * @param bulkWeight share of the shared threads given to the bulk lane when both lanes have work
+     */
+    public PrioritizedHandleExecutor(HandleManager hdlManager, int threads, int reservedInteractiveThreads,
+            int interactiveWeight, int bulkWeight) {
+        if(reservedInteractiveThreads < 0 || threads <= reservedInteractiveThreads || interactiveWeight <= 0 || bulkWeight <= 0) {
+            throw new IllegalArgumentException("Invalid number of threads or weights");
+        }
+        this.handleManager = hdlManager;
+        weights[Lane.INTERACTIVE.ordinal()] = interactiveWeight;
+        weights[Lane.BULK.ordinal()] = bulkWeight;
+        for(Lane lane : LANES) {
+            queues.put(lane, new ArrayDeque<Task<?>>());
+        }
+        for(int i = 0; i < threads; i++) {
+            final boolean reserved = i < reservedInteractiveThreads;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work(reserved);
+                }
+            }, (reserved ? "handle-interactive-" : "handle-shared-") + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+    
+    
+    /**
+     * @param metrics metrics to which the time spent by the operations waiting in each lane is reported
+     */
+    public void setMetrics(HandleMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * Registers a gauge for the number of operations waiting in each lane.
+     * @param metrics 
+     */
+    public void registerGauges(HandleMetrics metrics) {
+        for(final Lane lane : LANES) {
+            metrics.registerGauge(getMetricPrefix(lane) + "depth", new HandleMetrics.Gauge() {
+                @Override
+                public long getValue() {
+                    return getQueueDepth(lane);
+                }
+            });
+        }
+    }
+    
+    /**
+     * @param lane
+     * @return number of operations waiting in the given lane
+     */
+    public int getQueueDepth(Lane lane) {
+        synchronized(lock) {
+            return queues.get(lane).size();
+        }
+    }
+    
+    /**
+     * @see HandleManager#assignNewHandle(java.io.File, java.net.URI)
+     */
+    public Future<URI> assignNewHandle(Lane lane, final File file, final URI targetURI) {
+        return submit(lane, new Callable<URI>() {
+            @Override
+            public URI call() throws Exception {
+                return handleManager.assignNewHandle(file, targetURI);
+            }
+        });
+    }
+    
+    /**
+     * @see HandleManager#assignHandle(java.io.File, java.net.URI, java.net.URI)
+     */
+    public Future<URI> assignHandle(Lane lane, final File file, final URI handle, final URI targetURI) {
+        return submit(lane, new Callable<URI>() {
+            @Override
+            public URI call() throws Exception {
+                return handleManager.assignHandle(file, handle, targetURI);
+            }
+        });
+    }
+    
+    /**
+     * @see HandleManager#updateHandle(java.io.File, java.net.URI, java.net.URI)
+     */
+    public Future<Void> updateHandle(Lane lane, final File file, final URI handle, final URI newTarget) {
+        return submit(lane, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                handleManager.updateHandle(file, handle, newTarget);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * @see HandleManager#deleteHandle(java.net.URI)
+     */
+    public Future<Void> deleteHandle(Lane lane, final URI handle) {
+        return submit(lane, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                handleManager.deleteHandle(handle);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * @param lane lane in which the operations run
+     * @return manager which runs each operation in the given lane and waits for it
+     */
+    public HandleManager asHandleManager(final Lane lane) {
+        return new HandleManager() {
+            @Override
+            public URI assignNewHandle(File file, URI targetURI) throws HandleException, IOException {
+                return await(PrioritizedHandleExecutor.this.assignNewHandle(lane, file, targetURI));
+            }
+            @Override
+            public URI assignHandle(File file, URI handle, URI targetURI) throws HandleException, IOException {
+                return await(PrioritizedHandleExecutor.this.assignHandle(lane, file, handle, targetURI));
+            }
+            @Override
+            public void updateHandle(File file, URI handle, URI newTarget) throws HandleException, IOException {
+                await(PrioritizedHandleExecutor.this.updateHandle(lane, file, handle, newTarget));
+            }
+            @Override
+            public void deleteHandle(URI handle) throws HandleException, IOException {
+                await(PrioritizedHandleExecutor.this.deleteHandle(lane, handle));
+            }
+        };
+    }
+    
+    /**
+     * Stops the threads once the running operations finish, cancelling the waiting ones.
+     */
+    @Override
+    public void close() {
+        List<Task<?>> cancelled = new ArrayList<>();
+        synchronized(lock) {
+            closed = true;
+            for(Deque<Task<?>> queue : queues.values()) {
+                cancelled.addAll(queue);
+                queue.clear();
+            }
+            lock.notifyAll();
+        }
+        for(Task<?> task : cancelled) {
+            task.cancel(false);
+        }
+        logger.debug("Closed; {} waiting operation(s) cancelled", cancelled.size());
+    }
+    
+    
+    private <T> Future<T> submit(Lane lane, Callable<T> callable) {
+        Task<T> task = new Task<>(lane, callable);
+        synchronized(lock) {
+            if(closed) {
+                throw new RejectedExecutionException("Executor closed");
+            }
+            queues.get(lane).addLast(task);
+            // wakes all the threads, since only some of them may take from this lane
+            lock.notifyAll();
+        }
+        return task;
+    }
+    
+    private void work(boolean reserved) {
+        while(true) {
+            Task<?> task = null;
+            synchronized(lock) {
+                while(!closed && (task = next(reserved)) == null) {
+                    try {
+                        lock.wait();
+                    } catch(InterruptedException ex) {
+                        // only stops when closed
+                    }
+                }
+                if(task == null) {
+                    return;
+                }
+            }
+            metrics.recordLatency(getMetricPrefix(task.lane) + "wait", System.nanoTime() - task.enqueuedAt);
+            task.run();
+            // clears the interrupt of a cancelled task, so that it does not affect the next one
+            Thread.interrupted();
+        }
+    }
+    
+    /**
+     * Must be called while holding the lock.
+     * @return next task for a thread, or null if there is none
+     */
+    private Task<?> next(boolean reserved) {
+        if(reserved) {
+            return queues.get(Lane.INTERACTIVE).pollFirst();
+        }
+        int totalWeight = 0;
+        int selected = -1;
+        for(int i = 0; i < LANES.length; i++) {
+            if(queues.get(LANES[i]).isEmpty()) {
+                continue;
+            }
+            currentWeights[i] += weights[i];
+            totalWeight += weights[i];
+            if(selected < 0 || currentWeights[i] > currentWeights[selected]) {
+                selected = i;
+            }
+        }
+        if(selected < 0) {
+            return null;
+        }
+        currentWeights[selected] -= totalWeight;
+        return queues.get(LANES[selected]).pollFirst();
+    }
+    
+    private static String getMetricPrefix(Lane lane) {
+        return "lane." + lane.name().toLowerCase(Locale.ROOT) + ".";
+    }
+    
+    private static <T> T await(Future<T> future) throws HandleException, IOException {
+        try {
+            return future.get();
+        } catch(InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the handle operation");
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof HandleException) {
+                throw (HandleException) cause;
+            }
+            if(cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Handle operation failed", cause);
+        }
+    }
+    
+    
+    private static final class Task<T> extends FutureTask<T> {
+        
+        private final Lane lane;
+        private final long enqueuedAt = System.nanoTime();
+        
+        private Task(Lane lane, Callable<T> callable) {
+            super(callable);
+            this.lane = lane;
+        }
+    }
+}
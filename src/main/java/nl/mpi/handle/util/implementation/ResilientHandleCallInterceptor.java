@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleOperation;
+import nl.mpi.handle.util.HandleSpan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Interceptor which protects the callers from an unhealthy Handle System:
+ * every attempt is bound by a deadline, transient failures are retried
+ * with jittered exponential backoff and a circuit breaker makes the calls
+ * fail fast while the server keeps failing.
+ * 
+ * Calls which time out are abandoned (and interrupted), but the thread
+ * executing them is only released once the underlying connection gives up.
+ * The number of such threads is bounded (see
+ * {@link HandleResilienceConfig#setMaxConcurrentCalls(int)}); while they are
+ * all busy, further calls are rejected right away with an
+ * {@link AdaptiveConcurrencyInterceptor.RejectedCallException}, which is
+ * neither retried nor counted as a failure of the server.
+ * Retrying a timed out creation may result in a
+ * <CODE>HANDLE_ALREADY_EXISTS</CODE> error, if the first attempt did reach
+ * the server.
+ */
+public class ResilientHandleCallInterceptor implements HandleCallInterceptor, Serializable {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ResilientHandleCallInterceptor.class);
+    
+    private final HandleResilienceConfig config;
+    private final HandleCircuitBreaker circuitBreaker;
+    
+    private transient volatile ExecutorService executor;
+    
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+    
+    
+    public ResilientHandleCallInterceptor(HandleResilienceConfig config) {
+        this.config = config;
+        this.circuitBreaker = new HandleCircuitBreaker(config.getFailureThreshold(), config.getOpenStateMillis());
+    }
+    
+    
+    /**
+     * @see HandleCallInterceptor#intercept(nl.mpi.handle.util.HandleOperation, java.lang.String, nl.mpi.handle.util.HandleCall)
+     */
+    @Override
+    public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+        
+        calls.incrementAndGet();
+        
+        int attempt = 1;
+        while(true) {
+            if(!circuitBreaker.allowCall()) {
+                rejections.incrementAndGet();
+                failures.incrementAndGet();
+                throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER,
+                        "Circuit breaker open; " + operation + " of handle " + handle + " rejected");
+            }
+            try {
+                T result = callWithDeadline(operation, handle, call);
+                circuitBreaker.recordSuccess();
+                return result;
+            } catch(AdaptiveConcurrencyInterceptor.RejectedCallException ex) {
+                // the call was not made, so the server is not to blame
+                circuitBreaker.recordNoOutcome();
+                rejections.incrementAndGet();
+                failures.incrementAndGet();
+                throw ex;
+            } catch(HandleException ex) {
+                if(!config.isTransient(ex.getCode())) {
+                    circuitBreaker.recordSuccess();
+                    failures.incrementAndGet();
+                    throw ex;
+                }
+                circuitBreaker.recordFailure();
+                if(attempt >= config.getMaxAttempts()) {
+                    logger.warn("{} of handle {} failed after {} attempt(s)", operation, handle, attempt);
+                    failures.incrementAndGet();
+                    throw ex;
+                }
+                long backoff = getBackoffMillis(attempt);
+                logger.debug("{} of handle {} failed (attempt {}); retrying in {} ms", operation, handle, attempt, backoff);
+                retries.incrementAndGet();
+                sleep(backoff);
+                attempt++;
+            } catch(RuntimeException | Error ex) {
+                // not a failure of the server, but the outcome must be recorded to end a trial call
+                circuitBreaker.recordSuccess();
+                failures.incrementAndGet();
+                throw ex;
+            }
+        }
+    }
+    
+    public HandleCircuitBreaker.State getCircuitBreakerState() {
+        return circuitBreaker.getState();
+    }
+    
+    /**
+     * @return number of intercepted calls
+     */
+    public long getCallCount() {
+        return calls.get();
+    }
+    
+    /**
+     * @return number of intercepted calls which eventually failed
+     */
+    public long getFailureCount() {
+        return failures.get();
+    }
+    
+    /**
+     * @return number of retried attempts
+     */
+    public long getRetryCount() {
+        return retries.get();
+    }
+    
+    /**
+     * @return number of attempts which exceeded their deadline
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+    
+    /**
+     * @return number of attempts rejected by the open circuit breaker or because all the call threads were busy
+     */
+    public long getRejectionCount() {
+        return rejections.get();
+    }
+    
+    /**
+     * @return number of threads currently executing calls
+     */
+    public int getActiveThreadCount() {
+        ExecutorService current = executor;
+        return current instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) current).getActiveCount() : 0;
+    }
+    
+    /**
+     * @return number of threads currently in the pool which executes the calls
+     */
+    public int getPoolSize() {
+        ExecutorService current = executor;
+        return current instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) current).getPoolSize() : 0;
+    }
+    
+    /**
+     * Registers gauges for the pool of threads which execute the calls,
+     * the state of the circuit breaker and the retry, timeout and rejection counts.
+     * @param metrics 
+     */
+    public void registerGauges(HandleMetrics metrics) {
+        metrics.registerGauge(HandleMetrics.POOL_PREFIX + "handleCalls.active", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getActiveThreadCount();
+            }
+        });
+        metrics.registerGauge(HandleMetrics.POOL_PREFIX + "handleCalls.size", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getPoolSize();
+            }
+        });
+        metrics.registerGauge("resilience.circuitBreakerOpen", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getCircuitBreakerState() == HandleCircuitBreaker.State.CLOSED ? 0 : 1;
+            }
+        });
+        metrics.registerGauge("resilience.retries", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRetryCount();
+            }
+        });
+        metrics.registerGauge("resilience.timeouts", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getTimeoutCount();
+            }
+        });
+        metrics.registerGauge("resilience.rejections", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return getRejectionCount();
+            }
+        });
+    }
+    
+    /**
+     * Stops the threads used to execute the calls.
+     */
+    public synchronized void shutdown() {
+        if(executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+    
+    
+    private <T> T callWithDeadline(HandleOperation operation, String handle, final HandleCall<T> call) throws HandleException {
+        
+        long timeout = config.getTimeoutMillis(operation);
+        final HandleSpan callerSpan = HandleTracer.getCurrentSpan();
+        Future<T> future;
+        try {
+            future = getExecutor().submit(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    HandleSpan previousSpan = HandleTracer.attach(callerSpan);
+                    try {
+                        return call.call();
+                    } finally {
+                        HandleTracer.restore(previousSpan);
+                    }
+                }
+            });
+        } catch(RejectedExecutionException ex) {
+            throw new AdaptiveConcurrencyInterceptor.RejectedCallException(
+                    operation + " of handle " + handle + " rejected; all " + config.getMaxConcurrentCalls() + " call threads are busy");
+        }
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException ex) {
+            future.cancel(true);
+            timeouts.incrementAndGet();
+            throw new HandleException(HandleException.CANNOT_CONNECT_TO_SERVER,
+                    operation + " of handle " + handle + " timed out after " + timeout + " ms");
+        } catch(InterruptedException ex) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted while waiting for " + operation + " of handle " + handle);
+        } catch(ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if(cause instanceof HandleException) {
+                throw (HandleException) cause;
+            }
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new HandleException(HandleException.INTERNAL_ERROR, cause.getMessage());
+        }
+    }
+    
+    private long getBackoffMillis(int attempt) {
+        long ceiling = config.getInitialBackoffMillis() << Math.min(attempt - 1, 30);
+        if(ceiling <= 0 || ceiling > config.getMaxBackoffMillis()) {
+            ceiling = config.getMaxBackoffMillis();
+        }
+        // "full jitter": spreads the retries of concurrent callers
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+    
+    private void sleep(long millis) throws HandleException {
+        try {
+            Thread.sleep(millis);
+        } catch(InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new HandleException(HandleException.INTERNAL_ERROR, "Interrupted while waiting to retry");
+        }
+    }
+    
+    private ExecutorService getExecutor() {
+        ExecutorService current = executor;
+        if(current != null) {
+            return current;
+        }
+        synchronized(this) {
+            if(executor == null) {
+                // no queue: a call either gets a thread or is rejected
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(config.getMaxConcurrentCalls(), config.getMaxConcurrentCalls(),
+                        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "handle-call-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                pool.allowCoreThreadTimeOut(true);
+                executor = pool;
+            }
+            return executor;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of some resource (e.g. bytes read per second
+ * or read operations per second), while allowing bursts up to its capacity.
+ * 
+ * Acquiring never fails: the tokens are reserved right away, possibly leaving
+ * the bucket in debt, and the caller then sleeps until the reservation is
+ * covered. Requests larger than the capacity are therefore allowed, and
+ * concurrent callers are served in the order of their reservations.
+ */
+public class TokenBucket {
+    
+    private final double tokensPerNano;
+    private final long capacity;
+    
+    // guarded by this
+    private double tokens;
+    private long lastRefill;
+    
+    
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param capacity maximum number of tokens accumulated (the bucket starts full)
+     */
+    public TokenBucket(long ratePerSecond, long capacity) {
+        if(ratePerSecond <= 0 || capacity <= 0) {
+            throw new IllegalArgumentException("Invalid rate or capacity");
+        }
+        this.tokensPerNano = ratePerSecond / (double) TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+    
+    
+    /**
+     * Takes the given number of tokens, waiting until they are available.
+     * @param count
+     * @throws InterruptedException if interrupted while waiting (the tokens remain taken)
+     */
+    public void acquire(long count) throws InterruptedException {
+        long waitNanos;
+        synchronized(this) {
+            refill();
+            tokens -= count;
+            waitNanos = tokens >= 0 ? 0 : (long) Math.ceil(-tokens / tokensPerNano);
+        }
+        if(waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+    
+    /**
+     * @return tokens currently available (negative while in debt)
+     */
+    public synchronized long getAvailable() {
+        refill();
+        return (long) Math.floor(tokens);
+    }
+    
+    
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
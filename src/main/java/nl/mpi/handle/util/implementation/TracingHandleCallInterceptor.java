@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleOperation;
+import nl.mpi.handle.util.HandleSpan;
+
+/**
+ * Interceptor which traces each call to the Handle System in its own span
+ * (named "server." followed by the operation, with the handle as detail).
+ */
+public class TracingHandleCallInterceptor implements HandleCallInterceptor {
+    
+    private final HandleTracer tracer;
+    
+    public TracingHandleCallInterceptor(HandleTracer tracer) {
+        this.tracer = tracer;
+    }
+    
+    
+    /**
+     * @see HandleCallInterceptor#intercept(nl.mpi.handle.util.HandleOperation, java.lang.String, nl.mpi.handle.util.HandleCall)
+     */
+    @Override
+    public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+        try (HandleSpan span = tracer.startSpan("server." + operation, handle)) {
+            return call.call();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.Serializable;
+import java.net.URI;
+import java.util.UUID;
+
+/**
+ * Compact representation of a handle whose suffix is a UUID
+ * (as generated by {@link HandleInfoProviderImpl#generateUuidHandle()}),
+ * holding the UUID as two <CODE>long</CODE>s instead of a string.
+ */
+public final class UuidHandle implements Comparable<UuidHandle>, Serializable {
+    
+    private static final int UUID_LENGTH = 36;
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    private final String prefix;
+    private final long mostSignificantBits;
+    private final long leastSignificantBits;
+    
+    
+    public UuidHandle(String prefix, long mostSignificantBits, long leastSignificantBits) {
+        if(prefix == null || prefix.isEmpty()) {
+            throw new IllegalArgumentException("Missing prefix");
+        }
+        this.prefix = prefix;
+        this.mostSignificantBits = mostSignificantBits;
+        this.leastSignificantBits = leastSignificantBits;
+    }
+    
+    public UuidHandle(String prefix, UUID uuid) {
+        this(prefix, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+    
+    
+    /**
+     * @param handle handle in the form <CODE>prefix/UUID</CODE> (the UUID in either case)
+     * @return the parsed handle
+     * @throws IllegalArgumentException if the handle is not in the expected form
+     */
+    public static UuidHandle parse(String handle) {
+        int slash = handle.indexOf('/');
+        if(slash <= 0) {
+            throw new IllegalArgumentException("Not a handle: " + handle);
+        }
+        return parse(handle.substring(0, slash), handle, slash + 1);
+    }
+    
+    /**
+     * @param prefix prefix of the handle
+     * @param suffix suffix of the handle, which must be a UUID in its canonical form
+     * @return the parsed handle
+     * @throws IllegalArgumentException if the suffix is not a UUID
+     */
+    public static UuidHandle parse(String prefix, CharSequence suffix) {
+        return parse(prefix, suffix, 0);
+    }
+    
+    private static UuidHandle parse(String prefix, CharSequence text, int start) {
+        if(text.length() - start != UUID_LENGTH) {
+            throw new IllegalArgumentException("Not a UUID handle: " + text);
+        }
+        long most = 0;
+        long least = 0;
+        for(int i = 0; i < UUID_LENGTH; i++) {
+            char c = text.charAt(start + i);
+            if(i == 8 || i == 13 || i == 18 || i == 23) {
+                if(c != '-') {
+                    throw new IllegalArgumentException("Not a UUID handle: " + text);
+                }
+                continue;
+            }
+            int digit = hexDigit(c);
+            if(digit < 0) {
+                throw new IllegalArgumentException("Not a UUID handle: " + text);
+            }
+            if(i < 18) {
+                most = (most << 4) | digit;
+            } else {
+                least = (least << 4) | digit;
+            }
+        }
+        return new UuidHandle(prefix, most, least);
+    }
+    
+    
+    private static int hexDigit(char c) {
+        if(c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if(c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        if(c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        return -1;
+    }
+    
+    
+    public String getPrefix() {
+        return prefix;
+    }
+    
+    public long getMostSignificantBits() {
+        return mostSignificantBits;
+    }
+    
+    public long getLeastSignificantBits() {
+        return leastSignificantBits;
+    }
+    
+    public UUID toUuid() {
+        return new UUID(mostSignificantBits, leastSignificantBits);
+    }
+    
+    public URI toUri() {
+        return URI.create(toString());
+    }
+    
+    /**
+     * @return the handle in the form <CODE>prefix/UUID</CODE>, with the UUID in upper case
+     */
+    @Override
+    public String toString() {
+        return format(prefix, mostSignificantBits, leastSignificantBits);
+    }
+    
+    static String format(String prefix, long most, long least) {
+        char[] chars = new char[prefix.length() + 1 + UUID_LENGTH];
+        prefix.getChars(0, prefix.length(), chars, 0);
+        int position = prefix.length();
+        chars[position++] = '/';
+        position = appendHex(chars, position, most >>> 32, 8);
+        chars[position++] = '-';
+        position = appendHex(chars, position, most >>> 16, 4);
+        chars[position++] = '-';
+        position = appendHex(chars, position, most, 4);
+        chars[position++] = '-';
+        position = appendHex(chars, position, least >>> 48, 4);
+        chars[position++] = '-';
+        appendHex(chars, position, least, 12);
+        return new String(chars);
+    }
+    
+    private static int appendHex(char[] chars, int position, long value, int digits) {
+        for(int i = digits - 1; i >= 0; i--) {
+            chars[position + i] = HEX_DIGITS[(int) (value >>> (4 * (digits - 1 - i))) & 0xF];
+        }
+        return position + digits;
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if(this == obj) {
+            return true;
+        }
+        if(!(obj instanceof UuidHandle)) {
+            return false;
+        }
+        UuidHandle other = (UuidHandle) obj;
+        return mostSignificantBits == other.mostSignificantBits
+                && leastSignificantBits == other.leastSignificantBits
+                && prefix.equalsIgnoreCase(other.prefix);
+    }
+    
+    @Override
+    public int hashCode() {
+        return UuidHandleTable.hash(mostSignificantBits, leastSignificantBits);
+    }
+    
+    @Override
+    public int compareTo(UuidHandle other) {
+        int result = prefix.compareToIgnoreCase(other.prefix);
+        if(result == 0) {
+            result = Long.compare(mostSignificantBits, other.mostSignificantBits);
+        }
+        if(result == 0) {
+            result = Long.compare(leastSignificantBits, other.leastSignificantBits);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.Iterator;
+
+/**
+ * Map from the UUID handles of a single prefix to arbitrary values,
+ * taking 25 to 40 bytes per handle besides the values themselves.
+ * Not thread-safe.
+ * @see UuidHandle
+ * @param <V> type of the values
+ */
+public class UuidHandleMap<V> extends UuidHandleTable {
+    
+    private Object[] values;
+    private Object[] oldValues;
+    
+    
+    public UuidHandleMap(String prefix) {
+        this(prefix, 0);
+    }
+    
+    /**
+     * @param prefix prefix of the handles in the map
+     * @param expectedSize number of handles the map can hold without being resized
+     */
+    public UuidHandleMap(String prefix, int expectedSize) {
+        super(prefix, expectedSize);
+        values = new Object[capacity()];
+    }
+    
+    
+    /**
+     * @param handle key of the value
+     * @param value value to associate with the handle
+     * @return the value previously associated with the handle, if any
+     * @throws IllegalArgumentException if the handle has a different prefix or its UUID is the nil UUID
+     */
+    public V put(UuidHandle handle, V value) {
+        checkPrefix(handle);
+        return put(handle.getMostSignificantBits(), handle.getLeastSignificantBits(), value);
+    }
+    
+    /**
+     * @param mostSignificantBits most significant bits of the UUID of the handle
+     * @param leastSignificantBits least significant bits of the UUID of the handle
+     * @param value value to associate with the handle
+     * @return the value previously associated with the handle, if any
+     * @throws IllegalArgumentException if the UUID is the nil UUID
+     */
+    public V put(long mostSignificantBits, long leastSignificantBits, V value) {
+        int slot = insert(mostSignificantBits, leastSignificantBits);
+        if(slot < 0) {
+            values[-slot - 1] = value;
+            return null;
+        }
+        V previous = valueAt(slot);
+        values[slot] = value;
+        return previous;
+    }
+    
+    public V get(UuidHandle handle) {
+        if(!getPrefix().equalsIgnoreCase(handle.getPrefix())) {
+            return null;
+        }
+        return get(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+    
+    public V get(long mostSignificantBits, long leastSignificantBits) {
+        int slot = find(mostSignificantBits, leastSignificantBits);
+        return slot >= 0 ? valueAt(slot) : null;
+    }
+    
+    public boolean containsKey(UuidHandle handle) {
+        return getPrefix().equalsIgnoreCase(handle.getPrefix())
+                && find(handle.getMostSignificantBits(), handle.getLeastSignificantBits()) >= 0;
+    }
+    
+    /**
+     * @param handle handle to remove
+     * @return the value associated with the handle, if any
+     */
+    public V remove(UuidHandle handle) {
+        if(!getPrefix().equalsIgnoreCase(handle.getPrefix())) {
+            return null;
+        }
+        return remove(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+    
+    public V remove(long mostSignificantBits, long leastSignificantBits) {
+        int slot = find(mostSignificantBits, leastSignificantBits);
+        if(slot < 0) {
+            return null;
+        }
+        V previous = valueAt(slot);
+        removeSlot(slot);
+        return previous;
+    }
+    
+    /**
+     * The iterator creates a new {@link UuidHandle} for each key,
+     * and fails if the map is resized while iterating.
+     * @return the handles in the map
+     */
+    public Iterable<UuidHandle> keys() {
+        return new Iterable<UuidHandle>() {
+            @Override
+            public Iterator<UuidHandle> iterator() {
+                return keyIterator();
+            }
+        };
+    }
+    
+    
+    @Override
+    void startResize(int newCapacity) {
+        oldValues = values;
+        values = new Object[newCapacity];
+    }
+    
+    @Override
+    void endResize() {
+        oldValues = null;
+    }
+    
+    @Override
+    void moveValue(int from, int to) {
+        // while resizing, the slot is from the old table
+        Object[] source = oldValues != null ? oldValues : values;
+        values[to] = source[from];
+    }
+    
+    @Override
+    void clearValue(int slot) {
+        values[slot] = null;
+    }
+    
+    
+    @SuppressWarnings("unchecked")
+    private V valueAt(int slot) {
+        return (V) values[slot];
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.Iterator;
+
+/**
+ * Set of UUID handles of a single prefix, taking 20 to 30 bytes per handle
+ * (compared to well over 100 for a set of strings).
+ * Not thread-safe.
+ * @see UuidHandle
+ */
+public class UuidHandleSet extends UuidHandleTable implements Iterable<UuidHandle> {
+    
+    public UuidHandleSet(String prefix) {
+        this(prefix, 0);
+    }
+    
+    /**
+     * @param prefix prefix of the handles in the set
+     * @param expectedSize number of handles the set can hold without being resized
+     */
+    public UuidHandleSet(String prefix, int expectedSize) {
+        super(prefix, expectedSize);
+    }
+    
+    
+    /**
+     * @param handle handle to add
+     * @return true if the handle was not in the set yet
+     * @throws IllegalArgumentException if the handle has a different prefix or its UUID is the nil UUID
+     */
+    public boolean add(UuidHandle handle) {
+        checkPrefix(handle);
+        return add(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+    
+    /**
+     * @param mostSignificantBits most significant bits of the UUID of the handle
+     * @param leastSignificantBits least significant bits of the UUID of the handle
+     * @return true if the handle was not in the set yet
+     * @throws IllegalArgumentException if the UUID is the nil UUID
+     */
+    public boolean add(long mostSignificantBits, long leastSignificantBits) {
+        return insert(mostSignificantBits, leastSignificantBits) < 0;
+    }
+    
+    public boolean contains(UuidHandle handle) {
+        return getPrefix().equalsIgnoreCase(handle.getPrefix())
+                && contains(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+    
+    public boolean contains(long mostSignificantBits, long leastSignificantBits) {
+        return find(mostSignificantBits, leastSignificantBits) >= 0;
+    }
+    
+    /**
+     * @param handle handle to remove
+     * @return true if the handle was in the set
+     */
+    public boolean remove(UuidHandle handle) {
+        return getPrefix().equalsIgnoreCase(handle.getPrefix())
+                && remove(handle.getMostSignificantBits(), handle.getLeastSignificantBits());
+    }
+    
+    public boolean remove(long mostSignificantBits, long leastSignificantBits) {
+        int slot = find(mostSignificantBits, leastSignificantBits);
+        if(slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+    
+    /**
+     * The iterator creates a new {@link UuidHandle} for each element,
+     * and fails if the set is resized while iterating.
+     */
+    @Override
+    public Iterator<UuidHandle> iterator() {
+        return keyIterator();
+    }
+    
+    
+    @Override
+    void startResize(int newCapacity) {
+    }
+    
+    @Override
+    void endResize() {
+    }
+    
+    @Override
+    void moveValue(int from, int to) {
+    }
+    
+    @Override
+    void clearValue(int slot) {
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Base of the hash tables keyed on the UUID handles of a single prefix.
+ * Keys are kept in two <CODE>long</CODE> arrays (linear probing, no tombstones),
+ * so each entry takes 16 bytes plus whatever the subclass stores per slot.
+ * The nil UUID marks empty slots and cannot be stored.
+ * Not thread-safe.
+ */
+abstract class UuidHandleTable {
+    
+    private static final double MAX_LOAD = 0.8;
+    private static final int MIN_CAPACITY = 16;
+    
+    private final String prefix;
+    private long[] mostSignificant;
+    private long[] leastSignificant;
+    private int size;
+    
+    
+    UuidHandleTable(String prefix, int expectedSize) {
+        if(prefix == null || prefix.isEmpty()) {
+            throw new IllegalArgumentException("Missing prefix");
+        }
+        if(expectedSize < 0) {
+            throw new IllegalArgumentException("Invalid expected size (" + expectedSize + ")");
+        }
+        this.prefix = prefix;
+        int capacity = capacityFor(expectedSize);
+        mostSignificant = new long[capacity];
+        leastSignificant = new long[capacity];
+    }
+    
+    
+    public String getPrefix() {
+        return prefix;
+    }
+    
+    public int size() {
+        return size;
+    }
+    
+    public boolean isEmpty() {
+        return size == 0;
+    }
+    
+    final int capacity() {
+        return mostSignificant.length;
+    }
+    
+    
+    /**
+     * Called when the table is resized; the values of the old slots are then
+     * moved with {@link #moveValue(int, int)} and finally {@link #endResize()} is called.
+     */
+    abstract void startResize(int newCapacity);
+    
+    abstract void endResize();
+    
+    /**
+     * Moves the value of a slot to another one (of the new table, while resizing).
+     */
+    abstract void moveValue(int from, int to);
+    
+    abstract void clearValue(int slot);
+    
+    
+    final void checkPrefix(UuidHandle handle) {
+        if(!prefix.equalsIgnoreCase(handle.getPrefix())) {
+            throw new IllegalArgumentException("Handle " + handle + " does not have the prefix " + prefix);
+        }
+    }
+    
+    /**
+     * @return slot of the key, or -1 if it is not in the table
+     */
+    final int find(long most, long least) {
+        if(most == 0 && least == 0) {
+            return -1;
+        }
+        int capacity = mostSignificant.length;
+        for(int slot = indexFor(hash(most, least), capacity); ; slot = next(slot, capacity)) {
+            long slotMost = mostSignificant[slot];
+            long slotLeast = leastSignificant[slot];
+            if(slotMost == most && slotLeast == least) {
+                return slot;
+            }
+            if(slotMost == 0 && slotLeast == 0) {
+                return -1;
+            }
+        }
+    }
+    
+    /**
+     * @return slot of the key, inserted if it was not in the table yet,
+     * encoded as <CODE>-(slot + 1)</CODE> in the latter case
+     */
+    final int insert(long most, long least) {
+        if(most == 0 && least == 0) {
+            throw new IllegalArgumentException("The nil UUID cannot be stored");
+        }
+        if(size + 1 > mostSignificant.length * MAX_LOAD) {
+            resize(Math.max(capacityFor(size + 1), (int) Math.min(Integer.MAX_VALUE - 8, mostSignificant.length * 3L / 2)));
+        }
+        int capacity = mostSignificant.length;
+        for(int slot = indexFor(hash(most, least), capacity); ; slot = next(slot, capacity)) {
+            long slotMost = mostSignificant[slot];
+            long slotLeast = leastSignificant[slot];
+            if(slotMost == most && slotLeast == least) {
+                return slot;
+            }
+            if(slotMost == 0 && slotLeast == 0) {
+                mostSignificant[slot] = most;
+                leastSignificant[slot] = least;
+                size++;
+                return -(slot + 1);
+            }
+        }
+    }
+    
+    /**
+     * Removes the key in the given slot, shifting back the following
+     * keys of the same cluster which would otherwise become unreachable.
+     */
+    final void removeSlot(int slot) {
+        int capacity = mostSignificant.length;
+        int gap = slot;
+        for(int current = next(slot, capacity); ; current = next(current, capacity)) {
+            long most = mostSignificant[current];
+            long least = leastSignificant[current];
+            if(most == 0 && least == 0) {
+                break;
+            }
+            int ideal = indexFor(hash(most, least), capacity);
+            boolean reachable = gap <= current
+                    ? ideal > gap && ideal <= current
+                    : ideal > gap || ideal <= current;
+            if(!reachable) {
+                mostSignificant[gap] = most;
+                leastSignificant[gap] = least;
+                moveValue(current, gap);
+                gap = current;
+            }
+        }
+        mostSignificant[gap] = 0;
+        leastSignificant[gap] = 0;
+        clearValue(gap);
+        size--;
+    }
+    
+    final UuidHandle keyAt(int slot) {
+        return new UuidHandle(prefix, mostSignificant[slot], leastSignificant[slot]);
+    }
+    
+    final Iterator<UuidHandle> keyIterator() {
+        return new Iterator<UuidHandle>() {
+            
+            private final long[] iteratedMost = mostSignificant;
+            private final long[] iteratedLeast = leastSignificant;
+            private int nextSlot = advance(0);
+            
+            @Override
+            public boolean hasNext() {
+                return nextSlot < iteratedMost.length;
+            }
+            
+            @Override
+            public UuidHandle next() {
+                if(!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                if(iteratedMost != mostSignificant) {
+                    throw new IllegalStateException("Table resized while iterating");
+                }
+                UuidHandle key = keyAt(nextSlot);
+                nextSlot = advance(nextSlot + 1);
+                return key;
+            }
+            
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+            
+            private int advance(int from) {
+                int slot = from;
+                while(slot < iteratedMost.length && iteratedMost[slot] == 0 && iteratedLeast[slot] == 0) {
+                    slot++;
+                }
+                return slot;
+            }
+        };
+    }
+    
+    
+    static int hash(long most, long least) {
+        long hash = most * 0x9E3779B97F4A7C15L ^ least;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+    
+    
+    private void resize(int newCapacity) {
+        long[] oldMost = mostSignificant;
+        long[] oldLeast = leastSignificant;
+        mostSignificant = new long[newCapacity];
+        leastSignificant = new long[newCapacity];
+        startResize(newCapacity);
+        for(int slot = 0; slot < oldMost.length; slot++) {
+            long most = oldMost[slot];
+            long least = oldLeast[slot];
+            if(most == 0 && least == 0) {
+                continue;
+            }
+            int target = indexFor(hash(most, least), newCapacity);
+            while(mostSignificant[target] != 0 || leastSignificant[target] != 0) {
+                target = next(target, newCapacity);
+            }
+            mostSignificant[target] = most;
+            leastSignificant[target] = least;
+            moveValue(slot, target);
+        }
+        endResize();
+    }
+    
+    private static int capacityFor(int entries) {
+        long capacity = (long) Math.ceil(entries / MAX_LOAD) + 1;
+        if(capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many handles (" + entries + ")");
+        }
+        return (int) Math.max(MIN_CAPACITY, capacity);
+    }
+    
+    /**
+     * Maps the hash to a slot without requiring a power-of-two capacity,
+     * so that the table does not need to be much larger than its contents.
+     */
+    private static int indexFor(int hash, int capacity) {
+        return (int) (((hash & 0xFFFFFFFFL) * capacity) >>> 32);
+    }
+    
+    private static int next(int slot, int capacity) {
+        return slot + 1 < capacity ? slot + 1 : 0;
+    }
+}
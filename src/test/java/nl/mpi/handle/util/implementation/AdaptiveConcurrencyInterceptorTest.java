@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleCallInterceptor;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class AdaptiveConcurrencyInterceptorTest {
+    
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    
+    private final String handle = "11142/00-ABCD";
+    // after the creation of the interceptors, so that all the calls count as new rounds
+    private long now;
+    
+    public AdaptiveConcurrencyInterceptorTest() {
+    }
+    
+    
+    @Test
+    public void limitGrowsWhileLatencyIsStable() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(4, 1, 100);
+        now = System.nanoTime();
+        
+        runRounds(limiter, 10, 4, 10 * MILLI, false);
+        
+        assertTrue("Limit should have grown: " + limiter.getLimit(), limiter.getLimit() > 4);
+        assertEquals("Calls in flight different from expected", 0, limiter.getInFlightCount());
+    }
+    
+    @Test
+    public void limitDoesNotGrowIfNotUsed() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(10, 1, 100);
+        now = System.nanoTime();
+        
+        runRounds(limiter, 10, 1, 10 * MILLI, false);
+        
+        assertEquals("Limit different from expected", 10, limiter.getLimit());
+    }
+    
+    @Test
+    public void limitDecreasesOncePerRoundOnOverload() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(20, 1, 100);
+        limiter.setBackoffRatio(0.5);
+        now = System.nanoTime();
+        
+        runRounds(limiter, 1, 10, 10 * MILLI, true);
+        assertEquals("Limit different from expected", 10, limiter.getLimit());
+        
+        runRounds(limiter, 1, 10, 10 * MILLI, true);
+        assertEquals("Limit different from expected", 5, limiter.getLimit());
+    }
+    
+    @Test
+    public void limitDecreasesWhenLatencyIncreases() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(20, 2, 100);
+        limiter.setBackoffRatio(0.5);
+        now = System.nanoTime();
+        
+        runRounds(limiter, 1, 1, 10 * MILLI, false);
+        runRounds(limiter, 1, 1, 50 * MILLI, false);
+        
+        assertEquals("Limit different from expected", 10, limiter.getLimit());
+        
+        for(int i = 0; i < 10; i++) {
+            runRounds(limiter, 1, 1, 50 * MILLI, true);
+        }
+        assertEquals("Limit should not go below the minimum", 2, limiter.getLimit());
+    }
+    
+    @Test
+    public void callIsRejectedIfQueueIsFull() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(1, 1, 1);
+        limiter.setQueue(0, 0);
+        limiter.acquire(HandleOperation.CREATE, handle);
+        
+        try {
+            limiter.acquire(HandleOperation.CREATE, handle);
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertTrue("Exception should be a rejection", ex instanceof AdaptiveConcurrencyInterceptor.RejectedCallException);
+            assertFalse("Rejection should not be transient",
+                    HandleResilienceConfig.DEFAULT_TRANSIENT_ERROR_CODES.contains(ex.getCode()));
+        }
+        assertEquals("Rejection count different from expected", 1, limiter.getRejectionCount());
+    }
+    
+    @Test
+    public void rejectedCallIsNotRetried() throws HandleException {
+        
+        final AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(1, 1, 1);
+        limiter.setQueue(0, 0);
+        limiter.acquire(HandleOperation.CREATE, handle);
+        HandleResilienceConfig config = new HandleResilienceConfig();
+        config.setMaxAttempts(3);
+        config.setInitialBackoffMillis(1);
+        config.setFailureThreshold(1);
+        ResilientHandleCallInterceptor resilient = new ResilientHandleCallInterceptor(config);
+        
+        try {
+            resilient.intercept(HandleOperation.CREATE, handle, new HandleCall<Void>() {
+                @Override
+                public Void call() throws HandleException {
+                    return limiter.intercept(HandleOperation.CREATE, handle, new HandleCall<Void>() {
+                        @Override
+                        public Void call() {
+                            return null;
+                        }
+                    });
+                }
+            });
+            fail("should have thrown an exception");
+        } catch(AdaptiveConcurrencyInterceptor.RejectedCallException ex) {
+            // expected
+        } finally {
+            resilient.shutdown();
+        }
+        
+        assertEquals("Retry count different from expected", 0, resilient.getRetryCount());
+        assertEquals("Circuit breaker state different from expected",
+                HandleCircuitBreaker.State.CLOSED, resilient.getCircuitBreakerState());
+    }
+    
+    @Test
+    public void interruptedWaitFailsWithInternalError() throws HandleException {
+        
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(1, 1, 1);
+        limiter.setQueue(1, 10000);
+        limiter.acquire(HandleOperation.CREATE, handle);
+        
+        Thread.currentThread().interrupt();
+        try {
+            limiter.acquire(HandleOperation.CREATE, handle);
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.INTERNAL_ERROR, ex.getCode());
+        } finally {
+            assertTrue("Interrupt status should be kept", Thread.interrupted());
+        }
+        assertEquals("Queued calls different from expected", 0, limiter.getQueuedCount());
+    }
+    
+    @Test
+    public void queuedCallProceedsWhenLimitIsReleased() throws Exception {
+        
+        final AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(1, 1, 1);
+        limiter.setQueue(1, 10000);
+        limiter.acquire(HandleOperation.CREATE, handle);
+        
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread waiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    limiter.acquire(HandleOperation.UPDATE, handle);
+                } catch(HandleException ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        waiting.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while(limiter.getQueuedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals("Queued calls different from expected", 1, limiter.getQueuedCount());
+        
+        long start = System.nanoTime();
+        limiter.release(start, start + MILLI, false);
+        waiting.join(10000);
+        
+        assertNull("Unexpected failure", failure.get());
+        assertEquals("Calls in flight different from expected", 1, limiter.getInFlightCount());
+        assertEquals("Queued calls different from expected", 0, limiter.getQueuedCount());
+    }
+    
+    @Test
+    public void concurrentCallsStayWithinLimit() throws Exception {
+        
+        InMemoryHandleServer server = new InMemoryHandleServer();
+        server.setLatency(1000, 3000);
+        final HandleUtil handleUtil = new HandleUtil(server);
+        AdaptiveConcurrencyInterceptor limiter = new AdaptiveConcurrencyInterceptor(2, 1, 3);
+        final ConcurrencyCounter counter = new ConcurrencyCounter();
+        handleUtil.addCallInterceptor(limiter);
+        handleUtil.addCallInterceptor(counter);
+        
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            final int thread = t;
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(int i = 0; i < 20; i++) {
+                            handleUtil.createHandle("11142/00-" + thread + "-" + i, new HandleValue[0]);
+                        }
+                    } catch(Exception ex) {
+                        failure.set(ex);
+                    }
+                }
+            });
+            threads.add(worker);
+            worker.start();
+        }
+        for(Thread worker : threads) {
+            worker.join(30000);
+        }
+        
+        assertNull("Unexpected failure", failure.get());
+        assertEquals("Created handles different from expected", 160, server.size());
+        assertTrue("Concurrent calls should not exceed the limit: " + counter.max.get(), counter.max.get() <= 3);
+    }
+    
+    
+    /**
+     * Runs rounds of the given number of concurrent calls, all with the same latency.
+     */
+    private void runRounds(AdaptiveConcurrencyInterceptor limiter, int rounds, int calls, long latency, boolean overloaded)
+            throws HandleException {
+        for(int round = 0; round < rounds; round++) {
+            now += MILLI;
+            long start = now;
+            for(int i = 0; i < calls; i++) {
+                limiter.acquire(HandleOperation.UPDATE, handle);
+            }
+            now += latency;
+            for(int i = 0; i < calls; i++) {
+                limiter.release(start, now, overloaded);
+            }
+        }
+    }
+    
+    private static class ConcurrencyCounter implements HandleCallInterceptor {
+        
+        private final AtomicInteger current = new AtomicInteger();
+        private final AtomicInteger max = new AtomicInteger();
+        
+        @Override
+        public <T> T intercept(HandleOperation operation, String handle, HandleCall<T> call) throws HandleException {
+            int concurrent = current.incrementAndGet();
+            while(true) {
+                int previous = max.get();
+                if(concurrent <= previous || max.compareAndSet(previous, concurrent)) {
+                    break;
+                }
+            }
+            try {
+                return call.call();
+            } finally {
+                current.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import nl.mpi.handle.util.implementation.BulkHandleCanonicalizer.HandleEquivalenceReport;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BulkHandleCanonicalizerTest {
+    
+    private final HandleParserImpl handleParser = new HandleParserImpl("11142");
+    
+    public BulkHandleCanonicalizerTest() {
+    }
+    
+    
+    @Test
+    public void groupsEquivalentHandles() {
+        
+        List<URI> handles = Arrays.asList(
+                URI.create("hdl:11142/00-AAAA"),
+                URI.create("http://hdl.handle.net/11142/00-BBBB"),
+                URI.create("11142/00-AAAA"),
+                URI.create("hdl:99999/00-AAAA"),
+                URI.create("http://hdl.handle.net/11142/00-AAAA"),
+                URI.create("not_a_handle"),
+                null);
+        
+        HandleEquivalenceReport report = new BulkHandleCanonicalizer(handleParser, new ForkJoinPool(2), 2).canonicalize(handles);
+        
+        assertEquals("Key different from expected", "00-AAAA", report.getKey(0));
+        assertNull("Invalid handle should have no key", report.getKey(3));
+        assertEquals("Number of groups different from expected", 2, report.getGroups().size());
+        
+        Map<String, List<URI>> duplicates = report.getDuplicates();
+        assertEquals("Number of duplicates different from expected", 1, duplicates.size());
+        assertEquals("Duplicates different from expected",
+                Arrays.asList(handles.get(0), handles.get(2), handles.get(4)), duplicates.get("00-AAAA"));
+        
+        assertEquals("Invalid handles different from expected",
+                Arrays.asList(handles.get(3), handles.get(5), null), report.getInvalid());
+        
+        assertEquals("Equivalent handles different from expected",
+                Arrays.asList(handles.get(1)), report.getEquivalents(URI.create("11142/00-BBBB")));
+        assertTrue("There should be no equivalent handles", report.getEquivalents(URI.create("hdl:11142/00-CCCC")).isEmpty());
+    }
+    
+    @Test
+    public void agreesWithPairwiseComparison() {
+        
+        String[] forms = {"hdl:11142/", "http://hdl.handle.net/11142/", "11142/", "hdl:11143/"};
+        List<URI> handles = new ArrayList<>();
+        for(int i = 0; i < 20000; i++) {
+            handles.add(URI.create(forms[i % forms.length] + "00-" + (i % 97)));
+        }
+        
+        HandleEquivalenceReport report = new BulkHandleCanonicalizer(handleParser).canonicalize(handles);
+        
+        for(int i = 0; i < 200; i++) {
+            for(int j = 0; j < 200; j++) {
+                String aKey = report.getKey(i);
+                String anotherKey = report.getKey(j);
+                if(aKey == null || anotherKey == null) {
+                    continue;
+                }
+                assertEquals("Equivalence different from expected",
+                        handleParser.areHandlesEquivalent(handles.get(i), handles.get(j)), aKey.equals(anotherKey));
+            }
+        }
+        assertEquals("Number of invalid handles different from expected", 5000, report.getInvalid().size());
+        assertEquals("Number of groups different from expected", 97, report.getGroups().size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleOperation;
+import nl.mpi.util.Checksum;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class CopyingHandleAssignerTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private final URI target = URI.create("http://server/archive/file.wav");
+    
+    private InMemoryHandleServer server;
+    private HandleInfoProviderImpl handleInfoProvider;
+    private CopyingHandleAssigner assigner;
+    private Path source;
+    private Path destination;
+    private byte[] content;
+    
+    public CopyingHandleAssignerTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        server = new InMemoryHandleServer();
+        handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        HandleManagerImpl handleManager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl(prefix), new HandleUtil(server), prefix);
+        // smaller than the file, so that it takes several reads
+        assigner = new CopyingHandleAssigner(handleManager, handleInfoProvider, 4096);
+        content = new byte[100000];
+        new Random(7).nextBytes(content);
+        source = testFolder.newFolder("staging").toPath().resolve("file.wav");
+        Files.write(source, content);
+        destination = testFolder.newFolder("archive").toPath().resolve("file.wav");
+    }
+    
+    
+    @Test
+    public void fileIsCopiedAndHandleIsAssigned() throws Exception {
+        
+        URI handle = assigner.copyAndAssignNewHandle(source, destination, target);
+        
+        assertArrayEquals("Copied content different from expected", content, Files.readAllBytes(destination));
+        HandleValue[] values = server.resolveHandle(handle.toString(), null, null);
+        assertEquals("Checksum different from expected", Checksum.create(destination.toString()),
+                HandleValues.getDataByType(values, HandleConstants.CHECKSUM_TYPE));
+        assertEquals("File size different from expected", Integer.toString(content.length),
+                HandleValues.getDataByType(values, HandleConstants.FILESIZE_TYPE));
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(values, HandleConstants.URL_TYPE));
+        assertEquals("Create operations different from expected", 1, server.getOperationCount(HandleOperation.CREATE));
+    }
+    
+    @Test
+    public void extraDigestsAreCalculatedDuringCopy() throws Exception {
+        
+        handleInfoProvider.setExtraDigestAlgorithms(Arrays.asList(MultiDigest.SHA_256));
+        
+        Map<String, String> checksums = assigner.copy(source, destination);
+        
+        assertEquals("Digests different from expected",
+                MultiDigest.digest(source.toFile(), Arrays.asList(MultiDigest.MD5, MultiDigest.SHA_256)), checksums);
+    }
+    
+    @Test
+    public void existingDestinationIsNotOverwritten() throws Exception {
+        
+        Files.write(destination, new byte[] {1, 2, 3});
+        
+        try {
+            assigner.copyAndAssignNewHandle(source, destination, target);
+            fail("should have thrown an exception");
+        } catch(FileAlreadyExistsException ex) {
+            // expected
+        }
+        assertEquals("Destination should not have changed", 3, Files.size(destination));
+        assertEquals("No handle should have been created", 0, server.size());
+    }
+    
+    @Test
+    public void copyInProgressIsNotOverwritten() throws Exception {
+        
+        Path partial = destination.resolveSibling(destination.getFileName() + ".copying");
+        Files.write(partial, new byte[] {1, 2, 3});
+        
+        try {
+            assigner.copy(source, destination);
+            fail("should have thrown an exception");
+        } catch(FileAlreadyExistsException ex) {
+            // expected
+        }
+        assertFalse("Destination should not exist", Files.exists(destination));
+        assertEquals("Partial copy should not have changed", 3, Files.size(partial));
+    }
+    
+    @Test
+    public void copyLeavesNoPartialFile() throws Exception {
+        
+        assigner.copy(source, destination);
+        
+        assertEquals("Archive folder different from expected", Arrays.asList(destination.getFileName().toString()),
+                Arrays.asList(destination.getParent().toFile().list()));
+        assertArrayEquals("Copy different from expected", content, Files.readAllBytes(destination));
+    }
+    
+    @Test
+    public void missingSourceLeavesNoPartialCopy() throws Exception {
+        
+        try {
+            assigner.copy(source.resolveSibling("missing.wav"), destination);
+            fail("should have thrown an exception");
+        } catch(IOException ex) {
+            // expected
+        }
+        assertEquals("Archive folder should be empty", 0, destination.getParent().toFile().list().length);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.util.Checksum;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+/**
+ * Tests the handle creation with handle information prepared in the background
+ * ({@link HandleInfoProviderImpl#prepareHandleInformation(java.io.File, java.net.URI)}).
+ */
+public class DeferredHandleInformationTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private final URI target = URI.create("http://server/archive/target.cmdi");
+    
+    private final BlockingQueue<Runnable> checksumTasks = new LinkedBlockingQueue<>();
+    private InMemoryHandleServer server;
+    private HandleManagerImpl handleManager;
+    private File file;
+    
+    public DeferredHandleInformationTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        server = new InMemoryHandleServer();
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        // the checksums are only calculated when the tests run them
+        handleInfoProvider.setChecksumExecutor(new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                checksumTasks.add(task);
+            }
+        });
+        handleManager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl(prefix), new HandleUtil(server), prefix);
+        file = testFolder.newFile("target.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+    }
+    
+    
+    @Test
+    public void handleIsCreatedOnceChecksumIsReady() throws Exception {
+        
+        final AtomicReference<URI> handle = new AtomicReference<>();
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread assigner = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    handle.set(handleManager.assignNewHandle(file, target));
+                } catch(HandleException | IOException ex) {
+                    failure.set(ex);
+                }
+            }
+        });
+        assigner.start();
+        
+        Runnable checksumTask = checksumTasks.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Checksum should have been started", checksumTask);
+        Thread.sleep(50);
+        assertTrue("Assignment should be waiting for the checksum", assigner.isAlive());
+        assertEquals("No handle should have been created yet", 0, server.size());
+        
+        checksumTask.run();
+        assigner.join(10000);
+        
+        assertNull("Unexpected failure", failure.get());
+        HandleValue[] values = server.resolveHandle(handle.get().toString(), null, null);
+        assertEquals("Checksum different from expected", Checksum.create(file.toString()),
+                HandleValues.getDataByType(values, HandleConstants.CHECKSUM_TYPE));
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(values, HandleConstants.URL_TYPE));
+    }
+    
+    @Test
+    public void checksumIsCancelledForInvalidHandle() throws HandleException, IOException {
+        
+        try {
+            handleManager.assignHandle(file, URI.create("hdl:99999/00-AAAA"), target);
+            fail("should have thrown an exception");
+        } catch(IllegalArgumentException ex) {
+            // expected
+        }
+        
+        Runnable checksumTask = checksumTasks.poll();
+        assertTrue("Checksum should have been cancelled", ((Future<?>) checksumTask).isCancelled());
+        assertEquals("No handle should have been created", 0, server.size());
+    }
+    
+    @Test
+    public void handleIsNotCreatedIfServerIsUnavailable() throws HandleException, IOException {
+        
+        server.setFailureRate(1.0, HandleException.CANNOT_CONNECT_TO_SERVER);
+        
+        try {
+            Future<HandleValue[]> values = new HandleInfoProviderImpl(prefix).prepareHandleInformation(file, target);
+            new HandleUtil(server).createHandle(prefix + "/00-AAAA", values);
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.CANNOT_CONNECT_TO_SERVER, ex.getCode());
+        }
+        assertEquals("No handle should have been created", 0, server.size());
+    }
+    
+    @Test
+    public void unreadableFileFailsWithIOException() throws HandleException {
+        
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        handleInfoProvider.setExtraDigestAlgorithms(Arrays.asList(MultiDigest.SHA_256));
+        File missingFile = new File(testFolder.getRoot(), "missing.cmdi");
+        
+        try {
+            Future<HandleValue[]> values = handleInfoProvider.prepareHandleInformation(missingFile, target);
+            new HandleUtil(server).createHandle(prefix + "/00-AAAA", values);
+            fail("should have thrown an exception");
+        } catch(IOException ex) {
+            // expected
+        }
+        assertEquals("No handle should have been created", 0, server.size());
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleAssignmentListener;
+import nl.mpi.handle.util.HandleChangeListener;
+import nl.mpi.handle.util.TargetUriMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class DirectoryHandleAssignerTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    
+    private InMemoryHandleServer server;
+    private HandleManagerImpl handleManager;
+    private DirectoryHandleAssigner assigner;
+    private Path root;
+    
+    private final TargetUriMapper targetUriMapper = new TargetUriMapper() {
+        @Override
+        public URI getTargetUri(Path file) {
+            return URI.create("http://server/archive/" + root.relativize(file).toString().replace(File.separatorChar, '/'));
+        }
+    };
+    
+    public DirectoryHandleAssignerTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        server = new InMemoryHandleServer();
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        handleManager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl(prefix), new HandleUtil(server), prefix);
+        assigner = new DirectoryHandleAssigner(handleInfoProvider, handleManager, 2, 3, 4);
+        root = testFolder.getRoot().toPath();
+        for(int i = 0; i < 5; i++) {
+            Path folder = Files.createDirectories(root.resolve("folder" + i).resolve("sub"));
+            for(int j = 0; j < 5; j++) {
+                Files.write(folder.resolve("file" + j + ".txt"), ("content " + i + j).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+    
+    
+    @Test
+    public void assignHandlesToAllFiles() throws IOException, InterruptedException, HandleException {
+        
+        StringWriter manifest = new StringWriter();
+        ManifestHandleAssignmentListener listener = new ManifestHandleAssignmentListener(manifest);
+        
+        long assigned = assigner.assignHandles(root, targetUriMapper, listener);
+        
+        assertEquals("Number of assigned handles different from expected", 25, assigned);
+        assertEquals("Number of stored handles different from expected", 25, server.size());
+        assertEquals("Number of failures different from expected", 0, listener.getFailedCount());
+        String[] lines = manifest.toString().split("\n");
+        assertEquals("Number of manifest lines different from expected", 25, lines.length);
+        String[] columns = lines[0].split("\t");
+        assertEquals("Number of columns different from expected", 3, columns.length);
+        assertTrue("Handle should have the prefix", columns[1].startsWith(prefix + "/"));
+        String url = HandleValues.getDataByType(server.resolveHandle(columns[1], null, null), HandleConstants.URL_TYPE);
+        assertEquals("Target URI different from expected", targetUriMapper.getTargetUri(new File(columns[0]).toPath()).toString(), url);
+    }
+    
+    @Test
+    public void failuresAreReported() throws IOException, InterruptedException {
+        
+        server.setFailureRate(1, HandleException.SERVER_ERROR);
+        StringWriter manifest = new StringWriter();
+        ManifestHandleAssignmentListener listener = new ManifestHandleAssignmentListener(manifest);
+        
+        long assigned = assigner.assignHandles(root, targetUriMapper, listener);
+        
+        assertEquals("Number of assigned handles different from expected", 0, assigned);
+        assertEquals("Number of failures different from expected", 25, listener.getFailedCount());
+        assertTrue("Manifest should report the failures", manifest.toString().startsWith("# FAILED"));
+    }
+    
+    @Test
+    public void changeListenersAreNotified() throws IOException, InterruptedException {
+        
+        final AtomicInteger created = new AtomicInteger();
+        handleManager.addChangeListener(new HandleChangeListener() {
+            @Override
+            public void handleCreated(String handle, HandleValue[] values) {
+                created.incrementAndGet();
+            }
+            @Override
+            public void handleUpdated(String handle, HandleValue[] values) {
+            }
+            @Override
+            public void handleDeleted(String handle) {
+            }
+        });
+        
+        long assigned = assigner.assignHandles(root, targetUriMapper, new ManifestHandleAssignmentListener(new StringWriter()));
+        
+        assertEquals("Number of notified creations different from expected", assigned, created.get());
+    }
+    
+    @Test
+    public void interruptedAssignmentStopsStages() throws InterruptedException {
+        
+        final TargetUriMapper slowMapper = new TargetUriMapper() {
+            @Override
+            public URI getTargetUri(Path file) {
+                try {
+                    Thread.sleep(200);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return targetUriMapper.getTargetUri(file);
+            }
+        };
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assigner.assignHandles(root, slowMapper, new ManifestHandleAssignmentListener(new StringWriter()));
+                } catch(IOException | InterruptedException ex) {
+                    failure.set(ex);
+                }
+            }
+        };
+        caller.start();
+        Thread.sleep(100);
+        caller.interrupt();
+        caller.join(5000);
+        
+        assertFalse("Interrupted assignment should have returned", caller.isAlive());
+        assertNotNull("Interrupted assignment should have failed", failure.get());
+    }
+    
+    @Test
+    public void failingListenerDoesNotStopAssignment() throws IOException, InterruptedException {
+        
+        final AtomicInteger notified = new AtomicInteger();
+        HandleAssignmentListener listener = new HandleAssignmentListener() {
+            @Override
+            public void handleAssigned(Path file, URI handle, String checksum) {
+                notified.incrementAndGet();
+                throw new IllegalStateException("listener failure");
+            }
+            @Override
+            public void assignmentFailed(Path file, Exception cause) {
+                throw new IllegalStateException("listener failure");
+            }
+        };
+        
+        long assigned = assigner.assignHandles(root, targetUriMapper, listener);
+        
+        assertEquals("Number of assigned handles different from expected", 25, assigned);
+        assertEquals("Number of notifications different from expected", 25, notified.get());
+    }
+    
+    @Test(timeout = 10000)
+    public void failingWorkersStopAssignment() throws InterruptedException {
+        
+        TargetUriMapper failingMapper = new TargetUriMapper() {
+            @Override
+            public URI getTargetUri(Path file) {
+                throw new AssertionError("mapper failure");
+            }
+        };
+        
+        try {
+            assigner.assignHandles(root, failingMapper, new ManifestHandleAssignmentListener(new StringWriter()));
+            fail("should have thrown an exception");
+        } catch(IOException ex) {
+            assertTrue("Cause different from expected", ex.getCause() instanceof AssertionError);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.FixityAuditListener;
+import nl.mpi.handle.util.HandleOperation;
+import nl.mpi.handle.util.LocalFileMapper;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class FixityAuditorTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private InMemoryHandleServer server;
+    private List<String> handles;
+    private Path checkpointFile;
+    private RecordingListener listener;
+    
+    private final LocalFileMapper fileMapper = new LocalFileMapper() {
+        @Override
+        public Path getLocalFile(URI targetUri) {
+            return "file".equals(targetUri.getScheme()) ? Paths.get(targetUri) : null;
+        }
+    };
+    
+    public FixityAuditorTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException, HandleException {
+        server = new InMemoryHandleServer();
+        handles = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            Path file = testFolder.newFile("file" + i + ".cmdi").toPath();
+            Files.write(file, ("content of file " + i).getBytes(StandardCharsets.UTF_8));
+            String checksum = MultiDigest.digest(file.toFile(), Collections.singletonList(MultiDigest.MD5)).get(MultiDigest.MD5);
+            String handle = String.format("11142/00-%04d", i);
+            server.createHandle(handle, new HandleValue[] {
+                new HandleValue(HandleConstants.URL_INDEX, bytes(HandleConstants.URL_TYPE), bytes(file.toUri().toString())),
+                new HandleValue(HandleConstants.FILESIZE_INDEX, bytes(HandleConstants.FILESIZE_TYPE), bytes(Long.toString(Files.size(file)))),
+                new HandleValue(HandleConstants.CHECKSUM_INDEX, bytes(HandleConstants.CHECKSUM_TYPE), bytes(checksum))
+            });
+            handles.add(handle);
+        }
+        checkpointFile = testFolder.getRoot().toPath().resolve("audit.checkpoint");
+        listener = new RecordingListener();
+    }
+    
+    
+    @Test
+    public void mismatchesAreReported() throws IOException, InterruptedException {
+        
+        // same size, different content
+        Files.write(file(3), "CONTENT of file 3".getBytes(StandardCharsets.UTF_8));
+        // different size
+        Files.write(file(7), "truncated".getBytes(StandardCharsets.UTF_8));
+        // no local file
+        Files.delete(file(11));
+        List<String> toAudit = new ArrayList<>(handles);
+        toAudit.add("11142/missing");
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), fileMapper, 4);
+        long audited = auditor.audit(toAudit.iterator(), listener);
+        
+        assertEquals("Number of audited handles different from expected", 21, audited);
+        assertEquals("Number of verified files different from expected", 17, auditor.getVerifiedCount());
+        assertEquals("Number of mismatches different from expected", 2, auditor.getMismatchCount());
+        assertEquals("Number of failures different from expected", 2, auditor.getFailedCount());
+        assertEquals("Mismatched handles different from expected",
+                set(handles.get(3), handles.get(7)), listener.mismatched);
+        assertEquals("Failed handles different from expected",
+                set(handles.get(11), "11142/missing"), listener.failed);
+        assertFalse("Content mismatch should have been detected by checksum", listener.sizeMismatched.contains(handles.get(3)));
+        assertTrue("Size mismatch should have been detected without reading", listener.sizeMismatched.contains(handles.get(7)));
+    }
+    
+    @Test
+    public void auditResumesFromCheckpoint() throws IOException, InterruptedException {
+        
+        Files.write(checkpointFile, Arrays.asList("12", handles.get(11)), StandardCharsets.UTF_8);
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), fileMapper, 2);
+        auditor.setCheckpoint(checkpointFile, 5);
+        long audited = auditor.audit(handles.iterator(), listener);
+        
+        assertEquals("Number of audited handles different from expected", 8, audited);
+        assertEquals("Verified handles different from expected", 
+                set(handles.subList(12, 20).toArray(new String[0])), listener.verified);
+        assertFalse("Checkpoint should have been deleted after the audit", Files.exists(checkpointFile));
+        assertEquals("Number of resolved handles different from expected", 8, server.getOperationCount(HandleOperation.RESOLVE));
+    }
+    
+    @Test
+    public void checkpointNotMatchingHandlesIsRejected() throws IOException, InterruptedException {
+        
+        Files.write(checkpointFile, Arrays.asList("12", handles.get(5)), StandardCharsets.UTF_8);
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), fileMapper, 2);
+        auditor.setCheckpoint(checkpointFile, 5);
+        try {
+            auditor.audit(handles.iterator(), listener);
+            fail("should have thrown an exception");
+        } catch(IOException ex) {
+            assertTrue("No handle should have been audited", listener.verified.isEmpty());
+            assertTrue("Checkpoint should have been kept", Files.exists(checkpointFile));
+        }
+    }
+    
+    @Test
+    public void rateLimitedAuditVerifiesAllFiles() throws IOException, InterruptedException {
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), fileMapper, 4);
+        auditor.setByteRateLimit(100000);
+        auditor.setReadRateLimit(1000);
+        auditor.setCheckpoint(checkpointFile, 3);
+        long audited = auditor.audit(handles.iterator(), listener);
+        
+        assertEquals("Number of audited handles different from expected", 20, audited);
+        assertEquals("Number of verified files different from expected", 20, auditor.getVerifiedCount());
+        assertFalse("Checkpoint should have been deleted after the audit", Files.exists(checkpointFile));
+    }
+    
+    @Test
+    public void extraDigestsAreVerifiedWhenPresent() throws Exception {
+        
+        String sha256 = MultiDigest.digest(file(2).toFile(), Collections.singletonList(MultiDigest.SHA_256)).get(MultiDigest.SHA_256);
+        String sha256Type = HandleInfoProviderImpl.getChecksumType(MultiDigest.SHA_256);
+        server.addHandleValues(handles.get(2), new HandleValue[] {
+            new HandleValue(HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX, bytes(sha256Type), bytes(sha256))
+        });
+        server.addHandleValues(handles.get(4), new HandleValue[] {
+            new HandleValue(HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX, bytes(sha256Type), bytes(sha256))
+        });
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), fileMapper, 4);
+        auditor.setExtraDigestAlgorithms(Arrays.asList(MultiDigest.SHA_256));
+        auditor.audit(handles.iterator(), listener);
+        
+        assertEquals("Number of verified files different from expected", 19, auditor.getVerifiedCount());
+        assertEquals("Mismatched handles different from expected", set(handles.get(4)), listener.mismatched);
+        assertEquals("Expected checksum different from expected", sha256, listener.expectedChecksums.get(handles.get(4)));
+    }
+    
+    @Test
+    public void interruptedReadIsNeitherReportedNorCompleted() throws Exception {
+        
+        final String interruptedUrl = file(5).toUri().toString();
+        LocalFileMapper interruptingMapper = new LocalFileMapper() {
+            @Override
+            public Path getLocalFile(URI targetUri) {
+                if(interruptedUrl.equals(targetUri.toString())) {
+                    // as if the audit were aborted right before reading the file
+                    Thread.currentThread().interrupt();
+                }
+                return fileMapper.getLocalFile(targetUri);
+            }
+        };
+        
+        FixityAuditor auditor = new FixityAuditor(new HandleUtil(server), interruptingMapper, 1);
+        auditor.audit(handles.iterator(), listener);
+        
+        assertEquals("Number of verified files different from expected", 19, auditor.getVerifiedCount());
+        assertEquals("Number of failures different from expected", 0, auditor.getFailedCount());
+        assertFalse("Interrupted handle should not be verified", listener.verified.contains(handles.get(5)));
+    }
+    
+    
+    private Path file(int i) {
+        return testFolder.getRoot().toPath().resolve("file" + i + ".cmdi");
+    }
+    
+    private static Set<String> set(String... values) {
+        Set<String> set = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        set.addAll(Arrays.asList(values));
+        return set;
+    }
+    
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    private static class RecordingListener implements FixityAuditListener {
+        
+        final Set<String> verified = set();
+        final Set<String> mismatched = set();
+        final Set<String> sizeMismatched = set();
+        final Set<String> failed = set();
+        final Map<String, String> expectedChecksums = new ConcurrentHashMap<>();
+        
+        @Override
+        public void fixityVerified(String handle, Path file) {
+            verified.add(handle);
+        }
+        @Override
+        public void fixityMismatch(String handle, Path file, String expectedChecksum, String actualChecksum,
+                long expectedSize, long actualSize) {
+            mismatched.add(handle);
+            expectedChecksums.put(handle, expectedChecksum);
+            if(actualChecksum == null) {
+                sizeMismatched.add(handle);
+            }
+        }
+        @Override
+        public void verificationFailed(String handle, Exception cause) {
+            failed.add(handle);
+        }
+    }
+}
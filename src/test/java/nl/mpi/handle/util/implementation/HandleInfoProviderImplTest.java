@@ -16,16 +16,26 @@
  */
 package nl.mpi.handle.util.implementation;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.sql.Timestamp;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
 import java.util.UUID;
 import net.handle.hdllib.AdminRecord;
 import net.handle.hdllib.HandleValue;
 import net.handle.hdllib.Util;
 import nl.mpi.handle.util.HandleInfoProvider;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
 import nl.mpi.util.Checksum;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnitRuleMockery;
@@ -163,6 +173,28 @@ public class HandleInfoProviderImplTest {
         }
     }
 
+    @Test
+    public void retrieveHandleInformationFromStream() throws URISyntaxException, IOException {
+        
+        final URI uri = new URI("http://server/archive/upload.cmdi");
+        final long lastModifiedLong = Calendar.getInstance().getTimeInMillis();
+        final Timestamp lastModified = new Timestamp(lastModifiedLong);
+        final byte[] content = "abc".getBytes(StandardCharsets.US_ASCII);
+        
+        HandleValue[] retrievedHandleValues = new HandleInfoProviderImpl(prefix).createHandleInformation(
+                new ByteArrayInputStream(content), lastModifiedLong, uri);
+        
+        assertTrue("Retrieved handle values array has size different from expected", retrievedHandleValues.length == 7);
+        assertEquals("File time different from expected", lastModified.toString(),
+                HandleValues.getDataByType(retrievedHandleValues, HandleConstants.FILETIME_TYPE));
+        assertEquals("Checksum different from expected", "900150983cd24fb0d6963f7d28e17f72",
+                HandleValues.getDataByType(retrievedHandleValues, HandleConstants.CHECKSUM_TYPE));
+        assertEquals("File size different from expected", Integer.toString(content.length),
+                HandleValues.getDataByType(retrievedHandleValues, HandleConstants.FILESIZE_TYPE));
+        assertEquals("URL different from expected", uri.toString(),
+                HandleValues.getDataByType(retrievedHandleValues, HandleConstants.URL_TYPE));
+    }
+
     @Test
     public void generateHandle() {
         
@@ -198,6 +230,28 @@ public class HandleInfoProviderImplTest {
         assertTrue("Result should be true", result);
     }
     
+    @Test
+    public void handleIsValidUuidWithSecureLongPrefix() {
+        
+        final String handleWithValidUuid = HandleConstants.HDL_SECURE_LONG_PROXY + prefixWithSlash + UUID.randomUUID().toString().toUpperCase();
+        
+        boolean result = handleInfoRetriever.handleIsValidUuid(handleWithValidUuid);
+        
+        assertTrue("Result should be true", result);
+    }
+    
+    @Test
+    public void handleIsValidUuidWithConfiguredLongProxy() {
+        
+        final String longProxy = "https://pid.example.org/";
+        final String handleWithValidUuid = longProxy + prefixWithSlash + UUID.randomUUID().toString().toUpperCase();
+        HandleInfoProviderImpl provider = new HandleInfoProviderImpl(prefix, Arrays.asList(longProxy));
+        
+        assertTrue("Result should be true", provider.handleIsValidUuid(handleWithValidUuid));
+        assertTrue("Parser should agree with the provider",
+                new HandleParserImpl(prefix, Arrays.asList(longProxy)).isHandleUriWithKnownPrefix(URI.create(handleWithValidUuid)));
+    }
+    
     @Test
     public void handleIsInvalidUuid() {
         
@@ -207,4 +261,37 @@ public class HandleInfoProviderImplTest {
         
         assertFalse("Result should be false", result);
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void providerIsSerializableWithTracerMetricsAndClock() throws IOException, ClassNotFoundException {
+        
+        HandleInfoProviderImpl provider = new HandleInfoProviderImpl(prefix);
+        // none of these is serializable
+        provider.setTracer(new HandleTracer(new HandleSpanExporter() {
+            @Override
+            public void export(List<HandleSpan> spans) {
+            }
+        }));
+        provider.setMetrics(new InMemoryHandleMetrics());
+        provider.setClock(new BatchHandleClock());
+        
+        HandleInfoProviderImpl deserialized = serializeAndDeserialize(provider);
+        
+        // the transient tracer and metrics are restored as disabled, and the clock as the system one
+        byte[] content = "some content".getBytes(StandardCharsets.UTF_8);
+        HandleValue[] values = deserialized.createHandleInformation(new ByteArrayInputStream(content), null, URI.create("http://server/archive/target.cmdi"));
+        assertEquals("File size different from expected", Integer.toString(content.length),
+                HandleValues.getDataByType(values, HandleConstants.FILESIZE_TYPE));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T serializeAndDeserialize(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+}
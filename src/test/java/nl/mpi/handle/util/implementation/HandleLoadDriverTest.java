@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HandleLoadDriverTest {
+    
+    public HandleLoadDriverTest() {
+    }
+    
+    
+    @Test
+    public void runAgainstInMemoryServer() throws IOException, InterruptedException {
+        
+        Map<String, String> options = new HashMap<>();
+        options.put("threads", "4");
+        options.put("duration", "0.5");
+        options.put("mix", "assign:60,update:20,resolve:20");
+        options.put("files", "3");
+        options.put("sizes", "10-1000");
+        options.put("latency", "100-500");
+        HandleLoadDriver driver = new HandleLoadDriver(options);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        
+        long completed = driver.run(new PrintStream(output, true, "UTF-8"));
+        
+        assertTrue("Some operations should have been completed", completed > 0);
+        assertEquals("There should be no errors", 0, driver.getErrorCount());
+        assertTrue("Some handles should have been assigned", driver.getLatencies(HandleLoadDriver.Operation.ASSIGN).getCount() > 0);
+        String report = output.toString("UTF-8");
+        assertTrue("Report should include the operation latencies: " + report, report.contains("ASSIGN"));
+        assertTrue("Report should include the phase latencies: " + report, report.contains("phase.checksum"));
+    }
+    
+    @Test
+    public void targetRateIsRespected() throws IOException, InterruptedException {
+        
+        Map<String, String> options = new HashMap<>();
+        options.put("threads", "4");
+        options.put("duration", "0.5");
+        options.put("rate", "100");
+        options.put("files", "1");
+        options.put("sizes", "10-10");
+        HandleLoadDriver driver = new HandleLoadDriver(options);
+        
+        long completed = driver.run(new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"));
+        
+        assertTrue("Number of completed operations (" + completed + ") different from expected", completed >= 45 && completed <= 55);
+    }
+    
+    @Test
+    public void latenciesAreRecordedUnderOperationPerformed() throws IOException, InterruptedException {
+        
+        Map<String, String> options = new HashMap<>();
+        options.put("threads", "2");
+        options.put("duration", "0.3");
+        options.put("mix", "delete:100");
+        options.put("files", "1");
+        options.put("sizes", "10-10");
+        options.put("failures", "0.2");
+        HandleLoadDriver driver = new HandleLoadDriver(options);
+        
+        long completed = driver.run(new PrintStream(new ByteArrayOutputStream(), true, "UTF-8"));
+        
+        long assigned = driver.getLatencies(HandleLoadDriver.Operation.ASSIGN).getCount();
+        long deleted = driver.getLatencies(HandleLoadDriver.Operation.DELETE).getCount();
+        assertTrue("Deletions without handles should have been measured as assignments", assigned > 0);
+        assertTrue("Some handles should have been deleted", deleted > 0);
+        assertTrue("Some operations should have failed", driver.getErrorCount() > 0);
+        assertEquals("Failed operations should not be in the latencies",
+                completed - driver.getErrorCount(), assigned + deleted);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMix() {
+        
+        Map<String, String> options = new HashMap<>();
+        options.put("mix", "assign");
+        new HandleLoadDriver(options);
+    }
+}
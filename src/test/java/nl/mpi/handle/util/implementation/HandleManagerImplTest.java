@@ -16,16 +16,27 @@
  */
 package nl.mpi.handle.util.implementation;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
 import net.handle.hdllib.HandleException;
 import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleChangeListener;
 import nl.mpi.handle.util.HandleInfoProvider;
 import nl.mpi.handle.util.HandleParser;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
 import org.jmock.Expectations;
 import org.jmock.auto.Mock;
 import org.jmock.integration.junit4.JUnitRuleMockery;
@@ -37,6 +48,7 @@ import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.powermock.core.classloader.annotations.PrepareForTest;
 import org.powermock.modules.junit4.PowerMockRunner;
@@ -54,6 +66,7 @@ public class HandleManagerImplTest {
     @Rule public JUnitRuleMockery context = new JUnitRuleMockery() {{
         setImposteriser(ClassImposteriser.INSTANCE);
     }};
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
     
     private HandleManagerImpl handleManager;
     
@@ -428,4 +441,72 @@ public class HandleManagerImplTest {
             assertEquals("Exception different from expected", expectedException, ex);
         }
     }
-}
\ No newline at end of file
+    
+    @Test
+    public void managerIsSerializableWithTracerAndMetrics() throws IOException, ClassNotFoundException {
+        
+        HandleManagerImpl manager = new HandleManagerImpl(new HandleInfoProviderImpl(prefix), new HandleParserImpl(prefix),
+                new HandleUtil("/some/key/file", "300", "0.NA/11142", "null"), prefix);
+        // none of these are serializable
+        manager.setTracer(new HandleTracer(new HandleSpanExporter() {
+            @Override
+            public void export(List<HandleSpan> spans) {
+            }
+        }));
+        manager.setMetrics(new InMemoryHandleMetrics());
+        HandleChangeListener listener = new HandleChangeListener() {
+            @Override
+            public void handleCreated(String handle, HandleValue[] values) {
+            }
+            @Override
+            public void handleUpdated(String handle, HandleValue[] values) {
+            }
+            @Override
+            public void handleDeleted(String handle) {
+            }
+        };
+        manager.addChangeListener(listener);
+        
+        HandleManagerImpl deserialized = serializeAndDeserialize(manager);
+        
+        assertNotNull("Deserialized manager should not be null", deserialized);
+        // the transient listeners are restored as an empty list
+        deserialized.addChangeListener(listener);
+    }
+    
+    @Test
+    public void legacyHandleIsUpdatedWithExtraDigests() throws Exception {
+        
+        File file = testFolder.newFile("abc.cmdi");
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.US_ASCII));
+        InMemoryHandleServer server = new InMemoryHandleServer();
+        HandleUtil handleUtil = new HandleUtil(server);
+        HandleInfoProviderImpl legacyProvider = new HandleInfoProviderImpl("11142");
+        HandleManagerImpl legacyManager = new HandleManagerImpl(legacyProvider, new HandleParserImpl("11142"), handleUtil, "11142");
+        URI handle = legacyManager.assignNewHandle(file, URI.create("http://server/abc.cmdi"));
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl("11142");
+        handleInfoProvider.setExtraDigestAlgorithms(Arrays.asList(MultiDigest.SHA_256));
+        HandleManagerImpl manager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl("11142"), handleUtil, "11142");
+        
+        manager.updateHandle(file, handle, URI.create("http://server/moved/abc.cmdi"));
+        manager.updateHandle(file, handle, URI.create("http://server/moved/again/abc.cmdi"));
+        
+        HandleValue[] values = server.resolveHandle(handle.toString(), null, null);
+        assertEquals("Number of values different from expected", 8, values.length);
+        assertEquals("URL different from expected", "http://server/moved/again/abc.cmdi",
+                HandleValues.getDataByType(values, HandleConstants.URL_TYPE));
+        assertEquals("SHA-256 different from expected", "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+                HandleValues.getDataByType(values, "CHECKSUM_SHA256"));
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T serializeAndDeserialize(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+}
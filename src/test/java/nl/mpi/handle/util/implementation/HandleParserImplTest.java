@@ -18,6 +18,7 @@ package nl.mpi.handle.util.implementation;
 
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.UUID;
 import nl.mpi.handle.util.HandleParser;
@@ -925,4 +926,24 @@ public class HandleParserImplTest {
         assertEquals("no scheme or proxy", "1234/5678", handleParser.getHandleWithoutProxy("1234/5678"));
         assertEquals("starts with slash", "1234/5678", handleParser.getHandleWithoutProxy("/1234/5678"));
     }
+    
+    @Test
+    public void getHandleWithoutOtherProxies() {
+        assertEquals("secure global proxy", "1234/5678", handleParser.getHandleWithoutProxy("https://hdl.handle.net/1234/5678"));
+        assertEquals("upper case hdl scheme", "1234/5678", handleParser.getHandleWithoutProxy("HDL:1234/5678"));
+        assertEquals("unconfigured proxy", "https://doi.org/1234/5678", handleParser.getHandleWithoutProxy("https://doi.org/1234/5678"));
+        
+        HandleParserImpl doiParser = new HandleParserImpl(prefix,
+                Arrays.asList(HandleConstants.HDL_LONG_PROXY, HandleConstants.DOI_LONG_PROXY, HandleConstants.DOI_OLD_LONG_PROXY));
+        assertEquals("doi proxy", "1234/5678", doiParser.getHandleWithoutProxy("https://doi.org/1234/5678"));
+        assertEquals("old doi proxy", "1234/5678", doiParser.getHandleWithoutProxy("http://dx.doi.org/1234/5678"));
+        assertEquals("hdl scheme", "1234/5678", doiParser.getHandleWithoutProxy("hdl:1234/5678"));
+        assertEquals("secure global proxy not configured", "https://hdl.handle.net/1234/5678",
+                doiParser.getHandleWithoutProxy("https://hdl.handle.net/1234/5678"));
+        
+        URI doiHandle = URI.create(HandleConstants.DOI_LONG_PROXY + prefixWithSlash + "00-AAAA");
+        assertTrue("Handle with doi proxy should be valid", doiParser.isHandleUriWithKnownPrefix(doiHandle));
+        assertEquals("Handle with doi proxy prepared differently from expected",
+                URI.create(handleShortPrefix + "00-AAAA"), doiParser.prepareAndValidateHandleWithHdlPrefix(doiHandle));
+    }
 }
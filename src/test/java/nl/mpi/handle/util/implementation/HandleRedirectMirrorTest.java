@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import net.handle.hdllib.HandleException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleRedirectMirrorTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private Path mirrorFile;
+    
+    public HandleRedirectMirrorTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        mirrorFile = testFolder.getRoot().toPath().resolve("redirects.mirror");
+    }
+    
+    
+    @Test
+    public void putGetAndRemove() throws IOException {
+        
+        try (HandleRedirectMirror mirror = new HandleRedirectMirror(mirrorFile, prefix, 100)) {
+            mirror.put("00-AAAA", "http://server/archive/a.cmdi");
+            mirror.put("00-bbbb", "http://server/archive/b.cmdi");
+            mirror.put("00-aaaa", "http://server/archive/moved.cmdi");
+            
+            assertEquals("Size different from expected", 2, mirror.size());
+            assertEquals("URL different from expected", "http://server/archive/moved.cmdi", mirror.getUrl("00-AaAa"));
+            assertEquals("URL different from expected", "http://server/archive/b.cmdi", mirror.getUrl("00-BBBB"));
+            assertNull("Unknown handle should have no URL", mirror.getUrl("00-CCCC"));
+            
+            assertTrue("Handle should have been removed", mirror.remove("00-aaaa"));
+            assertFalse("Handle should have been removed already", mirror.remove("00-aaaa"));
+            assertNull("Removed handle should have no URL", mirror.getUrl("00-aaaa"));
+            assertEquals("Size different from expected", 1, mirror.size());
+            
+            mirror.put("00-aaaa", "http://server/archive/back.cmdi");
+            assertEquals("URL different from expected", "http://server/archive/back.cmdi", mirror.getUrl("00-aaaa"));
+            assertEquals("Size different from expected", 2, mirror.size());
+        }
+    }
+    
+    @Test
+    public void growsAndSurvivesReopening() throws IOException {
+        
+        try (HandleRedirectMirror mirror = new HandleRedirectMirror(mirrorFile, prefix, 1)) {
+            for(int i = 0; i < 5000; i++) {
+                mirror.put("00-" + i, "http://server/archive/file" + i + ".cmdi");
+            }
+            for(int i = 0; i < 5000; i += 2) {
+                mirror.remove("00-" + i);
+            }
+        }
+        
+        try (HandleRedirectMirror mirror = new HandleRedirectMirror(mirrorFile, prefix, 1)) {
+            assertEquals("Size different from expected", 2500, mirror.size());
+            for(int i = 0; i < 5000; i++) {
+                String expected = i % 2 == 0 ? null : "http://server/archive/file" + i + ".cmdi";
+                assertEquals("URL different from expected", expected, mirror.getUrl("00-" + i));
+            }
+        }
+    }
+    
+    @Test
+    public void readsDuringChanges() throws IOException, InterruptedException {
+        
+        try (final HandleRedirectMirror mirror = new HandleRedirectMirror(mirrorFile, prefix, 16)) {
+            mirror.put("00-fixed", "http://server/archive/fixed.cmdi");
+            
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<String> wrongUrl = new AtomicReference<>();
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(!done.get()) {
+                        String url = mirror.getUrl("00-fixed");
+                        if(!"http://server/archive/fixed.cmdi".equals(url)) {
+                            wrongUrl.set(url);
+                        }
+                        // being changed: either absent or one of the URLs written for it
+                        String changingUrl = mirror.getUrl("00-7");
+                        if(changingUrl != null && (!changingUrl.matches("http://server/archive/file[0-9]+\\.cmdi")
+                                || Integer.parseInt(changingUrl.replaceAll("[^0-9]", "")) % 3000 != 7)) {
+                            wrongUrl.set(changingUrl);
+                        }
+                    }
+                }
+            });
+            reader.start();
+            for(int i = 0; i < 20000; i++) {
+                mirror.put("00-" + (i % 3000), "http://server/archive/file" + i + ".cmdi");
+            }
+            done.set(true);
+            reader.join();
+            
+            assertNull("Reader got an unexpected URL", wrongUrl.get());
+            assertEquals("Size different from expected", 3001, mirror.size());
+        }
+    }
+    
+    @Test
+    public void followsManagerChanges() throws IOException, HandleException {
+        
+        HandleManagerImpl handleManager = new HandleManagerImpl(new HandleInfoProviderImpl(prefix),
+                new HandleParserImpl(prefix), new HandleUtil(new InMemoryHandleServer()), prefix);
+        File file = testFolder.newFile("target.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+        
+        try (HandleRedirectMirror mirror = new HandleRedirectMirror(mirrorFile, prefix, 100)) {
+            handleManager.addChangeListener(mirror);
+            
+            URI handle = handleManager.assignNewHandle(file, URI.create("http://server/archive/target.cmdi"));
+            String suffix = handle.toString().substring(prefix.length() + 1);
+            assertEquals("URL different from expected", "http://server/archive/target.cmdi", mirror.getUrl(suffix));
+            
+            handleManager.updateHandle(file, handle, URI.create("http://server/archive/moved.cmdi"));
+            assertEquals("URL different from expected", "http://server/archive/moved.cmdi", mirror.getUrl(suffix));
+            
+            handleManager.deleteHandle(handle);
+            assertNull("Deleted handle should have no URL", mirror.getUrl(suffix));
+        }
+    }
+}
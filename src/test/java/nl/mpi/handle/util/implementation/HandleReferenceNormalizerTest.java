@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleReferenceNormalizerTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final HandleParserImpl handleParser = new HandleParserImpl("11142");
+    private final HandleReferenceNormalizer normalizer = new HandleReferenceNormalizer(handleParser);
+    
+    public HandleReferenceNormalizerTest() {
+    }
+    
+    
+    @Test
+    public void rewritesReferencesWithKnownPrefix() {
+        
+        String input = "<ResourceRef>http://hdl.handle.net/11142/00-AAAA</ResourceRef>\n"
+                + "<MdSelfLink>http://hdl.handle.net/11142/00-BBBB</MdSelfLink>";
+        String expected = "<ResourceRef>hdl:11142/00-AAAA</ResourceRef>\n"
+                + "<MdSelfLink>hdl:11142/00-BBBB</MdSelfLink>";
+        
+        assertEquals("Normalised text different from expected", expected, normalizer.normalize(input));
+    }
+    
+    @Test
+    public void rewritesSecureProxyReferences() {
+        
+        String input = "<ref>https://hdl.handle.net/11142/00-AAAA</ref> <ref>HTTP://HDL.HANDLE.NET/11142/00-BBBB</ref> "
+                + "<ref>https://hdl.handle.nethttps://hdl.handle.net/11142/00-CCCC</ref>";
+        String expected = "<ref>hdl:11142/00-AAAA</ref> <ref>hdl:11142/00-BBBB</ref> "
+                + "<ref>https://hdl.handle.nethdl:11142/00-CCCC</ref>";
+        
+        assertEquals("Normalised text different from expected", expected, normalizer.normalize(input));
+    }
+    
+    @Test
+    public void leavesOtherTextUntouched() {
+        
+        String input = "http://hdl.handle.net/99999/00-AAAA http://hdl.handle.net/11142/ "
+                + "http://hdl.handle.net/11142/a/b hdl:11142/00-CCCC http://hdl.handle.net/1114 "
+                + "http://hdl.handle.net/http://hdl.handle.net/11142/00-DDDD\n"
+                + "http://hdl.handle.net/11142";
+        String expected = "http://hdl.handle.net/99999/00-AAAA http://hdl.handle.net/11142/ "
+                + "http://hdl.handle.net/11142/a/b hdl:11142/00-CCCC http://hdl.handle.net/1114 "
+                + "http://hdl.handle.net/hdl:11142/00-DDDD\n"
+                + "http://hdl.handle.net/11142";
+        
+        assertEquals("Normalised text different from expected", expected, normalizer.normalize(input));
+    }
+    
+    @Test
+    public void agreesWithParser() throws IOException {
+        
+        String[] references = {"00-AAAA", "1839/00-AAAA", "00-AAAA?urlappend=x", "00_b.c"};
+        for(String reference : references) {
+            URI uri = URI.create("http://hdl.handle.net/11142/" + reference);
+            String expected;
+            try {
+                expected = handleParser.prepareAndValidateHandleWithHdlPrefix(uri).toString();
+            } catch(IllegalArgumentException ex) {
+                expected = uri.toString();
+            }
+            assertEquals("Normalised reference different from expected", "\"" + expected + "\"",
+                    normalizer.normalize("\"" + uri + "\""));
+        }
+    }
+    
+    @Test
+    public void streamsAcrossBufferBoundaries() throws IOException {
+        
+        StringBuilder input = new StringBuilder();
+        StringBuilder expected = new StringBuilder();
+        for(int i = 0; i < 3000; i++) {
+            input.append("<ref>http://hdl.handle.net/11142/00-").append(i).append("</ref>");
+            expected.append("<ref>hdl:11142/00-").append(i).append("</ref>");
+        }
+        
+        // reader returning few characters at a time, so that references are split between reads
+        Reader reader = new StringReader(input.toString()) {
+            @Override
+            public int read(char[] buffer, int offset, int length) throws IOException {
+                return super.read(buffer, offset, Math.min(length, 7));
+            }
+        };
+        StringWriter writer = new StringWriter();
+        
+        assertEquals("Number of rewritten references different from expected", 3000, normalizer.normalize(reader, writer));
+        assertEquals("Normalised text different from expected", expected.toString(), writer.toString());
+    }
+    
+    @Test
+    public void normalizesFilesInParallel() throws IOException, InterruptedException {
+        
+        List<Path> files = new ArrayList<>();
+        for(int i = 0; i < 10; i++) {
+            Path file = testFolder.newFile("file" + i + ".cmdi").toPath();
+            String content = i % 2 == 0 ? "<ref>http://hdl.handle.net/11142/00-" + i + "</ref>" : "<ref>hdl:11142/00-" + i + "</ref>";
+            Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+            files.add(file);
+        }
+        
+        assertEquals("Number of rewritten references different from expected", 5,
+                normalizer.normalizeFiles(files, StandardCharsets.UTF_8, 3));
+        for(int i = 0; i < files.size(); i++) {
+            assertEquals("File content different from expected", "<ref>hdl:11142/00-" + i + "</ref>",
+                    new String(Files.readAllBytes(files.get(i)), StandardCharsets.UTF_8));
+        }
+        assertEquals("Temporary files should have been removed", 10, testFolder.getRoot().list().length);
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.ValueReference;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleRegistryDumpTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private InMemoryHandleServer source;
+    private List<String> handles;
+    
+    public HandleRegistryDumpTest() {
+    }
+    
+    @Before
+    public void setUp() throws HandleException {
+        source = new InMemoryHandleServer();
+        handles = new ArrayList<>();
+        for(int i = 0; i < 250; i++) {
+            String handle = String.format("11142/00-%04d", i);
+            source.createHandle(handle, new HandleValue[] {
+                new HandleValue(HandleConstants.URL_INDEX, bytes(HandleConstants.URL_TYPE), bytes("http://server/archive/file" + i + ".cmdi")),
+                new HandleValue(HandleConstants.CHECKSUM_INDEX, bytes(HandleConstants.CHECKSUM_TYPE), bytes("checksum" + i))
+            });
+            handles.add(handle);
+        }
+    }
+    
+    
+    @Test
+    public void compressedDumpRoundTrip() throws IOException, HandleException, InterruptedException {
+        checkRoundTrip(true);
+    }
+    
+    @Test
+    public void uncompressedDumpRoundTrip() throws IOException, HandleException, InterruptedException {
+        checkRoundTrip(false);
+    }
+    
+    @Test
+    public void missingHandlesAreSkipped() throws IOException, InterruptedException {
+        
+        Path dumpFile = testFolder.getRoot().toPath().resolve("handles.dump");
+        HandleRegistryDump dump = new HandleRegistryDump(new HandleUtil(source), 2);
+        
+        long exported;
+        try (HandleDumpWriter writer = new HandleDumpWriter(dumpFile, true, 10)) {
+            List<String> toExport = new ArrayList<>(handles.subList(0, 5));
+            toExport.add("11142/missing");
+            exported = dump.exportHandles(toExport.iterator(), writer);
+        }
+        
+        assertEquals("Number of exported handles different from expected", 5, exported);
+        assertEquals("Number of failed handles different from expected", 1, dump.getFailedCount());
+        try (HandleDumpReader reader = new HandleDumpReader(dumpFile)) {
+            assertEquals("Number of records different from expected", 5, reader.getRecordCount());
+            assertNull("Missing handle should not be in the dump", reader.find("11142/missing"));
+        }
+    }
+    
+    @Test
+    public void permissionsTtlAndReferencesAreKept() throws IOException {
+        
+        Path dumpFile = testFolder.getRoot().toPath().resolve("handles.dump");
+        HandleValue secret = new HandleValue(300, bytes("HS_SECKEY"), bytes("secret"), HandleValue.TTL_TYPE_ABSOLUTE, 1234, 1445000000,
+                new ValueReference[] { new ValueReference(bytes("0.NA/11142"), 200) }, true, false, false, false);
+        try (HandleDumpWriter writer = new HandleDumpWriter(dumpFile, true, 10)) {
+            writer.write("11142/secret", new HandleValue[] { secret });
+        }
+        
+        try (HandleDumpReader reader = new HandleDumpReader(dumpFile)) {
+            HandleValue[] found = reader.find("11142/secret");
+            assertNotNull("Handle should be in the dump", found);
+            assertEquals("Number of values different from expected", 1, found.length);
+            HandleValue copy = found[0];
+            assertEquals("Index different from expected", 300, copy.getIndex());
+            assertEquals("Data different from expected", "secret", copy.getDataAsString());
+            assertEquals("TTL type different from expected", HandleValue.TTL_TYPE_ABSOLUTE, copy.getTTLType());
+            assertEquals("TTL different from expected", 1234, copy.getTTL());
+            assertEquals("Timestamp different from expected", 1445000000, copy.getTimestamp());
+            assertTrue("Admin read permission different from expected", copy.getAdminCanRead());
+            assertFalse("Admin write permission different from expected", copy.getAdminCanWrite());
+            assertFalse("Public read permission different from expected", copy.getAnyoneCanRead());
+            assertFalse("Public write permission different from expected", copy.getAnyoneCanWrite());
+            assertEquals("Number of references different from expected", 1, copy.getReferences().length);
+            assertEquals("Reference handle different from expected", "0.NA/11142",
+                    new String(copy.getReferences()[0].handle, StandardCharsets.UTF_8));
+            assertEquals("Reference index different from expected", 200, copy.getReferences()[0].index);
+        }
+    }
+    
+    @Test(expected = IOException.class)
+    public void truncatedDumpIsRejected() throws IOException {
+        
+        Path dumpFile = testFolder.getRoot().toPath().resolve("handles.dump");
+        try (HandleDumpWriter writer = new HandleDumpWriter(dumpFile, false, 10)) {
+            writer.write(handles.get(0), source.resolveHandle(handles.get(0), null, null));
+        } catch(HandleException ex) {
+            fail("Unexpected exception: " + ex);
+        }
+        byte[] content = Files.readAllBytes(dumpFile);
+        Files.write(dumpFile, Arrays.copyOf(content, content.length - 3));
+        
+        new HandleDumpReader(dumpFile).close();
+    }
+    
+    
+    private void checkRoundTrip(boolean compressed) throws IOException, HandleException, InterruptedException {
+        
+        Path dumpFile = testFolder.getRoot().toPath().resolve("handles.dump");
+        
+        long exported;
+        try (HandleDumpWriter writer = new HandleDumpWriter(dumpFile, compressed, 100)) {
+            exported = new HandleRegistryDump(new HandleUtil(source), 4).exportHandles(handles.iterator(), writer);
+        }
+        assertEquals("Number of exported handles different from expected", handles.size(), exported);
+        
+        InMemoryHandleServer target = new InMemoryHandleServer();
+        try (HandleDumpReader reader = new HandleDumpReader(dumpFile)) {
+            assertEquals("Number of blocks different from expected", 3, reader.getBlockCount());
+            assertEquals("Number of records different from expected", handles.size(), reader.getRecordCount());
+            
+            HandleValue[] found = reader.find("11142/00-0123");
+            assertNotNull("Handle should be in the dump", found);
+            assertEquals("URL different from expected", "http://server/archive/file123.cmdi",
+                    HandleValues.getDataByType(found, HandleConstants.URL_TYPE));
+            
+            HandleRegistryDump dump = new HandleRegistryDump(new HandleUtil(target), 4);
+            assertEquals("Number of imported handles different from expected", handles.size(), dump.importHandles(reader));
+            assertEquals("Number of failed handles different from expected", 0, dump.getFailedCount());
+        }
+        
+        assertEquals("Number of handles in the target different from expected", handles.size(), target.size());
+        for(String handle : handles) {
+            HandleValue[] expected = source.resolveHandle(handle, null, null);
+            HandleValue[] actual = target.resolveHandle(handle, null, null);
+            assertEquals("Number of values different from expected", expected.length, actual.length);
+            for(HandleValue value : expected) {
+                HandleValue copy = HandleValues.findByType(actual, value.getTypeAsString());
+                assertNotNull("Value missing from the imported handle", copy);
+                assertEquals("Index different from expected", value.getIndex(), copy.getIndex());
+                assertEquals("Data different from expected", value.getDataAsString(), copy.getDataAsString());
+            }
+        }
+    }
+    
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
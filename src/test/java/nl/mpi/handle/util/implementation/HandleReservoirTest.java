@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleAssignmentListener;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleReservoirTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private final URI placeholder = URI.create("http://server/reserved");
+    private final URI target = URI.create("http://server/archive/target.cmdi");
+    
+    private InMemoryHandleServer server;
+    private HandleInfoProviderImpl handleInfoProvider;
+    private HandleUtil handleUtil;
+    private HandleManagerImpl handleManager;
+    private Path journalFile;
+    private File file;
+    private HandleReservoir reservoir;
+    
+    public HandleReservoirTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        server = new InMemoryHandleServer();
+        handleInfoProvider = new HandleInfoProviderImpl(prefix);
+        handleUtil = new HandleUtil(server);
+        handleManager = new HandleManagerImpl(handleInfoProvider, new HandleParserImpl(prefix), handleUtil, prefix);
+        journalFile = testFolder.getRoot().toPath().resolve("reservoir.journal");
+        file = testFolder.newFile("target.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        if(reservoir != null) {
+            reservoir.close();
+        }
+    }
+    
+    
+    @Test
+    public void reservoirIsFilledUpToLowWaterMark() throws Exception {
+        
+        reservoir = startReservoir(5, 5);
+        
+        assertTrue("Available handles should be at least the low-water mark", reservoir.getAvailableCount() >= 5);
+        assertEquals("Created handles different from expected", reservoir.getAvailableCount(), server.size());
+        assertEquals("Created count different from expected", (long) server.size(), reservoir.getCreatedCount());
+    }
+    
+    @Test
+    public void newHandleIsOnlyUpdated() throws Exception {
+        
+        reservoir = startReservoir(1, 5);
+        handleManager.setHandleReservoir(reservoir, null);
+        long creates = server.getOperationCount(HandleOperation.CREATE);
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        
+        assertEquals("Create operations different from expected", creates, server.getOperationCount(HandleOperation.CREATE));
+        assertEquals("Update operations different from expected", 1, server.getOperationCount(HandleOperation.UPDATE));
+        HandleValue[] values = server.resolveHandle(handle.toString(), null, null);
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(values, HandleConstants.URL_TYPE));
+        assertEquals("Claimed count different from expected", 1, reservoir.getClaimedCount());
+    }
+    
+    @Test
+    public void unclaimedHandlesAreReusedAfterRestart() throws Exception {
+        
+        reservoir = startReservoir(3, 3);
+        String claimed = reservoir.claim();
+        waitForAvailable(reservoir, 3);
+        reservoir.close();
+        List<String> unclaimed = new ArrayList<>();
+        reservoir = new HandleReservoir(handleInfoProvider, handleUtil, placeholder, journalFile, 3, 3);
+        int available = reservoir.getAvailableCount();
+        for(int i = 0; i < available; i++) {
+            unclaimed.add(reservoir.claim());
+        }
+        
+        assertEquals("Available handles different from expected", server.size() - 1, available);
+        assertFalse("Claimed handle should not be reused", unclaimed.contains(claimed));
+        for(String handle : unclaimed) {
+            assertNotNull("Unclaimed handle should exist: " + handle, server.resolveHandle(handle, null, null));
+        }
+    }
+    
+    @Test
+    public void newHandleIsGeneratedIfReservoirIsEmpty() throws Exception {
+        
+        reservoir = new HandleReservoir(handleInfoProvider, handleUtil, placeholder, journalFile, 3, 3);
+        handleManager.setHandleReservoir(reservoir, null);
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        
+        assertEquals("Create operations different from expected", 1, server.getOperationCount(HandleOperation.CREATE));
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(server.resolveHandle(handle.toString(), null, null), HandleConstants.URL_TYPE));
+    }
+    
+    @Test
+    public void newHandleIsGeneratedIfClaimFails() throws Exception {
+        
+        reservoir = startReservoir(1, 1);
+        handleManager.setHandleReservoir(reservoir, null);
+        reservoir.close();
+        long creates = server.getOperationCount(HandleOperation.CREATE);
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        
+        assertEquals("Create operations different from expected", creates + 1, server.getOperationCount(HandleOperation.CREATE));
+        assertEquals("Claimed count different from expected", 0, reservoir.getClaimedCount());
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(server.resolveHandle(handle.toString(), null, null), HandleConstants.URL_TYPE));
+    }
+    
+    @Test
+    public void interruptedClaimDoesNotCloseJournal() throws Exception {
+        
+        reservoir = startReservoir(3, 3);
+        String first;
+        try {
+            Thread.currentThread().interrupt();
+            first = reservoir.claim();
+        } finally {
+            assertTrue("Interrupt status should be restored", Thread.interrupted());
+        }
+        String second = reservoir.claim();
+        waitForAvailable(reservoir, 3);
+        reservoir.close();
+        reservoir = new HandleReservoir(handleInfoProvider, handleUtil, placeholder, journalFile, 3, 3);
+        List<String> unclaimed = new ArrayList<>();
+        int available = reservoir.getAvailableCount();
+        for(int i = 0; i < available; i++) {
+            unclaimed.add(reservoir.claim());
+        }
+        
+        assertNotNull("Handle should have been claimed", first);
+        assertEquals("Available handles different from expected", server.size() - 2, available);
+        assertFalse("Claimed handle should not be reused", unclaimed.contains(first));
+        assertFalse("Claimed handle should not be reused", unclaimed.contains(second));
+    }
+    
+    @Test
+    public void missingReservedHandleIsCreated() throws Exception {
+        
+        reservoir = startReservoir(1, 1);
+        handleManager.setHandleReservoir(reservoir, null);
+        server.clear();
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(server.resolveHandle(handle.toString(), null, null), HandleConstants.URL_TYPE));
+    }
+    
+    @Test
+    public void reservedHandleIsUpdatedLater() throws Exception {
+        
+        final List<Runnable> updates = new ArrayList<>();
+        reservoir = startReservoir(2, 2);
+        handleManager.setHandleReservoir(reservoir, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                updates.add(task);
+            }
+        });
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        
+        assertEquals("URL different from expected", placeholder.toString(),
+                HandleValues.getDataByType(server.resolveHandle(handle.toString(), null, null), HandleConstants.URL_TYPE));
+        assertEquals("Deferred updates different from expected", 1, updates.size());
+        updates.get(0).run();
+        assertEquals("URL different from expected", target.toString(),
+                HandleValues.getDataByType(server.resolveHandle(handle.toString(), null, null), HandleConstants.URL_TYPE));
+    }
+    
+    @Test
+    public void failedDeferredUpdateIsRetriedAndReported() throws Exception {
+        
+        final List<Runnable> updates = new ArrayList<>();
+        final List<Exception> failures = new ArrayList<>();
+        reservoir = startReservoir(2, 2);
+        handleManager.setHandleReservoir(reservoir, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                updates.add(task);
+            }
+        });
+        handleManager.setDeferredUpdateRetry(3, 0);
+        handleManager.setDeferredUpdateFailureListener(new HandleAssignmentListener() {
+            @Override
+            public void handleAssigned(Path file, URI handle, String checksum) {
+            }
+            @Override
+            public void assignmentFailed(Path file, Exception cause) {
+                failures.add(cause);
+            }
+        });
+        
+        URI handle = handleManager.assignNewHandle(file, target);
+        server.setFailureRate(1, HandleException.SERVER_ERROR);
+        long updatesBefore = server.getOperationCount(HandleOperation.UPDATE);
+        updates.get(0).run();
+        
+        assertEquals("Number of update attempts different from expected", 3, server.getOperationCount(HandleOperation.UPDATE) - updatesBefore);
+        assertEquals("Number of reported failures different from expected", 1, failures.size());
+        assertTrue("Failure should name the reserved handle", failures.get(0).getMessage().contains(handle.toString()));
+    }
+    
+    
+    private HandleReservoir startReservoir(int lowWaterMark, int batchSize) throws IOException, InterruptedException {
+        HandleReservoir newReservoir = new HandleReservoir(handleInfoProvider, handleUtil, placeholder, journalFile, lowWaterMark, batchSize);
+        newReservoir.start();
+        // the first batch is complete
+        waitForAvailable(newReservoir, Math.max(lowWaterMark, batchSize));
+        return newReservoir;
+    }
+    
+    private void waitForAvailable(HandleReservoir reservoir, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(reservoir.getAvailableCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("Reservoir was not filled in time", reservoir.getAvailableCount() >= count);
+    }
+}
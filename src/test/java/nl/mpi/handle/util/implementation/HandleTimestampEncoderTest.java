@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Random;
+import java.util.TimeZone;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleClock;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleTimestampEncoderTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    public HandleTimestampEncoderTest() {
+    }
+    
+    
+    @Test
+    public void sameFormatAsTimestamp() {
+        
+        TimeZone defaultTimeZone = TimeZone.getDefault();
+        try {
+            for(String zone : new String[] {"UTC", "Europe/Amsterdam", "America/St_Johns", "Asia/Kathmandu", "Pacific/Apia"}) {
+                TimeZone.setDefault(TimeZone.getTimeZone(zone));
+                HandleTimestampEncoder encoder = new HandleTimestampEncoder();
+                
+                long[] times = {0, 5, 120, 100, -1, 1428062400123L, 1427590800000L, 253402300799999L, -2208988800000L, -62135596800000L};
+                for(long time : times) {
+                    assertEquals("Time different from expected (" + zone + ")", new Timestamp(time).toString(), encoder.format(time));
+                }
+                Random random = new Random(zone.hashCode());
+                for(int i = 0; i < 20000; i++) {
+                    long time = (long) (random.nextDouble() * 5000000000000L) - 1000000000000L;
+                    assertEquals("Time different from expected (" + zone + ")", new Timestamp(time).toString(), encoder.format(time));
+                    assertArrayEquals("Bytes different from expected (" + zone + ")",
+                            new Timestamp(time).toString().getBytes(StandardCharsets.UTF_8), encoder.encode(time));
+                }
+            }
+        } finally {
+            TimeZone.setDefault(defaultTimeZone);
+        }
+    }
+    
+    @Test
+    public void batchClockGivesSameCrawlTime() throws IOException {
+        
+        final long[] now = {1428062400123L};
+        BatchHandleClock clock = new BatchHandleClock(new HandleClock() {
+            @Override
+            public long currentTimeMillis() {
+                return now[0];
+            }
+        });
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl("11142");
+        handleInfoProvider.setClock(clock);
+        File file = testFolder.newFile("target.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+        
+        HandleValue[] first = handleInfoProvider.createHandleInformation(file, URI.create("http://server/archive/target.cmdi"));
+        now[0] += 5000;
+        HandleValue[] second = handleInfoProvider.createHandleInformation(file, URI.create("http://server/archive/target.cmdi"));
+        clock.startBatch();
+        HandleValue[] third = handleInfoProvider.createHandleInformation(file, URI.create("http://server/archive/target.cmdi"));
+        
+        assertEquals("Crawl time different from expected", new Timestamp(1428062400123L).toString(),
+                HandleValues.getDataByType(first, HandleConstants.CRAWLTIME_TYPE));
+        assertEquals("Crawl time should be the same within a batch",
+                HandleValues.getDataByType(first, HandleConstants.CRAWLTIME_TYPE), HandleValues.getDataByType(second, HandleConstants.CRAWLTIME_TYPE));
+        assertEquals("Crawl time different from expected", new Timestamp(1428062405123L).toString(),
+                HandleValues.getDataByType(third, HandleConstants.CRAWLTIME_TYPE));
+        assertEquals("File time different from expected", new Timestamp(file.lastModified()).toString(),
+                HandleValues.getDataByType(first, HandleConstants.FILETIME_TYPE));
+    }
+}
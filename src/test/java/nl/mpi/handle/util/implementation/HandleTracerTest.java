@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleTracerTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final List<List<HandleSpan>> exportedTraces = new ArrayList<>();
+    private final HandleSpanExporter collectingExporter = new HandleSpanExporter() {
+        @Override
+        public void export(List<HandleSpan> spans) {
+            exportedTraces.add(spans);
+        }
+    };
+    
+    public HandleTracerTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        exportedTraces.clear();
+    }
+    
+    
+    @Test
+    public void nestedSpansFormOneTrace() {
+        
+        HandleTracer tracer = new HandleTracer(collectingExporter);
+        
+        HandleSpan root = tracer.startSpan("assignNewHandle");
+        HandleSpan child = tracer.startSpan("checksum");
+        assertSame("Current span different from expected", child, HandleTracer.getCurrentSpan());
+        child.close();
+        assertSame("Current span different from expected", root, HandleTracer.getCurrentSpan());
+        HandleSpan otherChild = tracer.startSpan("createHandle", "11142/00-ABCD");
+        otherChild.close();
+        
+        assertTrue("Trace should not be exported before root is closed", exportedTraces.isEmpty());
+        root.close();
+        
+        assertNull("There should be no current span", HandleTracer.getCurrentSpan());
+        assertEquals("Number of exported traces different from expected", 1, exportedTraces.size());
+        List<HandleSpan> spans = exportedTraces.get(0);
+        assertEquals("Number of spans different from expected", 3, spans.size());
+        assertSame("Last span should be the root", root, spans.get(2));
+        for(HandleSpan span : spans) {
+            assertEquals("Trace id different from expected", root.getTraceId(), span.getTraceId());
+        }
+        assertEquals("Parent different from expected", root.getSpanId(), child.getParentId());
+        assertEquals("Parent different from expected", 0, root.getParentId());
+        assertEquals("Detail different from expected", "11142/00-ABCD", otherChild.getDetail());
+    }
+    
+    @Test
+    public void childFinishingAfterRootIsExportedOnItsOwn() throws InterruptedException {
+        
+        final HandleTracer tracer = new HandleTracer(collectingExporter);
+        
+        final HandleSpan root = tracer.startSpan("assignNewHandle");
+        final List<HandleSpan> lateChild = new ArrayList<>();
+        root.close();
+        Thread deferred = new Thread() {
+            @Override
+            public void run() {
+                HandleSpan previous = HandleTracer.attach(root);
+                try (HandleSpan span = tracer.startSpan("updateReservedHandle")) {
+                    lateChild.add(span);
+                } finally {
+                    HandleTracer.restore(previous);
+                }
+            }
+        };
+        deferred.start();
+        deferred.join();
+        
+        assertEquals("Number of exported traces different from expected", 2, exportedTraces.size());
+        assertEquals("Number of spans different from expected", 1, exportedTraces.get(0).size());
+        List<HandleSpan> late = exportedTraces.get(1);
+        assertEquals("Number of late spans different from expected", 1, late.size());
+        assertSame("Late span different from expected", lateChild.get(0), late.get(0));
+        assertEquals("Trace id different from expected", root.getTraceId(), late.get(0).getTraceId());
+        assertEquals("Parent different from expected", root.getSpanId(), late.get(0).getParentId());
+    }
+    
+    @Test
+    public void fastTracesAreDiscarded() {
+        
+        HandleTracer tracer = new HandleTracer(collectingExporter, 60000);
+        
+        try (HandleSpan span = tracer.startSpan("deleteHandle")) {
+            span.setDetail("11142/00-ABCD");
+        }
+        
+        assertTrue("Trace should have been discarded", exportedTraces.isEmpty());
+    }
+    
+    @Test
+    public void disabledTracerRecordsNothing() {
+        
+        HandleSpan span = HandleTracer.DISABLED.startSpan("assignNewHandle");
+        
+        assertSame("Disabled tracer should always return the same span", span, HandleTracer.DISABLED.startSpan("checksum"));
+        assertNull("There should be no current span", HandleTracer.getCurrentSpan());
+        span.close();
+    }
+    
+    @Test
+    public void attachSpanInAnotherThread() throws InterruptedException {
+        
+        final HandleTracer tracer = new HandleTracer(collectingExporter);
+        
+        HandleSpan root = tracer.startSpan("updateHandle");
+        final HandleSpan callerSpan = HandleTracer.getCurrentSpan();
+        Thread worker = new Thread() {
+            @Override
+            public void run() {
+                HandleSpan previous = HandleTracer.attach(callerSpan);
+                try (HandleSpan span = tracer.startSpan("server.UPDATE")) {
+                    // nothing to do
+                } finally {
+                    HandleTracer.restore(previous);
+                }
+            }
+        };
+        worker.start();
+        worker.join();
+        root.close();
+        
+        assertEquals("Number of spans different from expected", 2, exportedTraces.get(0).size());
+        assertEquals("Parent different from expected", root.getSpanId(), exportedTraces.get(0).get(0).getParentId());
+    }
+    
+    @Test
+    public void exportToJsonFile() throws IOException {
+        
+        File file = testFolder.newFile("spans.json");
+        HandleTracer tracer;
+        try (JsonFileSpanExporter exporter = new JsonFileSpanExporter(file)) {
+            tracer = new HandleTracer(exporter);
+            try (HandleSpan span = tracer.startSpan("assignHandle", "11142/\"quoted\"")) {
+                tracer.startSpan("checksum").close();
+            }
+        }
+        
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("Number of lines different from expected", 2, lines.size());
+        assertTrue("Line different from expected: " + lines.get(0), lines.get(0).contains("\"name\":\"checksum\",\"detail\":null"));
+        assertTrue("Line different from expected: " + lines.get(1), lines.get(1).contains("\"parent\":\"0\",\"name\":\"assignHandle\",\"detail\":\"11142/\\\"quoted\\\"\""));
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import net.handle.hdllib.HandleException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class HandleUrlIndexTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private final HandleParserImpl handleParser = new HandleParserImpl(prefix);
+    private Path indexFile;
+    private HandleUrlIndex index;
+    
+    public HandleUrlIndexTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException {
+        indexFile = testFolder.getRoot().toPath().resolve("urls.index");
+        index = new HandleUrlIndex(indexFile, handleParser);
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        index.close();
+    }
+    
+    
+    @Test
+    public void prefixQueryCombinesTableAndPendingChanges() throws IOException {
+        
+        index.put("11142/00-A", "http://server/archive/corpusA/session1/file1.wav");
+        index.put("11142/00-B", "http://server/archive/corpusA/session2/file2.wav");
+        index.put("11142/00-C", "http://server/archive/corpusB/file3.wav");
+        index.put("11142/00-D", "http://server/archive/corpusA/session1/file4.wav");
+        index.compact();
+        assertEquals("Number of pending changes different from expected", 0, index.getPendingCount());
+        
+        // moved out of the collection, added to it, removed
+        index.put("hdl:11142/00-d", "http://server/archive/corpusB/file4.wav");
+        index.put("11142/00-E", "http://server/archive/corpusA/session1/file0.wav");
+        index.remove("https://hdl.handle.net/11142/00-B");
+        
+        assertEquals("Handles under the prefix different from expected",
+                Arrays.asList("11142/00-E", "11142/00-A"), index.findHandles("http://server/archive/corpusA/"));
+        assertEquals("Handles under the prefix different from expected",
+                Arrays.asList("11142/00-C", "11142/00-D"), index.findHandles("http://server/archive/corpusB/"));
+        assertTrue("No handle should be found for an unknown prefix", index.findHandles("http://other/").isEmpty());
+        assertEquals("URL different from expected", "http://server/archive/corpusB/file4.wav", index.getUrl("11142/00-D"));
+        assertNull("Removed handle should not be in the index", index.getUrl("11142/00-B"));
+    }
+    
+    @Test
+    public void indexIsRestoredFromTableAndJournal() throws IOException {
+        
+        index.put("11142/00-A", "http://server/archive/corpusA/file1.wav");
+        index.put("11142/00-B", "http://server/archive/corpusA/file2.wav");
+        index.compact();
+        index.put("11142/00-C", "http://server/archive/corpusA/file3.wav");
+        index.remove("11142/00-A");
+        index.close();
+        
+        index = new HandleUrlIndex(indexFile, handleParser);
+        
+        assertEquals("Number of pending changes different from expected", 2, index.getPendingCount());
+        assertEquals("Handles under the prefix different from expected",
+                Arrays.asList("11142/00-B", "11142/00-C"), index.findHandles("http://server/archive/corpusA/"));
+    }
+    
+    @Test
+    public void prefixQuerySpansManyBlocks() throws IOException {
+        
+        index.setMaxPendingChanges(5000);
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < 20000; i++) {
+            String handle = String.format("11142/00-%05d", i);
+            // groups of three handles share a URL
+            String directory = "http://server/archive/corpus" + (i / 3 % 7) + "/";
+            index.put(handle, directory + "file" + (i / 3) + ".wav");
+            if(i / 3 % 7 == 3) {
+                expected.add(handle);
+            }
+        }
+        index.compact();
+        assertEquals("Number of pending changes different from expected", 0, index.getPendingCount());
+        
+        List<String> found = index.findHandles("http://server/archive/corpus3/");
+        List<String> sorted = new ArrayList<>(found);
+        Collections.sort(sorted);
+        assertEquals("Handles under the prefix different from expected", expected, sorted);
+        assertEquals("Handles sharing a URL different from expected",
+                Arrays.asList("11142/00-00003", "11142/00-00004", "11142/00-00005"),
+                index.findHandles("http://server/archive/corpus1/file1.wav"));
+        assertEquals("URL different from expected", "http://server/archive/corpus1/file3333.wav", index.getUrl("11142/00-10000"));
+    }
+    
+    @Test
+    public void changesDuringBackgroundCompactionAreKept() throws IOException {
+        
+        index.setMaxPendingChanges(100);
+        for(int i = 0; i < 2000; i++) {
+            index.put(String.format("11142/00-%05d", i), "http://server/archive/corpus/file" + i + ".wav");
+            if(i % 3 == 0) {
+                index.remove(String.format("11142/00-%05d", i / 2));
+            }
+        }
+        List<String> beforeCompaction = index.findHandles("http://server/archive/corpus/");
+        index.close();
+        index = new HandleUrlIndex(indexFile, handleParser);
+        index.compact();
+        
+        assertEquals("Number of pending changes different from expected", 0, index.getPendingCount());
+        assertEquals("Handles under the prefix different from expected",
+                beforeCompaction, index.findHandles("http://server/archive/corpus/"));
+        assertEquals("URL different from expected", "http://server/archive/corpus/file1999.wav", index.getUrl("11142/00-01999"));
+        assertNull("Removed handle should not be in the index", index.getUrl("11142/00-00999"));
+    }
+    
+    @Test
+    public void changesOfFailedCompactionRemainPending() throws IOException {
+        
+        index.put("11142/00-A", "http://server/archive/file1.wav");
+        index.put("11142/00-B", "http://server/archive/file2.wav");
+        // the new table cannot be written
+        Path tempFile = indexFile.resolveSibling("urls.index.tmp");
+        Files.createDirectory(tempFile);
+        Files.createFile(tempFile.resolve("blocking"));
+        try {
+            index.compact();
+            fail("should have thrown an exception");
+        } catch(IOException ex) {
+            // expected
+        }
+        index.put("11142/00-A", "http://server/archive/moved/file1.wav");
+        
+        assertEquals("Number of pending changes different from expected", 2, index.getPendingCount());
+        assertEquals("URL different from expected", "http://server/archive/moved/file1.wav", index.getUrl("11142/00-A"));
+        
+        Files.delete(tempFile.resolve("blocking"));
+        Files.delete(tempFile);
+        index.close();
+        index = new HandleUrlIndex(indexFile, handleParser);
+        index.compact();
+        assertEquals("Handles under the prefix different from expected",
+                Arrays.asList("11142/00-B", "11142/00-A"), index.findHandles("http://server/archive/"));
+    }
+    
+    @Test
+    public void journalOfInterruptedCompactionIsReplayed() throws IOException {
+        
+        index.close();
+        Path compactingJournal = indexFile.resolveSibling("urls.index.journal.compacting");
+        Path journal = indexFile.resolveSibling("urls.index.journal");
+        // the last line was interrupted while written
+        Files.write(compactingJournal, ("+\t11142/00-A\thttp://server/archive/file1.wav\n"
+                + "+\t11142/00-B\thttp://server/archive/file2.wav\n+\t11142/00-C").getBytes(StandardCharsets.UTF_8));
+        Files.write(journal, ("+\t11142/00-A\thttp://server/archive/moved/file1.wav\n"
+                + "+\t11142/00-D\thttp://server/archive/file4.wav\n").getBytes(StandardCharsets.UTF_8));
+        
+        index = new HandleUrlIndex(indexFile, handleParser);
+        
+        assertFalse("Journal of the compaction should have been merged", Files.exists(compactingJournal));
+        assertEquals("Handles under the prefix different from expected",
+                Arrays.asList("11142/00-B", "11142/00-D", "11142/00-A"), index.findHandles("http://server/archive/"));
+    }
+    
+    @Test
+    public void indexFollowsChangesThroughManager() throws IOException, HandleException {
+        
+        HandleManagerImpl handleManager = new HandleManagerImpl(new HandleInfoProviderImpl(prefix),
+                handleParser, new HandleUtil(new InMemoryHandleServer()), prefix);
+        handleManager.addChangeListener(index);
+        File file = testFolder.newFile("file.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+        
+        URI handle = handleManager.assignNewHandle(file, URI.create("http://server/archive/corpusA/file.cmdi"));
+        String key = handleParser.prepareAndValidateHandleWithoutProxy(handle).toString().toUpperCase(Locale.ROOT);
+        assertEquals("Handles under the prefix different from expected",
+                Collections.singletonList(key), index.findHandles("http://server/archive/corpusA/"));
+        
+        handleManager.updateHandle(file, handle, URI.create("http://server/archive/corpusB/file.cmdi"));
+        assertTrue("Moved handle should not be found under the old prefix", index.findHandles("http://server/archive/corpusA/").isEmpty());
+        assertEquals("Handles under the prefix different from expected",
+                Collections.singletonList(key), index.findHandles("http://server/archive/corpusB/"));
+        
+        handleManager.deleteHandle(handle);
+        assertTrue("Deleted handle should not be found", index.findHandles("http://server/").isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.handle.util.HandleSpan;
+import nl.mpi.handle.util.HandleSpanExporter;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HandleUtilTest {
+    
+    public HandleUtilTest() {
+    }
+    
+    
+    @Test
+    public void handleUtilIsSerializableWithTracerAndMetrics() throws IOException, ClassNotFoundException {
+        
+        HandleUtil handleUtil = new HandleUtil("/some/key/file", "300", "0.NA/11142", "null");
+        // neither of these is serializable, and both add inner interceptors
+        handleUtil.setTracer(new HandleTracer(new HandleSpanExporter() {
+            @Override
+            public void export(List<HandleSpan> spans) {
+            }
+        }));
+        handleUtil.setMetrics(new InMemoryHandleMetrics());
+        handleUtil.addCallInterceptor(new AdaptiveConcurrencyInterceptor(4, 1, 8));
+        
+        HandleUtil deserialized = serializeAndDeserialize(handleUtil);
+        
+        InMemoryHandleServer server = new InMemoryHandleServer();
+        assertSame("Api without interceptors different from expected", server,
+                new HandleUtil(server).decorateHandleApi(server));
+        assertNotSame("Interceptors should be kept after deserialization", server, deserialized.decorateHandleApi(server));
+    }
+    
+    @Test
+    public void deserializedHandleUtilWithGivenApiFailsClearly() throws IOException, ClassNotFoundException {
+        
+        HandleUtil deserialized = serializeAndDeserialize(new HandleUtil(new InMemoryHandleServer()));
+        
+        try {
+            deserialized.getHandleApi();
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.INTERNAL_ERROR, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void requestedTypesAndIndexesArePassedOn() throws HandleException {
+        
+        InMemoryHandleServer server = new InMemoryHandleServer();
+        HandleUtil handleUtil = new HandleUtil(server);
+        handleUtil.createHandle("11142/00-AAAA", new HandleValue[] {
+            new HandleValue(HandleConstants.URL_INDEX, bytes(HandleConstants.URL_TYPE), bytes("http://server/archive/file.cmdi")),
+            new HandleValue(HandleConstants.FILESIZE_INDEX, bytes(HandleConstants.FILESIZE_TYPE), bytes("123")),
+            new HandleValue(HandleConstants.CHECKSUM_INDEX, bytes(HandleConstants.CHECKSUM_TYPE), bytes("checksum"))
+        }, server);
+        
+        HandleValue[] byType = handleUtil.resolveHandle("11142/00-AAAA", new String[] {HandleConstants.FILESIZE_TYPE}, null, server);
+        assertEquals("Number of values different from expected", 1, byType.length);
+        assertEquals("Index different from expected", HandleConstants.FILESIZE_INDEX, byType[0].getIndex());
+        HandleValue[] byIndex = handleUtil.resolveHandle("11142/00-AAAA", null,
+                new int[] {HandleConstants.URL_INDEX, HandleConstants.CHECKSUM_INDEX}, server);
+        assertEquals("Number of values different from expected", 2, byIndex.length);
+        assertNull("Unrequested value should not be resolved", HandleValues.findByType(byIndex, HandleConstants.FILESIZE_TYPE));
+    }
+    
+    
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private static <T> T serializeAndDeserialize(T object) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            return (T) in.readObject();
+        }
+    }
+}
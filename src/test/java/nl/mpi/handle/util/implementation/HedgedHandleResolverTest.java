@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.Arrays;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.Util;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class HedgedHandleResolverTest {
+    
+    private final String handle = "11142/00-ABCD";
+    private final HandleValue[] values = {
+        new HandleValue(HandleConstants.URL_INDEX, Util.encodeString(HandleConstants.URL_TYPE), Util.encodeString("http://server/file"))
+    };
+    
+    private InMemoryHandleServer primary;
+    private InMemoryHandleServer mirror;
+    private HedgedHandleResolver resolver;
+    
+    public HedgedHandleResolverTest() {
+    }
+    
+    @Before
+    public void setUp() throws HandleException {
+        primary = new InMemoryHandleServer();
+        mirror = new InMemoryHandleServer();
+        primary.createHandle(handle, values);
+        mirror.createHandle(handle, values);
+        resolver = new HedgedHandleResolver(Arrays.asList(primary, mirror));
+        resolver.setHedgeDelayBounds(1, 1000);
+    }
+    
+    @After
+    public void tearDown() {
+        resolver.shutdown();
+    }
+    
+    
+    @Test
+    public void fastestServerIsPreferred() throws HandleException {
+        
+        primary.setLatency(HandleOperation.RESOLVE, 20000, 20000);
+        mirror.setLatency(HandleOperation.RESOLVE, 1000, 1000);
+        
+        for(int i = 0; i < 5; i++) {
+            resolver.resolveHandle(handle, null, null);
+        }
+        
+        assertEquals("Preferred server different from expected", 1, resolver.getPreferredServer());
+        assertTrue("Average latency of the mirror should be lower",
+                resolver.getAverageLatencyMicros(1) < resolver.getAverageLatencyMicros(0));
+    }
+    
+    @Test
+    public void slowServerIsHedged() throws HandleException {
+        
+        primary.setLatency(HandleOperation.RESOLVE, 1000, 2000);
+        mirror.setLatency(HandleOperation.RESOLVE, 5000, 6000);
+        for(int i = 0; i < 10; i++) {
+            resolver.resolveHandle(handle, null, null);
+        }
+        assertEquals("Preferred server different from expected", 0, resolver.getPreferredServer());
+        long hedgesBefore = resolver.getHedgeCount();
+        long winsBefore = resolver.getHedgeWinCount();
+        
+        // much slower than the test, so only the hedged request can answer
+        primary.setLatency(HandleOperation.RESOLVE, 30000000, 30000000);
+        HandleValue[] resolved = resolver.resolveHandle(handle, null, null);
+        
+        assertEquals("URL different from expected", "http://server/file",
+                HandleValues.getDataByType(resolved, HandleConstants.URL_TYPE));
+        assertEquals("Hedge count different from expected", hedgesBefore + 1, resolver.getHedgeCount());
+        assertEquals("Hedge win count different from expected", winsBefore + 1, resolver.getHedgeWinCount());
+    }
+    
+    @Test
+    public void failingServerIsReplacedImmediately() throws HandleException {
+        
+        primary.setFailureRate(1.0, HandleException.CANNOT_CONNECT_TO_SERVER);
+        
+        HandleValue[] resolved = resolver.resolveHandle(handle, null, null);
+        
+        assertEquals("Number of values different from expected", 1, resolved.length);
+        assertEquals("Hedge count different from expected", 0, resolver.getHedgeCount());
+        assertEquals("Mirror resolutions different from expected", 1, mirror.getOperationCount(HandleOperation.RESOLVE));
+    }
+    
+    @Test
+    public void missingHandleIsNotRetried() {
+        
+        try {
+            resolver.resolveHandle("11142/00-MISSING", null, null);
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_DOES_NOT_EXIST, ex.getCode());
+        }
+        assertEquals("Mirror resolutions different from expected", 0, mirror.getOperationCount(HandleOperation.RESOLVE));
+    }
+    
+    @Test
+    public void failureOfAllServersIsReported() {
+        
+        primary.setFailureRate(1.0, HandleException.CANNOT_CONNECT_TO_SERVER);
+        mirror.setFailureRate(1.0, HandleException.SERVER_ERROR);
+        
+        try {
+            resolver.resolveHandle(handle, null, null);
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.SERVER_ERROR, ex.getCode());
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleMetrics;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InMemoryHandleMetricsTest {
+    
+    private InMemoryHandleMetrics metrics;
+    
+    public InMemoryHandleMetricsTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        metrics = new InMemoryHandleMetrics();
+    }
+    
+    
+    @Test
+    public void recordLatencyAndCounters() {
+        
+        metrics.recordLatency(HandleMetrics.PHASE_CHECKSUM, 1000);
+        metrics.recordLatency(HandleMetrics.PHASE_CHECKSUM, 3000);
+        metrics.incrementCounter(HandleMetrics.ERROR_PREFIX + 7);
+        
+        assertEquals("Histogram count different from expected", 2, metrics.getHistogram(HandleMetrics.PHASE_CHECKSUM).getCount());
+        assertEquals("Counter different from expected", 1, metrics.getCounter(HandleMetrics.ERROR_PREFIX + 7));
+        assertEquals("Counter different from expected", 0, metrics.getCounter(HandleMetrics.ERROR_PREFIX + 9));
+        assertTrue("Report should contain the histogram", metrics.report().contains(HandleMetrics.PHASE_CHECKSUM + " count=2"));
+    }
+    
+    @Test
+    public void registerGauge() {
+        
+        metrics.registerGauge(HandleMetrics.POOL_PREFIX + "test", new HandleMetrics.Gauge() {
+            @Override
+            public long getValue() {
+                return 42;
+            }
+        });
+        
+        assertEquals("Gauge value different from expected", 42, metrics.getGauge(HandleMetrics.POOL_PREFIX + "test"));
+    }
+    
+    @Test
+    public void interceptorRecordsLatencyAndErrors() {
+        
+        MetricsHandleCallInterceptor interceptor = new MetricsHandleCallInterceptor(metrics);
+        
+        try {
+            interceptor.intercept(HandleOperation.CREATE, "11142/00-ABCD", new HandleCall<Void>() {
+                @Override
+                public Void call() throws HandleException {
+                    throw new HandleException(HandleException.HANDLE_ALREADY_EXISTS, "some exception message");
+                }
+            });
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_ALREADY_EXISTS, ex.getCode());
+        }
+        
+        assertEquals("Histogram count different from expected", 1,
+                metrics.getHistogram(HandleMetrics.OPERATION_PREFIX + HandleOperation.CREATE).getCount());
+        assertEquals("Counter different from expected", 1,
+                metrics.getCounter(HandleMetrics.ERROR_PREFIX + HandleException.HANDLE_ALREADY_EXISTS));
+    }
+}
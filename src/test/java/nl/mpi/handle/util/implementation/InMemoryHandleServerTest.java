@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import net.handle.hdllib.HandleException;
+import net.handle.hdllib.HandleValue;
+import net.handle.hdllib.Util;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class InMemoryHandleServerTest {
+    
+    private InMemoryHandleServer server;
+    
+    private final String prefix = "11142";
+    private final String handle = prefix + "/00-ABCD";
+    
+    public InMemoryHandleServerTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        server = new InMemoryHandleServer();
+    }
+    
+    
+    @Test
+    public void createAndResolveHandle() throws HandleException {
+        
+        server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/target.cmdi")});
+        
+        HandleValue[] values = server.resolveHandle(handle.toLowerCase(), null, null);
+        
+        assertEquals("Number of values different from expected", 1, values.length);
+        assertEquals("URL different from expected", "http://server/archive/target.cmdi", Util.decodeString(values[0].getData()));
+        assertEquals("Resolve count different from expected", 1, server.getOperationCount(HandleOperation.RESOLVE));
+    }
+    
+    @Test
+    public void createExistingHandle() throws HandleException {
+        
+        server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/target.cmdi")});
+        
+        try {
+            server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/other.cmdi")});
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_ALREADY_EXISTS, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void updateAddAndDeleteValues() throws HandleException {
+        
+        server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/target.cmdi")});
+        
+        server.updateHandleValues(handle, new HandleValue[] {urlValue("http://server/archive/moved.cmdi")});
+        server.addHandleValues(handle, new HandleValue[] {new HandleValue(3, Util.encodeString("FILESIZE"), Util.encodeString("1024"))});
+        
+        HandleValue[] sizeOnly = server.resolveHandle(handle, new String[] {"FILESIZE"}, null);
+        assertEquals("Number of values different from expected", 1, sizeOnly.length);
+        assertEquals("URL different from expected", "http://server/archive/moved.cmdi",
+                Util.decodeString(server.resolveHandle(handle, null, new int[] {1})[0].getData()));
+        
+        server.deleteHandleValues(handle, sizeOnly);
+        assertEquals("Number of values different from expected", 1, server.resolveHandle(handle, null, null).length);
+        
+        try {
+            server.addHandleValues(handle, new HandleValue[] {urlValue("http://server/archive/other.cmdi")});
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.INVALID_VALUE, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void deleteMissingHandle() {
+        
+        try {
+            server.deleteHandle(handle);
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_DOES_NOT_EXIST, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void injectedFailures() {
+        
+        server.setFailureRate(1, HandleException.SERVER_ERROR);
+        
+        try {
+            server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/target.cmdi")});
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.SERVER_ERROR, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void injectedLatency() throws HandleException {
+        
+        server.setLatency(HandleOperation.CREATE, 20000, 20000);
+        
+        long start = System.nanoTime();
+        server.createHandle(handle, new HandleValue[] {urlValue("http://server/archive/target.cmdi")});
+        
+        assertTrue("Call should have taken at least 20 ms", System.nanoTime() - start >= 20000000L);
+    }
+    
+    @Test
+    public void concurrentManagerOperations() throws Exception {
+        
+        final HandleManagerImpl handleManager = new HandleManagerImpl(
+                new HandleInfoProviderImpl(prefix), new HandleParserImpl(prefix), new HandleUtil(server), prefix);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<URI>> results = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            final URI target = URI.create("http://server/archive/target" + i + ".cmdi");
+            results.add(executor.submit(new Callable<URI>() {
+                @Override
+                public URI call() throws HandleException, IOException {
+                    URI newHandle = handleManager.assignNewHandle(null, target);
+                    handleManager.updateHandle(null, newHandle, URI.create(target + ".moved"));
+                    return newHandle;
+                }
+            }));
+        }
+        for(Future<URI> result : results) {
+            result.get();
+        }
+        executor.shutdown();
+        
+        assertEquals("Number of handles different from expected", 200, server.size());
+        assertEquals("Number of updates different from expected", 200, server.getOperationCount(HandleOperation.UPDATE));
+        
+        handleManager.deleteHandle(results.get(0).get());
+        assertEquals("Number of handles different from expected", 199, server.size());
+    }
+    
+    
+    private HandleValue urlValue(String url) {
+        return new HandleValue(1, Util.encodeString("URL"), Util.encodeString(url));
+    }
+}
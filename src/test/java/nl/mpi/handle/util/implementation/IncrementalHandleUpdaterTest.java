@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class IncrementalHandleUpdaterTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private final String prefix = "11142";
+    private final URI target = URI.create("http://server/archive/target.cmdi");
+    
+    private InMemoryHandleServer server;
+    private HandleUtil handleUtil;
+    private HandleManagerImpl handleManager;
+    private File file;
+    private URI handle;
+    
+    public IncrementalHandleUpdaterTest() {
+    }
+    
+    @Before
+    public void setUp() throws IOException, HandleException {
+        server = new InMemoryHandleServer();
+        handleUtil = new HandleUtil(server);
+        handleManager = new HandleManagerImpl(new HandleInfoProviderImpl(prefix), new HandleParserImpl(prefix), handleUtil, prefix);
+        file = testFolder.newFile("target.cmdi");
+        Files.write(file.toPath(), "some content".getBytes(StandardCharsets.UTF_8));
+        handle = handleManager.assignNewHandle(file, target);
+    }
+    
+    
+    @Test
+    public void unchangedFileIsSkipped() throws HandleException, IOException {
+        
+        IncrementalHandleUpdater updater = new IncrementalHandleUpdater(handleManager, handleUtil, null);
+        
+        assertFalse("Handle should not have been updated", updater.updateHandleIfChanged(file, handle, target));
+        assertEquals("Number of updates different from expected", 0, server.getOperationCount(HandleOperation.UPDATE));
+        assertEquals("Unchanged count different from expected", 1, updater.getUnchangedCount());
+    }
+    
+    @Test
+    public void modifiedOrMovedFileIsUpdated() throws HandleException, IOException {
+        
+        IncrementalHandleUpdater updater = new IncrementalHandleUpdater(handleManager, handleUtil, null);
+        
+        assertTrue("Handle should have been updated", updater.updateHandleIfChanged(file, handle, URI.create("http://server/archive/moved.cmdi")));
+        
+        Files.write(file.toPath(), "some other, longer content".getBytes(StandardCharsets.UTF_8));
+        assertTrue("Handle should have been updated", updater.updateHandleIfChanged(file, handle, URI.create("http://server/archive/moved.cmdi")));
+        
+        assertEquals("Number of updates different from expected", 2, server.getOperationCount(HandleOperation.UPDATE));
+        assertEquals("Updated count different from expected", 2, updater.getUpdatedCount());
+    }
+    
+    @Test
+    public void missingHandleIsAssigned() throws HandleException, IOException {
+        
+        IncrementalHandleUpdater updater = new IncrementalHandleUpdater(handleManager, handleUtil, null);
+        URI newHandle = URI.create(prefix + "/00-NEW");
+        
+        assertTrue("Handle should have been assigned", updater.updateHandleIfChanged(file, newHandle, target));
+        assertEquals("Number of handles different from expected", 2, server.size());
+    }
+    
+    @Test
+    public void snapshotIndexAvoidsResolving() throws HandleException, IOException {
+        
+        Path indexFile = testFolder.getRoot().toPath().resolve("snapshot.tsv");
+        IncrementalHandleUpdater firstCrawl = new IncrementalHandleUpdater(handleManager, handleUtil, HandleSnapshotIndex.load(indexFile));
+        assertFalse("Handle should not have been updated", firstCrawl.updateHandleIfChanged(file, handle, target));
+        
+        HandleSnapshotIndex index = new HandleSnapshotIndex();
+        index.record(handle.toString(), file, target.toString());
+        index.save(indexFile);
+        long resolvesBefore = server.getOperationCount(HandleOperation.RESOLVE);
+        
+        IncrementalHandleUpdater secondCrawl = new IncrementalHandleUpdater(handleManager, handleUtil, HandleSnapshotIndex.load(indexFile));
+        assertFalse("Handle should not have been updated", secondCrawl.updateHandleIfChanged(file, handle, target));
+        
+        assertEquals("Handle should not have been resolved", resolvesBefore, server.getOperationCount(HandleOperation.RESOLVE));
+    }
+}
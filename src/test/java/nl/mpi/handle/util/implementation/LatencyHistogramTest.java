@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+    
+    private LatencyHistogram histogram;
+    
+    public LatencyHistogramTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        histogram = new LatencyHistogram();
+    }
+    
+    
+    @Test
+    public void emptyHistogram() {
+        
+        assertEquals("Count different from expected", 0, histogram.getCount());
+        assertEquals("Min different from expected", 0, histogram.getMin());
+        assertEquals("Percentile different from expected", 0, histogram.getValueAtPercentile(99));
+    }
+    
+    @Test
+    public void smallValuesAreExact() {
+        
+        for(int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        
+        assertEquals("Count different from expected", 100, histogram.getCount());
+        assertEquals("Min different from expected", 1, histogram.getMin());
+        assertEquals("Max different from expected", 100, histogram.getMax());
+        assertEquals("Median different from expected", 50, histogram.getValueAtPercentile(50));
+        assertEquals("p99 different from expected", 99, histogram.getValueAtPercentile(99));
+        assertEquals("Mean different from expected", 50.5, histogram.getMean(), 0.001);
+    }
+    
+    @Test
+    public void largeValuesAreApproximate() {
+        
+        for(long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000000);
+        }
+        
+        long p90 = histogram.getValueAtPercentile(90);
+        long expectedP90 = 9000L * 1000000;
+        assertTrue("p90 (" + p90 + ") too far from expected", Math.abs(p90 - expectedP90) <= expectedP90 / 50);
+        assertEquals("p100 different from expected", 10000L * 1000000, histogram.getValueAtPercentile(100));
+    }
+    
+    @Test
+    public void addHistogram() {
+        
+        LatencyHistogram other = new LatencyHistogram();
+        histogram.record(10);
+        other.record(5);
+        other.record(20);
+        
+        histogram.add(other);
+        
+        assertEquals("Count different from expected", 3, histogram.getCount());
+        assertEquals("Min different from expected", 5, histogram.getMin());
+        assertEquals("Max different from expected", 20, histogram.getMax());
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidPercentile() {
+        histogram.getValueAtPercentile(101);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import net.handle.hdllib.HandleValue;
+import nl.mpi.util.Checksum;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import static org.junit.Assert.*;
+
+public class MultiDigestTest {
+    
+    @Rule public TemporaryFolder testFolder = new TemporaryFolder();
+    
+    private static final String ABC_MD5 = "900150983cd24fb0d6963f7d28e17f72";
+    private static final String ABC_SHA_256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+    private static final String ABC_CRC32 = "352441c2";
+    
+    public MultiDigestTest() {
+    }
+    
+    
+    @Test
+    public void allDigestsAreCalculated() {
+        
+        MultiDigest digest = new MultiDigest(Arrays.asList(MultiDigest.MD5, MultiDigest.SHA_256, MultiDigest.CRC32));
+        byte[] bytes = "abc".getBytes(StandardCharsets.US_ASCII);
+        digest.update(bytes, 0, bytes.length);
+        
+        Map<String, String> result = digest.finish();
+        
+        assertEquals("Algorithms different from expected",
+                Arrays.asList(MultiDigest.MD5, MultiDigest.SHA_256, MultiDigest.CRC32), Arrays.asList(result.keySet().toArray()));
+        assertEquals("MD5 different from expected", ABC_MD5, result.get(MultiDigest.MD5));
+        assertEquals("SHA-256 different from expected", ABC_SHA_256, result.get(MultiDigest.SHA_256));
+        assertEquals("CRC32 different from expected", ABC_CRC32, result.get(MultiDigest.CRC32));
+        assertEquals("Size different from expected", 3, digest.getSize());
+    }
+    
+    @Test
+    public void directBufferGivesSameDigests() {
+        
+        byte[] bytes = new byte[200000];
+        new Random(42).nextBytes(bytes);
+        MultiDigest fromArray = new MultiDigest(Arrays.asList(MultiDigest.SHA_256, MultiDigest.CRC32));
+        fromArray.update(bytes, 0, bytes.length);
+        MultiDigest fromBuffer = new MultiDigest(Arrays.asList(MultiDigest.SHA_256, MultiDigest.CRC32));
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        
+        fromBuffer.update(buffer);
+        
+        assertFalse("Buffer should have been consumed", buffer.hasRemaining());
+        assertEquals("Digests different from expected", fromArray.finish(), fromBuffer.finish());
+        assertEquals("Size different from expected", bytes.length, fromBuffer.getSize());
+    }
+    
+    @Test
+    public void fileIsDigested() throws IOException {
+        
+        File file = testFolder.newFile("abc.txt");
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.US_ASCII));
+        
+        Map<String, String> result = MultiDigest.digest(file, Arrays.asList(MultiDigest.SHA_256, MultiDigest.MD5));
+        
+        assertEquals("SHA-256 different from expected", ABC_SHA_256, result.get(MultiDigest.SHA_256));
+        assertEquals("MD5 different from expected", Checksum.create(file.toString()), result.get(MultiDigest.MD5));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownAlgorithmIsRejected() {
+        new MultiDigest(Arrays.asList("NO-SUCH-DIGEST"));
+    }
+    
+    @Test
+    public void extraDigestsAreStoredInHandleInformation() throws IOException {
+        
+        File file = testFolder.newFile("abc.cmdi");
+        Files.write(file.toPath(), "abc".getBytes(StandardCharsets.US_ASCII));
+        HandleInfoProviderImpl handleInfoProvider = new HandleInfoProviderImpl("11142");
+        handleInfoProvider.setExtraDigestAlgorithms(Arrays.asList(MultiDigest.SHA_256, MultiDigest.CRC32));
+        
+        HandleValue[] values = handleInfoProvider.createHandleInformation(file, URI.create("http://server/abc.cmdi"));
+        
+        assertEquals("Number of values different from expected", 9, values.length);
+        assertEquals("Checksum different from expected", ABC_MD5,
+                HandleValues.getDataByType(values, HandleConstants.CHECKSUM_TYPE));
+        assertEquals("SHA-256 different from expected", ABC_SHA_256,
+                HandleValues.getDataByType(values, "CHECKSUM_SHA256"));
+        assertEquals("CRC32 different from expected", ABC_CRC32,
+                HandleValues.getDataByType(values, "CHECKSUM_CRC32"));
+        assertEquals("Index different from expected", HandleConstants.EXTRA_CHECKSUM_FIRST_INDEX + 1, values[8].getIndex());
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class OrderedHandleExecutorTest {
+    
+    private final String prefix = "11142";
+    
+    private ExecutorService executor;
+    private RecordingHandleManager handleManager;
+    private OrderedHandleExecutor orderedExecutor;
+    
+    public OrderedHandleExecutorTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(4);
+        handleManager = new RecordingHandleManager();
+        orderedExecutor = new OrderedHandleExecutor(handleManager, new HandleParserImpl(prefix), executor, 16);
+    }
+    
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+    
+    
+    @Test
+    public void operationsOnSameHandleRunInOrder() throws Exception {
+        
+        List<Future<?>> futures = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            URI handle = URI.create("hdl:" + prefix + "/00-" + (i % 5));
+            futures.add(orderedExecutor.assignHandle(null, handle, target(i)));
+            futures.add(orderedExecutor.deleteHandle(handle));
+        }
+        for(Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        
+        for(int h = 0; h < 5; h++) {
+            List<String> operations = handleManager.getOperations(prefix + "/00-" + h);
+            assertEquals("Number of operations different from expected", 20, operations.size());
+            for(int i = 0; i < operations.size(); i++) {
+                String expected = (i % 2 == 0) ? "assign " + target(h + (i / 2) * 5) : "delete";
+                assertEquals("Operation different from expected", expected, operations.get(i));
+            }
+        }
+    }
+    
+    @Test
+    public void equivalentHandlesShareTheSameOrder() throws Exception {
+        
+        orderedExecutor.updateHandle(null, URI.create("hdl:" + prefix + "/00-aaaa"), target(1));
+        orderedExecutor.deleteHandle(URI.create("http://hdl.handle.net/" + prefix + "/00-AAAA"));
+        orderedExecutor.updateHandle(null, URI.create(prefix + "/00-AaAa"), target(2)).get(10, TimeUnit.SECONDS);
+        
+        assertEquals("Operations different from expected", 3, handleManager.getOperationCount());
+    }
+    
+    @Test
+    public void queuedUpdatesAreCoalesced() throws Exception {
+        
+        URI handle = URI.create("hdl:" + prefix + "/00-BBBB");
+        handleManager.block();
+        Future<Void> first = orderedExecutor.updateHandle(null, handle, target(0));
+        handleManager.awaitBlocked();
+        
+        Future<Void> second = orderedExecutor.updateHandle(null, handle, target(1));
+        Future<Void> third = orderedExecutor.updateHandle(null, handle, target(2));
+        handleManager.unblock();
+        first.get(10, TimeUnit.SECONDS);
+        second.get(10, TimeUnit.SECONDS);
+        
+        assertSame("Coalesced updates should share the same future", second, third);
+        assertEquals("Coalesced count different from expected", 1, orderedExecutor.getCoalescedCount());
+        assertEquals("Operations different from expected", Arrays.asList("update " + target(0), "update " + target(2)),
+                handleManager.getOperations(prefix + "/00-BBBB"));
+    }
+    
+    @Test
+    public void updatesAreNotCoalescedAcrossDeletion() throws Exception {
+        
+        URI handle = URI.create("hdl:" + prefix + "/00-CCCC");
+        handleManager.block();
+        orderedExecutor.deleteHandle(handle);
+        handleManager.awaitBlocked();
+        
+        Future<Void> first = orderedExecutor.updateHandle(null, handle, target(1));
+        orderedExecutor.deleteHandle(handle);
+        Future<Void> second = orderedExecutor.updateHandle(null, handle, target(2));
+        handleManager.unblock();
+        second.get(10, TimeUnit.SECONDS);
+        
+        assertNotSame("Updates should not be coalesced", first, second);
+        assertEquals("Coalesced count different from expected", 0, orderedExecutor.getCoalescedCount());
+        assertEquals("Number of operations different from expected", 4, handleManager.getOperations(prefix + "/00-CCCC").size());
+    }
+    
+    @Test
+    public void failureIsReportedInFuture() throws Exception {
+        
+        handleManager.failNext();
+        Future<Void> update = orderedExecutor.updateHandle(null, URI.create("hdl:" + prefix + "/00-EEEE"), target(1));
+        
+        try {
+            update.get(10, TimeUnit.SECONDS);
+            fail("should have thrown an exception");
+        } catch(ExecutionException ex) {
+            assertTrue("Cause different from expected", ex.getCause() instanceof HandleException);
+        }
+        orderedExecutor.deleteHandle(URI.create("hdl:" + prefix + "/00-EEEE")).get(10, TimeUnit.SECONDS);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidHandleIsRejected() {
+        orderedExecutor.deleteHandle(URI.create("hdl:99999/00-FFFF"));
+    }
+    
+    
+    private URI target(int i) {
+        return URI.create("http://server/archive/file" + i);
+    }
+    
+    /**
+     * Records the operations per handle, failing if two of them overlap on the same handle.
+     */
+    private static class RecordingHandleManager implements HandleManager {
+        
+        private final Map<String, List<String>> operations = new HashMap<>();
+        private final Set<String> running = new HashSet<>();
+        private CountDownLatch blocked;
+        private CountDownLatch release;
+        private CountDownLatch nextGate;
+        private boolean failNext;
+        private int count;
+        
+        synchronized void block() {
+            blocked = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+            nextGate = release;
+        }
+        
+        void awaitBlocked() throws InterruptedException {
+            assertTrue("Operation did not start", blocked.await(10, TimeUnit.SECONDS));
+        }
+        
+        void unblock() {
+            release.countDown();
+        }
+        
+        synchronized void failNext() {
+            failNext = true;
+        }
+        
+        synchronized List<String> getOperations(String handle) {
+            return new ArrayList<>(operations.get(handle));
+        }
+        
+        synchronized int getOperationCount() {
+            return count;
+        }
+        
+        @Override
+        public URI assignNewHandle(File file, URI targetURI) {
+            throw new UnsupportedOperationException();
+        }
+        
+        @Override
+        public URI assignHandle(File file, URI handle, URI targetURI) throws HandleException {
+            run(handle, "assign " + targetURI);
+            return handle;
+        }
+        
+        @Override
+        public void updateHandle(File file, URI handle, URI newTarget) throws HandleException {
+            run(handle, "update " + newTarget);
+        }
+        
+        @Override
+        public void deleteHandle(URI handle) throws HandleException {
+            run(handle, "delete");
+        }
+        
+        private void run(URI handle, String operation) throws HandleException {
+            String key = new HandleParserImpl("11142").prepareAndValidateHandleWithoutProxy(handle).toString().toUpperCase(Locale.ROOT);
+            CountDownLatch currentRelease;
+            synchronized(this) {
+                if(!running.add(key)) {
+                    throw new AssertionError("Concurrent operations on " + key);
+                }
+                currentRelease = nextGate;
+                nextGate = null;
+                if(currentRelease != null) {
+                    blocked.countDown();
+                }
+            }
+            try {
+                if(currentRelease != null) {
+                    currentRelease.await(10, TimeUnit.SECONDS);
+                } else {
+                    Thread.sleep(1);
+                }
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized(this) {
+                running.remove(key);
+                List<String> handleOperations = operations.get(key);
+                if(handleOperations == null) {
+                    handleOperations = new ArrayList<>();
+                    operations.put(key, handleOperations);
+                }
+                handleOperations.add(operation);
+                count++;
+                if(failNext) {
+                    failNext = false;
+                    throw new HandleException(HandleException.INTERNAL_ERROR, "Failing on purpose");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleManager;
+import nl.mpi.handle.util.implementation.PrioritizedHandleExecutor.Lane;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PrioritizedHandleExecutorTest {
+    
+    private final URI target = URI.create("http://server/archive/file");
+    
+    private final BlockingHandleManager handleManager = new BlockingHandleManager();
+    private PrioritizedHandleExecutor executor;
+    
+    public PrioritizedHandleExecutorTest() {
+    }
+    
+    @After
+    public void tearDown() {
+        handleManager.release.countDown();
+        if(executor != null) {
+            executor.close();
+        }
+    }
+    
+    
+    @Test
+    public void interactiveOperationRunsWhileBulkLaneIsBusy() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 3, 1, 4, 1);
+        for(int i = 0; i < 10; i++) {
+            executor.updateHandle(Lane.BULK, null, handle(i), target);
+        }
+        handleManager.awaitBlocked(2);
+        
+        URI assigned = executor.assignNewHandle(Lane.INTERACTIVE, null, target).get(10, TimeUnit.SECONDS);
+        
+        assertEquals("Assigned handle different from expected", handle(-1), assigned);
+        assertEquals("Waiting bulk operations different from expected", 8, executor.getQueueDepth(Lane.BULK));
+    }
+    
+    @Test
+    public void lanesAreDequeuedByWeight() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 1, 0, 3, 1);
+        executor.updateHandle(Lane.BULK, null, handle(100), target);
+        handleManager.awaitBlocked(1);
+        
+        List<Future<Void>> operations = new ArrayList<>();
+        for(int i = 0; i < 8; i++) {
+            operations.add(executor.updateHandle(Lane.BULK, null, handle(i), target));
+            operations.add(executor.deleteHandle(Lane.INTERACTIVE, handle(i)));
+        }
+        handleManager.release.countDown();
+        for(Future<Void> operation : operations) {
+            operation.get(10, TimeUnit.SECONDS);
+        }
+        
+        List<String> order = handleManager.getOperations();
+        assertEquals("Number of operations different from expected", 17, order.size());
+        assertEquals("Order different from expected",
+                "[update, delete, delete, update, delete, delete, delete, update, delete]", order.subList(0, 9).toString());
+        assertTrue("Bulk operations should run once the interactive lane is empty",
+                order.subList(11, 17).equals(Collections.nCopies(6, "update")));
+    }
+    
+    @Test
+    public void queueDepthIsReported() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 1, 0, 1, 1);
+        InMemoryHandleMetrics metrics = new InMemoryHandleMetrics();
+        executor.setMetrics(metrics);
+        executor.registerGauges(metrics);
+        executor.updateHandle(Lane.BULK, null, handle(0), target);
+        handleManager.awaitBlocked(1);
+        executor.updateHandle(Lane.BULK, null, handle(1), target);
+        executor.updateHandle(Lane.BULK, null, handle(2), target);
+        executor.deleteHandle(Lane.INTERACTIVE, handle(3));
+        
+        assertEquals("Bulk depth different from expected", 2, metrics.getGauge("lane.bulk.depth"));
+        assertEquals("Interactive depth different from expected", 1, metrics.getGauge("lane.interactive.depth"));
+        
+        handleManager.release.countDown();
+        executor.deleteHandle(Lane.INTERACTIVE, handle(4)).get(10, TimeUnit.SECONDS);
+        assertTrue("Interactive wait should have been recorded",
+                metrics.getHistogram("lane.interactive.wait").getCount() > 0);
+    }
+    
+    @Test
+    public void managerViewPropagatesExceptions() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 2, 1, 1, 1);
+        handleManager.release.countDown();
+        HandleManager interactive = executor.asHandleManager(Lane.INTERACTIVE);
+        
+        try {
+            interactive.deleteHandle(URI.create("11142/00-MISSING"));
+            fail("should have thrown an exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_DOES_NOT_EXIST, ex.getCode());
+        }
+    }
+    
+    @Test
+    public void waitingOperationsAreCancelledOnClose() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 1, 0, 1, 1);
+        executor.updateHandle(Lane.BULK, null, handle(0), target);
+        handleManager.awaitBlocked(1);
+        Future<Void> waiting = executor.updateHandle(Lane.BULK, null, handle(1), target);
+        
+        executor.close();
+        
+        try {
+            waiting.get(10, TimeUnit.SECONDS);
+            fail("should have thrown an exception");
+        } catch(CancellationException ex) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void threadKeepsRunningAfterOperationIsCancelled() throws Exception {
+        
+        executor = new PrioritizedHandleExecutor(handleManager, 1, 0, 1, 1);
+        Future<Void> blocked = executor.updateHandle(Lane.BULK, null, handle(0), target);
+        handleManager.awaitBlocked(1);
+        
+        blocked.cancel(true);
+        URI assigned = executor.assignHandle(Lane.BULK, null, handle(1), target).get(10, TimeUnit.SECONDS);
+        
+        assertEquals("Assigned handle different from expected", handle(1), assigned);
+        assertEquals("Operations different from expected", Collections.singletonList("assign"),
+                handleManager.getOperations().subList(1, 2));
+    }
+    
+    
+    private static URI handle(int i) {
+        return URI.create("11142/00-" + i);
+    }
+    
+    /**
+     * Bulk updates block until released; the other operations are only recorded.
+     */
+    private static class BlockingHandleManager implements HandleManager {
+        
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final List<String> operations = new ArrayList<>();
+        private int blocked = 0;
+        
+        synchronized void awaitBlocked(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while(blocked < count && System.currentTimeMillis() < deadline) {
+                wait(100);
+            }
+            assertEquals("Blocked operations different from expected", count, blocked);
+        }
+        
+        synchronized List<String> getOperations() {
+            return new ArrayList<>(operations);
+        }
+        
+        @Override
+        public URI assignNewHandle(File file, URI targetURI) {
+            return handle(-1);
+        }
+        
+        @Override
+        public URI assignHandle(File file, URI handle, URI targetURI) {
+            record(Thread.currentThread().isInterrupted() ? "assign-interrupted" : "assign");
+            return handle;
+        }
+        
+        @Override
+        public void updateHandle(File file, URI handle, URI newTarget) {
+            synchronized(this) {
+                blocked++;
+                notifyAll();
+            }
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            record("update");
+        }
+        
+        @Override
+        public void deleteHandle(URI handle) throws HandleException {
+            if(handle.toString().endsWith("MISSING")) {
+                throw new HandleException(HandleException.HANDLE_DOES_NOT_EXIST, "Handle does not exist: " + handle);
+            }
+            record("delete");
+        }
+        
+        private synchronized void record(String operation) {
+            operations.add(operation);
+        }
+    }
+}
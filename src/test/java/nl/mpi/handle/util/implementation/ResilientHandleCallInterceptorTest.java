@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.handle.hdllib.HandleException;
+import nl.mpi.handle.util.HandleCall;
+import nl.mpi.handle.util.HandleOperation;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ResilientHandleCallInterceptorTest {
+    
+    private ResilientHandleCallInterceptor interceptor;
+    
+    private final String handle = "11142/00-ABCD";
+    
+    
+    public ResilientHandleCallInterceptorTest() {
+    }
+    
+    @Before
+    public void setUp() {
+        HandleResilienceConfig config = new HandleResilienceConfig();
+        config.setMaxAttempts(3);
+        config.setInitialBackoffMillis(1);
+        config.setMaxBackoffMillis(5);
+        config.setDefaultTimeoutMillis(1000);
+        config.setTimeoutMillis(HandleOperation.RESOLVE, 50);
+        config.setFailureThreshold(4);
+        config.setOpenStateMillis(60000);
+        interceptor = new ResilientHandleCallInterceptor(config);
+    }
+    
+    @After
+    public void tearDown() {
+        interceptor.shutdown();
+    }
+    
+    
+    @Test
+    public void successfulCall() throws HandleException {
+        
+        String result = interceptor.intercept(HandleOperation.CREATE, handle, new FailingCall(0, HandleException.SERVER_ERROR));
+        
+        assertEquals("Result different from expected", "done", result);
+        assertEquals("Retry count different from expected", 0, interceptor.getRetryCount());
+    }
+    
+    @Test
+    public void transientFailureIsRetried() throws HandleException {
+        
+        FailingCall call = new FailingCall(2, HandleException.CANNOT_CONNECT_TO_SERVER);
+        
+        String result = interceptor.intercept(HandleOperation.UPDATE, handle, call);
+        
+        assertEquals("Result different from expected", "done", result);
+        assertEquals("Number of attempts different from expected", 3, call.attempts.get());
+        assertEquals("Retry count different from expected", 2, interceptor.getRetryCount());
+        assertEquals("Circuit breaker state different from expected", HandleCircuitBreaker.State.CLOSED, interceptor.getCircuitBreakerState());
+    }
+    
+    @Test
+    public void transientFailureGivesUpAfterMaxAttempts() {
+        
+        FailingCall call = new FailingCall(5, HandleException.SERVER_ERROR);
+        
+        try {
+            interceptor.intercept(HandleOperation.UPDATE, handle, call);
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.SERVER_ERROR, ex.getCode());
+        }
+        assertEquals("Number of attempts different from expected", 3, call.attempts.get());
+        assertEquals("Failure count different from expected", 1, interceptor.getFailureCount());
+    }
+    
+    @Test
+    public void nonTransientFailureIsNotRetried() {
+        
+        FailingCall call = new FailingCall(1, HandleException.HANDLE_ALREADY_EXISTS);
+        
+        try {
+            interceptor.intercept(HandleOperation.CREATE, handle, call);
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.HANDLE_ALREADY_EXISTS, ex.getCode());
+        }
+        assertEquals("Number of attempts different from expected", 1, call.attempts.get());
+        assertEquals("Retry count different from expected", 0, interceptor.getRetryCount());
+    }
+    
+    @Test
+    public void callExceedingDeadlineTimesOut() {
+        
+        HandleCall<String> hangingCall = new HandleCall<String>() {
+            @Override
+            public String call() throws HandleException {
+                try {
+                    Thread.sleep(10000);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return "done";
+            }
+        };
+        
+        try {
+            interceptor.intercept(HandleOperation.RESOLVE, handle, hangingCall);
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Exception code different from expected", HandleException.CANNOT_CONNECT_TO_SERVER, ex.getCode());
+        }
+        assertEquals("Timeout count different from expected", 3, interceptor.getTimeoutCount());
+    }
+    
+    @Test
+    public void circuitBreakerOpensAndRejectsCalls() {
+        
+        FailingCall call = new FailingCall(100, HandleException.CANNOT_CONNECT_TO_SERVER);
+        
+        for(int i = 0; i < 2; i++) {
+            try {
+                interceptor.intercept(HandleOperation.DELETE, handle, call);
+                fail("should have thrown exception");
+            } catch(HandleException ex) {
+                assertEquals("Exception code different from expected", HandleException.CANNOT_CONNECT_TO_SERVER, ex.getCode());
+            }
+        }
+        
+        assertEquals("Circuit breaker state different from expected", HandleCircuitBreaker.State.OPEN, interceptor.getCircuitBreakerState());
+        assertEquals("Number of attempts different from expected", 4, call.attempts.get());
+        assertEquals("Rejection count different from expected", 1, interceptor.getRejectionCount());
+    }
+    
+    @Test
+    public void uncheckedExceptionInTrialCallClosesCircuitBreaker() throws HandleException, InterruptedException {
+        
+        HandleResilienceConfig config = new HandleResilienceConfig();
+        config.setMaxAttempts(1);
+        config.setFailureThreshold(1);
+        config.setOpenStateMillis(20);
+        interceptor.shutdown();
+        interceptor = new ResilientHandleCallInterceptor(config);
+        try {
+            interceptor.intercept(HandleOperation.RESOLVE, handle, new FailingCall(1, HandleException.SERVER_ERROR));
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertEquals("Circuit breaker state different from expected", HandleCircuitBreaker.State.OPEN, interceptor.getCircuitBreakerState());
+        }
+        Thread.sleep(50);
+        
+        try {
+            interceptor.intercept(HandleOperation.RESOLVE, handle, new HandleCall<String>() {
+                @Override
+                public String call() throws HandleException {
+                    throw new IllegalStateException("some exception message");
+                }
+            });
+            fail("should have thrown exception");
+        } catch(IllegalStateException ex) {
+            // expected
+        }
+        
+        String result = interceptor.intercept(HandleOperation.RESOLVE, handle, new FailingCall(0, HandleException.SERVER_ERROR));
+        assertEquals("Result different from expected", "done", result);
+        assertEquals("Rejection count different from expected", 0, interceptor.getRejectionCount());
+    }
+    
+    @Test
+    public void callsAreRejectedWhileAllThreadsAreBusy() throws InterruptedException {
+        
+        HandleResilienceConfig config = new HandleResilienceConfig();
+        config.setMaxAttempts(3);
+        config.setMaxConcurrentCalls(1);
+        interceptor.shutdown();
+        interceptor = new ResilientHandleCallInterceptor(config);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Thread caller = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    interceptor.intercept(HandleOperation.RESOLVE, handle, new HandleCall<String>() {
+                        @Override
+                        public String call() throws HandleException {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch(InterruptedException ex) {
+                                Thread.currentThread().interrupt();
+                            }
+                            return "done";
+                        }
+                    });
+                } catch(HandleException ex) {
+                    // not expected, checked below through the pool size
+                }
+            }
+        };
+        caller.start();
+        assertTrue("Blocking call did not start", started.await(5, TimeUnit.SECONDS));
+        
+        try {
+            interceptor.intercept(HandleOperation.RESOLVE, handle, new FailingCall(0, HandleException.SERVER_ERROR));
+            fail("should have thrown exception");
+        } catch(HandleException ex) {
+            assertTrue("Exception should be a rejection", ex instanceof AdaptiveConcurrencyInterceptor.RejectedCallException);
+        }
+        assertEquals("Pool size different from expected", 1, interceptor.getPoolSize());
+        assertEquals("Retry count different from expected", 0, interceptor.getRetryCount());
+        assertEquals("Rejection count different from expected", 1, interceptor.getRejectionCount());
+        assertEquals("Circuit breaker state different from expected", HandleCircuitBreaker.State.CLOSED, interceptor.getCircuitBreakerState());
+        release.countDown();
+        caller.join();
+    }
+    
+    
+    private static class FailingCall implements HandleCall<String> {
+        
+        private final int failuresBeforeSuccess;
+        private final int errorCode;
+        private final AtomicInteger attempts = new AtomicInteger();
+        
+        FailingCall(int failuresBeforeSuccess, int errorCode) {
+            this.failuresBeforeSuccess = failuresBeforeSuccess;
+            this.errorCode = errorCode;
+        }
+
+        @Override
+        public String call() throws HandleException {
+            if(attempts.incrementAndGet() <= failuresBeforeSuccess) {
+                throw new HandleException(errorCode, "some exception message");
+            }
+            return "done";
+        }
+    }
+}
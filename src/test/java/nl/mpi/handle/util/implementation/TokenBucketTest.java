@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+    
+    public TokenBucketTest() {
+    }
+    
+    
+    @Test
+    public void burstUpToCapacityDoesNotWait() throws InterruptedException {
+        
+        TokenBucket bucket = new TokenBucket(1, 1000);
+        bucket.acquire(600);
+        bucket.acquire(400);
+        
+        // a caller only waits while the bucket is in debt
+        assertTrue("Acquiring within the capacity should not leave the bucket in debt", bucket.getAvailable() >= 0);
+        assertTrue("Tokens should have been taken", bucket.getAvailable() < 600);
+    }
+    
+    @Test
+    public void acquiringBeyondCapacityWaitsForRefill() throws InterruptedException {
+        
+        TokenBucket bucket = new TokenBucket(1000, 100);
+        long start = System.nanoTime();
+        bucket.acquire(100);
+        bucket.acquire(200);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        
+        assertTrue("Acquiring beyond the capacity should wait for the refill (" + elapsedMillis + " ms)", elapsedMillis >= 190);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRateIsRejected() {
+        new TokenBucket(0, 10);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UuidHandleMapTest {
+    
+    private final String prefix = "11142";
+    
+    public UuidHandleMapTest() {
+    }
+    
+    
+    @Test
+    public void putGetAndRemove() {
+        
+        UuidHandleMap<String> map = new UuidHandleMap<>(prefix);
+        UuidHandle handle = new UuidHandle(prefix, UUID.randomUUID());
+        
+        assertNull("There should be no previous value", map.put(handle, "first"));
+        assertEquals("Previous value different from expected", "first", map.put(handle, "second"));
+        assertEquals("Value different from expected", "second", map.get(UuidHandle.parse(handle.toString())));
+        assertTrue("Handle should be in the map", map.containsKey(handle));
+        
+        assertEquals("Removed value different from expected", "second", map.remove(handle));
+        assertNull("Handle should not be in the map", map.get(handle));
+        assertTrue("Map should be empty", map.isEmpty());
+    }
+    
+    @Test
+    public void behavesLikeHashMap() {
+        
+        Random random = new Random(7);
+        UuidHandleMap<Integer> map = new UuidHandleMap<>(prefix, 10);
+        Map<UuidHandle, Integer> expected = new HashMap<>();
+        for(int i = 0; i < 200000; i++) {
+            UuidHandle handle = new UuidHandle(prefix, random.nextInt(3), random.nextInt(4000));
+            if(handle.getMostSignificantBits() == 0 && handle.getLeastSignificantBits() == 0) {
+                continue;
+            }
+            if(random.nextInt(3) == 0) {
+                assertEquals("Removed value different from expected", expected.remove(handle), map.remove(handle));
+            } else {
+                assertEquals("Previous value different from expected", expected.put(handle, i), map.put(handle, i));
+            }
+        }
+        
+        assertEquals("Size different from expected", expected.size(), map.size());
+        int keys = 0;
+        for(UuidHandle handle : map.keys()) {
+            assertEquals("Value different from expected", expected.get(handle), map.get(handle));
+            keys++;
+        }
+        assertEquals("Number of keys different from expected", expected.size(), keys);
+    }
+}
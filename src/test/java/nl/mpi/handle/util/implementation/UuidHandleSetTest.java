@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UuidHandleSetTest {
+    
+    private final String prefix = "11142";
+    
+    public UuidHandleSetTest() {
+    }
+    
+    
+    @Test
+    public void addContainsAndRemove() {
+        
+        UuidHandleSet set = new UuidHandleSet(prefix);
+        UuidHandle handle = new UuidHandle(prefix, UUID.randomUUID());
+        
+        assertTrue("Handle should have been added", set.add(handle));
+        assertFalse("Handle should have been added already", set.add(UuidHandle.parse(handle.toString())));
+        assertTrue("Handle should be in the set", set.contains(handle));
+        assertFalse("Handle with another prefix should not be in the set", set.contains(new UuidHandle("11143", handle.toUuid())));
+        assertEquals("Size different from expected", 1, set.size());
+        
+        assertTrue("Handle should have been removed", set.remove(handle));
+        assertFalse("Handle should not be in the set", set.contains(handle));
+        assertTrue("Set should be empty", set.isEmpty());
+    }
+    
+    @Test
+    public void behavesLikeHashSet() {
+        
+        // few distinct keys with the same high bits, to get long clusters and many removals within them
+        Random random = new Random(42);
+        UuidHandleSet set = new UuidHandleSet(prefix);
+        Set<UuidHandle> expected = new HashSet<>();
+        for(int i = 0; i < 200000; i++) {
+            UuidHandle handle = new UuidHandle(prefix, 7, 1 + random.nextInt(5000));
+            if(random.nextInt(3) == 0) {
+                assertEquals("Removal different from expected", expected.remove(handle), set.remove(handle));
+            } else {
+                assertEquals("Addition different from expected", expected.add(handle), set.add(handle));
+            }
+        }
+        
+        assertEquals("Size different from expected", expected.size(), set.size());
+        Set<UuidHandle> iterated = new HashSet<>();
+        for(UuidHandle handle : set) {
+            iterated.add(handle);
+        }
+        assertEquals("Iterated handles different from expected", expected, iterated);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void otherPrefixIsRejected() {
+        new UuidHandleSet(prefix).add(new UuidHandle("11143", UUID.randomUUID()));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void nilUuidIsRejected() {
+        new UuidHandleSet(prefix).add(0, 0);
+    }
+}
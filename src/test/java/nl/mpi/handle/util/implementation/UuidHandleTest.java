@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2015 Max Planck Institute for Psycholinguistics
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package nl.mpi.handle.util.implementation;
+
+import java.util.UUID;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class UuidHandleTest {
+    
+    public UuidHandleTest() {
+    }
+    
+    
+    @Test
+    public void generatedHandleRoundTrip() {
+        
+        String generated = new HandleInfoProviderImpl("11142").generateUuidHandle();
+        
+        UuidHandle handle = UuidHandle.parse(generated);
+        
+        assertEquals("Prefix different from expected", "11142", handle.getPrefix());
+        assertEquals("Formatted handle different from expected", generated, handle.toString());
+        assertEquals("URI different from expected", generated, handle.toUri().toString());
+    }
+    
+    @Test
+    public void matchesJavaUuid() {
+        
+        for(int i = 0; i < 100; i++) {
+            UUID uuid = UUID.randomUUID();
+            UuidHandle handle = UuidHandle.parse("11142", uuid.toString());
+            
+            assertEquals("UUID different from expected", uuid, handle.toUuid());
+            assertEquals("Formatted handle different from expected",
+                    "11142/" + uuid.toString().toUpperCase(), handle.toString());
+            assertEquals("Handle different from expected", new UuidHandle("11142", uuid), handle);
+        }
+    }
+    
+    @Test
+    public void lowerCaseUuidIsAccepted() {
+        
+        UuidHandle upper = UuidHandle.parse("11142/00000000-0000-0000-0000-00000000ABCD");
+        UuidHandle lower = UuidHandle.parse("11142/00000000-0000-0000-0000-00000000abcd");
+        
+        assertEquals("Handles should be equal", upper, lower);
+        assertEquals("Hash codes should be equal", upper.hashCode(), lower.hashCode());
+        assertEquals("Least significant bits different from expected", 0xABCDL, lower.getLeastSignificantBits());
+    }
+    
+    @Test
+    public void ordering() {
+        
+        UuidHandle first = UuidHandle.parse("11142/00000000-0000-0000-0000-000000000001");
+        UuidHandle second = UuidHandle.parse("11142/00000000-0000-0001-0000-000000000000");
+        
+        assertTrue("Handles not in the expected order", first.compareTo(second) < 0);
+        assertTrue("Handles not in the expected order", second.compareTo(first) > 0);
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void missingPrefix() {
+        UuidHandle.parse("00000000-0000-0000-0000-000000000001");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void notUuid() {
+        UuidHandle.parse("11142/ABCDEFGH-0000-0000-0000-000000000001");
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void misplacedDash() {
+        UuidHandle.parse("11142/0000000-00000-0000-0000-000000000001");
+    }
+}